@@ -0,0 +1,117 @@
+package de.comroid.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free multi-producer/multi-consumer queue.
+ * <p>
+ * Every slot carries a sequence number that tells producers and consumers whether the slot is free or filled
+ * for their lap around the ring, so both sides only contend on a single compare-and-set of their own index.
+ *
+ * @param <E> Type-variable for the queued elements.
+ */
+public class BoundedQueue<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final Sequence head = new Sequence(); // next index to poll
+    private final Sequence tail = new Sequence(); // next index to offer
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The minimum amount of elements the queue can hold. Is rounded up to the next power of two,
+     *                 and to at least {@code 2}, because the sequence of a single slot cannot tell both laps apart.
+     *
+     * @throws IllegalArgumentException If the capacity is smaller than {@code 1} or larger than {@code 2^30}.
+     */
+    public BoundedQueue(int capacity) throws IllegalArgumentException {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+
+        int size = Math.max(Integer.highestOneBit(capacity), 2);
+        if (size < capacity) size <<= 1;
+
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Gets the amount of elements this queue can hold.
+     *
+     * @return The capacity of this queue.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Gets the amount of queued elements. The result is only a snapshot under concurrent access.
+     *
+     * @return The amount of queued elements.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * Appends an element, if there is room.
+     *
+     * @param element The element to append.
+     *
+     * @return Whether the element has been appended; {@code false} if the queue is full.
+     * @throws NullPointerException If the element is {@code null}.
+     */
+    public boolean offer(E element) throws NullPointerException {
+        if (element == null)
+            throw new NullPointerException("element");
+
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long lap = sequences.get(index) - t;
+
+            if (lap == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    elements.lazySet(index, element);
+                    // publishes the element to consumers
+                    sequences.lazySet(index, t + 1);
+                    return true;
+                }
+            } else if (lap < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, if there is one.
+     *
+     * @return The oldest element, or {@code null} if the queue is empty.
+     */
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            int index = (int) h & mask;
+            long lap = sequences.get(index) - (h + 1);
+
+            if (lap == 0) {
+                if (head.compareAndSet(h, h + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    // frees the slot for the producers of the next lap
+                    sequences.lazySet(index, h + mask + 1);
+                    return element;
+                }
+            } else if (lap < 0) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package de.comroid.util.concurrent;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel for large amounts of short timeouts that are usually cancelled before they expire.
+ * <p>
+ * Scheduling and cancelling are O(1) and lock-free; expiry is only precise to one tick.
+ * All tasks run on the single worker thread of the wheel and should therefore be short.
+ */
+public class HashedTimingWheel implements Closeable {
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startNanos;
+    private volatile boolean running = true;
+    private long tick = 0;
+
+    /**
+     * Constructor. Starts the worker thread as a daemon thread.
+     *
+     * @param tickDuration  The duration of one tick.
+     * @param unit          The unit of {@code tickDuration}.
+     * @param ticksPerWheel The amount of buckets of the wheel. Is rounded up to the next power of two.
+     * @param threadName    The name of the worker thread.
+     *
+     * @throws IllegalArgumentException If the tick duration or the amount of ticks is smaller than {@code 1}.
+     */
+    public HashedTimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, String threadName)
+            throws IllegalArgumentException {
+        if (tickDuration < 1)
+            throw new IllegalArgumentException("Tick duration must be positive");
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 30)
+            throw new IllegalArgumentException("Ticks per wheel out of range: " + ticksPerWheel);
+
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) size <<= 1;
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once after the given delay.
+     *
+     * @param task  The task to run on the worker thread.
+     * @param delay The delay after which the task runs.
+     * @param unit  The unit of {@code delay}.
+     *
+     * @return A handle that can cancel the task.
+     * @throws IllegalStateException If the wheel has been {@linkplain #close() closed}.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) throws IllegalStateException {
+        if (!running)
+            throw new IllegalStateException("Timing wheel is closed");
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0)));
+        scheduled.add(timeout);
+
+        return timeout;
+    }
+
+    /**
+     * Stops the worker thread. Pending tasks are discarded without running.
+     */
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos;
+
+            while ((sleepNanos = deadline - (System.nanoTime() - startNanos)) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) return;
+                }
+            }
+
+            transferScheduled();
+            wheel[(int) tick & mask].expire(tick);
+            tick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() != Timeout.PENDING)
+                continue;
+
+            // timeouts that are already due expire on the current tick
+            long dueTick = Math.max(timeout.deadlineNanos / tickNanos, tick);
+            timeout.dueTick = dueTick;
+            wheel[(int) dueTick & mask].add(timeout);
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static final class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private long dueTick;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * Cancels the task, if it has not run yet.
+         *
+         * @return Whether the task has been cancelled by this call.
+         */
+        public boolean cancel() {
+            // the bucket drops cancelled timeouts lazily when its tick comes around
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        /**
+         * Whether the task has been cancelled.
+         *
+         * @return Whether the task has been cancelled.
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Whether the task has run.
+         *
+         * @return Whether the task has expired.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    // confined to the worker thread
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expire(long tick) {
+            Timeout timeout = head;
+
+            while (timeout != null) {
+                Timeout next = timeout.next;
+
+                if (timeout.state.get() == Timeout.CANCELLED) {
+                    remove(timeout);
+                } else if (timeout.dueTick <= tick) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        }
+                    }
+                }
+
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+            if (timeout.next != null) timeout.next.prev = timeout.prev;
+            else tail = timeout.prev;
+
+            timeout.prev = timeout.next = null;
+        }
+    }
+}
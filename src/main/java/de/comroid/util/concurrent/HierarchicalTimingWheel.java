@@ -0,0 +1,273 @@
+package de.comroid.util.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hierarchical timing wheel for large amounts of long timeouts, advanced by its owner instead of a worker thread.
+ * <p>
+ * Level {@code 0} has one slot per tick; every further slot spans a whole rotation of the level below, and is
+ * cascaded into the lower levels when that rotation begins. Timers are linked into their slots intrusively, so that
+ * scheduling, rescheduling and cancelling are O(1) and do not allocate, and {@link #advance(long, Expiry)} only
+ * visits the slots that are due. Deadlines beyond the range of the top level are parked in it until they are in
+ * range. Expiry is only precise to one tick, but never early.
+ * <p>
+ * Not thread-safe; all methods must be called from one thread or under one lock.
+ *
+ * @param <T> The type of the values of the timers.
+ */
+public class HierarchicalTimingWheel<T> {
+    private final long tickNanos;
+    private final int bits;
+    private final int mask;
+    private final int levels;
+    private final long range;
+    private final Timer<T>[] slots;
+    private final long originNanos;
+    private long tick = 0;
+    private int size = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param tickDuration  The duration of one tick.
+     * @param unit          The unit of {@code tickDuration}.
+     * @param slotsPerLevel The amount of slots of every level. Is rounded up to the next power of two.
+     * @param levels        The amount of levels.
+     * @param nowNanos      The current {@link System#nanoTime()}, at which the wheel starts.
+     *
+     * @throws IllegalArgumentException If the tick duration is smaller than {@code 1},
+     *                                  or the levels span more than {@code 2^62} ticks.
+     */
+    public HierarchicalTimingWheel(long tickDuration, TimeUnit unit, int slotsPerLevel, int levels, long nowNanos)
+            throws IllegalArgumentException {
+        if (tickDuration < 1)
+            throw new IllegalArgumentException("Tick duration must be positive");
+        if (slotsPerLevel < 2 || slotsPerLevel > 1 << 16)
+            throw new IllegalArgumentException("Slots per level out of range: " + slotsPerLevel);
+
+        int size = Integer.highestOneBit(slotsPerLevel);
+        if (size < slotsPerLevel) size <<= 1;
+        int bits = Integer.numberOfTrailingZeros(size);
+        if (levels < 1 || bits * levels > 62)
+            throw new IllegalArgumentException("Levels out of range: " + levels);
+
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.bits = bits;
+        this.mask = size - 1;
+        this.levels = levels;
+        this.range = 1L << bits * levels;
+        @SuppressWarnings("unchecked")
+        Timer<T>[] slots = (Timer<T>[]) new Timer<?>[levels << bits];
+        this.slots = slots;
+        this.originNanos = nowNanos;
+    }
+
+    /**
+     * Schedules the given timer to expire at the given deadline.
+     * A timer that is already scheduled is moved to the new deadline.
+     *
+     * @param timer         The timer to schedule.
+     * @param deadlineNanos The {@link System#nanoTime()} at which the timer expires.
+     *
+     * @throws IllegalArgumentException If the timer is scheduled on another wheel.
+     */
+    public void schedule(Timer<T> timer, long deadlineNanos) throws IllegalArgumentException {
+        if (timer.wheel == null) {
+            timer.wheel = this;
+            size++;
+        } else if (timer.wheel == this) {
+            unlink(timer);
+        } else {
+            throw new IllegalArgumentException("Timer is scheduled on another wheel");
+        }
+
+        timer.deadlineNanos = deadlineNanos;
+        // round up, so that no timer expires early; due timers expire on the next tick
+        long offset = deadlineNanos - originNanos;
+        timer.dueTick = Math.max(offset <= 0 ? 0 : (offset - 1) / tickNanos + 1, tick + 1);
+        file(timer);
+    }
+
+    /**
+     * Cancels the given timer.
+     *
+     * @param timer The timer to cancel.
+     *
+     * @return Whether the timer was scheduled on this wheel.
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (timer.wheel != this)
+            return false;
+
+        unlink(timer);
+        timer.wheel = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel to the given time and expires every timer whose deadline has passed.
+     * Expired timers are unscheduled before the callback, which may schedule them again.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @param expiry   The callback for the expired timers.
+     *
+     * @return The amount of expired timers.
+     */
+    public int advance(long nowNanos, Expiry<T> expiry) {
+        long target = (nowNanos - originNanos) / tickNanos;
+        int expired = 0;
+
+        while (tick < target) {
+            if (size == 0) {
+                // nothing to cascade or expire on the way
+                tick = target;
+                break;
+            }
+
+            tick++;
+            for (int level = 1; level < levels && (tick & (1L << bits * level) - 1) == 0; level++)
+                cascade(level << bits | (int) (tick >>> bits * level) & mask);
+
+            Timer<T> timer;
+            int slot = (int) tick & mask;
+            while ((timer = slots[slot]) != null) {
+                unlink(timer);
+                if (timer.dueTick > tick) {
+                    // parked beyond the range of the top level
+                    file(timer);
+                    continue;
+                }
+
+                timer.wheel = null;
+                size--;
+                expired++;
+                expiry.onExpired(timer);
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * Gets the amount of scheduled timers.
+     *
+     * @return The amount of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the duration of one tick.
+     *
+     * @return The tick duration in nanoseconds.
+     */
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    private void cascade(int slot) {
+        Timer<T> timer;
+
+        while ((timer = slots[slot]) != null) {
+            unlink(timer);
+            file(timer);
+        }
+    }
+
+    private void file(Timer<T> timer) {
+        long delta = Math.min(timer.dueTick - tick, range - 1);
+        long due = tick + delta;
+        int level = 0;
+
+        while (level < levels - 1 && delta >= 1L << bits * (level + 1))
+            level++;
+
+        int slot = level << bits | (int) (due >>> bits * level) & mask;
+        Timer<T> head = slots[slot];
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = head;
+        if (head != null)
+            head.prev = timer;
+        slots[slot] = timer;
+    }
+
+    private void unlink(Timer<T> timer) {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    /**
+     * Callback for expired timers.
+     *
+     * @param <T> The type of the values of the timers.
+     */
+    public interface Expiry<T> {
+        /**
+         * Called for every expired timer, by {@link #advance(long, Expiry)}.
+         *
+         * @param timer The expired timer.
+         */
+        void onExpired(Timer<T> timer);
+    }
+
+    /**
+     * A timer that can be scheduled on one wheel at a time. Meant to be created once per value and reused.
+     *
+     * @param <T> The type of the value of the timer.
+     */
+    public static final class Timer<T> {
+        private final T value;
+        private HierarchicalTimingWheel<T> wheel;
+        private long deadlineNanos;
+        private long dueTick;
+        private int slot;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        /**
+         * Constructor.
+         *
+         * @param value The value of the timer.
+         */
+        public Timer(T value) {
+            this.value = value;
+        }
+
+        /**
+         * Gets the value of this timer.
+         *
+         * @return The value.
+         */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * Gets the deadline this timer has last been scheduled for.
+         *
+         * @return The deadline as {@link System#nanoTime()}.
+         */
+        public long getDeadlineNanos() {
+            return deadlineNanos;
+        }
+
+        /**
+         * Whether this timer is scheduled on a wheel.
+         *
+         * @return Whether this timer is scheduled.
+         */
+        public boolean isScheduled() {
+            return wheel != null;
+        }
+    }
+}
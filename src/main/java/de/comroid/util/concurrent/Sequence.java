@@ -0,0 +1,90 @@
+package de.comroid.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A {@code long} counter that is padded to occupy its own cache line,
+ * so that two sequences written by different threads never share one.
+ * <p>
+ * Supports ordered publication through {@link #lazySet(long)}, which is cheaper than a volatile write
+ * when only a single thread ever writes the sequence.
+ */
+public class Sequence extends SequenceRhsPadding {
+    /**
+     * Constructor.
+     *
+     * @param initial The initial value of this sequence.
+     */
+    public Sequence(long initial) {
+        value = initial;
+    }
+
+    /**
+     * Constructor, initializing the value with {@code 0}.
+     */
+    public Sequence() {
+        this(0);
+    }
+
+    /**
+     * Gets the current value with volatile semantics.
+     *
+     * @return The current value.
+     */
+    public long get() {
+        return value;
+    }
+
+    /**
+     * Sets the value with volatile semantics.
+     *
+     * @param value The new value.
+     */
+    public void set(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Sets the value with ordered (store-store) semantics.
+     * All writes before this call become visible to other threads before the new value does.
+     *
+     * @param value The new value.
+     */
+    public void lazySet(long value) {
+        SequenceValue.UPDATER.lazySet(this, value);
+    }
+
+    /**
+     * Atomically sets the value to {@code update} if it currently equals {@code expect}.
+     *
+     * @param expect The expected current value.
+     * @param update The new value.
+     *
+     * @return Whether the value was updated.
+     */
+    public boolean compareAndSet(long expect, long update) {
+        return SequenceValue.UPDATER.compareAndSet(this, expect, update);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(value);
+    }
+}
+
+@SuppressWarnings("unused")
+class SequenceLhsPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequenceLhsPadding {
+    static final AtomicLongFieldUpdater<SequenceValue> UPDATER
+            = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+
+    protected volatile long value;
+}
+
+@SuppressWarnings("unused")
+class SequenceRhsPadding extends SequenceValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
@@ -0,0 +1,79 @@
+package de.comroid.util.concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Strategies for a thread that has to wait for another thread to make progress,
+ * trading CPU usage for wake-up latency.
+ */
+public enum WaitStrategy {
+    /**
+     * Spins without ever giving up the CPU.
+     * Lowest wake-up latency, but occupies one core completely while waiting.
+     */
+    BUSY_SPIN {
+        @Override
+        public int idle(int counter) {
+            return counter + 1;
+        }
+    },
+
+    /**
+     * Spins for a short while, then yields the CPU to other threads on every further attempt.
+     */
+    YIELD {
+        @Override
+        public int idle(int counter) {
+            if (counter < SPIN_TRIES)
+                return counter + 1;
+
+            Thread.yield();
+            return counter;
+        }
+    },
+
+    /**
+     * Spins for a short while, then yields, then parks the thread for {@link #PARK_NANOS} per attempt.
+     * Lowest CPU usage, but wake-up latency is bound to the timer resolution of the operating system.
+     */
+    PARK {
+        @Override
+        public int idle(int counter) {
+            if (counter < SPIN_TRIES)
+                return counter + 1;
+            if (counter < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+                return counter + 1;
+            }
+
+            LockSupport.parkNanos(PARK_NANOS);
+            return counter;
+        }
+    };
+
+    /**
+     * Amount of attempts that only spin before a strategy starts to give up the CPU.
+     */
+    public static final int SPIN_TRIES = 100;
+
+    /**
+     * Amount of attempts that {@link #PARK} yields before it starts to park.
+     */
+    public static final int YIELD_TRIES = 100;
+
+    /**
+     * Nanoseconds that {@link #PARK} parks the waiting thread per attempt.
+     */
+    public static final long PARK_NANOS = 1000;
+
+    /**
+     * Waits once.
+     * Callers start with a counter of {@code 0} and pass the returned value to the next invocation,
+     * until the awaited condition is met.
+     *
+     * @param counter The counter returned by the previous invocation, or {@code 0}.
+     *
+     * @return The counter for the next invocation.
+     */
+    public abstract int idle(int counter);
+}
@@ -1,8 +1,19 @@
 package de.comroid.vban;
 
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
 
 import de.comroid.util.model.ByteArray;
 
@@ -63,11 +74,68 @@ public class Util {
      */
     public static byte[] createByteArray(Object data) {
         // Must support types: CharSequence, ByteArray
-        if (data instanceof CharSequence) return ((CharSequence) data).toString().getBytes(StandardCharsets.UTF_8);
-        else if (data instanceof ByteArray) return ((ByteArray) data).getBytes();
+        // ByteArray first, so that binary CharSequences like MIDICommand keep their raw bytes
+        if (data instanceof ByteArray) return ((ByteArray) data).getBytes();
+        else if (data instanceof CharSequence) return ((CharSequence) data).toString().getBytes(StandardCharsets.UTF_8);
         else throw new IllegalArgumentException("Unknown Data Type! Please contact the developer.");
     }
 
+    /**
+     * Encodes the given text as UTF-8 into the given buffer, without allocating.
+     * Unpaired surrogates are encoded as {@code '?'}, like {@link String#getBytes(Charset)} does.
+     *
+     * @param text The text to encode.
+     * @param dst  The buffer to write to, at its position.
+     *
+     * @return The amount of written bytes.
+     * @throws BufferOverflowException If the encoded text does not fit into the remaining buffer;
+     *                                 nothing is written in that case.
+     */
+    public static int encodeUTF8(CharSequence text, ByteBuffer dst) throws BufferOverflowException {
+        int length = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(text, i)) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        if (length > dst.remaining())
+            throw new BufferOverflowException();
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (isSurrogatePair(text, i)) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                dst.put((byte) (0xF0 | codePoint >> 18))
+                        .put((byte) (0x80 | codePoint >> 12 & 0x3F))
+                        .put((byte) (0x80 | codePoint >> 6 & 0x3F))
+                        .put((byte) (0x80 | codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                dst.put((byte) '?');
+            } else {
+                dst.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+
+        return length;
+    }
+
     /**
      * Checks whether the given integer is within the given boundaries,
      * and if not, throws an {@link IllegalArgumentException}.
@@ -120,4 +188,95 @@ public class Util {
 
         return str.toString();
     }
+
+    /**
+     * Opens a new, unbound {@link DatagramChannel} suitable for sending to or receiving from the given address.
+     * Channels for multicast groups are opened with the protocol family of the group, which joining requires.
+     *
+     * @param address The address the channel will be used with.
+     *
+     * @return A new datagram channel.
+     * @throws SocketException If the channel cannot be opened.
+     */
+    public static DatagramChannel openDatagramChannel(InetAddress address) throws SocketException {
+        try {
+            if (address.isMulticastAddress())
+                return DatagramChannel.open(address instanceof Inet6Address
+                        ? StandardProtocolFamily.INET6
+                        : StandardProtocolFamily.INET);
+            return DatagramChannel.open();
+        } catch (SocketException e) {
+            throw e;
+        } catch (IOException e) {
+            SocketException ex = new SocketException("Could not open channel: " + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks whether the given address is the limited broadcast address {@code 255.255.255.255}
+     * or the broadcast address of any local network interface.
+     * Loopback, multicast and wildcard addresses are rejected without listing the network interfaces.
+     *
+     * @param address The address to check.
+     *
+     * @return Whether the address is a broadcast address.
+     * @throws SocketException If the network interfaces cannot be listed.
+     */
+    public static boolean isBroadcastAddress(InetAddress address) throws SocketException {
+        if (!(address instanceof Inet4Address))
+            return false;
+
+        byte[] raw = address.getAddress();
+        if ((raw[0] & raw[1] & raw[2] & raw[3]) == (byte) 0xFF)
+            return true;
+        if (address.isLoopbackAddress() || address.isMulticastAddress() || address.isAnyLocalAddress())
+            return false;
+
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces != null && interfaces.hasMoreElements())
+            for (InterfaceAddress interfaceAddress : interfaces.nextElement().getInterfaceAddresses())
+                if (address.equals(interfaceAddress.getBroadcast()))
+                    return true;
+
+        return false;
+    }
+
+    /**
+     * Finds the network interface on which to join the given multicast group by default:
+     * the first interface that is up, supports multicast, is not a loopback interface,
+     * and has an address of the group's protocol family. Falls back to the loopback interface.
+     *
+     * @param group The multicast group.
+     *
+     * @return The default network interface for the group.
+     * @throws SocketException If the network interfaces cannot be listed, or no interface has been found.
+     */
+    public static NetworkInterface defaultMulticastInterface(InetAddress group) throws SocketException {
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+
+        while (interfaces != null && interfaces.hasMoreElements()) {
+            NetworkInterface networkInterface = interfaces.nextElement();
+
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast()
+                    || networkInterface.isLoopback() || networkInterface.isVirtual())
+                continue;
+
+            for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses())
+                if (interfaceAddress.getAddress().getClass() == group.getClass())
+                    return networkInterface;
+        }
+
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        if (loopback == null)
+            throw new SocketException("No network interface found for multicast group " + group);
+        return loopback;
+    }
+
+    private static boolean isSurrogatePair(CharSequence text, int index) {
+        return Character.isHighSurrogate(text.charAt(index))
+                && index + 1 < text.length()
+                && Character.isLowSurrogate(text.charAt(index + 1));
+    }
 }
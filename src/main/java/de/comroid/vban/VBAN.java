@@ -1,19 +1,27 @@
 package de.comroid.vban;
 
+import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import de.comroid.util.model.Bindable;
 import de.comroid.util.model.Factory;
 import de.comroid.util.model.IntEnum;
+import de.comroid.vban.codec.TextCodec;
 import de.comroid.vban.model.DataRateValue;
 import de.comroid.vban.model.FormatValue;
 import de.comroid.vban.model.data.AudioFrame;
 import de.comroid.vban.model.data.MIDICommand;
 import de.comroid.vban.packet.VBANPacket;
 import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -287,8 +295,88 @@ public final class VBAN {
         return new VBANInputStream<>(Protocol.TEXT, address, port);
     }
 
+    // multicast
+
+    /**
+     * Opens a new receiving stream that joins a multicast group.
+     * Several streams on one host may join the same group and port.
+     *
+     * @param protocol   The protocol of the packets to receive.
+     * @param group      The multicast group to join.
+     * @param port       The port to bind to.
+     * @param interfaces The interfaces to join the group on. If none are given,
+     *                   the {@linkplain Util#defaultMulticastInterface(InetAddress) default interface} is used.
+     * @param <T>        Type-variable for the stream type.
+     *
+     * @return A new {@linkplain VBANInputStream receiver stream}.
+     * @throws SocketException          If the socket cannot be opened or bound, or the group cannot be joined.
+     * @throws IllegalArgumentException If the address is not a multicast group.
+     */
+    public static <T> VBANInputStream<T> openMulticastInputStream(
+            Protocol<T> protocol,
+            InetAddress group,
+            int port,
+            NetworkInterface... interfaces)
+            throws SocketException, IllegalArgumentException {
+        if (!group.isMulticastAddress())
+            throw new IllegalArgumentException("Not a multicast address: " + group);
+
+        return new VBANInputStream<>(protocol, group, port, interfaces);
+    }
+
+    /**
+     * Opens a new sending stream to a multicast group.
+     * Datagrams are looped back to receivers on the same host.
+     *
+     * @param packetFactory    The packet factory to use.
+     * @param group            The multicast group to send to.
+     * @param port             The port to send to.
+     * @param networkInterface The interface to send from, or {@code null} to let the system choose.
+     * @param timeToLive       The time-to-live of the datagrams; {@code 1} keeps them within the local network.
+     * @param <T>              Type-variable for the stream type.
+     *
+     * @return A new {@linkplain VBANOutputStream sender stream}.
+     * @throws IOException              If the socket cannot be opened or configured.
+     * @throws IllegalArgumentException If the address is not a multicast group, or the time-to-live is out of range.
+     */
+    public static <T> VBANOutputStream<T> openMulticastOutputStream(
+            Factory<VBANPacket<T>> packetFactory,
+            InetAddress group,
+            int port,
+            @Nullable NetworkInterface networkInterface,
+            int timeToLive)
+            throws IOException, IllegalArgumentException {
+        if (!group.isMulticastAddress())
+            throw new IllegalArgumentException("Not a multicast address: " + group);
+
+        VBANOutputStream<T> stream = new VBANOutputStream<>(packetFactory, group, port);
+
+        try {
+            stream.setMulticastTimeToLive(timeToLive)
+                    .setMulticastLoopback(true);
+            if (networkInterface != null)
+                stream.setMulticastInterface(networkInterface);
+        } catch (IOException | IllegalArgumentException e) {
+            stream.close();
+            throw e;
+        }
+
+        return stream;
+    }
+
     /**
      * Collection of protocol values, required for creating a {@link VBANPacketHead.Factory}.
+     * <p>
+     * Every protocol is also the codec of its payload type: {@link #encodeInto(Object, ByteBuffer)} and
+     * {@link #decodeInto(ByteBuffer, Object)} work directly on packet buffers, and do not allocate for the built-in
+     * protocols as long as a reusable object is passed, except that text is always decoded into a new {@link String}.
+     * Custom payload types can be used by subclassing this class for one of the four protocol values:
+     * <pre>{@code
+     * Protocol<float[]> floats = new Protocol<float[]>(Protocol.AUDIO.getValue()) {
+     *     public int encodeInto(float[] data, ByteBuffer dst) { ... }
+     *     public float[] decodeInto(ByteBuffer src, float[] reuse) { ... }
+     * };
+     * }</pre>
      */
     public static abstract class Protocol<T> implements Bindable<T>, IntEnum {
         public final static Protocol<AudioFrame> AUDIO = new Protocol<AudioFrame>(0x00) {
@@ -296,33 +384,199 @@ public final class VBAN {
             public AudioFrame createDataObject(byte[] bytes) {
                 return AudioFrame.fromBytes(bytes);
             }
+
+            @Override
+            public int encodeInto(AudioFrame data, ByteBuffer dst) {
+                dst.put(data.getBufferArray(), 0, data.length());
+                return data.length();
+            }
+
+            @Override
+            public AudioFrame decodeInto(ByteBuffer src, @Nullable AudioFrame reuse) {
+                int length = src.remaining();
+                AudioFrame frame = reuse != null && reuse.getBufferArray().length >= length
+                        ? reuse
+                        : AudioFrame.allocate(length);
+
+                src.get(frame.getBufferArray(), 0, length);
+                return frame.setLength(length);
+            }
         };
         public final static Protocol<MIDICommand> SERIAL = new Protocol<MIDICommand>(0x20) {
             @Override
             public MIDICommand createDataObject(byte[] bytes) {
                 return MIDICommand.fromBytes(bytes);
             }
+
+            @Override
+            public int encodeInto(MIDICommand data, ByteBuffer dst) {
+                dst.put(data.getBufferArray(), 0, data.length());
+                return data.length();
+            }
+
+            @Override
+            public MIDICommand decodeInto(ByteBuffer src, @Nullable MIDICommand reuse) {
+                int length = src.remaining();
+                MIDICommand command = reuse != null && reuse.getBufferArray().length >= length
+                        ? reuse
+                        : MIDICommand.allocate(length);
+
+                src.get(command.getBufferArray(), 0, length);
+                return command.setLength(length);
+            }
         };
         public final static Protocol<String> TEXT = new Protocol<String>(0x40) {
             @Override
             public String createDataObject(byte[] bytes) {
                 return new String(bytes, StandardCharsets.US_ASCII);
             }
+
+            @Override
+            public String createDataObject(VBANPacketView view) {
+                // honour the charset declared by the head, and stop at zero padding
+                CommandFormat format = CommandFormat.byValue(view.getFormatValue());
+                byte[] buffer = view.getBuffer();
+                int offset = view.getPayloadOffset();
+                int length = TextCodec.terminatedLength(buffer, offset, view.getPayloadLength(), format);
+
+                return new String(buffer, offset, length, format.getCharset());
+            }
+
+            /**
+             * {@inheritDoc}
+             * <p>
+             * Encodes as UTF-8, which equals ASCII for ASCII text.
+             */
+            @Override
+            public int encodeInto(String data, ByteBuffer dst) {
+                return Util.encodeUTF8(data, dst);
+            }
+
+            /**
+             * {@inheritDoc}
+             * <p>
+             * Decodes as UTF-8 up to the first zero byte; {@code reuse} is ignored, as strings are immutable.
+             * Use {@link #createDataObject(VBANPacketView)} to honour the charset declared by a packet.
+             */
+            @Override
+            public String decodeInto(ByteBuffer src, @Nullable String reuse) {
+                int length = 0;
+                while (length < src.remaining() && src.get(src.position() + length) != 0)
+                    length++;
+
+                String text;
+                if (src.hasArray()) {
+                    text = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+                } else {
+                    byte[] bytes = new byte[length];
+                    src.duplicate().get(bytes);
+                    text = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                src.position(src.limit());
+                return text;
+            }
         };
         public final static Protocol<byte[]> SERVICE = new Protocol<byte[]>(0x60) {
             @Override
             public byte[] createDataObject(final byte[] bytes) {
                 return bytes;
             }
+
+            @Override
+            public int encodeInto(byte[] data, ByteBuffer dst) {
+                dst.put(data);
+                return data.length;
+            }
+
+            /**
+             * {@inheritDoc}
+             * <p>
+             * An array can only be reused if its length equals the amount of remaining bytes.
+             */
+            @Override
+            public byte[] decodeInto(ByteBuffer src, @Nullable byte[] reuse) {
+                byte[] bytes = reuse != null && reuse.length == src.remaining() ? reuse : new byte[src.remaining()];
+
+                src.get(bytes);
+                return bytes;
+            }
         };
 
         private final int value;
 
-        private Protocol(int value) {
+        /**
+         * Constructor for custom payload types of an existing protocol.
+         *
+         * @param value The protocol value; one of {@code 0x00}, {@code 0x20}, {@code 0x40} or {@code 0x60}.
+         *
+         * @throws IllegalArgumentException If the value is no protocol value.
+         */
+        protected Protocol(int value) throws IllegalArgumentException {
+            if ((value & ~0x60) != 0)
+                throw new IllegalArgumentException("Unknown protocol value: " + Integer.toHexString(value));
+
             this.value = value;
         }
 
-        public abstract T createDataObject(byte[] bytes);
+        /**
+         * Creates the data object from a payload array.
+         * The default implementation {@linkplain #decode(ByteBuffer) decodes} the wrapped array.
+         *
+         * @param bytes The payload.
+         *
+         * @return The data object.
+         */
+        public T createDataObject(byte[] bytes) {
+            return decode(ByteBuffer.wrap(bytes));
+        }
+
+        /**
+         * Creates the data object from the payload of a decoded packet.
+         * The default implementation copies the payload and delegates to {@link #createDataObject(byte[])}.
+         *
+         * @param view A view of a valid packet of this protocol.
+         *
+         * @return The data object.
+         */
+        public T createDataObject(VBANPacketView view) {
+            int offset = view.getPayloadOffset();
+
+            return createDataObject(Arrays.copyOfRange(view.getBuffer(), offset, offset + view.getPayloadLength()));
+        }
+
+        /**
+         * Encodes the given data object into the given buffer, at its position.
+         *
+         * @param data The data object to encode.
+         * @param dst  The buffer to write to. Its position is advanced by the amount of written bytes.
+         *
+         * @return The amount of written bytes.
+         * @throws BufferOverflowException If the encoded data does not fit into the remaining buffer;
+         *                                 nothing is written in that case.
+         */
+        public abstract int encodeInto(T data, ByteBuffer dst) throws BufferOverflowException;
+
+        /**
+         * Decodes the remaining bytes of the given buffer, refilling the given object if it can hold them.
+         *
+         * @param src   The buffer to read the payload from. Its position is advanced to its limit.
+         * @param reuse An object to refill, or {@code null} to always create a new one.
+         *
+         * @return The decoded data object; {@code reuse} itself if it has been refilled.
+         */
+        public abstract T decodeInto(ByteBuffer src, @Nullable T reuse);
+
+        /**
+         * Decodes the remaining bytes of the given buffer into a new data object.
+         *
+         * @param src The buffer to read the payload from. Its position is advanced to its limit.
+         *
+         * @return The decoded data object.
+         */
+        public T decode(ByteBuffer src) {
+            return decodeInto(src, null);
+        }
 
         public String name() {
             switch (value) {
@@ -397,35 +651,71 @@ public final class VBAN {
         public final static int VBCA = 0x10; // VB-Audio AOIP Codec
         public final static int VBCV = 0x20; // VB-Audio VOIP Codec
         public final static int USER = 0xF0;
+
+        /**
+         * Checks whether a codec selector is one that {@link VBANPacketView#wrap(byte[], int, int)} accepts.
+         *
+         * @param codecValue The codec selector.
+         *
+         * @return Whether the selector is one of the values of this class.
+         */
+        public static boolean isValid(int codecValue) {
+            switch (codecValue) {
+                case PCM:
+                case VBCA:
+                case VBCV:
+                case USER:
+                    return true;
+                default:
+                    return false;
+            }
+        }
     }
 
     /**
      * Collection of sample rate indices, required for creating a {@link VBANPacketHead.Factory}.
      */
     public enum SampleRate implements DataRateValue<AudioFrame> {
-        Hz6000,
-        Hz12000,
-        Hz24000,
-        Hz48000,
-        Hz96000,
-        Hz192000,
-        Hz384000,
-
-        Hz8000,
-        Hz16000,
-        Hz32000,
-        Hz64000,
-        Hz128000,
-        Hz256000,
-        Hz512000,
-
-        Hz11025,
-        Hz22050,
-        Hz44100,
-        Hz88200,
-        Hz176400,
-        Hz352800,
-        Hz705600;
+        Hz6000(6000),
+        Hz12000(12000),
+        Hz24000(24000),
+        Hz48000(48000),
+        Hz96000(96000),
+        Hz192000(192000),
+        Hz384000(384000),
+
+        Hz8000(8000),
+        Hz16000(16000),
+        Hz32000(32000),
+        Hz64000(64000),
+        Hz128000(128000),
+        Hz256000(256000),
+        Hz512000(512000),
+
+        Hz11025(11025),
+        Hz22050(22050),
+        Hz44100(44100),
+        Hz88200(88200),
+        Hz176400(176400),
+        Hz352800(352800),
+        Hz705600(705600);
+
+        private static final SampleRate[] VALUES = values();
+
+        private final int hz;
+
+        SampleRate(int hz) {
+            this.hz = hz;
+        }
+
+        /**
+         * Gets the sample rate in samples per second.
+         *
+         * @return The sample rate in Hz.
+         */
+        public int getHz() {
+            return hz;
+        }
 
         @Override
         public int getValue() {
@@ -448,7 +738,23 @@ public final class VBAN {
         }
 
         public static SampleRate byValue(int value) {
-            return values()[value];
+            return VALUES[value];
+        }
+
+        /**
+         * Gets the sample rate with the given amount of samples per second.
+         *
+         * @param hz The sample rate in Hz.
+         *
+         * @return The sample rate.
+         * @throws IllegalArgumentException If VBAN does not support the sample rate.
+         */
+        public static SampleRate byHz(int hz) throws IllegalArgumentException {
+            for (SampleRate rate : VALUES)
+                if (rate.hz == hz)
+                    return rate;
+
+            throw new IllegalArgumentException("Unsupported sample rate: " + hz + " Hz");
         }
     }
 
@@ -482,6 +788,8 @@ public final class VBAN {
         Bps2000000,
         Bps3000000;
 
+        private static final BitsPerSecond[] VALUES = values();
+
         @Override
         public int getValue() {
             return ordinal();
@@ -503,7 +811,7 @@ public final class VBAN {
         }
 
         public static BitsPerSecond byValue(int value) {
-            return values()[value];
+            return VALUES[value];
         }
     }
 
@@ -511,19 +819,33 @@ public final class VBAN {
      * Collection of format values, required for creating a {@link VBANPacketHead.Factory}.
      */
     public enum AudioFormat implements FormatValue<AudioFrame> {
-        BYTE8(0x00),
-        INT16(0x01),
-        INT24(0x02),
-        INT32(0x03),
-        FLOAT32(0x04),
-        FLOAT64(0x05),
-        BITS12(0x06),
-        BITS10(0x07);
+        BYTE8(0x00, 1),
+        INT16(0x01, 2),
+        INT24(0x02, 3),
+        INT32(0x03, 4),
+        FLOAT32(0x04, 4),
+        FLOAT64(0x05, 8),
+        BITS12(0x06, 2),
+        BITS10(0x07, 2);
+
+        private static final AudioFormat[] VALUES = values();
 
         private final int value;
+        private final int bytesPerSample;
 
-        AudioFormat(int value) {
+        AudioFormat(int value, int bytesPerSample) {
             this.value = value;
+            this.bytesPerSample = bytesPerSample;
+        }
+
+        /**
+         * Gets the amount of bytes one sample of one channel occupies in a PCM payload.
+         * {@link #BITS12} and {@link #BITS10} samples are carried in 16 bit containers.
+         *
+         * @return The size of one sample in bytes.
+         */
+        public int getBytesPerSample() {
+            return bytesPerSample;
         }
 
         @Override
@@ -552,7 +874,7 @@ public final class VBAN {
         }
 
         public static AudioFormat byValue(int value) {
-            for (AudioFormat x : values())
+            for (AudioFormat x : VALUES)
                 if (x.value == value)
                     return x;
 
@@ -561,14 +883,28 @@ public final class VBAN {
     }
 
     public enum CommandFormat implements FormatValue<String> {
-        ASCII(0x00),
-        UTF8(0x10),
-        WCHAR(0x20);
+        ASCII(0x00, StandardCharsets.US_ASCII),
+        UTF8(0x10, StandardCharsets.UTF_8),
+        WCHAR(0x20, StandardCharsets.UTF_16LE);
+
+        private static final CommandFormat[] VALUES = values();
 
         private final int value;
+        private final Charset charset;
 
-        CommandFormat(int value) {
+        CommandFormat(int value, Charset charset) {
             this.value = value;
+            this.charset = charset;
+        }
+
+        /**
+         * Gets the charset that text of this format is encoded with.
+         * {@link #WCHAR} is the Windows wide char encoding, UTF-16 little endian.
+         *
+         * @return The charset of this format.
+         */
+        public Charset getCharset() {
+            return charset;
         }
 
         @Override
@@ -597,7 +933,7 @@ public final class VBAN {
         }
 
         public static <T> CommandFormat byValue(int value) {
-            for (CommandFormat x : values())
+            for (CommandFormat x : VALUES)
                 if (x.value == value)
                     return x;
 
@@ -608,6 +944,8 @@ public final class VBAN {
     public enum Format implements FormatValue<CharSequence> {
         BYTE8(0x00);
 
+        private static final Format[] VALUES = values();
+
         private final int value;
 
         Format(int value) {
@@ -640,7 +978,7 @@ public final class VBAN {
         }
 
         public static <T> Format byValue(int value) {
-            for (Format x : values())
+            for (Format x : VALUES)
                 if (x.value == value)
                     return x;
 
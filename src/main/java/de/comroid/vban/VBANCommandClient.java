@@ -0,0 +1,520 @@
+package de.comroid.vban;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.comroid.util.concurrent.HashedTimingWheel;
+import de.comroid.vban.codec.TextCodec;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketView;
+
+import static de.comroid.vban.packet.VBANPacket.MAX_SIZE;
+import static de.comroid.vban.packet.VBANPacket.MAX_SIZE_WITHOUT_HEAD;
+
+/**
+ * Asynchronous client for querying parameters over the {@linkplain VBAN.Protocol#TEXT text protocol}.
+ * <p>
+ * Queries are pipelined: any amount of them may be outstanding at once, and all of them share one socket
+ * that is used for both sending and receiving.
+ * Replies of the form {@code Name = Value;} are correlated with their query by parameter name;
+ * bare replies without a name are correlated by the frame counter of the datagram that carried the query.
+ * Queries that stay unanswered fail with a {@link TimeoutException}.
+ * <p>
+ * Queries and commands are encoded in the charset of the packet factory's {@link VBAN.CommandFormat};
+ * replies are decoded in the charset declared by their own head.
+ */
+public class VBANCommandClient implements Closeable {
+    /**
+     * Default time after which an unanswered query fails.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+    private final VBANPacket.Factory<String> packetFactory;
+    private final VBAN.CommandFormat commandFormat;
+    // send side is guarded by the monitor, receive side is confined to the receiver thread
+    private final TextCodec sendCodec = new TextCodec();
+    private final byte[] sendBuffer = new byte[MAX_SIZE_WITHOUT_HEAD];
+    private final TextCodec receiveCodec = new TextCodec();
+    private final InetAddress address;
+    private final int port;
+    private final long timeoutNanos;
+    private final DatagramSocket socket;
+    private final HashedTimingWheel timingWheel;
+    private final ConcurrentHashMap<String, Queue<Query>> pendingByName = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Query> pendingByFrame = new ConcurrentHashMap<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong responses = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private final Thread receiver;
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor.
+     * Uses the {@linkplain VBANPacket.Factory#protocolDefault(VBAN.Protocol) default packet factory} for the
+     * {@linkplain VBAN.Protocol#TEXT text protocol} and a timeout of {@link #DEFAULT_TIMEOUT_MILLIS}.
+     *
+     * @param address The {@linkplain InetAddress address} to send queries to.
+     * @param port    The port to send queries to.
+     *
+     * @throws SocketException See {@link DatagramSocket} constructor.
+     */
+    public VBANCommandClient(InetAddress address, int port) throws SocketException {
+        this(VBANPacket.Factory.protocolDefault(VBAN.Protocol.TEXT), address, port,
+                DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param packetFactory A factory to use for creating new {@linkplain VBANPacket VBANPackets}.
+     * @param address       The {@linkplain InetAddress address} to send queries to.
+     * @param port          The port to send queries to.
+     * @param timeout       The time after which an unanswered query fails.
+     * @param unit          The unit of {@code timeout}.
+     *
+     * @throws SocketException See {@link DatagramSocket} constructor.
+     */
+    public VBANCommandClient(VBANPacket.Factory<String> packetFactory,
+                             InetAddress address,
+                             int port,
+                             long timeout,
+                             TimeUnit unit) throws SocketException {
+        this.packetFactory = packetFactory;
+        this.commandFormat = VBAN.CommandFormat.byValue(packetFactory.getHeadFactory().getFormatValue());
+        this.address = address;
+        this.port = port;
+        this.timeoutNanos = unit.toNanos(timeout);
+
+        socket = new DatagramSocket();
+        timingWheel = new HashedTimingWheel(10, TimeUnit.MILLISECONDS, 512, "VBAN-CommandClient-Timeouts");
+
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, "VBAN-CommandClient");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Gets the local port of the socket that queries are sent from and replies are received on.
+     *
+     * @return The local port.
+     */
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Queries one parameter.
+     *
+     * @param parameter The parameter to query, e.g. {@code Strip[0].Gain}.
+     *
+     * @return A future that completes with the value of the parameter.
+     * @throws IOException See {@link DatagramSocket#send(DatagramPacket)} for details.
+     */
+    public Query query(String parameter) throws IOException {
+        return query(parameter, null);
+    }
+
+    /**
+     * Queries one parameter and notifies the given listener once the reply arrives or the query fails.
+     *
+     * @param parameter The parameter to query, e.g. {@code Strip[0].Gain}.
+     * @param listener  The listener to notify, may be {@code null}. Runs on an internal thread.
+     *
+     * @return A future that completes with the value of the parameter.
+     * @throws IOException              If the query does not fit into one datagram,
+     *                                  or see {@link DatagramSocket#send(DatagramPacket)} for details.
+     * @throws IllegalArgumentException If the parameter cannot be encoded in the charset of the command format.
+     */
+    public Query query(String parameter, ResponseListener listener) throws IOException {
+        Query query = new Query(parameter, listener);
+
+        synchronized (this) {
+            int frame = packetFactory.counter();
+            register(query, frame);
+            pendingByFrame.put(frame, query);
+
+            try {
+                sendText(parameter + ';');
+            } catch (IOException | RuntimeException e) {
+                unregister(query);
+                throw e;
+            }
+        }
+
+        return query;
+    }
+
+    /**
+     * Queries many parameters at once, packing as many queries into each datagram as fit.
+     *
+     * @param parameters The parameters to query.
+     *
+     * @return One future per parameter, in iteration order of the given collection.
+     * @throws IOException              If one query does not fit into a datagram on its own,
+     *                                  or see {@link DatagramSocket#send(DatagramPacket)} for details.
+     *                                  Queries of datagrams that have already been sent stay pending.
+     * @throws IllegalArgumentException If a parameter cannot be encoded in the charset of the command format.
+     */
+    public List<Query> queryAll(Collection<String> parameters) throws IOException {
+        List<Query> queries = new ArrayList<>(parameters.size());
+        StringBuilder batch = new StringBuilder(MAX_SIZE_WITHOUT_HEAD);
+        int sent = 0;
+
+        synchronized (this) {
+            try {
+                for (String parameter : parameters) {
+                    int mark = batch.length();
+                    batch.append(parameter).append(';');
+
+                    if (mark > 0 && encode(batch) < 0) {
+                        batch.setLength(mark);
+                        sendText(batch);
+                        sent = queries.size();
+                        batch.setLength(0);
+                        batch.append(parameter).append(';');
+                    }
+
+                    Query query = new Query(parameter, null);
+                    register(query, packetFactory.counter());
+                    queries.add(query);
+                }
+
+                if (batch.length() > 0)
+                    sendText(batch);
+            } catch (IOException | RuntimeException e) {
+                for (Query query : queries.subList(sent, queries.size()))
+                    unregister(query);
+                throw e;
+            }
+        }
+
+        return queries;
+    }
+
+    /**
+     * Sends a command without expecting a reply, e.g. {@code Strip[0].Gain=-6.0;}.
+     *
+     * @param command The command to send.
+     *
+     * @throws IOException              If the command does not fit into one datagram,
+     *                                  or see {@link DatagramSocket#send(DatagramPacket)} for details.
+     * @throws IllegalArgumentException If the command cannot be encoded in the charset of the command format.
+     */
+    public synchronized void send(String command) throws IOException {
+        sendText(command);
+    }
+
+    /**
+     * Gets the amount of queries that have neither been answered nor timed out yet.
+     *
+     * @return The amount of outstanding queries.
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Gets the amount of queries that have been answered.
+     *
+     * @return The amount of answered queries.
+     */
+    public long getResponseCount() {
+        return responses.get();
+    }
+
+    /**
+     * Gets the amount of queries that have timed out.
+     *
+     * @return The amount of timed out queries.
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * Gets the amount of replies that did not match any outstanding query.
+     *
+     * @return The amount of unmatched replies.
+     */
+    public long getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    /**
+     * Closes the socket and fails all outstanding queries.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+        timingWheel.close();
+
+        IOException cause = new IOException("Client is closed");
+        for (Queue<Query> queue : pendingByName.values())
+            for (Query query : queue)
+                if (remove(query)) {
+                    query.timeout.cancel();
+                    query.fail(cause);
+                }
+        pendingByFrame.clear();
+    }
+
+    private void register(Query query, int frame) {
+        if (closed)
+            throw new IllegalStateException("Client is closed");
+
+        final Query timed = query;
+        query.frame = frame;
+        // schedule first, a reply may arrive as soon as the query is visible
+        query.timeout = timingWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (remove(timed)) {
+                    timeouts.incrementAndGet();
+                    timed.fail(new TimeoutException("No reply for " + timed.parameter));
+                }
+            }
+        }, timeoutNanos, TimeUnit.NANOSECONDS);
+
+        Queue<Query> queue = pendingByName.get(query.key);
+        if (queue == null) {
+            Queue<Query> created = new ConcurrentLinkedQueue<>();
+            queue = pendingByName.putIfAbsent(query.key, created);
+            if (queue == null) queue = created;
+        }
+        pending.incrementAndGet();
+        queue.add(query);
+    }
+
+    // for queries that were registered but never sent
+    private void unregister(Query query) {
+        if (remove(query))
+            query.timeout.cancel();
+    }
+
+    private boolean remove(Query query) {
+        Queue<Query> queue = pendingByName.get(query.key);
+        pendingByFrame.remove(query.frame, query);
+
+        if (queue != null && queue.remove(query)) {
+            pending.decrementAndGet();
+            return true;
+        }
+
+        return false;
+    }
+
+    // must hold the monitor, as the send buffer is shared
+    private int encode(CharSequence text) {
+        return sendCodec.encode(text, commandFormat, sendBuffer, 0, sendBuffer.length);
+    }
+
+    // must hold the monitor, so that frame counters match the registered queries
+    private void sendText(CharSequence text) throws IOException {
+        int length = encode(text);
+        if (length < 0)
+            throw new IOException("Text is too large, must fit into " + MAX_SIZE_WITHOUT_HEAD + " bytes");
+
+        byte[] bytes = packetFactory.create()
+                .setData(Arrays.copyOf(sendBuffer, length))
+                .getBytes();
+        socket.send(new DatagramPacket(bytes, bytes.length, address, port));
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        VBANPacketView view = new VBANPacketView();
+        StringBuilder payload = new StringBuilder(MAX_SIZE);
+
+        while (!closed) {
+            try {
+                packet.setData(buffer);
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (!closed) e.printStackTrace();
+                continue;
+            }
+
+            if (view.wrap(buffer, 0, packet.getLength()) != DecodeStatus.OK || !view.getProtocol().isText())
+                continue;
+
+            payload.setLength(0);
+            receiveCodec.decode(view, payload);
+            dispatch(payload.toString(), view.getFrameCounter());
+        }
+    }
+
+    private void dispatch(String payload, int frame) {
+        int start = 0;
+
+        for (int i = 0; i <= payload.length(); i++) {
+            char c = i < payload.length() ? payload.charAt(i) : ';';
+
+            if (c == ';' || c == '\n' || c == '\r' || c == 0) {
+                if (i > start)
+                    dispatchEntry(payload.substring(start, i), frame);
+                start = i + 1;
+            }
+        }
+    }
+
+    private void dispatchEntry(String entry, int frame) {
+        int eq = entry.indexOf('=');
+        Query query = null;
+        String value;
+
+        if (eq >= 0) {
+            Queue<Query> queue = pendingByName.get(normalize(entry.substring(0, eq)));
+            if (queue != null) query = queue.peek();
+            value = entry.substring(eq + 1).trim();
+        } else {
+            if (entry.trim().isEmpty()) return;
+            query = pendingByFrame.get(frame);
+            value = entry.trim();
+        }
+
+        if (query != null && remove(query)) {
+            query.timeout.cancel();
+            responses.incrementAndGet();
+            query.complete(value);
+        } else unmatched.incrementAndGet();
+    }
+
+    private static String normalize(String parameter) {
+        return parameter.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Listener for the outcome of a {@link Query}.
+     */
+    public interface ResponseListener {
+        /**
+         * Called when the reply for a query arrives.
+         *
+         * @param parameter The queried parameter.
+         * @param value     The value of the parameter.
+         */
+        void onResponse(String parameter, String value);
+
+        /**
+         * Called when a query fails, e.g. with a {@link TimeoutException}.
+         *
+         * @param parameter The queried parameter.
+         * @param cause     The reason for the failure.
+         */
+        void onFailure(String parameter, Throwable cause);
+    }
+
+    /**
+     * A pending query. Completes with the value of the queried parameter.
+     */
+    public static final class Query implements Future<String> {
+        private final String parameter;
+        private final String key;
+        private final ResponseListener listener;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String value;
+        private volatile Throwable failure;
+        private HashedTimingWheel.Timeout timeout;
+        private int frame;
+
+        private Query(String parameter, ResponseListener listener) {
+            this.parameter = parameter;
+            this.key = normalize(parameter);
+            this.listener = listener;
+        }
+
+        /**
+         * Gets the queried parameter.
+         *
+         * @return The queried parameter.
+         */
+        public String getParameter() {
+            return parameter;
+        }
+
+        // listeners run before the future completes, so that waiters observe their effects
+        private void complete(String value) {
+            this.value = value;
+
+            if (listener != null)
+                listener.onResponse(parameter, value);
+            done.countDown();
+        }
+
+        private void fail(Throwable cause) {
+            this.failure = cause;
+
+            if (listener != null)
+                listener.onFailure(parameter, cause);
+            done.countDown();
+        }
+
+        /**
+         * Queries cannot be cancelled, they time out instead.
+         *
+         * @param mayInterruptIfRunning Ignored.
+         *
+         * @return Always {@code false}.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public String get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException("No reply for " + parameter + " yet");
+            return result();
+        }
+
+        private String result() throws ExecutionException {
+            if (failure != null)
+                throw new ExecutionException(failure);
+            return value;
+        }
+    }
+}
@@ -6,41 +6,297 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
+import de.comroid.vban.codec.TextCodec;
+import de.comroid.vban.exception.InvalidPacketAttributeException;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.packet.DecodeStatistics;
+import de.comroid.vban.packet.DecodeStatus;
 import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.SessionTable;
+import de.comroid.vban.receive.StreamMonitor;
+
+import org.jetbrains.annotations.Nullable;
 
 public class VBANInputStream<T> extends InputStream {
     private final VBAN.Protocol<T> expectedProtocol;
     private final InetAddress address;
     private final int port;
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private final DecodeStatistics statistics = new DecodeStatistics();
+    private final byte[] viewBuffer = new byte[VBANPacket.MAX_SIZE];
+    private final VBANPacketView readView = new VBANPacketView();
+    private final ByteBuffer payloadBuffer = ByteBuffer.wrap(viewBuffer);
+    private TextCodec textCodec;
+    private final List<MembershipKey> memberships = new ArrayList<>();
+    private DatagramChannel channel;
     private DatagramSocket socket;
     private byte[] buf = new byte[0];
     private int iBuf = 0;
     private boolean closed = false;
+    private volatile long lastReceiveNanos;
+    private volatile InetAddress lastSourceAddress;
+    private volatile int lastSourcePort = -1;
+    private volatile StreamMonitor monitor;
+    private volatile SessionTable<?> sessions;
 
+    /**
+     * Constructor.
+     * If the address is a multicast group, the stream binds to the wildcard address and joins the group
+     * on the {@linkplain Util#defaultMulticastInterface(InetAddress) default interface}.
+     *
+     * @param expectedProtocol The protocol of the packets to receive.
+     * @param address          The address to bind to, or the multicast group to join.
+     * @param port             The port to bind to.
+     *
+     * @throws SocketException If the socket cannot be opened or bound, or the group cannot be joined.
+     */
     public VBANInputStream(VBAN.Protocol<T> expectedProtocol, InetAddress address, int port) throws SocketException {
+        this(expectedProtocol, address, port, new NetworkInterface[0]);
+    }
+
+    /**
+     * Constructor.
+     * If the address is a multicast group, the stream binds to the wildcard address with address reuse enabled,
+     * so that several receivers on one host can share the group, and joins the group on the given interfaces.
+     *
+     * @param expectedProtocol The protocol of the packets to receive.
+     * @param address          The address to bind to, or the multicast group to join.
+     * @param port             The port to bind to.
+     * @param interfaces       The interfaces to join the multicast group on. If none are given,
+     *                         the {@linkplain Util#defaultMulticastInterface(InetAddress) default interface} is used.
+     *                         Ignored for unicast addresses.
+     *
+     * @throws SocketException If the socket cannot be opened or bound, or the group cannot be joined.
+     */
+    public VBANInputStream(VBAN.Protocol<T> expectedProtocol, InetAddress address, int port,
+                           NetworkInterface... interfaces) throws SocketException {
         this.expectedProtocol = expectedProtocol;
         this.address = address;
         this.port = port;
 
-        InetSocketAddress socketAddress = new InetSocketAddress(address, port);
-        socket = new DatagramSocket(socketAddress);
+        channel = Util.openDatagramChannel(address);
+        socket = channel.socket();
+
+        try {
+            if (address.isMulticastAddress()) {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(new InetSocketAddress(port));
+
+                if (interfaces.length == 0)
+                    interfaces = new NetworkInterface[]{Util.defaultMulticastInterface(address)};
+                for (NetworkInterface networkInterface : interfaces)
+                    joinGroup(address, networkInterface);
+            } else {
+                channel.bind(new InetSocketAddress(address, port));
+            }
+        } catch (IOException e) {
+            close();
+
+            if (e instanceof SocketException)
+                throw (SocketException) e;
+            SocketException ex = new SocketException("Could not open stream: " + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    /**
+     * Constructor.
+     * Wraps a channel that has already been opened and bound, e.g. with socket options that this stream
+     * does not set itself. The stream takes ownership of the channel and closes it when it is closed.
+     *
+     * @param expectedProtocol The protocol of the packets to receive.
+     * @param channel          The bound channel to receive from.
+     *
+     * @throws IllegalArgumentException If the channel is not bound.
+     */
+    public VBANInputStream(VBAN.Protocol<T> expectedProtocol, DatagramChannel channel)
+            throws IllegalArgumentException {
+        if (!channel.socket().isBound())
+            throw new IllegalArgumentException("Channel is not bound");
+
+        this.expectedProtocol = expectedProtocol;
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.address = socket.getLocalAddress();
+        this.port = socket.getLocalPort();
+    }
+
+    /**
+     * Gets the local port this stream is bound to.
+     * Useful when the stream was opened on port {@code 0}.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return socket.getLocalPort();
     }
 
     public void setSocketTimeout(int ms) throws SocketException {
         socket.setSoTimeout(ms);
     }
 
-    public synchronized T readData() throws IOException {
-        VBANPacket.Decoded packet = readPacket();
-        VBAN.Protocol<?> rcvProt;
+    /**
+     * Joins a multicast group on the given interface.
+     * The stream must be bound to the wildcard address or to the group itself to receive the group's datagrams.
+     *
+     * @param group            The multicast group to join.
+     * @param networkInterface The interface to join the group on.
+     *
+     * @return The membership key of the group on the interface.
+     * @throws IOException              If the group cannot be joined.
+     * @throws IllegalArgumentException If the address is not a multicast group.
+     */
+    public synchronized MembershipKey joinGroup(InetAddress group, NetworkInterface networkInterface)
+            throws IOException, IllegalArgumentException {
+        if (!group.isMulticastAddress())
+            throw new IllegalArgumentException("Not a multicast address: " + group);
+
+        MembershipKey key = channel.join(group, networkInterface);
+        if (!memberships.contains(key))
+            memberships.add(key);
+
+        return key;
+    }
+
+    /**
+     * Leaves a multicast group on all interfaces it has been joined on.
+     *
+     * @param group The multicast group to leave.
+     *
+     * @return Whether the group had been joined.
+     */
+    public synchronized boolean leaveGroup(InetAddress group) {
+        boolean left = false;
+
+        for (Iterator<MembershipKey> iterator = memberships.iterator(); iterator.hasNext(); ) {
+            MembershipKey key = iterator.next();
+
+            if (key.group().equals(group)) {
+                key.drop();
+                iterator.remove();
+                left = true;
+            }
+        }
+
+        return left;
+    }
+
+    /**
+     * Gets the multicast memberships of this stream.
+     *
+     * @return An unmodifiable copy of the membership keys.
+     */
+    public synchronized List<MembershipKey> getMemberships() {
+        return Collections.unmodifiableList(new ArrayList<>(memberships));
+    }
+
+    /**
+     * Gets the channel this stream receives from.
+     *
+     * @return The datagram channel of this stream.
+     */
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Receives exactly one datagram and creates the data object from its payload.
+     * Text payloads are decoded in the charset declared by their {@link VBAN.CommandFormat}.
+     * Parity datagrams of a {@link de.comroid.vban.fec.ParityEncoder} are skipped.
+     *
+     * @return The data object.
+     * @throws IOException                      If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException                      See {@link DatagramSocket#receive(DatagramPacket)} for details.
+     * @throws InvalidPacketAttributeException If the datagram is not a valid VBAN packet.
+     * @throws IllegalStateException            If the datagram is of another protocol than the expected one.
+     */
+    public synchronized T readData() throws IOException, IllegalStateException {
+        receiveExpected();
+
+        return expectedProtocol.createDataObject(readView);
+    }
+
+    /**
+     * Receives exactly one datagram and {@linkplain VBAN.Protocol#decodeInto(ByteBuffer, Object) decodes} its payload
+     * into the given object. For the built-in protocols, this does not allocate as long as the object can hold the
+     * payload. Text is decoded like {@link #readData()}, in the charset declared by the packet.
+     *
+     * @param reuse The object to refill, or {@code null} to create a new one.
+     *
+     * @return The data object; {@code reuse} itself if it has been refilled.
+     * @throws IOException                      If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException                      See {@link DatagramSocket#receive(DatagramPacket)} for details.
+     * @throws InvalidPacketAttributeException If the datagram is not a valid VBAN packet.
+     * @throws IllegalStateException            If the datagram is of another protocol than the expected one.
+     */
+    public synchronized T readData(@Nullable T reuse) throws IOException, IllegalStateException {
+        receiveExpected();
+
+        if (expectedProtocol.isText())
+            return expectedProtocol.createDataObject(readView);
+
+        payloadBuffer.limit(readView.getPayloadOffset() + readView.getPayloadLength())
+                .position(readView.getPayloadOffset());
+        return expectedProtocol.decodeInto(payloadBuffer, reuse);
+    }
+
+    private void receiveExpected() throws IOException, IllegalStateException {
+        // parity datagrams are no audio, and only of use to a ParityDecoder
+        do {
+            int length = receive(viewBuffer);
+
+            DecodeStatus status = VBANPacketHead.preFilter(viewBuffer, 0, length);
+            if (status == DecodeStatus.OK)
+                status = readView.wrap(viewBuffer, 0, length);
+            if (status != DecodeStatus.OK)
+                throw new InvalidPacketAttributeException("Invalid packet received: " + status);
+        } while (ParityDecoder.isParity(readView));
 
-        if (!(rcvProt = packet.getHead().getProtocol()).equals(expectedProtocol))
+        if (readView.getProtocolValue() != expectedProtocol.getValue())
             throw new IllegalStateException("Expected Protocol mismatches received protocol " +
-                    "[exp:" + expectedProtocol + ";rcv:" + rcvProt + "]");
+                    "[exp:" + expectedProtocol + ";rcv:" + readView.getProtocol() + "]");
+
+        StreamMonitor monitor = this.monitor;
+        if (monitor != null)
+            monitor.record(readView, lastReceiveNanos);
+    }
+
+    /**
+     * Receives exactly one text datagram and appends its decoded payload to the given builder.
+     * Decodes in the charset declared by the packet's {@link VBAN.CommandFormat}, without creating a {@link String}.
+     *
+     * @param out The builder to append to.
+     *
+     * @return The decode outcome; nothing is appended unless it is {@link DecodeStatus#OK}.
+     * @throws IOException           If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException           See {@link DatagramSocket#receive(DatagramPacket)} for details.
+     * @throws IllegalStateException If this stream does not expect the {@linkplain VBAN.Protocol#TEXT text protocol}.
+     */
+    public synchronized DecodeStatus readText(StringBuilder out) throws IOException, IllegalStateException {
+        if (!expectedProtocol.isText())
+            throw new IllegalStateException("Stream does not expect text packets");
+        if (textCodec == null)
+            textCodec = new TextCodec();
+
+        DecodeStatus status = receive(readView);
+        if (status == DecodeStatus.OK)
+            textCodec.decode(readView, out);
 
-        return expectedProtocol.createDataObject(packet.getBytes());
+        return status;
     }
 
     public synchronized VBANPacket.Decoded readPacket() throws IOException {
@@ -58,6 +314,126 @@ public class VBANInputStream<T> extends InputStream {
         return VBANPacket.decode(bytes);
     }
 
+    /**
+     * Receives exactly one datagram into the given buffer, bypassing this stream's own byte buffer.
+     * Does not allocate; the given buffer should be at least {@link VBANPacket#MAX_SIZE} bytes long.
+     *
+     * @param buffer The buffer to receive into.
+     *
+     * @return The length of the received datagram.
+     * @throws IOException If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException See {@link DatagramSocket#receive(DatagramPacket)} for details.
+     */
+    public synchronized int receive(byte[] buffer) throws IOException {
+        if (closed) throw new IOException("Stream is closed");
+
+        receivePacket.setData(buffer);
+        // blocking recieve call
+        socket.receive(receivePacket);
+        lastReceiveNanos = System.nanoTime();
+        lastSourceAddress = receivePacket.getAddress();
+        lastSourcePort = receivePacket.getPort();
+
+        return receivePacket.getLength();
+    }
+
+    /**
+     * Receives exactly one datagram into an internal buffer and wraps it with the given view.
+     * Neither allocates nor throws for invalid datagrams; the outcome is returned and counted in
+     * {@linkplain #getStatistics() this stream's statistics}.
+     * Datagrams of another protocol than the expected one are rejected as {@link DecodeStatus#UNSUPPORTED_PROTOCOL}.
+     * Unlike {@link #readData()}, parity datagrams are returned as well, to be passed to a {@link ParityDecoder}.
+     * <p>
+     * The view stays valid until the next call to this method.
+     *
+     * @param view The view to wrap the datagram with.
+     *
+     * @return The decode outcome.
+     * @throws IOException If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException See {@link DatagramSocket#receive(DatagramPacket)} for details.
+     */
+    public synchronized DecodeStatus receive(VBANPacketView view) throws IOException {
+        int length = receive(viewBuffer);
+
+        // reject garbage before any further decoding
+        DecodeStatus status = VBANPacketHead.preFilter(viewBuffer, 0, length);
+        if (status == DecodeStatus.OK)
+            status = view.wrap(viewBuffer, 0, length);
+        if (status == DecodeStatus.OK && view.getProtocolValue() != expectedProtocol.getValue())
+            status = DecodeStatus.UNSUPPORTED_PROTOCOL;
+
+        StreamMonitor monitor = this.monitor;
+        if (status == DecodeStatus.OK && monitor != null)
+            monitor.record(view, lastReceiveNanos);
+        SessionTable<?> sessions = this.sessions;
+        if (status == DecodeStatus.OK && sessions != null)
+            sessions.record(lastSourceAddress, lastSourcePort, view, lastReceiveNanos);
+
+        return statistics.record(status);
+    }
+
+    /**
+     * Gets the counters of decode outcomes of {@link #receive(VBANPacketView)}.
+     *
+     * @return The decode statistics of this stream.
+     */
+    public DecodeStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets a monitor that records the arrival of every valid datagram read by {@link #readData()},
+     * {@link #readText(StringBuilder)} or {@link #receive(VBANPacketView)}.
+     *
+     * @param monitor The monitor, or {@code null} to stop monitoring.
+     *
+     * @return This instance.
+     */
+    public VBANInputStream<T> setStreamMonitor(StreamMonitor monitor) {
+        this.monitor = monitor;
+        return this;
+    }
+
+    /**
+     * Sets a session table that records every valid datagram read by {@link #receive(VBANPacketView)},
+     * together with its source address. Idle sessions are only evicted by {@link SessionTable#evictIdle(long)}.
+     *
+     * @param sessions The session table, or {@code null} to stop recording.
+     *
+     * @return This instance.
+     */
+    public VBANInputStream<T> setSessionTable(SessionTable<?> sessions) {
+        this.sessions = sessions;
+        return this;
+    }
+
+    /**
+     * Gets the source address of the last datagram received by {@link #receive(byte[])}.
+     *
+     * @return The source address of the last datagram, or {@code null} if none has been received.
+     */
+    public InetAddress getLastSourceAddress() {
+        return lastSourceAddress;
+    }
+
+    /**
+     * Gets the source port of the last datagram received by {@link #receive(byte[])}.
+     *
+     * @return The source port of the last datagram, or {@code -1} if none has been received.
+     */
+    public int getLastSourcePort() {
+        return lastSourcePort;
+    }
+
+    /**
+     * Gets the {@link System#nanoTime()} at which the last datagram was received by {@link #receive(byte[])}.
+     *
+     * @return The receive timestamp of the last datagram.
+     */
+    public long getLastReceiveNanos() {
+        return lastReceiveNanos;
+    }
+
     @Override
     public synchronized int read() throws IOException {
         if (closed) throw new IOException("Stream is closed");
@@ -88,7 +464,11 @@ public class VBANInputStream<T> extends InputStream {
 
     @Override
     public void close() {
-        socket.close();
+        try {
+            // also drops all multicast memberships
+            channel.close();
+        } catch (IOException ignored) {
+        }
         socket = null;
 
         closed = true;
@@ -5,11 +5,27 @@ import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import de.comroid.util.model.Factory;
+import de.comroid.vban.codec.TextCodec;
+import de.comroid.vban.fec.ParityEncoder;
 import de.comroid.vban.model.UnfinishedByteArray;
 import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.send.AsyncSender;
+import de.comroid.vban.send.TrafficShaper;
 
 import static de.comroid.vban.Util.createByteArray;
 import static de.comroid.vban.packet.VBANPacket.MAX_SIZE;
@@ -19,10 +35,40 @@ public class VBANOutputStream<T> extends OutputStream {
     private final InetAddress address;
     private final int port;
     private Factory<VBANPacket<T>> packetFactory;
+    private DatagramChannel channel;
     private DatagramSocket socket;
+    private AsyncSender asyncSender;
+    private TrafficShaper.Stream trafficShaper;
+    private InetSocketAddress target;
     private UnfinishedByteArray buf;
+    // for sendPayload, allocated on first use
+    private ByteBuffer datagram;
+    private byte[] datagramBytes;
     private boolean closed = false;
 
+    // forward error correction, only for audio streams
+    private ParityEncoder parityEncoder;
+    private ByteBuffer parityDatagram;
+
+    // text encoding, only for text streams
+    private TextCodec textCodec;
+    private VBAN.CommandFormat commandFormat;
+
+    // batching
+    private boolean batching = false;
+    private int batchThreshold;
+    private long batchDelayNanos;
+    private ScheduledExecutorService batchScheduler;
+    private int commandStart = 0;
+    private int pendingCommands = 0;
+    private long batchGeneration = 0;
+    private boolean deadlineScheduled = false;
+    private IOException deadlineError;
+
+    // metrics
+    private long datagramsSent = 0;
+    private long commandsSent = 0;
+
     /**
      * Private constructor. Use {@link VBAN#openMidiOutputStream(Factory, InetAddress, int)} for creating raw instances.
      *
@@ -30,7 +76,7 @@ public class VBANOutputStream<T> extends OutputStream {
      * @param address       The InetAddress to send to.
      * @param port          The port to send to.
      *
-     * @throws SocketException See {@link DatagramSocket} constructor.
+     * @throws SocketException If the socket cannot be opened.
      */
     public VBANOutputStream(Factory<VBANPacket<T>> packetFactory, InetAddress address, int port)
             throws SocketException {
@@ -38,24 +84,108 @@ public class VBANOutputStream<T> extends OutputStream {
         this.address = address;
         this.port = port;
 
-        socket = new DatagramSocket();
-        buf = new UnfinishedByteArray(MAX_SIZE, true);
+        channel = Util.openDatagramChannel(address);
+        socket = channel.socket();
+        try {
+            // sending to a broadcast address is refused unless enabled
+            if (Util.isBroadcastAddress(address))
+                socket.setBroadcast(true);
+            buf = new UnfinishedByteArray(MAX_SIZE, true);
+
+            if (packetFactory instanceof VBANPacket.Factory) {
+                VBANPacketHead.Factory<?> headFactory = ((VBANPacket.Factory<?>) packetFactory).getHeadFactory();
+
+                if (headFactory.getProtocolValue() == VBAN.Protocol.TEXT.getValue()) {
+                    textCodec = new TextCodec();
+                    commandFormat = VBAN.CommandFormat.byValue(headFactory.getFormatValue());
+                }
+            }
+        } catch (SocketException | RuntimeException e) {
+            // nobody could close the stream, so the channel would leak
+            try {
+                channel.close();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
     }
 
     /**
      * Tries to send the given data to the specified {@linkplain InetAddress address} on the specified {@code port}.
+     * <p>
+     * If {@linkplain #enableBatching(int, long, TimeUnit) batching} is enabled, the data is treated as one command
+     * and only queued; a {@code '\n'} is appended if it does not already end with {@code ';'} or {@code '\n'}.
      *
-     * @param data The data to send. Is converted to a bytearray using
-     *             {@link Util#createByteArray(Object)}.
+     * @param data The data to send. On text streams, text is encoded directly into the packet buffer in the charset
+     *             of the stream's {@linkplain VBAN.CommandFormat command format}. Anything else is encoded by the
+     *             {@linkplain VBANPacket.Factory#getProtocol() protocol} of the packet factory straight into a
+     *             reusable datagram buffer, or converted to a bytearray using {@link Util#createByteArray(Object)}
+     *             if the factory is no {@link VBANPacket.Factory}.
      *
      * @return The instance of the stream.
      * @throws IOException              If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException              If sending a batch at its deadline has failed since the last call.
      * @throws IOException              See {@link DatagramSocket#send(DatagramPacket)} for details.
      * @throws IllegalArgumentException If the converted byte-array from the given data is too large.
      */
-    public VBANOutputStream<T> sendData(T data) throws IOException, IllegalArgumentException {
-        write(createByteArray(data));
-        flush();
+    public synchronized VBANOutputStream<T> sendData(T data) throws IOException, IllegalArgumentException {
+        checkWritable();
+        if (textCodec == null && !batching && buf.length() == 0 && packetFactory instanceof VBANPacket.Factory) {
+            sendEncoded(((VBANPacket.Factory<T>) packetFactory).getProtocol(), data);
+            return this;
+        }
+
+        // decided from the command itself, because appending may already have sent the buffer
+        boolean terminated;
+        if (textCodec != null && data instanceof CharSequence) {
+            CharSequence text = (CharSequence) data;
+            terminated = text.length() > 0 && isCommandTerminator(text.charAt(text.length() - 1));
+            appendText(text);
+        } else {
+            byte[] bytes = createByteArray(data);
+            terminated = bytes.length > 0 && isCommandTerminator(bytes[bytes.length - 1]);
+            write(bytes);
+        }
+
+        if (!batching) {
+            flush();
+            return this;
+        }
+
+        if (!terminated)
+            write('\n');
+        return this;
+    }
+
+    /**
+     * Sends the remaining bytes of the given buffer as the payload of one packet, with the next head of this stream's
+     * packet factory. The payload is copied straight into a reusable direct datagram buffer, so sending from
+     * direct or memory-mapped buffers, such as slices of a {@link de.comroid.vban.audio.WavReader}, neither allocates
+     * nor copies through the heap.
+     * <p>
+     * The payload is not checked against the head; it has to match the samples, channels and format of the factory.
+     *
+     * @param payload The payload to send. Its position is advanced to its limit.
+     *
+     * @return The instance of the stream.
+     * @throws IOException              If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException              See {@link DatagramChannel#send(ByteBuffer, java.net.SocketAddress)} for details.
+     * @throws IllegalArgumentException If the payload is larger than {@link VBANPacket#MAX_SIZE_WITHOUT_HEAD}.
+     * @throws IllegalStateException    If the packet factory of this stream is not a {@link VBANPacket.Factory}.
+     */
+    public synchronized VBANOutputStream<T> sendPayload(ByteBuffer payload)
+            throws IOException, IllegalArgumentException, IllegalStateException {
+        if (closed) throw new IOException("Stream is closed");
+        if (payload.remaining() > MAX_SIZE_WITHOUT_HEAD)
+            throw new IllegalArgumentException("Payload too large: " + payload.remaining());
+        if (!(packetFactory instanceof VBANPacket.Factory))
+            throw new IllegalStateException("Packet factory does not expose its head factory");
+
+        ByteBuffer datagram = datagram();
+        datagram.put(payload);
+        sendDatagram();
+
         return this;
     }
 
@@ -64,37 +194,297 @@ public class VBANOutputStream<T> extends OutputStream {
      * The byte buffer is being sent and cleared by invoking {@link #flush()}.
      * If the character-code of {@code \n} is written, the stream is flushed,
      * to ensure a 1:1 ratio of lines:writes.
+     * <p>
+     * If {@linkplain #enableBatching(int, long, TimeUnit) batching} is enabled, {@code ;} and {@code \n} only
+     * terminate a command, and the buffer is sent once it reaches the batch threshold or the batch deadline passes.
+     * At the deadline, only complete commands are sent.
      *
      * @param b The byte as an int to append.
      *
      * @throws IOException If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException If sending a batch at its deadline has failed since the last call.
      * @throws IOException See {@link DatagramSocket#send(DatagramPacket)} for details.
      */
     @Override
-    public void write(int b) throws IOException {
-        if (buf.length() + 1 > MAX_SIZE_WITHOUT_HEAD)
-            throw new IOException("Byte array is too large, must be smaller than " + MAX_SIZE);
+    public synchronized void write(int b) throws IOException {
+        checkWritable();
+        if (buf.length() + 1 > MAX_SIZE_WITHOUT_HEAD) {
+            // a full batch sends its complete commands and keeps the incomplete one
+            if (!batching || commandStart == 0)
+                throw new IOException("Byte array is too large, must be smaller than " + MAX_SIZE);
+            send(commandStart, pendingCommands);
+        }
         buf.append((byte) b);
-        if ((char) b == '\n') flush();
+
+        if (!batching) {
+            if ((char) b == '\n') flush();
+            return;
+        }
+
+        if (isCommandTerminator((byte) b)) {
+            commandStart = buf.length();
+            pendingCommands++;
+
+            if (buf.length() >= batchThreshold)
+                send(commandStart, pendingCommands);
+            else scheduleDeadline();
+        }
+    }
+
+    /**
+     * Writes the given bytes like {@link #write(int)} does, but as one call, so that a
+     * {@linkplain #enableBatching(int, long, TimeUnit) batch deadline} cannot send a part of them.
+     *
+     * @param b   The bytes to append.
+     * @param off The index of the first byte to append.
+     * @param len The amount of bytes to append.
+     *
+     * @throws IOException See {@link #write(int)}.
+     */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkWritable();
+        if ((off | len | b.length - off - len) < 0)
+            throw new IndexOutOfBoundsException();
+
+        for (int i = off; i < off + len; i++)
+            write(b[i]);
     }
 
     /**
      * Sends this stream's byte buffer to the specified {@linkplain InetAddress address} on the specified {@code port},
      * then clears the byte buffer.
+     * <p>
+     * If {@linkplain #enableBatching(int, long, TimeUnit) batching} is enabled, this forces all queued commands
+     * to be sent immediately, an unterminated trailing command included; an empty buffer is not sent.
      *
      * @throws IOException If the stream has been {@linkplain #close() closed} before.
+     * @throws IOException If sending a batch at its deadline has failed since the last call.
      * @throws IOException See {@link DatagramSocket#send(DatagramPacket)} for details.
      */
     @Override
     public synchronized void flush() throws IOException {
-        if (closed) throw new IOException("Stream is closed");
+        checkWritable();
         if (buf.length() > MAX_SIZE)
             throw new IOException("Byte array is too large, must be smaller than " + MAX_SIZE);
-        byte[] bytes = packetFactory.create()
-                .setData(buf.getBytes())
-                .getBytes();
-        socket.send(new DatagramPacket(bytes, bytes.length, address, port));
-        buf = new UnfinishedByteArray(MAX_SIZE, true);
+        if (batching && buf.length() == 0)
+            return;
+
+        // an unterminated trailing command counts as a command as well
+        send(buf.length(), pendingCommands + (commandStart < buf.length() ? 1 : 0));
+    }
+
+    /**
+     * Enables coalescing of multiple commands into one datagram.
+     * Intended for the {@linkplain VBAN.Protocol#TEXT text protocol}, where every command is terminated by
+     * {@code ;} or {@code \n}.
+     * <p>
+     * Queued commands are sent as soon as the buffer reaches {@code sizeThreshold} bytes, when the next command would
+     * not fit into {@link VBANPacket#MAX_SIZE_WITHOUT_HEAD} anymore, or {@code maxDelay} after the first queued command,
+     * whichever happens first. {@link #flush()} sends them immediately.
+     *
+     * @param sizeThreshold The amount of buffered bytes at which a batch is sent.
+     * @param maxDelay      The maximum time a command may be delayed.
+     * @param unit          The unit of {@code maxDelay}.
+     *
+     * @return The instance of the stream.
+     * @throws IllegalArgumentException If the threshold is not within {@code [1;MAX_SIZE_WITHOUT_HEAD]}
+     *                                  or the delay is negative.
+     * @throws IllegalStateException    If this is a text stream with the {@link VBAN.CommandFormat#WCHAR} format,
+     *                                  whose two-byte characters cannot be split at single-byte terminators.
+     */
+    public synchronized VBANOutputStream<T> enableBatching(int sizeThreshold, long maxDelay, TimeUnit unit)
+            throws IllegalArgumentException, IllegalStateException {
+        if (commandFormat == VBAN.CommandFormat.WCHAR)
+            throw new IllegalStateException("Batching is not supported for the WCHAR command format");
+        Util.checkRange(sizeThreshold, 1, MAX_SIZE_WITHOUT_HEAD);
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("Delay must not be negative");
+
+        this.batchThreshold = sizeThreshold;
+        this.batchDelayNanos = unit.toNanos(maxDelay);
+        this.commandStart = buf.length();
+        this.batching = true;
+
+        if (batchScheduler == null)
+            batchScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "VBAN-BatchFlusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        return this;
+    }
+
+    /**
+     * Sends all queued commands and returns to sending one datagram per line.
+     *
+     * @return The instance of the stream.
+     * @throws IOException See {@link #flush()}.
+     */
+    public synchronized VBANOutputStream<T> disableBatching() throws IOException {
+        if (!batching)
+            return this;
+
+        flush();
+        batching = false;
+
+        if (batchScheduler != null) {
+            batchScheduler.shutdownNow();
+            batchScheduler = null;
+        }
+
+        return this;
+    }
+
+    /**
+     * Whether commands are coalesced into batches.
+     *
+     * @return Whether batching is enabled.
+     */
+    public synchronized boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Gets the amount of datagrams sent by this stream.
+     *
+     * @return The amount of datagrams sent.
+     */
+    public synchronized long getDatagramsSent() {
+        return datagramsSent;
+    }
+
+    /**
+     * Gets the amount of commands sent by this stream.
+     * Outside of batching mode, every datagram counts as one command.
+     *
+     * @return The amount of commands sent.
+     */
+    public synchronized long getCommandsSent() {
+        return commandsSent;
+    }
+
+    /**
+     * Gets the average amount of commands that have been packed into one datagram.
+     *
+     * @return The average amount of commands per datagram, or {@code 0} if nothing has been sent yet.
+     */
+    public synchronized double getCommandsPerDatagram() {
+        return datagramsSent == 0 ? 0 : (double) commandsSent / datagramsSent;
+    }
+
+    /**
+     * Sets whether this stream may send to broadcast addresses.
+     * Enabled automatically if the target address is a {@linkplain Util#isBroadcastAddress(InetAddress) broadcast address}.
+     *
+     * @param broadcast Whether to allow sending to broadcast addresses.
+     *
+     * @return This instance.
+     * @throws SocketException If the option cannot be set.
+     */
+    public synchronized VBANOutputStream<T> setBroadcast(boolean broadcast) throws SocketException {
+        socket.setBroadcast(broadcast);
+        return this;
+    }
+
+    /**
+     * Sets the time-to-live of multicast datagrams, which limits how many routers they may pass.
+     * The default of {@code 1} keeps them within the local network.
+     *
+     * @param timeToLive The time-to-live, within {@code [0;255]}.
+     *
+     * @return This instance.
+     * @throws IOException              If the option cannot be set.
+     * @throws IllegalArgumentException If the time-to-live is out of range.
+     */
+    public synchronized VBANOutputStream<T> setMulticastTimeToLive(int timeToLive)
+            throws IOException, IllegalArgumentException {
+        Util.checkRange(timeToLive, 0, 255);
+
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, timeToLive);
+        return this;
+    }
+
+    /**
+     * Sets whether multicast datagrams sent by this stream are looped back to receivers on the same host.
+     *
+     * @param loopback Whether to loop back multicast datagrams.
+     *
+     * @return This instance.
+     * @throws IOException If the option cannot be set.
+     */
+    public synchronized VBANOutputStream<T> setMulticastLoopback(boolean loopback) throws IOException {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, loopback);
+        return this;
+    }
+
+    /**
+     * Sets the interface that multicast datagrams are sent from.
+     *
+     * @param networkInterface The outgoing interface.
+     *
+     * @return This instance.
+     * @throws IOException If the option cannot be set.
+     */
+    public synchronized VBANOutputStream<T> setMulticastInterface(NetworkInterface networkInterface)
+            throws IOException {
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        return this;
+    }
+
+    /**
+     * Hands all datagrams of this stream to the given sender, which sends them on its own thread,
+     * instead of sending them on the calling thread. They are still sent through the channel of this stream, with its
+     * socket options.
+     *
+     * @param sender The sender to use, or {@code null} to send synchronously again.
+     *
+     * @return This instance.
+     */
+    public synchronized VBANOutputStream<T> setAsyncSender(AsyncSender sender) {
+        if (sender != null && target == null)
+            target = new InetSocketAddress(address, port);
+        asyncSender = sender;
+
+        return this;
+    }
+
+    /**
+     * Sends all datagrams of this stream through the given handle of a {@link TrafficShaper}, which holds back the
+     * datagrams that exceed the cap of this stream or the aggregate cap of the shaper, and sends them later.
+     * Works together with an {@linkplain #setAsyncSender(AsyncSender) async sender}.
+     *
+     * @param stream The handle {@linkplain TrafficShaper#register(long, int) registered} for this stream,
+     *               or {@code null} to stop shaping.
+     *
+     * @return This instance.
+     */
+    public synchronized VBANOutputStream<T> setTrafficShaper(TrafficShaper.Stream stream) {
+        if (stream != null && target == null)
+            target = new InetSocketAddress(address, port);
+        trafficShaper = stream;
+
+        return this;
+    }
+
+    /**
+     * Sends a parity datagram after every completed group of audio datagrams sent with
+     * {@link #sendPayload(ByteBuffer)} or {@link #sendData(Object)}, from which a
+     * {@link de.comroid.vban.fec.ParityDecoder} restores one lost datagram per group.
+     * Parity datagrams are not counted as {@linkplain #getDatagramsSent() sent datagrams}.
+     *
+     * @param encoder The encoder to use, with the group size to use, or {@code null} to stop sending parity.
+     *
+     * @return This instance.
+     */
+    public synchronized VBANOutputStream<T> setParityEncoder(ParityEncoder encoder) {
+        parityEncoder = encoder;
+
+        return this;
     }
 
     /**
@@ -102,16 +492,189 @@ public class VBANOutputStream<T> extends OutputStream {
      * Any attempt to send data after closing the stream will result in an {@link IOException} being thrown.
      */
     @Override
-    public void close() {
+    public synchronized void close() {
         try {
             flush();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        socket.close();
+        if (batchScheduler != null) {
+            batchScheduler.shutdownNow();
+            batchScheduler = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         socket = null;
         packetFactory = null;
 
         closed = true;
     }
+
+    private void appendText(CharSequence text) throws IOException {
+        int written = textCodec.encode(text, commandFormat, buf.getBufferArray(), buf.length(),
+                MAX_SIZE_WITHOUT_HEAD - buf.length());
+
+        if (written < 0 && batching && commandStart > 0) {
+            // make room by sending the queued commands first
+            send(commandStart, pendingCommands);
+            written = textCodec.encode(text, commandFormat, buf.getBufferArray(), buf.length(),
+                    MAX_SIZE_WITHOUT_HEAD - buf.length());
+        }
+        if (written < 0)
+            throw new IOException("Byte array is too large, must be smaller than " + MAX_SIZE);
+
+        int from = buf.length();
+        buf.advance(written);
+
+        if (!batching)
+            return;
+
+        for (int i = from; i < buf.length(); i++) {
+            if (isCommandTerminator(buf.getBufferArray()[i])) {
+                commandStart = i + 1;
+                pendingCommands++;
+            }
+        }
+
+        if (buf.length() >= batchThreshold && commandStart > 0)
+            send(commandStart, pendingCommands);
+        else if (pendingCommands > 0)
+            scheduleDeadline();
+    }
+
+    private void sendEncoded(VBAN.Protocol<T> protocol, T data) throws IOException, IllegalArgumentException {
+        if (closed) throw new IOException("Stream is closed");
+
+        ByteBuffer datagram = datagram();
+        try {
+            protocol.encodeInto(data, datagram);
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Data is too large to be sent, must be smaller than " + MAX_SIZE);
+        }
+        sendDatagram();
+    }
+
+    // the payload is put first, so that a payload that fails to encode does not skip a frame counter
+    private ByteBuffer datagram() {
+        if (datagram == null)
+            datagram = ByteBuffer.allocateDirect(MAX_SIZE);
+        if (target == null)
+            target = new InetSocketAddress(address, port);
+
+        datagram.clear().position(VBANPacketHead.SIZE);
+        return datagram;
+    }
+
+    private void sendDatagram() throws IOException {
+        int end = datagram.position();
+
+        datagram.position(0);
+        ((VBANPacket.Factory<?>) packetFactory).getHeadFactory().writeNext(datagram);
+        datagram.position(0).limit(end);
+
+        boolean parity = parityEncoder != null && parityEncoder.add(datagram);
+        transmit(datagram);
+        datagramsSent++;
+        commandsSent++;
+
+        if (parity) {
+            if (parityDatagram == null)
+                parityDatagram = ByteBuffer.allocateDirect(MAX_SIZE);
+            parityDatagram.clear();
+            parityEncoder.writeParity(parityDatagram);
+            parityDatagram.flip();
+            transmit(parityDatagram);
+        }
+    }
+
+    private void transmit(ByteBuffer datagram) throws IOException {
+        if (asyncSender != null) {
+            int length = datagram.remaining();
+            if (datagramBytes == null)
+                datagramBytes = new byte[MAX_SIZE];
+            datagram.get(datagramBytes, 0, length);
+            if (trafficShaper != null)
+                trafficShaper.send(datagramBytes, 0, length, asyncSender, channel, target);
+            else asyncSender.submit(datagramBytes, 0, length, channel, target);
+        } else if (trafficShaper != null) {
+            trafficShaper.send(datagram, channel, target);
+        } else {
+            channel.send(datagram, target);
+        }
+    }
+
+    private void send(int length, int commands) throws IOException {
+        if (closed) throw new IOException("Stream is closed");
+
+        byte[] all = buf.getBufferArray();
+        byte[] bytes = packetFactory.create()
+                .setData(Arrays.copyOf(all, length))
+                .getBytes();
+        if (trafficShaper != null && asyncSender != null)
+            trafficShaper.send(bytes, 0, bytes.length, asyncSender, channel, target);
+        else if (trafficShaper != null)
+            trafficShaper.send(ByteBuffer.wrap(bytes), channel, target);
+        else if (asyncSender != null)
+            asyncSender.submit(bytes, 0, bytes.length, channel, target);
+        else socket.send(new DatagramPacket(bytes, bytes.length, address, port));
+
+        int rest = buf.length() - length;
+        UnfinishedByteArray next = new UnfinishedByteArray(MAX_SIZE, true);
+        if (rest > 0)
+            next.append(Arrays.copyOfRange(all, length, length + rest));
+        buf = next;
+
+        datagramsSent++;
+        commandsSent += batching ? commands : 1;
+        commandStart = Math.max(commandStart - length, 0);
+        pendingCommands -= Math.min(commands, pendingCommands);
+        batchGeneration++;
+        deadlineScheduled = false;
+    }
+
+    private void scheduleDeadline() {
+        if (deadlineScheduled)
+            return;
+
+        final long generation = batchGeneration;
+        deadlineScheduled = true;
+
+        batchScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (VBANOutputStream.this) {
+                    // the batch may have been sent in the meantime
+                    if (closed || !batching || generation != batchGeneration)
+                        return;
+
+                    // a command that is still being written stays in the buffer
+                    try {
+                        if (commandStart > 0)
+                            send(commandStart, pendingCommands);
+                    } catch (IOException e) {
+                        // the commands stay queued, and the next write or flush reports the failure
+                        deadlineError = e;
+                        deadlineScheduled = false;
+                    }
+                }
+            }
+        }, batchDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void checkWritable() throws IOException {
+        if (closed) throw new IOException("Stream is closed");
+
+        IOException error = deadlineError;
+        if (error != null) {
+            deadlineError = null;
+            throw new IOException("Sending a batch at its deadline failed", error);
+        }
+    }
+
+    private static boolean isCommandTerminator(int b) {
+        return b == ';' || b == '\n';
+    }
 }
@@ -0,0 +1,289 @@
+package de.comroid.vban.audio;
+
+/**
+ * An asynchronous sample rate converter between a remote sender's clock and the local playback clock.
+ * Keeps the amount of buffered audio constant, so that small clock differences never make the buffer run dry or
+ * overflow, which would be audible as clicks.
+ * <p>
+ * Received audio is {@linkplain #write(byte[], int, int) written} into an internal ring; the playback side
+ * {@linkplain #read(byte[], int, int) reads} from it and interpolates with a cubic Hermite spline at a fractional
+ * step. The step is the product of two parts:
+ * <ul>
+ * <li>the {@linkplain #setRatio(double) ratio} of the sender's rate to the local rate, usually taken from a
+ * {@link DriftEstimator}, which compensates the drift as soon as it is known, and</li>
+ * <li>a proportional-integral correction from the deviation of the buffer fill from its target, which removes
+ * whatever error the ratio leaves. The correction is limited to {@link #MAX_CORRECTION}, so the pitch never
+ * changes audibly.</li>
+ * </ul>
+ * Audio is 16 bit signed little-endian PCM with interleaved channels, as in {@link de.comroid.vban.VBAN.AudioFormat#INT16}
+ * frames. Instances are not thread-safe; writing and reading have to be synchronized externally, e.g. by doing both
+ * on the playback thread.
+ */
+public class AdaptiveResampler {
+    /**
+     * The largest relative change of the step the fill correction may apply, on top of the ratio.
+     */
+    public static final double MAX_CORRECTION = 0.002;
+
+    /**
+     * The oscillation period of the fill control loop, in output frames; about eleven seconds at 48 kHz.
+     */
+    public static final int CONTROL_PERIOD = 1 << 19;
+
+    private static final double DAMPING = 0.7;
+    private static final double FILL_SMOOTHING = 16384;
+    // the interpolation reads one frame behind and two frames ahead of the read position
+    private static final int HISTORY = 1;
+    private static final int LOOKAHEAD = 2;
+
+    private final int channels;
+    private final int targetFill;
+    private final float[] ring;
+    private final int mask;
+    private final double proportionalGain;
+    private final double integralGain;
+
+    private long writeFrame;
+    private long readFrame;
+    private double fraction;
+    private double ratio = 1;
+    private double integral;
+    private double smoothedFill;
+    private boolean primed;
+
+    private long underruns;
+    private long overruns;
+
+    /**
+     * Constructor.
+     *
+     * @param channels   The amount of interleaved channels.
+     * @param capacity   The minimum amount of frames the buffer can hold. Is rounded up to the next power of two.
+     * @param targetFill The amount of buffered frames to keep. Playback starts once it is reached.
+     *
+     * @throws IllegalArgumentException If the amount of channels is not positive, or the target fill is not positive
+     *                                  or leaves less than a quarter of the capacity free.
+     */
+    public AdaptiveResampler(int channels, int capacity, int targetFill) throws IllegalArgumentException {
+        if (channels < 1)
+            throw new IllegalArgumentException("Amount of channels must be positive");
+        if (targetFill < 1 || targetFill > capacity - capacity / 4)
+            throw new IllegalArgumentException("Target fill out of range [cap=" + capacity + ";target=" + targetFill + "]");
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        this.channels = channels;
+        this.targetFill = targetFill;
+        this.ring = new float[size * channels];
+        this.mask = size - 1;
+
+        double omega = 2 * Math.PI / CONTROL_PERIOD;
+        this.proportionalGain = 2 * DAMPING * omega;
+        this.integralGain = omega * omega;
+    }
+
+    /**
+     * Sets the ratio of the sender's sample rate to the local one.
+     * A ratio above {@code 1} means that the sender is faster, so input is consumed faster.
+     *
+     * @param ratio The rate ratio, e.g. {@link DriftEstimator#getRatio()}.
+     *
+     * @return This instance.
+     * @throws IllegalArgumentException If the ratio is not within {@code (0.5;2)}.
+     */
+    public AdaptiveResampler setRatio(double ratio) throws IllegalArgumentException {
+        if (!(ratio > 0.5 && ratio < 2))
+            throw new IllegalArgumentException("Ratio out of range: " + ratio);
+
+        this.ratio = ratio;
+        return this;
+    }
+
+    /**
+     * Gets the ratio set by {@link #setRatio(double)}.
+     *
+     * @return The rate ratio.
+     */
+    public double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * Gets the current relative fill correction applied on top of the ratio.
+     *
+     * @return The fill correction, within {@code [-MAX_CORRECTION;MAX_CORRECTION]}.
+     */
+    public double getCorrection() {
+        return clamp(proportionalGain * (smoothedFill - targetFill) + integral);
+    }
+
+    /**
+     * Gets the amount of input frames consumed per output frame.
+     *
+     * @return The effective step.
+     */
+    public double getStep() {
+        return ratio * (1 + getCorrection());
+    }
+
+    /**
+     * Gets the amount of buffered input frames that have not been consumed yet.
+     *
+     * @return The buffer fill in frames.
+     */
+    public double getFill() {
+        return writeFrame - readFrame - fraction;
+    }
+
+    /**
+     * Gets the amount of frames this resampler tries to keep buffered.
+     *
+     * @return The target fill in frames.
+     */
+    public int getTargetFill() {
+        return targetFill;
+    }
+
+    /**
+     * Gets the amount of frames this resampler can buffer.
+     *
+     * @return The capacity in frames.
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Gets the amount of times playback ran out of input. Playback resumes with silence until the target fill is
+     * reached again.
+     *
+     * @return The amount of underruns.
+     */
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    /**
+     * Gets the amount of writes that did not fit into the buffer completely.
+     *
+     * @return The amount of overruns.
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    /**
+     * Appends received frames to the buffer. Frames that do not fit are dropped and counted as an overrun.
+     *
+     * @param src    The array containing the frames.
+     * @param offset The index of the first byte of the first frame.
+     * @param frames The amount of frames to append.
+     *
+     * @return The amount of frames that have been appended.
+     */
+    public int write(byte[] src, int offset, int frames) {
+        int free = (int) (getCapacity() - HISTORY - LOOKAHEAD - (writeFrame - readFrame));
+
+        if (frames > free) {
+            overruns++;
+            frames = Math.max(free, 0);
+        }
+
+        for (int i = 0; i < frames; i++) {
+            int base = (int) (writeFrame++ & mask) * channels;
+
+            for (int c = 0; c < channels; c++, offset += 2)
+                ring[base + c] = (short) (src[offset] & 0xFF | src[offset + 1] << 8);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Produces output frames at the local rate.
+     * Produces silence until the target fill has been reached, and after an underrun.
+     *
+     * @param dst    The array to write the frames to.
+     * @param offset The index of the first byte to write.
+     * @param frames The amount of frames to produce.
+     */
+    public void read(byte[] dst, int offset, int frames) {
+        if (!primed) {
+            if (writeFrame - readFrame < targetFill) {
+                silence(dst, offset, frames);
+                return;
+            }
+            primed = true;
+            smoothedFill = getFill();
+        }
+
+        double error = updateFill(frames);
+        double step = ratio * (1 + clamp(proportionalGain * error + integral));
+
+        for (int i = 0; i < frames; i++) {
+            if (readFrame + LOOKAHEAD >= writeFrame) {
+                underruns++;
+                primed = false;
+                integral = 0;
+                silence(dst, offset, frames - i);
+                return;
+            }
+
+            interpolate(dst, offset);
+            offset += channels * 2;
+
+            fraction += step;
+            int whole = (int) fraction;
+            readFrame += whole;
+            fraction -= whole;
+        }
+    }
+
+    /**
+     * Drops all buffered frames and resets the fill correction. The ratio is kept.
+     */
+    public void reset() {
+        readFrame = writeFrame;
+        fraction = 0;
+        integral = 0;
+        smoothedFill = 0;
+        primed = false;
+    }
+
+    // smooths the fill over several reads and advances the integral; returns the fill error in frames
+    private double updateFill(int frames) {
+        smoothedFill += (getFill() - smoothedFill) * frames / (frames + FILL_SMOOTHING);
+
+        double error = smoothedFill - targetFill;
+        integral = clamp(integral + integralGain * error * frames);
+        return error;
+    }
+
+    private void interpolate(byte[] dst, int offset) {
+        float t = (float) fraction;
+        int i0 = (int) ((readFrame - 1) & mask) * channels;
+        int i1 = (int) (readFrame & mask) * channels;
+        int i2 = (int) ((readFrame + 1) & mask) * channels;
+        int i3 = (int) ((readFrame + 2) & mask) * channels;
+
+        for (int c = 0; c < channels; c++) {
+            float p0 = ring[i0 + c], p1 = ring[i1 + c], p2 = ring[i2 + c], p3 = ring[i3 + c];
+            // Catmull-Rom spline through p1 and p2
+            float value = p1 + 0.5f * t * (p2 - p0 + t * (2 * p0 - 5 * p1 + 4 * p2 - p3 + t * (3 * (p1 - p2) + p3 - p0)));
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+
+            dst[offset++] = (byte) sample;
+            dst[offset++] = (byte) (sample >> 8);
+        }
+    }
+
+    private void silence(byte[] dst, int offset, int frames) {
+        for (int i = offset, end = offset + frames * channels * 2; i < end; i++)
+            dst[i] = 0;
+    }
+
+    private static double clamp(double correction) {
+        return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+    }
+}
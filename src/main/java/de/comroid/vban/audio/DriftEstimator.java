@@ -0,0 +1,234 @@
+package de.comroid.vban.audio;
+
+import de.comroid.vban.packet.FrameCounters;
+
+/**
+ * Estimates the rate of a sender's audio clock relative to the local {@link System#nanoTime()} clock.
+ * <p>
+ * Every received packet yields one point: the sender's sample position, reconstructed from the frame counter and
+ * the samples per frame, against the local arrival time. A line is fitted through these points with an
+ * exponentially weighted least squares fit, whose weights halve every {@code halfLife}; its slope is the sender's
+ * sample rate as seen by the local clock.
+ * <p>
+ * Once the fit has settled, points far off the fitted line in either direction are rejected as outliers. Network
+ * jitter only ever delays packets, so most outliers lie above the line; points far below it mean that the line
+ * no longer fits, e.g. after a switch to a shorter route. If too many consecutive points are rejected, the
+ * estimator assumes such a step change and starts over. It also starts over right away when the frame counter
+ * jumps by more than {@link FrameCounters#REORDER_WINDOW} in either direction, which means a restarted sender.
+ * <p>
+ * Instances are not thread-safe; update them from the receiving thread.
+ */
+public class DriftEstimator {
+    /**
+     * The amount of accepted points before outliers are rejected.
+     */
+    public static final int WARMUP = 32;
+
+    /**
+     * The amount of consecutive rejected points after which the estimator starts over.
+     */
+    public static final int MAX_CONSECUTIVE_REJECTS = 64;
+
+    private static final double OUTLIER_FACTOR = 6;
+    private static final double MIN_OUTLIER_NANOS = 100_000;
+    private static final double DEVIATION_SMOOTHING = 0.05;
+
+    private final int nominalSampleRate;
+    private final double halfLifeNanos;
+
+    private boolean started;
+    private int lastCounter;
+    private long firstNanos;
+    private long lastNanos;
+    private double position;
+
+    // exponentially weighted fit of arrival nanos (y) over sample position (x)
+    private double weight;
+    private double meanX;
+    private double meanY;
+    private double covXX;
+    private double covXY;
+    private double deviation;
+
+    private long accepted;
+    private long rejected;
+    private int consecutiveRejects;
+
+    /**
+     * Constructor.
+     *
+     * @param nominalSampleRate The sample rate the sender claims, e.g. from its packet head.
+     * @param halfLifeSeconds   The age after which a point counts half as much as a new one.
+     *                          Longer half-lives give steadier estimates, but follow changes more slowly.
+     *
+     * @throws IllegalArgumentException If the sample rate or the half-life is not positive.
+     */
+    public DriftEstimator(int nominalSampleRate, double halfLifeSeconds) throws IllegalArgumentException {
+        if (nominalSampleRate <= 0)
+            throw new IllegalArgumentException("Sample rate must be positive");
+        if (!(halfLifeSeconds > 0))
+            throw new IllegalArgumentException("Half-life must be positive");
+
+        this.nominalSampleRate = nominalSampleRate;
+        this.halfLifeNanos = halfLifeSeconds * 1e9;
+    }
+
+    /**
+     * Adds the arrival of one packet.
+     * Late and duplicate packets are ignored; a frame counter that jumps out of the
+     * {@linkplain FrameCounters#REORDER_WINDOW reorder window} starts a new estimate.
+     *
+     * @param frameCounter    The frame counter of the packet.
+     * @param samplesPerFrame The amount of samples per channel in each packet of the stream.
+     * @param receiveNanos    The {@link System#nanoTime()} at which the packet has been received.
+     *
+     * @return Whether the point has been accepted into the fit, possibly as the first point of a new estimate.
+     */
+    public boolean update(int frameCounter, int samplesPerFrame, long receiveNanos) {
+        if (!started) {
+            started = true;
+            lastCounter = frameCounter;
+            firstNanos = lastNanos = receiveNanos;
+            position = 0;
+            add(0, 0, 1);
+            return true;
+        }
+
+        int frames = FrameCounters.delta(lastCounter, frameCounter);
+        if (FrameCounters.isLate(frames))
+            return false;
+        if (!FrameCounters.isAhead(frames)) {
+            restart(frameCounter, receiveNanos);
+            return true;
+        }
+
+        double x = position + (double) frames * samplesPerFrame;
+        double y = receiveNanos - firstNanos;
+
+        if (accepted >= WARMUP) {
+            double residual = y - predict(x);
+
+            if (Math.abs(residual) > Math.max(OUTLIER_FACTOR * deviation, MIN_OUTLIER_NANOS)) {
+                rejected++;
+                if (++consecutiveRejects >= MAX_CONSECUTIVE_REJECTS)
+                    restart(frameCounter, receiveNanos);
+                return false;
+            }
+            deviation += (Math.abs(residual) - deviation) * DEVIATION_SMOOTHING;
+        }
+
+        consecutiveRejects = 0;
+        lastCounter = frameCounter;
+        position = x;
+        add(x, y, Math.pow(0.5, (receiveNanos - lastNanos) / halfLifeNanos));
+        lastNanos = receiveNanos;
+
+        return true;
+    }
+
+    /**
+     * Gets the ratio of the sender's actual sample rate to its nominal one, as measured with the local clock.
+     * Returns {@code 1} until {@link #isSettled() settled}.
+     *
+     * @return The rate ratio.
+     */
+    public double getRatio() {
+        if (!isSettled())
+            return 1;
+
+        return getSenderSampleRate() / nominalSampleRate;
+    }
+
+    /**
+     * Gets the drift of the sender's clock relative to the local clock in parts per million.
+     * Positive values mean that the sender produces samples faster than the nominal rate.
+     *
+     * @return The drift in ppm.
+     */
+    public double getPpm() {
+        return (getRatio() - 1) * 1e6;
+    }
+
+    /**
+     * Gets the sender's sample rate as measured with the local clock.
+     *
+     * @return The measured sample rate, or the nominal sample rate until {@link #isSettled() settled}.
+     */
+    public double getSenderSampleRate() {
+        if (!isSettled() || covXY <= 0)
+            return nominalSampleRate;
+
+        // slope is nanos per sample
+        return 1e9 * covXX / covXY;
+    }
+
+    /**
+     * Whether enough points have been accepted for a meaningful estimate.
+     *
+     * @return Whether the estimate has settled.
+     */
+    public boolean isSettled() {
+        return accepted >= WARMUP;
+    }
+
+    /**
+     * Gets the amount of accepted points since the last start.
+     *
+     * @return The amount of accepted points.
+     */
+    public long getAcceptedCount() {
+        return accepted;
+    }
+
+    /**
+     * Gets the amount of points rejected as outliers since the last start.
+     *
+     * @return The amount of rejected points.
+     */
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Gets the smoothed absolute deviation of arrival times from the fitted line.
+     *
+     * @return The deviation in nanoseconds.
+     */
+    public double getDeviationNanos() {
+        return deviation;
+    }
+
+    /**
+     * Forgets all points. The next update starts a new estimate.
+     */
+    public void reset() {
+        started = false;
+        weight = meanX = meanY = covXX = covXY = deviation = 0;
+        accepted = rejected = 0;
+        consecutiveRejects = 0;
+    }
+
+    private void restart(int frameCounter, long receiveNanos) {
+        reset();
+        update(frameCounter, 0, receiveNanos);
+    }
+
+    private double predict(double x) {
+        return meanY + (covXY / covXX) * (x - meanX);
+    }
+
+    // weighted incremental mean and covariance; numerically stable for large x and y
+    private void add(double x, double y, double decay) {
+        weight = weight * decay + 1;
+        covXX *= decay;
+        covXY *= decay;
+
+        double dx = x - meanX;
+        meanX += dx / weight;
+        meanY += (y - meanY) / weight;
+        covXX += dx * (x - meanX);
+        covXY += dx * (y - meanY);
+
+        accepted++;
+    }
+}
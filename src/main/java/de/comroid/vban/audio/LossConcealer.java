@@ -0,0 +1,576 @@
+package de.comroid.vban.audio;
+
+import java.util.Arrays;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.FrameCounters;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Conceals lost packets of one audio stream, so that gaps are neither audible as clicks nor make the playback buffer
+ * run dry.
+ * <p>
+ * For every received packet, {@link #detectGap(int, int)} compares the frame counter with the previous one and
+ * returns the amount of missing frames, which the caller then fills with {@link #conceal(byte[], int, int)} before
+ * passing the packet to {@link #accept(byte[], int, int)}:
+ * <pre>{@code
+ * int missing = concealer.detectGap(view);
+ * if (missing > 0) {
+ *     concealer.conceal(frame, missing);
+ *     play(frame);
+ * }
+ * concealer.accept(view);
+ * play(view);
+ * }</pre>
+ * The missing audio is synthesized according to the {@link Strategy}. When the stream resumes, the first received
+ * frames are crossfaded with the continuation of the synthesized signal, in place. Synthesized audio fades out
+ * within {@link #SILENT_AFTER_MILLIS}, after which silence is written without any computation, and gaps beyond the
+ * configured maximum are not synthesized at all, so bursts of losses cost no more than a short gap.
+ * <p>
+ * The last received audio is kept as raw bytes, and is only decoded when a gap is found. Every
+ * {@link VBAN.AudioFormat} is supported; {@link VBAN.AudioFormat#BYTE8} is signed, and
+ * {@link VBAN.AudioFormat#BITS12} and {@link VBAN.AudioFormat#BITS10} are signed values in 16 bit little-endian
+ * words. Compressed audio has to be decoded before. Nothing is allocated after construction.
+ * Instances are not thread-safe; use one per stream, e.g. as the state of a
+ * {@link de.comroid.vban.receive.SessionTable.Session}.
+ */
+public class LossConcealer {
+    /**
+     * The time after which synthesized audio starts fading out.
+     */
+    public static final int ATTENUATION_MILLIS = 10;
+
+    /**
+     * The time after which synthesized audio has faded out completely.
+     */
+    public static final int SILENT_AFTER_MILLIS = 60;
+
+    // the duration of fades to and from silence, and of crossfades into received audio
+    private static final int FADE_MILLIS = 4;
+    // pitch periods between 66 and 200 Hz, compared over 20 ms, as in ITU-T G.711 Appendix I
+    private static final int MIN_PITCH_MILLIS = 5;
+    private static final int MAX_PITCH_MILLIS = 15;
+    private static final int CORRELATION_MILLIS = 20;
+    // the coarse pitch search runs at about this rate
+    private static final int SEARCH_HZ = 8000;
+    // the mono mix for the pitch search uses at most this many channels
+    private static final int SEARCH_CHANNELS = 8;
+    private static final int MAX_PACKET_FRAMES = 256;
+
+    private final VBAN.AudioFormat format;
+    private final Strategy strategy;
+    private final int channels;
+    private final int bytesPerSample;
+    private final int blockAlign;
+    private final int maxConcealFrames;
+    private final int fadeFrames;
+    private final int attenuationFrames;
+    private final int silentFrames;
+    private final int endFrames;
+    private final int minPitch;
+    private final int maxPitch;
+    private final int correlationFrames;
+    private final int decimation;
+
+    // the last received audio, as raw bytes
+    private final byte[] history;
+    private final int historyFrames;
+    private int historyWrite = 0;
+    private int historyFill = 0;
+    private int lastPacketFrames = 0;
+
+    // synthesis state of the current gap
+    private final float[] period;
+    private final float[] mono;
+    private int periodFrames = 0;
+    private int periodPos = 0;
+    private int synthesized = 0;
+    private boolean concealing = false;
+    private boolean fadeIn = false;
+
+    private boolean started = false;
+    private int lastCounter;
+
+    private long concealedPackets = 0;
+    private long concealedFrames = 0;
+    private long latePackets = 0;
+    private long restarts = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param sampleRate       The sample rate of the stream.
+     * @param format           The sample format of the stream.
+     * @param channels         The amount of interleaved channels.
+     * @param strategy         How missing audio is synthesized.
+     * @param maxConcealFrames The largest gap in frames that is concealed. Larger gaps are treated as a restart of
+     *                         the stream, whose audio is faded in.
+     *
+     * @throws IllegalArgumentException If the amount of channels is not within {@code [1;256]},
+     *                                  or the maximum gap is negative.
+     */
+    public LossConcealer(VBAN.SampleRate sampleRate, VBAN.AudioFormat format, int channels, Strategy strategy,
+                         int maxConcealFrames) throws IllegalArgumentException {
+        if (channels < 1 || channels > 256)
+            throw new IllegalArgumentException("Amount of channels out of range: " + channels);
+        if (maxConcealFrames < 0)
+            throw new IllegalArgumentException("Maximum gap must not be negative");
+
+        int hz = sampleRate.getHz();
+        this.format = format;
+        this.strategy = strategy;
+        this.channels = channels;
+        this.bytesPerSample = format.getBytesPerSample();
+        this.blockAlign = bytesPerSample * channels;
+        this.maxConcealFrames = maxConcealFrames;
+        this.fadeFrames = Math.max(millisToFrames(hz, FADE_MILLIS), 1);
+        this.attenuationFrames = millisToFrames(hz, ATTENUATION_MILLIS);
+        this.silentFrames = millisToFrames(hz, SILENT_AFTER_MILLIS);
+        this.endFrames = strategy == Strategy.SILENCE ? fadeFrames : silentFrames;
+        this.minPitch = Math.max(millisToFrames(hz, MIN_PITCH_MILLIS), 1);
+        this.maxPitch = Math.max(millisToFrames(hz, MAX_PITCH_MILLIS), minPitch);
+        this.correlationFrames = Math.max(millisToFrames(hz, CORRELATION_MILLIS), 1);
+        this.decimation = Math.max(hz / SEARCH_HZ, 1);
+
+        this.historyFrames = Math.max(maxPitch + correlationFrames, MAX_PACKET_FRAMES);
+        this.history = new byte[historyFrames * blockAlign];
+        this.period = new float[historyFrames * channels];
+        this.mono = new float[maxPitch + correlationFrames];
+    }
+
+    /**
+     * Checks the frame counter of a received packet for a gap.
+     * Packets must be checked in the order they are played.
+     *
+     * @param frameCounter The frame counter of the packet.
+     * @param samples      The amount of frames per packet.
+     *
+     * @return The amount of missing frames before the packet, which should be {@linkplain #conceal(byte[], int, int)
+     * concealed}, or {@code -1} if the packet is late or a duplicate, and should be dropped.
+     */
+    public int detectGap(int frameCounter, int samples) {
+        if (!started) {
+            started = true;
+            lastCounter = frameCounter;
+            return 0;
+        }
+
+        int delta = FrameCounters.delta(lastCounter, frameCounter);
+        if (FrameCounters.isLate(delta)) {
+            latePackets++;
+            return -1;
+        }
+
+        lastCounter = frameCounter;
+        int packets = delta - 1;
+        if (packets == 0)
+            return 0;
+
+        if (!FrameCounters.isAhead(delta) || (long) packets * samples > maxConcealFrames) {
+            // a restarted sender, or a gap too long to bridge
+            restarts++;
+            concealing = false;
+            fadeIn = true;
+            return 0;
+        }
+
+        concealedPackets += packets;
+        return packets * samples;
+    }
+
+    /**
+     * Checks the frame counter of a received packet for a gap, see {@link #detectGap(int, int)}.
+     * Parity datagrams of a {@link de.comroid.vban.fec.ParityEncoder} are no audio and always to be dropped.
+     *
+     * @param view A view of the packet.
+     *
+     * @return The amount of missing frames before the packet, or {@code -1} if the packet should be dropped.
+     */
+    public int detectGap(VBANPacketView view) {
+        if (ParityDecoder.isParity(view))
+            return -1;
+        return detectGap(view.getFrameCounter(), view.getSamples());
+    }
+
+    /**
+     * Synthesizes missing frames, continuing the audio synthesized since the last received packet.
+     *
+     * @param dst    The array to write the frames to.
+     * @param offset The index of the first byte to write.
+     * @param frames The amount of frames to synthesize.
+     *
+     * @throws IllegalArgumentException If the frames do not fit into the array.
+     */
+    public void conceal(byte[] dst, int offset, int frames) throws IllegalArgumentException {
+        if (offset < 0 || frames < 0 || dst.length - offset < (long) frames * blockAlign)
+            throw new IllegalArgumentException("Frames do not fit into the array [frames=" + frames + "]");
+
+        if (!concealing)
+            prepare();
+
+        for (int i = 0; i < frames; i++, offset += blockAlign) {
+            if (synthesized >= endFrames) {
+                // faded out completely; all formats encode zero as zero bytes
+                Arrays.fill(dst, offset, offset + (frames - i) * blockAlign, (byte) 0);
+                synthesized += frames - i;
+                break;
+            }
+
+            float gain = gain();
+            int base = periodPos * channels;
+            for (int c = 0; c < channels; c++)
+                write(dst, offset + c * bytesPerSample, period[base + c] * gain);
+            advance();
+        }
+
+        concealedFrames += frames;
+    }
+
+    /**
+     * Synthesizes missing frames into the given frame, replacing its content, see {@link #conceal(byte[], int, int)}.
+     *
+     * @param frame  A reusable frame, e.g. from {@link AudioFrame#allocate(int)}.
+     * @param frames The amount of frames to synthesize.
+     *
+     * @throws IllegalArgumentException If the frames do not fit into the frame.
+     */
+    public void conceal(AudioFrame frame, int frames) throws IllegalArgumentException {
+        conceal(frame.getBufferArray(), 0, frames);
+        frame.setLength(frames * blockAlign);
+    }
+
+    /**
+     * Takes received frames. After a gap, their beginning is crossfaded with the synthesized audio, in place.
+     *
+     * @param pcm    The array containing the frames.
+     * @param offset The index of the first byte of the first frame.
+     * @param frames The amount of frames.
+     *
+     * @throws IllegalArgumentException If the array holds less than the given amount of frames.
+     */
+    public void accept(byte[] pcm, int offset, int frames) throws IllegalArgumentException {
+        if (offset < 0 || frames < 0 || pcm.length - offset < (long) frames * blockAlign)
+            throw new IllegalArgumentException("Array holds less than " + frames + " frames");
+
+        if (concealing || fadeIn) {
+            int length = Math.min(fadeFrames, frames);
+
+            for (int i = 0, index = offset; i < length; i++, index += blockAlign) {
+                float weight = (i + 1) / (float) (length + 1);
+                float gain = concealing ? gain() : 0;
+                int base = periodPos * channels;
+
+                for (int c = 0; c < channels; c++) {
+                    int at = index + c * bytesPerSample;
+                    float synthetic = concealing ? period[base + c] * gain : 0;
+                    write(pcm, at, read(pcm, at) * weight + synthetic * (1 - weight));
+                }
+                if (concealing)
+                    advance();
+            }
+
+            concealing = false;
+            fadeIn = false;
+        }
+
+        remember(pcm, offset, frames);
+        lastPacketFrames = frames;
+    }
+
+    /**
+     * Takes the payload of a received packet, see {@link #accept(byte[], int, int)}.
+     *
+     * @param view A view of the packet; its payload may be modified.
+     *
+     * @throws IllegalArgumentException If the payload holds less frames than the packet head says.
+     */
+    public void accept(VBANPacketView view) throws IllegalArgumentException {
+        if (view.getPayloadLength() < view.getSamples() * blockAlign)
+            throw new IllegalArgumentException("Payload holds less than " + view.getSamples() + " frames");
+
+        accept(view.getBuffer(), view.getPayloadOffset(), view.getSamples());
+    }
+
+    /**
+     * Takes a received frame, see {@link #accept(byte[], int, int)}.
+     *
+     * @param frame The frame; its content may be modified.
+     */
+    public void accept(AudioFrame frame) {
+        accept(frame.getBufferArray(), 0, frame.length() / blockAlign);
+    }
+
+    /**
+     * Forgets the stream, e.g. after a format change.
+     */
+    public void reset() {
+        started = false;
+        concealing = false;
+        fadeIn = false;
+        historyFill = 0;
+        lastPacketFrames = 0;
+    }
+
+    /**
+     * Gets the amount of packets that have been missing from the stream, and concealed.
+     *
+     * @return The amount of concealed packets.
+     */
+    public long getConcealedPackets() {
+        return concealedPackets;
+    }
+
+    /**
+     * Gets the amount of synthesized frames.
+     *
+     * @return The amount of concealed frames.
+     */
+    public long getConcealedFrames() {
+        return concealedFrames;
+    }
+
+    /**
+     * Gets the amount of packets that arrived after they had been concealed, or twice.
+     *
+     * @return The amount of late packets.
+     */
+    public long getLatePackets() {
+        return latePackets;
+    }
+
+    /**
+     * Gets the amount of gaps that were too long to be concealed, or where the sender restarted.
+     *
+     * @return The amount of restarts.
+     */
+    public long getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * Gets the length of the audio that is repeated to conceal the current or last gap.
+     * For {@link Strategy#EXTRAPOLATE}, this is the detected pitch period.
+     *
+     * @return The period in frames, or {@code 0} if there was no audio to repeat.
+     */
+    public int getPeriodFrames() {
+        return periodFrames;
+    }
+
+    private void prepare() {
+        int frames;
+        switch (strategy) {
+            case SILENCE:
+                frames = Math.min(historyFill, 1);
+                break;
+            case REPEAT:
+                frames = Math.min(lastPacketFrames, historyFill);
+                break;
+            case EXTRAPOLATE:
+            default:
+                frames = historyFill >= mono.length ? findPitch() : Math.min(lastPacketFrames, historyFill);
+                break;
+        }
+
+        // the newest frames of the history, oldest first
+        for (int i = 0; i < frames; i++)
+            for (int c = 0; c < channels; c++)
+                period[i * channels + c] = sample(frames - i, c);
+
+        periodFrames = frames;
+        periodPos = 0;
+        if (frames == 0) {
+            // nothing to continue
+            Arrays.fill(period, 0, channels, 0);
+            periodFrames = 1;
+        }
+        synthesized = 0;
+        concealing = true;
+    }
+
+    // finds the pitch period with the largest normalized correlation between the newest audio and the audio before it
+    private int findPitch() {
+        int length = mono.length;
+        int mixed = Math.min(channels, SEARCH_CHANNELS);
+
+        for (int i = 0; i < length; i++) {
+            float sum = 0;
+            for (int c = 0; c < mixed; c++)
+                sum += sample(length - i, c);
+            mono[i] = sum;
+        }
+
+        int best = search(minPitch, maxPitch, decimation);
+        return search(Math.max(best - decimation, minPitch), Math.min(best + decimation, maxPitch), 1);
+    }
+
+    private int search(int from, int to, int step) {
+        int reference = mono.length - correlationFrames;
+        int best = from;
+        double bestScore = Double.NEGATIVE_INFINITY;
+
+        for (int lag = from; lag <= to; lag += step) {
+            double correlation = 0;
+            double energy = 0;
+
+            for (int i = 0; i < correlationFrames; i += step) {
+                float candidate = mono[reference - lag + i];
+                correlation += mono[reference + i] * candidate;
+                energy += candidate * candidate;
+            }
+
+            double score = energy > 0 ? correlation / Math.sqrt(energy) : 0;
+            if (score > bestScore) {
+                bestScore = score;
+                best = lag;
+            }
+        }
+
+        return best;
+    }
+
+    private float gain() {
+        if (strategy == Strategy.SILENCE)
+            return Math.max(1 - synthesized / (float) fadeFrames, 0);
+        if (synthesized < attenuationFrames)
+            return 1;
+        return Math.max(1 - (synthesized - attenuationFrames) / (float) (silentFrames - attenuationFrames), 0);
+    }
+
+    private void advance() {
+        synthesized++;
+        if (++periodPos == periodFrames)
+            periodPos = 0;
+    }
+
+    private void remember(byte[] pcm, int offset, int frames) {
+        if (frames > historyFrames) {
+            offset += (frames - historyFrames) * blockAlign;
+            frames = historyFrames;
+        }
+
+        int first = Math.min(frames, historyFrames - historyWrite);
+        System.arraycopy(pcm, offset, history, historyWrite * blockAlign, first * blockAlign);
+        System.arraycopy(pcm, offset + first * blockAlign, history, 0, (frames - first) * blockAlign);
+
+        historyWrite = (historyWrite + frames) % historyFrames;
+        historyFill = Math.min(historyFill + frames, historyFrames);
+    }
+
+    // a sample of the history; framesBack 1 is the newest frame
+    private float sample(int framesBack, int channel) {
+        int frame = historyWrite - framesBack;
+        if (frame < 0)
+            frame += historyFrames;
+
+        return read(history, frame * blockAlign + channel * bytesPerSample);
+    }
+
+    private float read(byte[] bytes, int i) {
+        switch (format) {
+            case BYTE8:
+                return bytes[i] / 128f;
+            case INT16:
+                return (short) (bytes[i] & 0xFF | bytes[i + 1] << 8) / 32768f;
+            case BITS12:
+                return (short) (bytes[i] & 0xFF | bytes[i + 1] << 8) / 2048f;
+            case BITS10:
+                return (short) (bytes[i] & 0xFF | bytes[i + 1] << 8) / 512f;
+            case INT24:
+                return (bytes[i] & 0xFF | (bytes[i + 1] & 0xFF) << 8 | bytes[i + 2] << 16) / 8388608f;
+            case INT32:
+                return readInt(bytes, i) / 2147483648f;
+            case FLOAT32:
+                return Float.intBitsToFloat(readInt(bytes, i));
+            case FLOAT64:
+                return (float) Double.longBitsToDouble(readInt(bytes, i) & 0xFFFFFFFFL
+                        | (long) readInt(bytes, i + 4) << 32);
+            default:
+                throw new AssertionError("Unknown AudioFormat: " + format);
+        }
+    }
+
+    private void write(byte[] bytes, int i, float value) {
+        switch (format) {
+            case BYTE8:
+                bytes[i] = (byte) quantize(value, 128);
+                break;
+            case INT16:
+                writeShort(bytes, i, quantize(value, 32768));
+                break;
+            case BITS12:
+                writeShort(bytes, i, quantize(value, 2048));
+                break;
+            case BITS10:
+                writeShort(bytes, i, quantize(value, 512));
+                break;
+            case INT24:
+                int int24 = quantize(value, 8388608);
+                bytes[i] = (byte) int24;
+                bytes[i + 1] = (byte) (int24 >> 8);
+                bytes[i + 2] = (byte) (int24 >> 16);
+                break;
+            case INT32:
+                writeInt(bytes, i, (int) Math.max(Math.min(Math.round(value * 2147483648.0), Integer.MAX_VALUE),
+                        Integer.MIN_VALUE));
+                break;
+            case FLOAT32:
+                writeInt(bytes, i, Float.floatToRawIntBits(value));
+                break;
+            case FLOAT64:
+                long bits = Double.doubleToRawLongBits(value);
+                writeInt(bytes, i, (int) bits);
+                writeInt(bytes, i + 4, (int) (bits >>> 32));
+                break;
+            default:
+                throw new AssertionError("Unknown AudioFormat: " + format);
+        }
+    }
+
+    private static int quantize(float value, int scale) {
+        return Math.max(Math.min(Math.round(value * scale), scale - 1), -scale);
+    }
+
+    private static int readInt(byte[] bytes, int i) {
+        return bytes[i] & 0xFF | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF) << 16 | bytes[i + 3] << 24;
+    }
+
+    private static void writeShort(byte[] bytes, int i, int value) {
+        bytes[i] = (byte) value;
+        bytes[i + 1] = (byte) (value >> 8);
+    }
+
+    private static void writeInt(byte[] bytes, int i, int value) {
+        bytes[i] = (byte) value;
+        bytes[i + 1] = (byte) (value >> 8);
+        bytes[i + 2] = (byte) (value >> 16);
+        bytes[i + 3] = (byte) (value >> 24);
+    }
+
+    private static int millisToFrames(int hz, int millis) {
+        return (int) ((long) hz * millis / 1000);
+    }
+
+    /**
+     * How missing audio is synthesized.
+     */
+    public enum Strategy {
+        /**
+         * Fades the last received sample out to silence within a few milliseconds.
+         */
+        SILENCE,
+
+        /**
+         * Repeats the last received packet.
+         */
+        REPEAT,
+
+        /**
+         * Repeats the last pitch period of the received audio, found by waveform similarity, as in ITU-T G.711
+         * Appendix I. Best suited for voice and tonal music.
+         */
+        EXTRAPOLATE
+    }
+}
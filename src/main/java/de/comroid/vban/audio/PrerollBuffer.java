@@ -0,0 +1,414 @@
+package de.comroid.vban.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.packet.FrameCounters;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Keeps the most recent audio of one stream outside of the heap, for an "instant replay" after an incident.
+ * <p>
+ * Payloads are copied into a circular buffer in direct or memory-mapped memory, so minutes of audio cost neither
+ * heap nor garbage collection. An index with one slot per frame counter maps every frame to its payload in
+ * constant time; frames missing from the stream get empty slots, so that the index stays dense and can be searched
+ * by receive time.
+ * <p>
+ * Ranges are {@linkplain #export(long, long, File) exported} on a background thread. The receive path never waits
+ * for an export; instead, an export fails with an {@link IOException} if the receive path overwrites the range
+ * while it is being copied.
+ * <p>
+ * Exactly one thread may {@linkplain #append(VBANPacketView, long) append}. Filter by stream name before appending,
+ * e.g. with {@link VBANPacketView#streamNameEquals(CharSequence)}.
+ */
+public class PrerollBuffer implements Closeable {
+    private final ByteBuffer data;
+    private final ByteBuffer writeView; // producer-confined
+    private final int capacity;
+    // per index slot; the counter is -1 while the slot is being written
+    private final AtomicLongArray counters;
+    private final AtomicLongArray positions;
+    private final AtomicLongArray lengths;
+    private final AtomicLongArray receiveNanos;
+    private final int mask;
+    private final RandomAccessFile backingFile;
+
+    private volatile long reserved = 0; // end of the data region the producer may be writing
+    private volatile long newest = -1; // newest frame counter, unwrapped to a long
+    private long written = 0;
+    private int lastCounter;
+    private ExecutorService exporter;
+
+    /**
+     * Constructor. Keeps the audio in direct memory.
+     *
+     * @param capacity   The amount of payload bytes to keep.
+     * @param indexSlots The minimum amount of frames to keep. Is rounded up to the next power of two.
+     *
+     * @throws IllegalArgumentException If the capacity or the amount of index slots is not positive.
+     */
+    public PrerollBuffer(int capacity, int indexSlots) throws IllegalArgumentException {
+        this(ByteBuffer.allocateDirect(checkCapacity(capacity)), indexSlots, null);
+    }
+
+    /**
+     * Constructor. Keeps the audio in a memory-mapped file, so that the operating system may page it out.
+     * The file is created or truncated to the capacity.
+     *
+     * @param backingFile The file to map.
+     * @param capacity    The amount of payload bytes to keep.
+     * @param indexSlots  The minimum amount of frames to keep. Is rounded up to the next power of two.
+     *
+     * @throws IOException              If the file cannot be created or mapped.
+     * @throws IllegalArgumentException If the capacity or the amount of index slots is not positive.
+     */
+    public PrerollBuffer(File backingFile, int capacity, int indexSlots) throws IOException, IllegalArgumentException {
+        this(new RandomAccessFile(backingFile, "rw"), checkCapacity(capacity), indexSlots);
+    }
+
+    private PrerollBuffer(RandomAccessFile file, int capacity, int indexSlots) throws IOException {
+        this(map(file, capacity), indexSlots, file);
+    }
+
+    private PrerollBuffer(ByteBuffer data, int indexSlots, RandomAccessFile backingFile) {
+        if (indexSlots < 1 || indexSlots > 1 << 30)
+            throw new IllegalArgumentException("Index slots out of range: " + indexSlots);
+
+        int size = Integer.highestOneBit(indexSlots);
+        if (size < indexSlots) size <<= 1;
+
+        this.data = data;
+        this.writeView = data.duplicate();
+        this.capacity = data.capacity();
+        this.counters = new AtomicLongArray(size);
+        this.positions = new AtomicLongArray(size);
+        this.lengths = new AtomicLongArray(size);
+        this.receiveNanos = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.backingFile = backingFile;
+
+        for (int i = 0; i < size; i++)
+            counters.set(i, -1);
+    }
+
+    /**
+     * Creates a buffer in direct memory that holds the given duration of uncompressed audio.
+     * The index is sized for packets of at least 64 samples.
+     *
+     * @param seconds    The duration to keep.
+     * @param sampleRate The sample rate of the stream.
+     * @param channels   The amount of channels of the stream.
+     * @param format     The sample format of the stream.
+     *
+     * @return A new buffer.
+     * @throws IllegalArgumentException If the duration exceeds the maximum capacity of {@code 2^31-1} bytes.
+     */
+    public static PrerollBuffer forDuration(int seconds, VBAN.SampleRate sampleRate, int channels, VBAN.AudioFormat format)
+            throws IllegalArgumentException {
+        long samples = (long) seconds * sampleRate.getHz();
+        long bytes = samples * channels * format.getBytesPerSample();
+
+        if (bytes > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Duration too long: " + bytes + " bytes");
+
+        return new PrerollBuffer((int) bytes, (int) Math.min(samples / 64 + 1, 1 << 30));
+    }
+
+    /**
+     * Gets the amount of payload bytes this buffer keeps.
+     *
+     * @return The capacity in bytes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the newest frame counter, unwrapped to a {@code long} that keeps counting across overflows of the
+     * 32 bit counter of the packets.
+     *
+     * @return The newest frame counter, or {@code -1} if nothing has been appended.
+     */
+    public long getNewestFrame() {
+        return newest;
+    }
+
+    /**
+     * Gets the oldest frame counter whose payload is still available.
+     *
+     * @return The oldest frame counter, or {@code -1} if nothing has been appended.
+     */
+    public long getOldestFrame() {
+        long newest = this.newest;
+        if (newest < 0)
+            return -1;
+
+        // availability only grows with the frame counter
+        long low = Math.max(0, newest - mask);
+        long high = newest;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+
+            if (isAvailable(mid))
+                high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Copies the payload of a packet into the buffer. Packets older than the newest one are ignored, and so are
+     * parity datagrams of a {@link de.comroid.vban.fec.ParityEncoder}.
+     * Counters that jump back or ahead by more than {@link FrameCounters#REORDER_WINDOW} are treated as a restarted
+     * sender: counting starts over from them, and the timeline continues with the next frame.
+     *
+     * @param view         The view of the packet.
+     * @param receiveNanos The {@link System#nanoTime()} at which the packet has been received.
+     *
+     * @return Whether the payload has been appended.
+     */
+    public boolean append(VBANPacketView view, long receiveNanos) {
+        if (ParityDecoder.isParity(view))
+            return false;
+
+        return append(view.getFrameCounter(), view.getBuffer(), view.getPayloadOffset(), view.getPayloadLength(),
+                receiveNanos);
+    }
+
+    /**
+     * Copies a payload into the buffer. Payloads older than the newest one are ignored.
+     *
+     * @param frameCounter The frame counter of the payload.
+     * @param src          The array containing the payload.
+     * @param offset       The index of the first payload byte.
+     * @param length       The length of the payload.
+     * @param receiveNanos The {@link System#nanoTime()} at which the payload has been received.
+     *
+     * @return Whether the payload has been appended.
+     * @throws IllegalArgumentException If the payload is larger than the capacity.
+     */
+    public boolean append(int frameCounter, byte[] src, int offset, int length, long receiveNanos)
+            throws IllegalArgumentException {
+        if (length > capacity)
+            throw new IllegalArgumentException("Payload larger than capacity: " + length);
+
+        long frame;
+        if (newest < 0) {
+            frame = 0;
+        } else {
+            int delta = FrameCounters.delta(lastCounter, frameCounter);
+
+            if (FrameCounters.isLate(delta))
+                return false;
+            // a jump outside the window is no gap, it would only overwrite the index with empty slots
+            frame = newest + (FrameCounters.isAhead(delta) ? delta : 1);
+
+            // keep the index dense: missing frames get empty slots
+            for (long missing = Math.max(newest + 1, frame - mask); missing < frame; missing++)
+                index(missing, written, 0, receiveNanos);
+        }
+
+        reserved = written + length;
+
+        int position = (int) (written % capacity);
+        int first = Math.min(length, capacity - position);
+        writeView.position(position);
+        writeView.put(src, offset, first);
+        if (first < length) {
+            writeView.position(0);
+            writeView.put(src, offset + first, length - first);
+        }
+
+        index(frame, written, length, receiveNanos);
+        written += length;
+        lastCounter = frameCounter;
+        newest = frame;
+
+        return true;
+    }
+
+    /**
+     * Finds the first frame received at or after the given time.
+     *
+     * @param nanos A {@link System#nanoTime()} value.
+     *
+     * @return The frame counter, or {@code -1} if no available frame has been received at or after that time.
+     */
+    public long findFrame(long nanos) {
+        long low = getOldestFrame();
+        long high = newest;
+
+        if (low < 0 || receiveNanos.get((int) (high & mask)) - nanos < 0)
+            return -1;
+
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+
+            if (receiveNanos.get((int) (mid & mask)) - nanos < 0)
+                low = mid + 1;
+            else high = mid;
+        }
+
+        return low;
+    }
+
+    /**
+     * Exports the payloads of all frames received within the given time range into a file, on a background thread.
+     *
+     * @param fromNanos The {@link System#nanoTime()} at which the range starts.
+     * @param toNanos   The {@link System#nanoTime()} at which the range ends, inclusive.
+     * @param target    The file to write to. It is created or truncated.
+     *
+     * @return A future of the amount of bytes written.
+     * The future fails with an {@link IOException} if the range is not available, or has been overwritten during
+     * the export.
+     */
+    public Future<Long> export(long fromNanos, long toNanos, File target) {
+        long from = findFrame(fromNanos);
+        long after = findFrame(toNanos + 1);
+
+        return exportFrames(from, after < 0 ? newest : after - 1, target);
+    }
+
+    /**
+     * Exports the payloads of the given frames into a file, on a background thread.
+     * The payloads are written back to back; missing frames are skipped.
+     *
+     * @param fromFrame The first frame counter to export, as returned by {@link #getOldestFrame()} or
+     *                  {@link #findFrame(long)}.
+     * @param toFrame   The last frame counter to export, inclusive.
+     * @param target    The file to write to. It is created or truncated.
+     *
+     * @return A future of the amount of bytes written.
+     * The future fails with an {@link IOException} if the range is not available, or has been overwritten during
+     * the export.
+     */
+    public synchronized Future<Long> exportFrames(final long fromFrame, final long toFrame, final File target) {
+        if (exporter == null)
+            exporter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "VBAN-PrerollExport");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+        return exporter.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                return write(fromFrame, toFrame, target);
+            }
+        });
+    }
+
+    /**
+     * Stops the export thread after all pending exports and closes the backing file, if any.
+     * The memory itself is released, or unmapped, by the garbage collector.
+     */
+    @Override
+    public synchronized void close() {
+        if (exporter != null)
+            exporter.shutdown();
+
+        if (backingFile != null) {
+            try {
+                backingFile.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private long write(long fromFrame, long toFrame, File target) throws IOException {
+        if (fromFrame < 0 || fromFrame > toFrame || toFrame > newest || !isAvailable(fromFrame))
+            throw new IOException("Frames not available [from=" + fromFrame + ";to=" + toFrame + "]");
+
+        ByteBuffer source = data.duplicate();
+        long total = 0;
+
+        try (FileOutputStream out = new FileOutputStream(target); FileChannel channel = out.getChannel()) {
+            for (long frame = fromFrame; frame <= toFrame; frame++) {
+                int slot = (int) (frame & mask);
+                long counter = counters.get(slot);
+                long position = positions.get(slot);
+                int length = (int) lengths.get(slot);
+
+                // the producer may have rewritten the slot meanwhile
+                if (counter != frame || counters.get(slot) != frame)
+                    throw new IOException("Frame " + frame + " has been overwritten during export");
+                if (length == 0)
+                    continue;
+
+                int start = (int) (position % capacity);
+                int first = Math.min(length, capacity - start);
+                writeFully(channel, source, start, first);
+                if (first < length)
+                    writeFully(channel, source, 0, length - first);
+
+                if (reserved - capacity > position)
+                    throw new IOException("Frame " + frame + " has been overwritten during export");
+                total += length;
+            }
+        }
+
+        return total;
+    }
+
+    private boolean isAvailable(long frame) {
+        int slot = (int) (frame & mask);
+        long counter = counters.get(slot);
+        long position = positions.get(slot);
+
+        return counter == frame && counters.get(slot) == frame && reserved - capacity <= position;
+    }
+
+    private void index(long frame, long position, int length, long nanos) {
+        int slot = (int) (frame & mask);
+
+        // readers validate the slot against its counter after reading it
+        counters.set(slot, -1);
+        positions.set(slot, position);
+        lengths.set(slot, length);
+        receiveNanos.set(slot, nanos);
+        counters.set(slot, frame);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source, int position, int length)
+            throws IOException {
+        source.limit(position + length);
+        source.position(position);
+
+        while (source.hasRemaining())
+            channel.write(source);
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        return capacity;
+    }
+
+    private static ByteBuffer map(RandomAccessFile file, int capacity) throws IOException {
+        try {
+            file.setLength(capacity);
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package de.comroid.vban.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANOutputStream;
+
+/**
+ * Plays out a WAV or RF64 file by memory-mapping its audio.
+ * <p>
+ * {@link #next(int)} returns the next frames as a view of the mapped file, which can be handed to
+ * {@link VBANOutputStream#sendPayload(ByteBuffer)} without copying through the heap:
+ * <pre>{@code
+ * ByteBuffer payload;
+ * while ((payload = reader.next(samplesPerPacket)) != null)
+ *     stream.sendPayload(payload);
+ * }</pre>
+ * Files larger than the 2 GiB limit of a single mapping are mapped in overlapping segments on demand.
+ * Supports the same formats as {@link WavWriter}. Instances are not thread-safe.
+ */
+public class WavReader implements Closeable {
+    /**
+     * The largest amount of bytes {@link #next(int)} and {@link #slice(long, int)} return at once.
+     */
+    public static final int MAX_SLICE = 1 << 16;
+
+    private static final long SEGMENT = 1L << 30;
+
+    private final FileChannel channel;
+    private final VBAN.SampleRate sampleRate;
+    private final int channels;
+    private final VBAN.AudioFormat format;
+    private final int blockAlign;
+    private final long dataOffset;
+    private final long dataBytes;
+    private final MappedByteBuffer[] segments;
+    private ByteBuffer cursorView;
+    private int cursorSegment = -1;
+    private long position = 0;
+
+    /**
+     * Constructor. Opens the file and parses its header; the audio is mapped on demand.
+     *
+     * @param file The file to play.
+     *
+     * @throws IOException If the file cannot be read, is no WAV or RF64 file, or its format is not supported.
+     */
+    public WavReader(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+            read(chunk, 0, 12);
+            boolean rf64 = fourCC(chunk, 0, "RF64");
+            if (!(fourCC(chunk, 0, "RIFF") || rf64) || !fourCC(chunk, 8, "WAVE"))
+                throw new IOException("Not a WAV file: " + file);
+
+            long ds64DataSize = -1;
+            VBAN.SampleRate rate = null;
+            VBAN.AudioFormat format = null;
+            int channels = 0;
+            long offset = 12;
+            long dataSize;
+
+            while (true) {
+                read(chunk, offset, 8);
+                int size = chunk.getInt(4);
+                long body = offset + 8;
+
+                if (fourCC(chunk, 0, "ds64")) {
+                    read(chunk, body, 16);
+                    ds64DataSize = chunk.getLong(8);
+                } else if (fourCC(chunk, 0, "fmt ")) {
+                    read(chunk, body, Math.min(size, 40));
+                    channels = chunk.getShort(2) & 0xFFFF;
+                    rate = sampleRate(chunk.getInt(4));
+                    int bits = chunk.getShort(14) & 0xFFFF;
+                    int tag = chunk.getShort(0) & 0xFFFF;
+                    if (tag == 0xFFFE && size >= 40)
+                        tag = chunk.getShort(24) & 0xFFFF; // first two bytes of the sub-format GUID
+                    format = audioFormat(tag, bits);
+                } else if (fourCC(chunk, 0, "data")) {
+                    if (format == null)
+                        throw new IOException("Missing fmt chunk before data: " + file);
+
+                    dataSize = (size == -1 && rf64) ? ds64DataSize : size & 0xFFFFFFFFL;
+                    // an unfinished recording may claim less or more than there is
+                    if (dataSize < 0 || body + dataSize > channel.size())
+                        dataSize = channel.size() - body;
+                    offset = body;
+                    break;
+                }
+
+                offset = body + (size & 0xFFFFFFFFL) + (size & 1);
+            }
+
+            this.sampleRate = rate;
+            this.channels = channels;
+            this.format = format;
+            this.blockAlign = channels * format.getBytesPerSample();
+            this.dataOffset = offset;
+            this.dataBytes = dataSize - dataSize % blockAlign;
+
+            this.segments = new MappedByteBuffer[(int) ((dataBytes + SEGMENT - 1) / SEGMENT)];
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the sample rate of the file.
+     *
+     * @return The sample rate.
+     */
+    public VBAN.SampleRate getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Gets the amount of interleaved channels of the file.
+     *
+     * @return The amount of channels.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Gets the sample format of the file.
+     *
+     * @return The sample format.
+     */
+    public VBAN.AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the amount of bytes per frame, i.e. per sample of all channels.
+     *
+     * @return The block alignment.
+     */
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    /**
+     * Gets the amount of frames in the file.
+     *
+     * @return The amount of frames.
+     */
+    public long getFrames() {
+        return dataBytes / blockAlign;
+    }
+
+    /**
+     * Gets the frame {@link #next(int)} continues at.
+     *
+     * @return The current frame.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Sets the frame {@link #next(int)} continues at.
+     *
+     * @param frame The frame to continue at.
+     *
+     * @throws IllegalArgumentException If the frame is out of range.
+     */
+    public void seek(long frame) throws IllegalArgumentException {
+        if (frame < 0 || frame > getFrames())
+            throw new IllegalArgumentException("Frame out of range: " + frame);
+
+        position = frame;
+    }
+
+    /**
+     * Gets the next frames as a view of the mapped file, and advances the position.
+     * Does not allocate, except when entering a new segment of a very large file; the returned buffer is reused and
+     * only valid until the next call.
+     *
+     * @param frames The amount of frames to get.
+     *
+     * @return A buffer of the next frames, fewer at the end of the file, or {@code null} if the end has been reached.
+     * @throws IOException              If the file cannot be mapped.
+     * @throws IllegalArgumentException If the frames are more than {@link #MAX_SLICE} bytes.
+     */
+    public ByteBuffer next(int frames) throws IOException, IllegalArgumentException {
+        frames = (int) Math.min(frames, getFrames() - position);
+        if (frames <= 0)
+            return null;
+
+        long offset = position * blockAlign;
+        int length = checkLength(frames);
+        int segment = (int) (offset / SEGMENT);
+
+        if (segment != cursorSegment) {
+            cursorView = segment(segment).duplicate();
+            cursorSegment = segment;
+        }
+
+        int start = (int) (offset - segment * SEGMENT);
+        cursorView.limit(start + length).position(start);
+        position += frames;
+
+        return cursorView;
+    }
+
+    /**
+     * Gets frames at any position as a new view of the mapped file.
+     *
+     * @param frame  The first frame.
+     * @param frames The amount of frames.
+     *
+     * @return A buffer of the frames.
+     * @throws IOException              If the file cannot be mapped.
+     * @throws IllegalArgumentException If the range is out of bounds, or more than {@link #MAX_SLICE} bytes.
+     */
+    public ByteBuffer slice(long frame, int frames) throws IOException, IllegalArgumentException {
+        if (frame < 0 || frames < 0 || frame + frames > getFrames())
+            throw new IllegalArgumentException("Frames out of range [frame=" + frame + ";frames=" + frames + "]");
+
+        long offset = frame * blockAlign;
+        int length = checkLength(frames);
+        int segment = (int) (offset / SEGMENT);
+        int start = (int) (offset - segment * SEGMENT);
+
+        ByteBuffer view = segment(segment).duplicate();
+        view.limit(start + length).position(start);
+        return view.slice();
+    }
+
+    /**
+     * Closes the file. Mapped memory is released by the garbage collector.
+     *
+     * @throws IOException If closing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int checkLength(int frames) throws IllegalArgumentException {
+        long length = (long) frames * blockAlign;
+
+        if (length > MAX_SLICE)
+            throw new IllegalArgumentException("Too many frames at once: " + frames);
+        return (int) length;
+    }
+
+    // segments overlap by MAX_SLICE, so no slice ever spans two of them
+    private MappedByteBuffer segment(int index) throws IOException {
+        if (segments[index] == null) {
+            long start = index * SEGMENT;
+            long length = Math.min(SEGMENT + MAX_SLICE, dataBytes - start);
+
+            segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + start, length);
+        }
+
+        return segments[index];
+    }
+
+    private void read(ByteBuffer chunk, long offset, int length) throws IOException {
+        chunk.clear().limit(length);
+
+        while (chunk.hasRemaining())
+            if (channel.read(chunk, offset + chunk.position()) < 0)
+                throw new IOException("Unexpected end of WAV file");
+    }
+
+    private static boolean fourCC(ByteBuffer chunk, int index, String fourCC) {
+        for (int i = 0; i < 4; i++)
+            if (chunk.get(index + i) != fourCC.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static VBAN.SampleRate sampleRate(int hz) throws IOException {
+        try {
+            return VBAN.SampleRate.byHz(hz);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static VBAN.AudioFormat audioFormat(int tag, int bits) throws IOException {
+        for (VBAN.AudioFormat format : VBAN.AudioFormat.values())
+            if (WavWriter.formatTag(format) == tag && format.getBytesPerSample() * 8 == bits)
+                return format;
+
+        throw new IOException("Unsupported WAV format [tag=" + tag + ";bits=" + bits + "]");
+    }
+}
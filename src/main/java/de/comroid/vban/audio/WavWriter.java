@@ -0,0 +1,373 @@
+package de.comroid.vban.audio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Records PCM audio into a WAV file, switching to RF64 when the file outgrows the 4 GiB limit of RIFF.
+ * <p>
+ * Audio is copied into one of a few large direct buffers; full buffers are written by a background thread through a
+ * {@link FileChannel}, at positions aligned to the buffer size, while recording continues into the next buffer.
+ * Recording only waits when all buffers are still being written, and never allocates.
+ * Every {@link #flush()} also rewrites the header, so that the file is playable up to that point even if the
+ * recording is never closed.
+ * <p>
+ * The header always reserves room for an RF64 {@code ds64} chunk as a {@code JUNK} chunk, following EBU Tech 3306,
+ * so that a long recording can become RF64 without moving its audio.
+ * <p>
+ * Supports {@link VBAN.AudioFormat#INT16}, {@link VBAN.AudioFormat#INT24}, {@link VBAN.AudioFormat#INT32},
+ * {@link VBAN.AudioFormat#FLOAT32} and {@link VBAN.AudioFormat#FLOAT64}. Instances are not thread-safe.
+ */
+public class WavWriter implements Closeable {
+    /**
+     * The size of each write buffer in bytes.
+     */
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int BUFFERS = 4;
+    private static final long RIFF_LIMIT = 0xFFFFFFFFL;
+
+    private final FileChannel channel;
+    private final VBAN.SampleRate sampleRate;
+    private final int channels;
+    private final VBAN.AudioFormat format;
+    private final int blockAlign;
+    private final int headerSize;
+    private final ByteBuffer header;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final ExecutorService writer;
+    private ByteBuffer current;
+    private long dataBytes = 0;
+    private long handedOff = 0;
+    private volatile IOException failure;
+    private boolean closed = false;
+
+    /**
+     * Constructor. Creates or truncates the file and writes a preliminary header.
+     *
+     * @param file       The file to record into.
+     * @param sampleRate The sample rate of the audio.
+     * @param channels   The amount of interleaved channels.
+     * @param format     The sample format of the audio.
+     *
+     * @throws IOException              If the file cannot be created or written.
+     * @throws IllegalArgumentException If the format is not supported, or the amount of channels is out of range.
+     */
+    public WavWriter(File file, VBAN.SampleRate sampleRate, int channels, VBAN.AudioFormat format)
+            throws IOException, IllegalArgumentException {
+        if (formatTag(format) == 0)
+            throw new IllegalArgumentException("Unsupported format for WAV: " + format);
+        if (channels < 1 || channels > 256)
+            throw new IllegalArgumentException("Amount of channels out of range: " + channels);
+
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.format = format;
+        this.blockAlign = channels * format.getBytesPerSample();
+        this.headerSize = 12 + 36 + (isExtensible() ? 48 : 24) + 8;
+        this.header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int i = 0; i < BUFFERS; i++)
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        this.current = free.poll();
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VBAN-WavWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        try {
+            writeHeader(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a writer for the format of the given audio packet.
+     *
+     * @param file   The file to record into.
+     * @param packet A packet of the stream to record.
+     *
+     * @return A new writer.
+     * @throws IOException              If the file cannot be created or written.
+     * @throws IllegalArgumentException If the packet is no uncompressed audio packet, or its format is not supported.
+     */
+    public static WavWriter forStream(File file, VBANPacketView packet) throws IOException, IllegalArgumentException {
+        checkAudio(packet);
+
+        return new WavWriter(file, packet.getDataRateValue().asSampleRate(), packet.getChannels(),
+                packet.getFormat().asAudioFormat());
+    }
+
+    /**
+     * Gets the amount of bytes per frame, i.e. per sample of all channels.
+     *
+     * @return The block alignment.
+     */
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    /**
+     * Gets the amount of audio bytes recorded so far.
+     *
+     * @return The amount of audio bytes.
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * Gets the amount of frames recorded so far.
+     *
+     * @return The amount of frames.
+     */
+    public long getFrames() {
+        return dataBytes / blockAlign;
+    }
+
+    /**
+     * Records the payload of an audio packet.
+     *
+     * @param packet The packet to record.
+     *
+     * @throws IOException              If the writer has been closed, or writing in the background has failed.
+     * @throws IllegalArgumentException If the packet does not match the format of this writer.
+     */
+    public void write(VBANPacketView packet) throws IOException, IllegalArgumentException {
+        checkAudio(packet);
+        if (packet.getChannels() != channels || packet.getFormat() != format)
+            throw new IllegalArgumentException("Packet does not match the recording format [exp=" + channels + "x"
+                    + format + ";got=" + packet.getChannels() + "x" + packet.getFormat() + "]");
+
+        write(packet.getBuffer(), packet.getPayloadOffset(), packet.getPayloadLength());
+    }
+
+    /**
+     * Records raw interleaved little-endian audio in the format of this writer.
+     *
+     * @param src    The array containing the audio.
+     * @param offset The index of the first byte.
+     * @param length The amount of bytes.
+     *
+     * @throws IOException            If the writer has been closed, or writing in the background has failed.
+     * @throws InterruptedIOException If the thread has been interrupted while waiting for a free buffer.
+     */
+    public void write(byte[] src, int offset, int length) throws IOException {
+        checkOpen();
+
+        while (length > 0) {
+            int n = Math.min(length, current.remaining());
+            current.put(src, offset, n);
+            offset += n;
+            length -= n;
+            dataBytes += n;
+
+            if (!current.hasRemaining())
+                handOff();
+        }
+    }
+
+    /**
+     * Writes all recorded audio to the file and updates the header, waiting until both are done.
+     *
+     * @throws IOException If the writer has been closed, or writing has failed.
+     */
+    public void flush() throws IOException {
+        checkOpen();
+
+        if (current.position() > 0)
+            handOff();
+        writeHeader(dataBytes);
+    }
+
+    /**
+     * Writes all recorded audio, finalizes the header as RIFF or RF64, and closes the file.
+     *
+     * @throws IOException If writing has failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        try {
+            if (failure == null) {
+                if (current.position() > 0)
+                    handOff();
+                // chunks are padded to an even size
+                if (dataBytes % 2 != 0) {
+                    final long position = headerSize + dataBytes;
+                    await(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            channel.write(ByteBuffer.wrap(new byte[1]), position);
+                            return null;
+                        }
+                    });
+                }
+                writeHeader(dataBytes);
+            }
+        } finally {
+            closed = true;
+            writer.shutdown();
+            channel.close();
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private boolean isExtensible() {
+        return channels > 2 || format != VBAN.AudioFormat.INT16;
+    }
+
+    // hands the current buffer to the background thread and continues with a free one
+    private void handOff() throws IOException {
+        final ByteBuffer buffer = current;
+        final long position = headerSize + handedOff;
+
+        buffer.flip();
+        handedOff += buffer.remaining();
+        writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long at = position;
+                    while (buffer.hasRemaining())
+                        at += channel.write(buffer, at);
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    buffer.clear();
+                    free.add(buffer);
+                }
+            }
+        });
+
+        try {
+            current = free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+        checkOpen();
+    }
+
+    private void writeHeader(long dataBytes) throws IOException {
+        long pad = dataBytes % 2;
+        long riffSize = headerSize - 8 + dataBytes + pad;
+        boolean rf64 = riffSize > RIFF_LIMIT;
+        int tag = formatTag(format);
+
+        header.clear();
+        header.put(ascii(rf64 ? "RF64" : "RIFF")).putInt(rf64 ? -1 : (int) riffSize).put(ascii("WAVE"));
+
+        // ds64, or JUNK reserving its room
+        header.put(ascii(rf64 ? "ds64" : "JUNK")).putInt(28);
+        header.putLong(rf64 ? riffSize : 0).putLong(rf64 ? dataBytes : 0).putLong(rf64 ? dataBytes / blockAlign : 0)
+                .putInt(0);
+
+        header.put(ascii("fmt ")).putInt(isExtensible() ? 40 : 16);
+        header.putShort((short) (isExtensible() ? 0xFFFE : tag))
+                .putShort((short) channels)
+                .putInt(sampleRate.getHz())
+                .putInt(sampleRate.getHz() * blockAlign)
+                .putShort((short) blockAlign)
+                .putShort((short) (format.getBytesPerSample() * 8));
+        if (isExtensible()) {
+            header.putShort((short) 22)
+                    .putShort((short) (format.getBytesPerSample() * 8))
+                    .putInt(0) // no speaker positions
+                    // KSDATAFORMAT_SUBTYPE_PCM or _IEEE_FLOAT
+                    .putInt(tag).putShort((short) 0x0000).putShort((short) 0x0010)
+                    .put(new byte[]{(byte) 0x80, 0x00, 0x00, (byte) 0xAA, 0x00, 0x38, (byte) 0x9B, 0x71});
+        }
+
+        header.put(ascii("data")).putInt(rf64 ? -1 : (int) dataBytes);
+        header.flip();
+
+        await(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                long at = 0;
+                while (header.hasRemaining())
+                    at += channel.write(header, at);
+                return null;
+            }
+        });
+    }
+
+    // runs a task after all pending writes on the background thread and waits for it
+    private void await(Callable<Void> task) throws IOException {
+        try {
+            writer.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the writer");
+        } catch (ExecutionException e) {
+            failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed)
+            throw new IOException("Writer is closed");
+        if (failure != null)
+            throw failure;
+    }
+
+    // WAVE_FORMAT_PCM or WAVE_FORMAT_IEEE_FLOAT, 0 if unsupported
+    static int formatTag(VBAN.AudioFormat format) {
+        switch (format) {
+            case INT16:
+            case INT24:
+            case INT32:
+                return 1;
+            case FLOAT32:
+            case FLOAT64:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    private static void checkAudio(VBANPacketView packet) throws IllegalArgumentException {
+        if (packet.getProtocolValue() != VBAN.Protocol.AUDIO.getValue())
+            throw new IllegalArgumentException("Not an audio packet: " + packet.getProtocol());
+        if (packet.getCodec() != VBAN.Codec.PCM)
+            throw new IllegalArgumentException("Compressed audio must be decoded first, codec: " + packet.getCodec());
+    }
+
+    private static byte[] ascii(String fourCC) {
+        return new byte[]{(byte) fourCC.charAt(0), (byte) fourCC.charAt(1), (byte) fourCC.charAt(2),
+                (byte) fourCC.charAt(3)};
+    }
+}
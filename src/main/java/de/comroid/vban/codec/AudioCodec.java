@@ -0,0 +1,217 @@
+package de.comroid.vban.codec;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBAN.AudioFormat;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.intellij.lang.annotations.MagicConstant;
+
+/**
+ * Service interface of an audio codec, selected by the {@linkplain VBAN.Codec codec nibble} of a packet head.
+ * <p>
+ * A codec creates one {@link Encoder} per sending stream and one {@link Decoder} per receiving stream.
+ * Both keep their state between packets and work on caller-provided buffers, such as reusable
+ * {@linkplain AudioFrame#allocate(int) frames}, so that coding does not allocate per packet.
+ * <p>
+ * Codecs are looked up with {@link AudioCodecs#get(int)}. Additional codecs can be registered with
+ * {@link AudioCodecs#register(AudioCodec)}, or listed in {@code META-INF/services/de.comroid.vban.codec.AudioCodec}.
+ */
+public interface AudioCodec {
+    /**
+     * Gets the codec selector this codec is written to packet heads with.
+     *
+     * @return The codec selector.
+     */
+    @MagicConstant(valuesFromClass = VBAN.Codec.class)
+    int getCodecValue();
+
+    /**
+     * Whether this codec can encode and decode PCM samples of the given format.
+     *
+     * @param format The sample format.
+     *
+     * @return Whether the format is supported.
+     */
+    boolean supports(AudioFormat format);
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param format   The format of the PCM samples to encode.
+     * @param channels The amount of interleaved channels.
+     *
+     * @return A new encoder.
+     * @throws IllegalArgumentException If the format is not {@linkplain #supports(AudioFormat) supported}
+     *                                  or the amount of channels is not within {@code [1;256]}.
+     */
+    Encoder newEncoder(AudioFormat format, int channels) throws IllegalArgumentException;
+
+    /**
+     * Creates a new decoder.
+     *
+     * @param format   The format of the PCM samples to decode to.
+     * @param channels The amount of interleaved channels.
+     *
+     * @return A new decoder.
+     * @throws IllegalArgumentException If the format is not {@linkplain #supports(AudioFormat) supported}
+     *                                  or the amount of channels is not within {@code [1;256]}.
+     */
+    Decoder newDecoder(AudioFormat format, int channels) throws IllegalArgumentException;
+
+    /**
+     * Base class of the stateful encoder of one stream. Instances are not thread-safe.
+     */
+    abstract class Encoder {
+        protected final AudioFormat format;
+        protected final int channels;
+
+        /**
+         * Constructor.
+         *
+         * @param format   The format of the PCM samples to encode.
+         * @param channels The amount of interleaved channels.
+         */
+        protected Encoder(AudioFormat format, int channels) {
+            this.format = format;
+            this.channels = channels;
+        }
+
+        /**
+         * Gets the maximum size of the encoded payload of the given amount of samples per channel.
+         *
+         * @param samples The amount of samples per channel.
+         *
+         * @return The maximum encoded size in bytes.
+         */
+        public abstract int maxEncodedLength(int samples);
+
+        /**
+         * Encodes interleaved PCM samples.
+         *
+         * @param pcm       The buffer of the PCM samples.
+         * @param offset    The index of the first PCM byte.
+         * @param samples   The amount of samples per channel.
+         * @param dst       The buffer to write the encoded payload to.
+         * @param dstOffset The index at which to start writing.
+         *
+         * @return The amount of bytes written.
+         * @throws IllegalArgumentException If {@code dst} cannot hold {@link #maxEncodedLength(int)} bytes.
+         */
+        public abstract int encode(byte[] pcm, int offset, int samples, byte[] dst, int dstOffset)
+                throws IllegalArgumentException;
+
+        /**
+         * Resets the state of this encoder, e.g. when the stream restarts.
+         */
+        public abstract void reset();
+
+        /**
+         * Encodes the PCM samples of one frame into another frame.
+         *
+         * @param pcm The frame of interleaved PCM samples.
+         * @param out The frame to write the encoded payload to.
+         *
+         * @return The output frame.
+         * @throws IllegalArgumentException If the PCM frame does not contain whole samples,
+         *                                  or the output frame is too small.
+         */
+        public final AudioFrame encode(AudioFrame pcm, AudioFrame out) throws IllegalArgumentException {
+            int frameSize = format.getBytesPerSample() * channels;
+            if (pcm.length() % frameSize != 0)
+                throw new IllegalArgumentException("Frame does not contain whole samples [len=" + pcm.length() + "]");
+
+            int n = encode(pcm.getBufferArray(), 0, pcm.length() / frameSize, out.getBufferArray(), 0);
+
+            return out.setLength(n);
+        }
+
+        /**
+         * Gets the amount of samples per channel that fit into one packet with this encoder.
+         * The result is capped to the {@code 256} samples that a packet head can declare.
+         *
+         * @return The maximum amount of samples per packet.
+         */
+        public int maxSamplesPerPacket() {
+            int samples = 256;
+
+            while (samples > 1 && maxEncodedLength(samples) > VBANPacket.MAX_SIZE_WITHOUT_HEAD)
+                samples--;
+
+            return samples;
+        }
+    }
+
+    /**
+     * Base class of the stateful decoder of one stream. Instances are not thread-safe.
+     */
+    abstract class Decoder {
+        protected final AudioFormat format;
+        protected final int channels;
+
+        /**
+         * Constructor.
+         *
+         * @param format   The format of the PCM samples to decode to.
+         * @param channels The amount of interleaved channels.
+         */
+        protected Decoder(AudioFormat format, int channels) {
+            this.format = format;
+            this.channels = channels;
+        }
+
+        /**
+         * Gets the size of the decoded PCM samples.
+         *
+         * @param samples The amount of samples per channel.
+         *
+         * @return The decoded size in bytes.
+         */
+        public int decodedLength(int samples) {
+            return samples * channels * format.getBytesPerSample();
+        }
+
+        /**
+         * Decodes an encoded payload into interleaved PCM samples.
+         *
+         * @param src       The buffer of the encoded payload.
+         * @param offset    The index of the first payload byte.
+         * @param length    The length of the payload.
+         * @param samples   The amount of samples per channel, as declared by the packet head.
+         * @param pcm       The buffer to write the PCM samples to.
+         * @param pcmOffset The index at which to start writing.
+         *
+         * @return The amount of bytes written.
+         * @throws IllegalArgumentException If the payload is too short for the declared amount of samples.
+         */
+        public abstract int decode(byte[] src, int offset, int length, int samples, byte[] pcm, int pcmOffset)
+                throws IllegalArgumentException;
+
+        /**
+         * Resets the state of this decoder, e.g. after packet loss.
+         */
+        public abstract void reset();
+
+        /**
+         * Decodes the payload of a received audio packet into a frame.
+         *
+         * @param view A view of a valid audio packet of this decoder's codec;
+         *             see {@link AudioCodecs#get(int)} for selecting the codec from {@link VBANPacketView#getCodec()}.
+         * @param out  The frame to write the PCM samples to.
+         *
+         * @return The output frame.
+         * @throws IllegalArgumentException If the packet has another amount of channels than this decoder,
+         *                                  or its payload is malformed.
+         */
+        public final AudioFrame decode(VBANPacketView view, AudioFrame out) throws IllegalArgumentException {
+            if (view.getChannels() != channels)
+                throw new IllegalArgumentException("Channel mismatch [exp:" + channels + ";rcv:" + view.getChannels() + "]");
+
+            int n = decode(view.getBuffer(), view.getPayloadOffset(), view.getPayloadLength(), view.getSamples(),
+                    out.getBufferArray(), 0);
+
+            return out.setLength(n);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package de.comroid.vban.codec;
+
+import java.util.ServiceLoader;
+
+import de.comroid.vban.VBAN;
+
+import org.intellij.lang.annotations.MagicConstant;
+
+/**
+ * Registry of {@linkplain AudioCodec audio codecs}, keyed by the codec nibble of the packet head.
+ * <p>
+ * {@link PCMCodec} is registered for {@link VBAN.Codec#PCM} and {@link IMAADPCMCodec} for {@link VBAN.Codec#USER}.
+ * Codecs found by {@link ServiceLoader} are registered on top of these and may replace them.
+ */
+public final class AudioCodecs {
+    private static final AudioCodec[] CODECS = new AudioCodec[16];
+
+    static {
+        register(new PCMCodec());
+        register(new IMAADPCMCodec());
+
+        for (AudioCodec codec : ServiceLoader.load(AudioCodec.class))
+            register(codec);
+    }
+
+    private AudioCodecs() {
+    }
+
+    /**
+     * Registers a codec for its {@linkplain AudioCodec#getCodecValue() codec selector},
+     * replacing any previously registered codec for that selector.
+     *
+     * @param codec The codec to register.
+     *
+     * @return The previously registered codec, or {@code null}.
+     * @throws IllegalArgumentException If the codec selector is not {@linkplain VBAN.Codec#isValid(int) valid},
+     *                                  as packets carrying it would be rejected as {@code BAD_CODEC}.
+     */
+    public static synchronized AudioCodec register(AudioCodec codec) throws IllegalArgumentException {
+        if (!VBAN.Codec.isValid(codec.getCodecValue()))
+            throw new IllegalArgumentException("Invalid codec selector: " + Integer.toHexString(codec.getCodecValue()));
+
+        int index = index(codec.getCodecValue());
+        AudioCodec previous = CODECS[index];
+        CODECS[index] = codec;
+
+        return previous;
+    }
+
+    /**
+     * Gets the codec registered for the given codec selector.
+     *
+     * @param codecValue The codec selector, e.g. from {@link de.comroid.vban.packet.VBANPacketView#getCodec()}.
+     *
+     * @return The registered codec.
+     * @throws IllegalArgumentException If no codec is registered for the selector.
+     */
+    public static synchronized AudioCodec get(@MagicConstant(valuesFromClass = VBAN.Codec.class) int codecValue)
+            throws IllegalArgumentException {
+        AudioCodec codec = CODECS[index(codecValue)];
+
+        if (codec == null)
+            throw new IllegalArgumentException("No codec registered for selector " + Integer.toHexString(codecValue));
+        return codec;
+    }
+
+    /**
+     * Whether a codec is registered for the given codec selector.
+     *
+     * @param codecValue The codec selector.
+     *
+     * @return Whether a codec is registered.
+     */
+    public static synchronized boolean isRegistered(int codecValue) {
+        return (codecValue & ~0xF0) == 0 && CODECS[codecValue >> 4] != null;
+    }
+
+    private static int index(int codecValue) throws IllegalArgumentException {
+        if ((codecValue & ~0xF0) != 0)
+            throw new IllegalArgumentException("Invalid codec selector: " + Integer.toHexString(codecValue));
+
+        return codecValue >> 4;
+    }
+}
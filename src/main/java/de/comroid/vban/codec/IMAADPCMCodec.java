@@ -0,0 +1,231 @@
+package de.comroid.vban.codec;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBAN.AudioFormat;
+
+import static de.comroid.vban.Util.checkRange;
+
+/**
+ * Reference {@link VBAN.Codec#USER} codec: IMA-ADPCM, which compresses {@link AudioFormat#INT16} samples
+ * to 4 bits, about 4:1.
+ * <p>
+ * Every payload starts with one 4 byte block header per channel: the predictor as a little endian 16 bit value,
+ * the step index, and a reserved zero byte. Then follow the nibbles of all samples in interleaved channel order,
+ * two per byte, low nibble first. The encoder carries its prediction across packets, while the block headers
+ * let the decoder start, or resynchronize after loss, at any packet.
+ */
+public class IMAADPCMCodec implements AudioCodec {
+    /**
+     * The size of the block header of one channel.
+     */
+    public static final int BLOCK_HEADER_SIZE = 4;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+    private static final int MAX_INDEX = STEP_TABLE.length - 1;
+
+    @Override
+    public int getCodecValue() {
+        return VBAN.Codec.USER;
+    }
+
+    @Override
+    public boolean supports(AudioFormat format) {
+        return format == AudioFormat.INT16;
+    }
+
+    @Override
+    public Encoder newEncoder(AudioFormat format, int channels) throws IllegalArgumentException {
+        checkFormat(format, channels);
+
+        return new ADPCMEncoder(format, channels);
+    }
+
+    @Override
+    public Decoder newDecoder(AudioFormat format, int channels) throws IllegalArgumentException {
+        checkFormat(format, channels);
+
+        return new ADPCMDecoder(format, channels);
+    }
+
+    /**
+     * Gets the size of an encoded payload.
+     *
+     * @param samples  The amount of samples per channel.
+     * @param channels The amount of channels.
+     *
+     * @return The payload size in bytes.
+     */
+    public static int encodedLength(int samples, int channels) {
+        return channels * BLOCK_HEADER_SIZE + (samples * channels + 1) / 2;
+    }
+
+    private void checkFormat(AudioFormat format, int channels) throws IllegalArgumentException {
+        if (!supports(format))
+            throw new IllegalArgumentException("Unsupported format for IMA-ADPCM: " + format);
+        checkRange(channels, 1, 256);
+    }
+
+    // step size reconstruction, shared by encoder and decoder so that both predict identically
+    private static int delta(int step, int nibble) {
+        int diff = step >> 3;
+
+        if ((nibble & 4) != 0) diff += step;
+        if ((nibble & 2) != 0) diff += step >> 1;
+        if ((nibble & 1) != 0) diff += step >> 2;
+
+        return (nibble & 8) != 0 ? -diff : diff;
+    }
+
+    private static int clampSample(int sample) {
+        return sample > Short.MAX_VALUE ? Short.MAX_VALUE : sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample;
+    }
+
+    private static int clampIndex(int index) {
+        return index < 0 ? 0 : index > MAX_INDEX ? MAX_INDEX : index;
+    }
+
+    private static final class ADPCMEncoder extends Encoder {
+        private final int[] predictors;
+        private final int[] indices;
+
+        private ADPCMEncoder(AudioFormat format, int channels) {
+            super(format, channels);
+
+            predictors = new int[channels];
+            indices = new int[channels];
+        }
+
+        @Override
+        public int maxEncodedLength(int samples) {
+            return encodedLength(samples, channels);
+        }
+
+        @Override
+        public int encode(byte[] pcm, int offset, int samples, byte[] dst, int dstOffset)
+                throws IllegalArgumentException {
+            int length = encodedLength(samples, channels);
+            if (dst.length - dstOffset < length)
+                throw new IllegalArgumentException("Buffer too small [exp:" + length + ";len=" + (dst.length - dstOffset) + "]");
+
+            int d = dstOffset;
+            for (int c = 0; c < channels; c++) {
+                dst[d++] = (byte) predictors[c];
+                dst[d++] = (byte) (predictors[c] >> 8);
+                dst[d++] = (byte) indices[c];
+                dst[d++] = 0;
+            }
+
+            int p = offset;
+            int i = 0;
+            for (int s = 0; s < samples; s++) {
+                for (int c = 0; c < channels; c++, i++) {
+                    int sample = (short) ((pcm[p] & 0xFF) | (pcm[p + 1] << 8));
+                    p += 2;
+
+                    int nibble = encodeSample(c, sample);
+                    if ((i & 1) == 0)
+                        dst[d] = (byte) nibble;
+                    else dst[d++] |= (byte) (nibble << 4);
+                }
+            }
+
+            return length;
+        }
+
+        @Override
+        public void reset() {
+            for (int c = 0; c < channels; c++)
+                predictors[c] = indices[c] = 0;
+        }
+
+        private int encodeSample(int channel, int sample) {
+            int step = STEP_TABLE[indices[channel]];
+            int diff = sample - predictors[channel];
+            int nibble = 0;
+
+            if (diff < 0) {
+                nibble = 8;
+                diff = -diff;
+            }
+            if (diff >= step) {
+                nibble |= 4;
+                diff -= step;
+            }
+            if (diff >= step >> 1) {
+                nibble |= 2;
+                diff -= step >> 1;
+            }
+            if (diff >= step >> 2)
+                nibble |= 1;
+
+            predictors[channel] = clampSample(predictors[channel] + delta(step, nibble));
+            indices[channel] = clampIndex(indices[channel] + INDEX_TABLE[nibble]);
+
+            return nibble;
+        }
+    }
+
+    private static final class ADPCMDecoder extends Decoder {
+        private final int[] predictors;
+        private final int[] indices;
+
+        private ADPCMDecoder(AudioFormat format, int channels) {
+            super(format, channels);
+
+            predictors = new int[channels];
+            indices = new int[channels];
+        }
+
+        @Override
+        public int decode(byte[] src, int offset, int length, int samples, byte[] pcm, int pcmOffset)
+                throws IllegalArgumentException {
+            int expected = encodedLength(samples, channels);
+            if (length < expected)
+                throw new IllegalArgumentException("Payload too short [exp:" + expected + ";len=" + length + "]");
+
+            int s = offset;
+            for (int c = 0; c < channels; c++) {
+                predictors[c] = (short) ((src[s] & 0xFF) | (src[s + 1] << 8));
+                indices[c] = clampIndex(src[s + 2] & 0xFF);
+                s += BLOCK_HEADER_SIZE;
+            }
+
+            int p = pcmOffset;
+            int i = 0;
+            for (int n = 0; n < samples; n++) {
+                for (int c = 0; c < channels; c++, i++) {
+                    int nibble = (i & 1) == 0 ? src[s] & 0x0F : (src[s++] >> 4) & 0x0F;
+
+                    int step = STEP_TABLE[indices[c]];
+                    int sample = predictors[c] = clampSample(predictors[c] + delta(step, nibble));
+                    indices[c] = clampIndex(indices[c] + INDEX_TABLE[nibble]);
+
+                    pcm[p++] = (byte) sample;
+                    pcm[p++] = (byte) (sample >> 8);
+                }
+            }
+
+            return samples * channels * 2;
+        }
+
+        @Override
+        public void reset() {
+            for (int c = 0; c < channels; c++)
+                predictors[c] = indices[c] = 0;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package de.comroid.vban.codec;
+
+/**
+ * Stateful decoder for raw MIDI bytes carried by the {@linkplain de.comroid.vban.VBAN.Protocol#SERIAL serial protocol}.
+ * <p>
+ * Handles running status, system realtime messages interleaved anywhere (even inside other messages), and SysEx
+ * messages that span multiple packets. Messages are passed to a {@link Handler} as events packed into a {@code long},
+ * see {@link MIDIEvent}; decoding never allocates.
+ * <p>
+ * One decoder must be used per stream, and only by one thread at a time.
+ */
+public class MIDIDecoder {
+    /**
+     * Default maximum length of SysEx data.
+     */
+    public static final int DEFAULT_MAX_SYSEX_LENGTH = 64 * 1024;
+
+    private final byte[] sysex;
+    private int sysexLength = 0;
+    private boolean inSysEx = false;
+    private boolean sysexOverflow = false;
+    private int status = 0; // current or running status, 0 if none
+    private int expected = 0;
+    private int data1 = 0;
+    private int dataCount = 0;
+    private long droppedBytes = 0;
+
+    /**
+     * Constructor, using {@link #DEFAULT_MAX_SYSEX_LENGTH}.
+     */
+    public MIDIDecoder() {
+        this(DEFAULT_MAX_SYSEX_LENGTH);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSysExLength The maximum amount of SysEx data bytes to keep. Longer messages are truncated.
+     */
+    public MIDIDecoder(int maxSysExLength) {
+        this.sysex = new byte[maxSysExLength];
+    }
+
+    /**
+     * Decodes the given bytes, continuing with the state left over from the previous call.
+     *
+     * @param bytes   The buffer to decode from.
+     * @param offset  The index of the first byte to decode.
+     * @param length  The amount of bytes to decode.
+     * @param handler The handler to pass decoded events to.
+     *
+     * @return The amount of events passed to the handler.
+     */
+    public int decode(byte[] bytes, int offset, int length, Handler handler) {
+        int events = 0;
+        int end = offset + length;
+
+        for (int i = offset; i < end; i++) {
+            int b = bytes[i] & 0xFF;
+
+            if (b >= MIDIEvent.TIMING_CLOCK) {
+                // realtime: does not touch running status or SysEx
+                handler.onEvent(MIDIEvent.pack(b, 0, 0, 1));
+                events++;
+            } else if (b >= 0x80) {
+                if (inSysEx) {
+                    // any status byte terminates a SysEx message, regularly only SYSEX_END
+                    emitSysEx(handler);
+                    events++;
+                    if (b == MIDIEvent.SYSEX_END)
+                        continue;
+                }
+                if (dataCount > 0)
+                    droppedBytes += 1 + dataCount;
+
+                dataCount = 0;
+                switch (b) {
+                    case MIDIEvent.SYSEX_START:
+                        inSysEx = true;
+                        sysexLength = 0;
+                        sysexOverflow = false;
+                        status = 0;
+                        break;
+                    case MIDIEvent.SYSEX_END:
+                        // stray end marker
+                        droppedBytes++;
+                        status = 0;
+                        break;
+                    default:
+                        expected = MIDIEvent.dataLength(b);
+                        if (expected == 0) {
+                            // system common without data, clears running status
+                            handler.onEvent(MIDIEvent.pack(b, 0, 0, 1));
+                            events++;
+                            status = 0;
+                        } else status = b;
+                        break;
+                }
+            } else if (inSysEx) {
+                if (sysexLength < sysex.length)
+                    sysex[sysexLength++] = (byte) b;
+                else sysexOverflow = true;
+            } else if (status != 0) {
+                if (dataCount == 0 && expected == 2) {
+                    data1 = b;
+                    dataCount = 1;
+                    continue;
+                }
+
+                long event = expected == 1
+                        ? MIDIEvent.pack(status, b, 0, 2)
+                        : MIDIEvent.pack(status, data1, b, 3);
+                dataCount = 0;
+                handler.onEvent(event);
+                events++;
+
+                // only channel messages establish running status
+                if (status >= 0xF0)
+                    status = 0;
+            } else {
+                droppedBytes++;
+            }
+        }
+
+        return events;
+    }
+
+    /**
+     * Whether a SysEx message has been started but not terminated yet.
+     *
+     * @return Whether the decoder is inside a SysEx message.
+     */
+    public boolean isInSysEx() {
+        return inSysEx;
+    }
+
+    /**
+     * Gets the amount of bytes that could not be assigned to any message.
+     *
+     * @return The amount of dropped bytes.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Clears running status and any unterminated SysEx message, e.g. after packet loss.
+     */
+    public void reset() {
+        inSysEx = false;
+        sysexLength = 0;
+        status = 0;
+        dataCount = 0;
+    }
+
+    private void emitSysEx(Handler handler) {
+        inSysEx = false;
+        handler.onSysEx(sysex, sysexLength, sysexOverflow);
+        handler.onEvent(MIDIEvent.pack(MIDIEvent.SYSEX_START, 0, 0, sysexLength));
+    }
+
+    /**
+     * Receiver of decoded events.
+     */
+    public interface Handler {
+        /**
+         * Called for every decoded message.
+         *
+         * @param event The message packed into a {@code long}, see {@link MIDIEvent}.
+         */
+        void onEvent(long event);
+
+        /**
+         * Called for every complete SysEx message, directly before its {@linkplain #onEvent(long) event}.
+         * The buffer is owned by the decoder and only valid during this call.
+         *
+         * @param data      The SysEx data, without the {@code 0xF0} and {@code 0xF7} markers.
+         * @param length    The amount of valid bytes in {@code data}.
+         * @param truncated Whether the message was longer than the decoder's maximum SysEx length.
+         */
+        void onSysEx(byte[] data, int length, boolean truncated);
+    }
+}
@@ -0,0 +1,154 @@
+package de.comroid.vban.codec;
+
+import java.io.IOException;
+
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.model.data.MIDICommand;
+import de.comroid.vban.packet.VBANPacket;
+
+/**
+ * Packs MIDI events into one {@linkplain de.comroid.vban.VBAN.Protocol#SERIAL serial} datagram payload.
+ * <p>
+ * Consecutive channel messages with the same status use running status. Running status is restarted with every
+ * datagram, so that a lost datagram never corrupts the following ones.
+ * Encoding never allocates; the encoder is reused by calling {@link #flush(VBANOutputStream)} or {@link #reset()}.
+ */
+public class MIDIEncoder {
+    private final byte[] buf;
+    private final MIDICommand command;
+    private final boolean useRunningStatus;
+    private int length = 0;
+    private int runningStatus = 0;
+    private int events = 0;
+
+    /**
+     * Constructor, packing up to {@link VBANPacket#MAX_SIZE_WITHOUT_HEAD} bytes with running status.
+     */
+    public MIDIEncoder() {
+        this(VBANPacket.MAX_SIZE_WITHOUT_HEAD, true);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity         The maximum payload size in bytes.
+     * @param useRunningStatus Whether to omit repeated status bytes of channel messages.
+     */
+    public MIDIEncoder(int capacity, boolean useRunningStatus) {
+        this.buf = new byte[capacity];
+        this.command = MIDICommand.allocate(capacity);
+        this.useRunningStatus = useRunningStatus;
+    }
+
+    /**
+     * Appends one event.
+     *
+     * @param event The event, packed as described in {@link MIDIEvent}. SysEx events must use
+     *              {@link #addSysEx(byte[], int, int)} instead.
+     *
+     * @return Whether the event fit into the remaining space. If not, nothing has been appended.
+     * @throws IllegalArgumentException If the event is a SysEx event.
+     */
+    public boolean add(long event) throws IllegalArgumentException {
+        int status = MIDIEvent.status(event);
+
+        if (status == MIDIEvent.SYSEX_START)
+            throw new IllegalArgumentException("Use addSysEx for SysEx messages");
+
+        int dataLength = Math.max(MIDIEvent.dataLength(status), 0);
+        boolean realtime = status >= MIDIEvent.TIMING_CLOCK;
+        boolean omitStatus = useRunningStatus && !realtime && status == runningStatus;
+        int required = dataLength + (omitStatus ? 0 : 1);
+
+        if (length + required > buf.length)
+            return false;
+
+        if (!omitStatus)
+            buf[length++] = (byte) status;
+        if (dataLength > 0)
+            buf[length++] = (byte) (MIDIEvent.data1(event) & 0x7F);
+        if (dataLength > 1)
+            buf[length++] = (byte) (MIDIEvent.data2(event) & 0x7F);
+
+        if (!realtime)
+            runningStatus = status < 0xF0 ? status : 0;
+        events++;
+
+        return true;
+    }
+
+    /**
+     * Appends one complete SysEx message.
+     *
+     * @param data   The SysEx data, without the {@code 0xF0} and {@code 0xF7} markers.
+     * @param offset The index of the first data byte.
+     * @param len    The amount of data bytes.
+     *
+     * @return Whether the message fit into the remaining space. If not, nothing has been appended.
+     */
+    public boolean addSysEx(byte[] data, int offset, int len) {
+        if (length + len + 2 > buf.length)
+            return false;
+
+        buf[length++] = (byte) MIDIEvent.SYSEX_START;
+        for (int i = 0; i < len; i++)
+            buf[length++] = (byte) (data[offset + i] & 0x7F);
+        buf[length++] = (byte) MIDIEvent.SYSEX_END;
+
+        runningStatus = 0;
+        events++;
+
+        return true;
+    }
+
+    /**
+     * Gets the amount of encoded bytes.
+     *
+     * @return The amount of encoded bytes.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the amount of events added since the last reset.
+     *
+     * @return The amount of pending events.
+     */
+    public int getEventCount() {
+        return events;
+    }
+
+    /**
+     * Gets the exact buffer array. Only the first {@link #length()} bytes are valid.
+     *
+     * @return The exact buffer array.
+     */
+    public byte[] getBufferArray() {
+        return buf;
+    }
+
+    /**
+     * Sends all pending events as one datagram and resets the encoder. Does nothing if no event is pending.
+     *
+     * @param stream The stream to send with.
+     *
+     * @throws IOException See {@link VBANOutputStream#sendData(Object)}.
+     */
+    public void flush(VBANOutputStream<MIDICommand> stream) throws IOException {
+        if (events == 0)
+            return;
+
+        stream.sendData(command.fill(buf, 0, length));
+        reset();
+    }
+
+    /**
+     * Discards all pending events and restarts running status.
+     */
+    public void reset() {
+        length = 0;
+        events = 0;
+        runningStatus = 0;
+    }
+}
@@ -0,0 +1,184 @@
+package de.comroid.vban.codec;
+
+/**
+ * Helpers for MIDI events packed into a primitive {@code long}, as produced by {@link MIDIDecoder}
+ * and consumed by {@link MIDIEncoder}.
+ * <p>
+ * Layout, from the least significant byte: status byte, first data byte, second data byte, length.
+ * The length is the total amount of bytes of the message including its status byte, or for
+ * {@linkplain #SYSEX_START SysEx} events the amount of data bytes between {@code 0xF0} and {@code 0xF7}.
+ */
+public final class MIDIEvent {
+    public static final int NOTE_OFF = 0x80;
+    public static final int NOTE_ON = 0x90;
+    public static final int POLY_PRESSURE = 0xA0;
+    public static final int CONTROL_CHANGE = 0xB0;
+    public static final int PROGRAM_CHANGE = 0xC0;
+    public static final int CHANNEL_PRESSURE = 0xD0;
+    public static final int PITCH_BEND = 0xE0;
+    public static final int SYSEX_START = 0xF0;
+    public static final int SYSEX_END = 0xF7;
+    public static final int TIMING_CLOCK = 0xF8;
+
+    private MIDIEvent() {
+        // nope
+    }
+
+    /**
+     * Packs a message into a {@code long}.
+     *
+     * @param status The status byte.
+     * @param data1  The first data byte, or {@code 0}.
+     * @param data2  The second data byte, or {@code 0}.
+     * @param length The total length of the message, see {@link MIDIEvent class description}.
+     *
+     * @return The packed event.
+     */
+    public static long pack(int status, int data1, int data2, int length) {
+        return (status & 0xFFL)
+                | (data1 & 0xFFL) << 8
+                | (data2 & 0xFFL) << 16
+                | (length & 0xFFFFFFFFL) << 24;
+    }
+
+    /**
+     * Packs a channel message with the correct length for its status.
+     *
+     * @param command The command nibble, e.g. {@link #CONTROL_CHANGE}.
+     * @param channel The channel, from {@code 0} to {@code 15}.
+     * @param data1   The first data byte.
+     * @param data2   The second data byte, ignored for messages with only one data byte.
+     *
+     * @return The packed event.
+     */
+    public static long channelMessage(int command, int channel, int data1, int data2) {
+        int status = (command & 0xF0) | (channel & 0x0F);
+        int dataLength = dataLength(status);
+
+        return pack(status, data1 & 0x7F, dataLength == 2 ? data2 & 0x7F : 0, 1 + dataLength);
+    }
+
+    public static long noteOn(int channel, int note, int velocity) {
+        return channelMessage(NOTE_ON, channel, note, velocity);
+    }
+
+    public static long noteOff(int channel, int note, int velocity) {
+        return channelMessage(NOTE_OFF, channel, note, velocity);
+    }
+
+    public static long controlChange(int channel, int controller, int value) {
+        return channelMessage(CONTROL_CHANGE, channel, controller, value);
+    }
+
+    public static long programChange(int channel, int program) {
+        return channelMessage(PROGRAM_CHANGE, channel, program, 0);
+    }
+
+    /**
+     * Packs a pitch bend message.
+     *
+     * @param channel The channel, from {@code 0} to {@code 15}.
+     * @param value   The 14-bit bend value, {@code 8192} is the center.
+     *
+     * @return The packed event.
+     */
+    public static long pitchBend(int channel, int value) {
+        return channelMessage(PITCH_BEND, channel, value & 0x7F, value >> 7);
+    }
+
+    public static int status(long event) {
+        return (int) (event & 0xFF);
+    }
+
+    public static int data1(long event) {
+        return (int) (event >>> 8 & 0xFF);
+    }
+
+    public static int data2(long event) {
+        return (int) (event >>> 16 & 0xFF);
+    }
+
+    public static int length(long event) {
+        return (int) (event >>> 24 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Gets the command nibble of a channel message.
+     *
+     * @param event The packed event.
+     *
+     * @return The command, e.g. {@link #NOTE_ON}.
+     */
+    public static int command(long event) {
+        return (int) (event & 0xF0);
+    }
+
+    public static int channel(long event) {
+        return (int) (event & 0x0F);
+    }
+
+    /**
+     * Gets the 14-bit value of a pitch bend message.
+     *
+     * @param event The packed event.
+     *
+     * @return The bend value.
+     */
+    public static int pitchBendValue(long event) {
+        return data1(event) | data2(event) << 7;
+    }
+
+    public static boolean isChannelMessage(long event) {
+        int status = status(event);
+        return status >= 0x80 && status < 0xF0;
+    }
+
+    public static boolean isRealtime(long event) {
+        return status(event) >= TIMING_CLOCK;
+    }
+
+    public static boolean isSysEx(long event) {
+        return status(event) == SYSEX_START;
+    }
+
+    /**
+     * Gets the amount of data bytes that follow the given status byte.
+     *
+     * @param status The status byte.
+     *
+     * @return The amount of data bytes, or {@code -1} for {@link #SYSEX_START}, whose length is variable.
+     */
+    public static int dataLength(int status) {
+        switch (status & 0xF0) {
+            case PROGRAM_CHANGE:
+            case CHANNEL_PRESSURE:
+                return 1;
+            case 0xF0:
+                switch (status) {
+                    case SYSEX_START:
+                        return -1;
+                    case 0xF1: // MTC quarter frame
+                    case 0xF3: // song select
+                        return 1;
+                    case 0xF2: // song position
+                        return 2;
+                    default:
+                        return 0;
+                }
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Creates a human readable representation of the given event.
+     *
+     * @param event The packed event.
+     *
+     * @return A string describing the event.
+     */
+    public static String toString(long event) {
+        return String.format("MIDIEvent[status=%02X;data1=%d;data2=%d;length=%d]",
+                status(event), data1(event), data2(event), length(event));
+    }
+}
@@ -0,0 +1,71 @@
+package de.comroid.vban.codec;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBAN.AudioFormat;
+
+import static de.comroid.vban.Util.checkRange;
+
+/**
+ * The {@link VBAN.Codec#PCM} codec, which carries PCM samples unchanged.
+ */
+public class PCMCodec implements AudioCodec {
+    @Override
+    public int getCodecValue() {
+        return VBAN.Codec.PCM;
+    }
+
+    @Override
+    public boolean supports(AudioFormat format) {
+        return true;
+    }
+
+    @Override
+    public Encoder newEncoder(AudioFormat format, int channels) throws IllegalArgumentException {
+        checkRange(channels, 1, 256);
+
+        return new Encoder(format, channels) {
+            @Override
+            public int maxEncodedLength(int samples) {
+                return samples * channels * format.getBytesPerSample();
+            }
+
+            @Override
+            public int encode(byte[] pcm, int offset, int samples, byte[] dst, int dstOffset)
+                    throws IllegalArgumentException {
+                int length = maxEncodedLength(samples);
+                if (dst.length - dstOffset < length)
+                    throw new IllegalArgumentException("Buffer too small [exp:" + length + ";len=" + (dst.length - dstOffset) + "]");
+
+                System.arraycopy(pcm, offset, dst, dstOffset, length);
+
+                return length;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+
+    @Override
+    public Decoder newDecoder(AudioFormat format, int channels) throws IllegalArgumentException {
+        checkRange(channels, 1, 256);
+
+        return new Decoder(format, channels) {
+            @Override
+            public int decode(byte[] src, int offset, int length, int samples, byte[] pcm, int pcmOffset)
+                    throws IllegalArgumentException {
+                int decoded = decodedLength(samples);
+                if (length < decoded)
+                    throw new IllegalArgumentException("Payload too short [exp:" + decoded + ";len=" + length + "]");
+
+                System.arraycopy(src, offset, pcm, pcmOffset, decoded);
+                return decoded;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+    }
+}
@@ -0,0 +1,188 @@
+package de.comroid.vban.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import de.comroid.vban.VBAN.CommandFormat;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Encodes and decodes {@linkplain de.comroid.vban.VBAN.Protocol#TEXT text protocol} payloads in the charset
+ * declared by their {@link CommandFormat}.
+ * <p>
+ * Encoders, decoders and their buffers are created once per format and then reused, so that encoding goes from a
+ * {@link CharSequence} straight into a packet buffer and decoding goes straight into a {@link StringBuilder} or a
+ * reusable {@link CharBuffer}, without any intermediate {@code byte[]} or {@link String}.
+ * Payloads end at the first {@code NUL} character, so zero padding is ignored.
+ * <p>
+ * Instances are not thread-safe; use one per stream or thread.
+ */
+public class TextCodec {
+    private static final CommandFormat[] FORMATS = CommandFormat.values();
+
+    private final CharsetEncoder[] encoders = new CharsetEncoder[FORMATS.length];
+    private final CharsetDecoder[] decoders = new CharsetDecoder[FORMATS.length];
+    private final CharBuffer chars = CharBuffer.allocate(VBANPacket.MAX_SIZE);
+    private ByteBuffer byteView = ByteBuffer.allocate(0);
+
+    /**
+     * Encodes the given text into the given buffer.
+     *
+     * @param text   The text to encode.
+     * @param format The format that determines the charset.
+     * @param dst    The buffer to encode into, usually a packet buffer.
+     * @param offset The index at which to start writing.
+     * @param maxLen The maximum amount of bytes to write.
+     *
+     * @return The amount of bytes written, or {@code -1} if the encoded text does not fit into {@code maxLen} bytes.
+     * @throws IllegalArgumentException If the text contains characters that cannot be encoded with the charset,
+     *                                  or is longer than {@link VBANPacket#MAX_SIZE} characters.
+     */
+    public int encode(CharSequence text, CommandFormat format, byte[] dst, int offset, int maxLen)
+            throws IllegalArgumentException {
+        if (text.length() > chars.capacity())
+            throw new IllegalArgumentException("Text is too long: " + text.length());
+
+        chars.clear();
+        for (int i = 0; i < text.length(); i++)
+            chars.put(text.charAt(i));
+        chars.flip();
+
+        ByteBuffer out = view(dst, offset, maxLen);
+        CharsetEncoder encoder = encoder(format);
+        encoder.reset();
+
+        CoderResult result = encoder.encode(chars, out, true);
+        if (result.isUnderflow())
+            result = encoder.flush(out);
+        if (result.isOverflow())
+            return -1;
+        if (result.isError())
+            throw new IllegalArgumentException("Text cannot be encoded as " + format + ": " + result);
+
+        return out.position() - offset;
+    }
+
+    /**
+     * Decodes the given bytes into a reusable {@link CharBuffer}.
+     * The returned buffer is only valid until the next call to any decode method of this codec.
+     *
+     * @param src    The buffer to decode from.
+     * @param offset The index of the first byte to decode.
+     * @param length The amount of bytes to decode.
+     * @param format The format that determines the charset.
+     *
+     * @return A buffer containing the decoded characters, positioned at {@code 0}.
+     */
+    public CharBuffer decode(byte[] src, int offset, int length, CommandFormat format) {
+        ByteBuffer in = view(src, offset, terminatedLength(src, offset, length, format));
+        CharsetDecoder decoder = decoder(format);
+        decoder.reset();
+
+        chars.clear();
+        decoder.decode(in, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+
+        return chars;
+    }
+
+    /**
+     * Decodes the given bytes and appends the characters to the given builder.
+     *
+     * @param src    The buffer to decode from.
+     * @param offset The index of the first byte to decode.
+     * @param length The amount of bytes to decode.
+     * @param format The format that determines the charset.
+     * @param out    The builder to append to.
+     *
+     * @return The amount of characters appended.
+     */
+    public int decode(byte[] src, int offset, int length, CommandFormat format, StringBuilder out) {
+        CharBuffer decoded = decode(src, offset, length, format);
+        out.append(decoded.array(), decoded.arrayOffset(), decoded.remaining());
+
+        return decoded.remaining();
+    }
+
+    /**
+     * Decodes the payload of the given text packet, in the charset declared by its head,
+     * and appends the characters to the given builder.
+     *
+     * @param view A view of a valid text packet.
+     * @param out  The builder to append to.
+     *
+     * @return The amount of characters appended.
+     * @throws IllegalArgumentException If the view does not contain a text packet.
+     */
+    public int decode(VBANPacketView view, StringBuilder out) throws IllegalArgumentException {
+        if (!view.getStatus().isOk() || !view.getProtocol().isText())
+            throw new IllegalArgumentException("View does not contain a valid text packet");
+
+        return decode(view.getBuffer(), view.getPayloadOffset(), view.getPayloadLength(),
+                CommandFormat.byValue(view.getFormatValue()), out);
+    }
+
+    private CharsetEncoder encoder(CommandFormat format) {
+        CharsetEncoder encoder = encoders[format.ordinal()];
+
+        if (encoder == null)
+            encoders[format.ordinal()] = encoder = format.getCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        return encoder;
+    }
+
+    private CharsetDecoder decoder(CommandFormat format) {
+        CharsetDecoder decoder = decoders[format.ordinal()];
+
+        if (decoder == null)
+            decoders[format.ordinal()] = decoder = format.getCharset().newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        return decoder;
+    }
+
+    // re-wraps only when the backing array changes, so that reusing one packet buffer does not allocate
+    private ByteBuffer view(byte[] array, int offset, int length) {
+        if (!byteView.hasArray() || byteView.array() != array)
+            byteView = ByteBuffer.wrap(array);
+
+        byteView.limit(offset + length);
+        byteView.position(offset);
+
+        return byteView;
+    }
+
+    /**
+     * Gets the length of the given text up to its first zero character, which VBAN uses as padding.
+     * For {@link CommandFormat#WCHAR}, a zero character is two zero bytes, and a trailing odd byte is cut off.
+     *
+     * @param src    The buffer containing the text.
+     * @param offset The index of the first byte of the text.
+     * @param length The amount of bytes to scan.
+     * @param format The format that determines the character width.
+     *
+     * @return The amount of bytes before the padding.
+     */
+    public static int terminatedLength(byte[] src, int offset, int length, CommandFormat format) {
+        if (format == CommandFormat.WCHAR) {
+            for (int i = 0; i + 1 < length; i += 2)
+                if (src[offset + i] == 0 && src[offset + i + 1] == 0)
+                    return i;
+            return length & ~1;
+        }
+
+        for (int i = 0; i < length; i++)
+            if (src[offset + i] == 0)
+                return i;
+        return length;
+    }
+}
@@ -0,0 +1,229 @@
+package de.comroid.vban.fec;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacketView;
+
+import static de.comroid.vban.fec.ParityEncoder.PARITY_FORMAT_AND_CODEC;
+import static de.comroid.vban.fec.ParityEncoder.PREFIX_SIZE;
+import static de.comroid.vban.fec.ParityEncoder.PROTOCOL_MASK;
+import static de.comroid.vban.packet.VBANPacket.MAX_SIZE;
+import static de.comroid.vban.packet.VBANPacketHead.SIZE;
+
+/**
+ * Restores lost audio datagrams of one stream from the parity datagrams of a {@link ParityEncoder}.
+ * <p>
+ * Every received datagram of the stream is passed to {@link #receive(VBANPacketView, VBANPacketView)}. The decoder
+ * keeps a copy of the last audio datagrams in a ring indexed by frame counter. When a parity datagram arrives and
+ * exactly one datagram of its group is missing from the ring, that datagram is rebuilt, frame counter included,
+ * and handed back through the given view, as if it had been received right then. Parity datagrams themselves are
+ * never audio and must not be played; {@link #isParity(VBANPacketView)} tells them apart for receivers that do not
+ * use a decoder.
+ * <p>
+ * A datagram that arrives after it has been restored is reported as {@link Outcome#DATA} again; a
+ * {@link de.comroid.vban.audio.LossConcealer} drops it as late. Not thread-safe; meant to be used by the thread
+ * that receives the stream, one decoder per stream.
+ */
+public class ParityDecoder {
+    private final int mask;
+    private final long[] counters;
+    private final int[] lengths;
+    private final byte[][] datagrams;
+    private final byte[] rebuilt = new byte[MAX_SIZE];
+
+    // metrics
+    private long parityPackets = 0;
+    private long recovered = 0;
+    private long unrecoverable = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param window The amount of most recent datagrams to keep for recovery; at least the group size of the sender.
+     *               Rounded up to the next power of two.
+     *
+     * @throws IllegalArgumentException If the window is not within {@code [1;65536]}.
+     */
+    public ParityDecoder(int window) throws IllegalArgumentException {
+        if (window < 1 || window > 1 << 16)
+            throw new IllegalArgumentException("Window must be within [1;65536]: " + window);
+
+        int slots = Integer.highestOneBit(Math.max(window, 2) - 1) << 1;
+        this.mask = slots - 1;
+        this.counters = new long[slots];
+        this.lengths = new int[slots];
+        this.datagrams = new byte[slots][];
+
+        for (int i = 0; i < slots; i++)
+            counters[i] = -1;
+    }
+
+    /**
+     * Whether the given datagram is a parity datagram of a {@link ParityEncoder}.
+     *
+     * @param view A view of a valid datagram.
+     *
+     * @return Whether the datagram carries parity instead of audio.
+     */
+    public static boolean isParity(VBANPacketView view) {
+        return view.getProtocolValue() == VBAN.Protocol.AUDIO.getValue()
+                && (view.getBuffer()[view.getOffset() + 7] & 0xFF) == PARITY_FORMAT_AND_CODEC;
+    }
+
+    /**
+     * Takes a received datagram of the stream.
+     *
+     * @param view      A view of a valid datagram.
+     * @param recovered The view to wrap a restored datagram with, if any. It stays valid until the next call.
+     *
+     * @return What the datagram was, and whether another one has been restored from it.
+     * @throws IllegalArgumentException If the view does not wrap a valid datagram.
+     */
+    public Outcome receive(VBANPacketView view, VBANPacketView recovered) throws IllegalArgumentException {
+        if (view.getStatus() != DecodeStatus.OK)
+            throw new IllegalArgumentException("View does not wrap a valid datagram: " + view.getStatus());
+
+        if (isParity(view)) {
+            parityPackets++;
+            return recover(view, recovered) ? Outcome.RECOVERED : Outcome.PARITY;
+        }
+        if (view.getProtocolValue() == VBAN.Protocol.AUDIO.getValue())
+            store(view.getBuffer(), view.getOffset(), view.getLength(), view.getFrameCounter());
+        return Outcome.DATA;
+    }
+
+    /**
+     * Gets the amount of received parity datagrams.
+     *
+     * @return The amount of parity datagrams.
+     */
+    public long getParityPackets() {
+        return parityPackets;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been restored.
+     *
+     * @return The amount of restored datagrams.
+     */
+    public long getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Gets the amount of groups that missed more datagrams than their parity could restore.
+     *
+     * @return The amount of unrecoverable groups.
+     */
+    public long getUnrecoverable() {
+        return unrecoverable;
+    }
+
+    private boolean recover(VBANPacketView parity, VBANPacketView target) {
+        int groupSize = parity.getSamples();
+        int first = parity.getFrameCounter();
+        int parityPayload = parity.getPayloadLength() - PREFIX_SIZE;
+        if (parityPayload < 0)
+            return false;
+        if (groupSize > counters.length) {
+            unrecoverable++;
+            return false;
+        }
+
+        int missing = 0;
+        int missingCount = 0;
+        for (int i = 0; i < groupSize; i++) {
+            if (!contains(first + i)) {
+                missing = first + i;
+                missingCount++;
+            }
+        }
+        if (missingCount == 0)
+            return false;
+        if (missingCount > 1) {
+            unrecoverable++;
+            return false;
+        }
+
+        byte[] buffer = parity.getBuffer();
+        int prefix = parity.getPayloadOffset();
+        System.arraycopy(buffer, parity.getOffset(), rebuilt, 0, SIZE);
+        System.arraycopy(buffer, prefix, rebuilt, 4, 4);
+        int length = (buffer[prefix + 4] & 0xFF) << 8 | buffer[prefix + 5] & 0xFF;
+        for (int i = 0; i < groupSize; i++) {
+            int counter = first + i;
+            if (counter == missing)
+                continue;
+
+            int slot = counter & mask;
+            byte[] datagram = datagrams[slot];
+            int payload = lengths[slot] - SIZE;
+            for (int j = 4; j < 8; j++)
+                rebuilt[j] ^= datagram[j];
+            length ^= payload;
+        }
+        if (length > parityPayload || SIZE + length > rebuilt.length) {
+            unrecoverable++;
+            return false;
+        }
+
+        System.arraycopy(buffer, prefix + PREFIX_SIZE, rebuilt, SIZE, length);
+        for (int i = 0; i < groupSize; i++) {
+            int counter = first + i;
+            if (counter == missing)
+                continue;
+
+            int slot = counter & mask;
+            byte[] datagram = datagrams[slot];
+            for (int j = SIZE, end = Math.min(lengths[slot], SIZE + length); j < end; j++)
+                rebuilt[j] ^= datagram[j];
+        }
+        rebuilt[24] = (byte) (missing >> 24);
+        rebuilt[25] = (byte) (missing >> 16);
+        rebuilt[26] = (byte) (missing >> 8);
+        rebuilt[27] = (byte) missing;
+
+        if (target.wrap(rebuilt, 0, SIZE + length) != DecodeStatus.OK
+                || (rebuilt[4] & PROTOCOL_MASK) != VBAN.Protocol.AUDIO.getValue()) {
+            unrecoverable++;
+            return false;
+        }
+
+        store(rebuilt, 0, SIZE + length, missing);
+        recovered++;
+        return true;
+    }
+
+    private boolean contains(int counter) {
+        return counters[counter & mask] == (counter & 0xFFFFFFFFL);
+    }
+
+    private void store(byte[] buffer, int offset, int length, int counter) {
+        int slot = counter & mask;
+        byte[] datagram = datagrams[slot];
+        if (datagram == null || datagram.length < length)
+            datagrams[slot] = datagram = new byte[Math.max(length, MAX_SIZE)];
+
+        System.arraycopy(buffer, offset, datagram, 0, length);
+        lengths[slot] = length;
+        counters[slot] = counter & 0xFFFFFFFFL;
+    }
+
+    /**
+     * What a received datagram was.
+     */
+    public enum Outcome {
+        /**
+         * A datagram that carries data, to be processed as usual.
+         */
+        DATA,
+        /**
+         * A parity datagram that restored nothing, and is to be dropped.
+         */
+        PARITY,
+        /**
+         * A parity datagram that restored a lost datagram, which is to be processed instead.
+         */
+        RECOVERED
+    }
+}
@@ -0,0 +1,196 @@
+package de.comroid.vban.fec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import de.comroid.vban.VBAN;
+
+import static de.comroid.vban.packet.VBANPacket.MAX_SIZE;
+import static de.comroid.vban.packet.VBANPacket.MAX_SIZE_WITHOUT_HEAD;
+import static de.comroid.vban.packet.VBANPacketHead.SIZE;
+
+/**
+ * Computes one XOR parity datagram per group of {@code K} consecutive audio datagrams of a stream, from which a
+ * {@link ParityDecoder} restores any single datagram of the group that got lost.
+ * <p>
+ * A parity datagram is an {@linkplain VBAN.Protocol#AUDIO audio} datagram with the stream name and sample rate of
+ * its group, marked by the {@link VBAN.Codec#USER} codec with the {@link VBAN.AudioFormat#BYTE8} format, which no
+ * audio codec of this library sends; plain VBAN receivers drop it as an unknown codec. Its head carries:
+ * <ul>
+ * <li>the group size {@code K} in the samples field, and zero in the channels field,</li>
+ * <li>the frame counter of the first datagram of the group, so that parity does not use up frame counters.</li>
+ * </ul>
+ * Its payload is the XOR of head bytes 4 to 7 of the group (protocol, samples, channels, format and codec),
+ * followed by the XOR of the 16 bit big endian payload lengths, and the XOR of the payloads, each padded with zeros
+ * to the longest one. The overhead is one datagram per {@code K}, which is {@code 1/K} of the bandwidth.
+ * <p>
+ * Groups are made of datagrams with consecutive frame counters; a gap in the frame counters starts a new group.
+ * Groups that are not completed, and groups with a payload larger than {@link #MAX_PROTECTED_PAYLOAD}, get no
+ * parity. Not thread-safe; meant to be used by the sending thread of one stream,
+ * e.g. by {@link de.comroid.vban.VBANOutputStream#setParityEncoder(ParityEncoder)}.
+ */
+public class ParityEncoder {
+    /**
+     * The size of the parity payload that precedes the XOR of the data payloads.
+     */
+    public static final int PREFIX_SIZE = 6;
+    /**
+     * The largest supported group size; it is stored in the samples field of the head.
+     */
+    public static final int MAX_GROUP_SIZE = 256;
+    /**
+     * The largest data payload that can be protected.
+     */
+    public static final int MAX_PROTECTED_PAYLOAD = MAX_SIZE_WITHOUT_HEAD - PREFIX_SIZE;
+
+    static final int PARITY_FORMAT_AND_CODEC = VBAN.Codec.USER | VBAN.AudioFormat.BYTE8.getValue();
+    static final int PROTOCOL_MASK = 0b11100000;
+
+    private final int groupSize;
+    private final byte[] parity = new byte[MAX_SIZE];
+    private int parityLength = PREFIX_SIZE;
+    private int count = 0;
+    private int nextCounter;
+    private boolean oversized;
+    private boolean ready = false;
+
+    // metrics
+    private long packets = 0;
+    private long parityPackets = 0;
+    private long unprotectedGroups = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param groupSize The amount of datagrams protected by one parity datagram, within {@code [1;256]}.
+     *
+     * @throws IllegalArgumentException If the group size is out of range.
+     */
+    public ParityEncoder(int groupSize) throws IllegalArgumentException {
+        if (groupSize < 1 || groupSize > MAX_GROUP_SIZE)
+            throw new IllegalArgumentException("Group size must be within [1;" + MAX_GROUP_SIZE + "]: " + groupSize);
+
+        this.groupSize = groupSize;
+    }
+
+    /**
+     * Adds a sent datagram to the current group. Datagrams that are not audio, and parity datagrams, are ignored.
+     *
+     * @param datagram The datagram, from its position to its limit. The buffer is not modified.
+     *
+     * @return Whether the group is complete, and its parity datagram can be {@linkplain #writeParity(ByteBuffer)
+     * written} now.
+     */
+    public boolean add(ByteBuffer datagram) {
+        int position = datagram.position();
+        int length = datagram.remaining();
+        if (length < SIZE
+                || (datagram.get(position + 4) & PROTOCOL_MASK) != VBAN.Protocol.AUDIO.getValue()
+                || (datagram.get(position + 7) & 0xFF) == PARITY_FORMAT_AND_CODEC)
+            return false;
+
+        int counter = (datagram.get(position + 24) & 0xFF) << 24
+                | (datagram.get(position + 25) & 0xFF) << 16
+                | (datagram.get(position + 26) & 0xFF) << 8
+                | (datagram.get(position + 27) & 0xFF);
+        if (count > 0 && counter != nextCounter) {
+            unprotectedGroups++;
+            count = 0;
+        }
+        if (count == 0)
+            start(datagram, position);
+
+        int payload = length - SIZE;
+        if (payload > MAX_PROTECTED_PAYLOAD)
+            oversized = true;
+        if (!oversized) {
+            for (int i = 0; i < 4; i++)
+                parity[SIZE + i] ^= datagram.get(position + 4 + i);
+            parity[SIZE + 4] ^= (byte) (payload >> 8);
+            parity[SIZE + 5] ^= (byte) payload;
+            for (int i = 0, to = SIZE + PREFIX_SIZE; i < payload; i++)
+                parity[to + i] ^= datagram.get(position + SIZE + i);
+            parityLength = Math.max(parityLength, PREFIX_SIZE + payload);
+        }
+
+        packets++;
+        nextCounter = counter + 1;
+        if (++count < groupSize)
+            return false;
+
+        count = 0;
+        if (oversized) {
+            unprotectedGroups++;
+            return false;
+        }
+        parityPackets++;
+        return ready = true;
+    }
+
+    /**
+     * Writes the parity datagram of the group that has just been completed.
+     *
+     * @param target The buffer to write the datagram to, at its position.
+     *
+     * @return The length of the datagram.
+     * @throws IllegalStateException If the last {@link #add(ByteBuffer)} did not complete a group.
+     */
+    public int writeParity(ByteBuffer target) throws IllegalStateException {
+        if (!ready)
+            throw new IllegalStateException("No parity datagram is ready");
+
+        int length = SIZE + parityLength;
+        target.put(parity, 0, length);
+        ready = false;
+        return length;
+    }
+
+    /**
+     * Gets the amount of datagrams protected by one parity datagram.
+     *
+     * @return The group size.
+     */
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Gets the amount of audio datagrams that have been added.
+     *
+     * @return The amount of added datagrams.
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * Gets the amount of completed groups that got a parity datagram.
+     *
+     * @return The amount of parity datagrams.
+     */
+    public long getParityPackets() {
+        return parityPackets;
+    }
+
+    /**
+     * Gets the amount of groups that got no parity, because of a gap in the frame counters or an oversized payload.
+     *
+     * @return The amount of unprotected groups.
+     */
+    public long getUnprotectedGroups() {
+        return unprotectedGroups;
+    }
+
+    private void start(ByteBuffer datagram, int position) {
+        Arrays.fill(parity, SIZE, SIZE + parityLength, (byte) 0);
+        parityLength = PREFIX_SIZE;
+        oversized = false;
+        ready = false;
+
+        for (int i = 0; i < SIZE; i++)
+            parity[i] = datagram.get(position + i);
+        parity[5] = (byte) (groupSize - 1);
+        parity[6] = 0;
+        parity[7] = (byte) PARITY_FORMAT_AND_CODEC;
+    }
+}
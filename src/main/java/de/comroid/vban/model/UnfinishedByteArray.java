@@ -66,6 +66,21 @@ public class UnfinishedByteArray implements ByteArray {
             buf[cursor++] = aByte;
     }
 
+    /**
+     * Marks bytes that have been written directly into the {@linkplain #getBufferArray() buffer array},
+     * starting at {@link #length()}, as appended.
+     *
+     * @param count The amount of bytes that have been written.
+     *
+     * @throws ArrayIndexOutOfBoundsException If the bytes would exceed the current buffer size.
+     */
+    public void advance(int count) throws ArrayIndexOutOfBoundsException {
+        if (count < 0 || cursor + count > buf.length)
+            throw new ArrayIndexOutOfBoundsException("Cannot advance beyond the buffer size");
+
+        cursor += count;
+    }
+
     /**
      * Gets the current amount of bytes added.
      *
@@ -1,28 +1,100 @@
 package de.comroid.vban.model.data;
 
+import java.util.Arrays;
+
 import de.comroid.util.model.ByteArray;
 
 /**
  * A class representing any frame of audio data received via VBAN.
+ * <p>
+ * Frames created with {@link #allocate(int)} are reusable: their content can be replaced with
+ * {@link #fill(byte[], int, int)} without allocating a new frame per packet.
  */
 public class AudioFrame implements ByteArray {
     private final byte[] audioBytes;
+    private int length;
 
     /**
      * Private constructor.
-     * Create {@link AudioFrame}s with {@link #fromBytes(byte[])}.
+     * Create {@link AudioFrame}s with {@link #fromBytes(byte[])} or {@link #allocate(int)}.
      *
-     * @param bytes The audio data bytes of this frame.
+     * @param bytes  The audio data bytes of this frame.
+     * @param length The amount of valid bytes in the array.
      */
-    private AudioFrame(byte[] bytes) {
+    private AudioFrame(byte[] bytes, int length) {
         audioBytes = bytes;
+        this.length = length;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If this frame does not fill its whole buffer, a trimmed copy is returned.
+     * Use {@link #getBufferArray()} together with {@link #length()} to avoid the copy.
+     */
     @Override
     public byte[] getBytes() {
+        if (length == audioBytes.length)
+            return audioBytes;
+        return Arrays.copyOf(audioBytes, length);
+    }
+
+    /**
+     * Gets the amount of valid audio bytes in this frame.
+     *
+     * @return The amount of valid audio bytes.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Gets the exact buffer array. Only the first {@link #length()} bytes are valid.
+     *
+     * @return The exact buffer array.
+     */
+    public byte[] getBufferArray() {
         return audioBytes;
     }
 
+    /**
+     * Replaces the content of this frame by copying bytes from the given array.
+     *
+     * @param src    The array to copy from.
+     * @param offset The index of the first byte to copy.
+     * @param length The amount of bytes to copy.
+     *
+     * @return This instance.
+     * @throws IllegalArgumentException If the bytes do not fit into this frame's buffer.
+     */
+    public AudioFrame fill(byte[] src, int offset, int length) throws IllegalArgumentException {
+        if (length > audioBytes.length)
+            throw new IllegalArgumentException("Frame capacity exceeded [cap=" + audioBytes.length + ";len=" + length + "]");
+
+        System.arraycopy(src, offset, audioBytes, 0, length);
+        this.length = length;
+
+        return this;
+    }
+
+    /**
+     * Sets the amount of valid audio bytes, after the {@linkplain #getBufferArray() buffer array} has been
+     * written to directly.
+     *
+     * @param length The amount of valid bytes in the buffer array.
+     *
+     * @return This instance.
+     * @throws IllegalArgumentException If the length is negative or exceeds this frame's buffer.
+     */
+    public AudioFrame setLength(int length) throws IllegalArgumentException {
+        if (length < 0 || length > audioBytes.length)
+            throw new IllegalArgumentException("Frame capacity exceeded [cap=" + audioBytes.length + ";len=" + length + "]");
+
+        this.length = length;
+
+        return this;
+    }
+
     /**
      * Used to create a new {@link AudioFrame}.
      *
@@ -31,6 +103,17 @@ public class AudioFrame implements ByteArray {
      * @return A new {@link AudioFrame}.
      */
     public static AudioFrame fromBytes(byte[] bytes) {
-        return new AudioFrame(bytes);
+        return new AudioFrame(bytes, bytes.length);
+    }
+
+    /**
+     * Used to create a new, empty and reusable {@link AudioFrame}.
+     *
+     * @param capacity The maximum amount of audio bytes the frame can hold.
+     *
+     * @return A new {@link AudioFrame}.
+     */
+    public static AudioFrame allocate(int capacity) {
+        return new AudioFrame(new byte[capacity], 0);
     }
 }
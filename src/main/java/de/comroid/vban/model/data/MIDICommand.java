@@ -1,46 +1,132 @@
 package de.comroid.vban.model.data;
 
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import de.comroid.util.model.ByteArray;
+import de.comroid.vban.codec.MIDIDecoder;
 
 import org.jetbrains.annotations.NotNull;
 
 /**
  * A class representing any frame of MIDI Commands received via VBAN.
+ * <p>
+ * The raw MIDI bytes are kept as they are; as a {@link CharSequence}, every byte maps to the char of the same
+ * value (ISO-8859-1), so that status bytes above {@code 0x7F} are never mangled.
+ * Use a {@link MIDIDecoder} to parse the bytes into events.
  */
-public class MIDICommand implements CharSequence {
-    private final String str;
+public class MIDICommand implements CharSequence, ByteArray {
+    private final byte[] bytes;
+    private int length;
 
     /**
      * Private constructor.
-     * Create {@link MIDICommand}s with {@link #fromBytes(byte[])}.
+     * Create {@link MIDICommand}s with {@link #fromBytes(byte[])} or {@link #allocate(int)}.
      *
-     * @param str The string that forms the MIDI Commands.
+     * @param bytes  The bytes that form the MIDI Commands.
+     * @param length The amount of valid bytes in the array.
      */
-    private MIDICommand(String str) {
-        this.str = str;
-
-        // todo: Implement Midi Building methods?
+    private MIDICommand(byte[] bytes, int length) {
+        this.bytes = bytes;
+        this.length = length;
     }
 
     @Override
     public int length() {
-        return str.length();
+        return length;
     }
 
     @Override
     public char charAt(int index) {
-        return str.charAt(index);
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("Index out of range: " + index);
+        return (char) (bytes[index] & 0xFF);
     }
 
     @Override
     public CharSequence subSequence(int start, int end) {
-        return str.substring(start, end);
+        return toString().substring(start, end);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If this command does not fill its whole buffer, a trimmed copy is returned.
+     */
+    @Override
+    public byte[] getBytes() {
+        if (length == bytes.length)
+            return bytes;
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Gets the exact buffer array. Only the first {@link #length()} bytes are valid.
+     *
+     * @return The exact buffer array.
+     */
+    public byte[] getBufferArray() {
+        return bytes;
+    }
+
+    /**
+     * Replaces the content of this command by copying bytes from the given array.
+     *
+     * @param src    The array to copy from.
+     * @param offset The index of the first byte to copy.
+     * @param length The amount of bytes to copy.
+     *
+     * @return This instance.
+     * @throws IllegalArgumentException If the bytes do not fit into this command's buffer.
+     */
+    public MIDICommand fill(byte[] src, int offset, int length) throws IllegalArgumentException {
+        if (length > bytes.length)
+            throw new IllegalArgumentException("Command capacity exceeded [cap=" + bytes.length + ";len=" + length + "]");
+
+        System.arraycopy(src, offset, bytes, 0, length);
+        this.length = length;
+
+        return this;
+    }
+
+    /**
+     * Sets the amount of valid bytes, after the {@linkplain #getBufferArray() buffer array} has been
+     * written to directly.
+     *
+     * @param length The amount of valid bytes in the buffer array.
+     *
+     * @return This instance.
+     * @throws IllegalArgumentException If the length is negative or exceeds this command's buffer.
+     */
+    public MIDICommand setLength(int length) throws IllegalArgumentException {
+        if (length < 0 || length > bytes.length)
+            throw new IllegalArgumentException("Command capacity exceeded [cap=" + bytes.length + ";len=" + length + "]");
+
+        this.length = length;
+
+        return this;
+    }
+
+    /**
+     * Decodes the MIDI events of this command.
+     *
+     * @param decoder The decoder to use. Keeps running status and SysEx state across commands.
+     * @param handler The handler to pass decoded events to.
+     *
+     * @return The amount of decoded events.
+     */
+    public int decode(MIDIDecoder decoder, MIDIDecoder.Handler handler) {
+        return decoder.decode(bytes, 0, length, handler);
     }
 
     @NotNull
     @Override
     public String toString() {
-        return str;
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++)
+            chars[i] = (char) (bytes[i] & 0xFF);
+
+        return new String(chars);
     }
 
     /**
@@ -51,6 +137,17 @@ public class MIDICommand implements CharSequence {
      * @return A new {@link MIDICommand}.
      */
     public static MIDICommand fromBytes(byte[] bytes) {
-        return new MIDICommand(new String(bytes, StandardCharsets.US_ASCII));
+        return new MIDICommand(bytes, bytes.length);
+    }
+
+    /**
+     * Used to create a new, empty and reusable {@link MIDICommand}.
+     *
+     * @param capacity The maximum amount of bytes the command can hold.
+     *
+     * @return A new {@link MIDICommand}.
+     */
+    public static MIDICommand allocate(int capacity) {
+        return new MIDICommand(new byte[capacity], 0);
     }
 }
@@ -0,0 +1,78 @@
+package de.comroid.vban.packet;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe counters of decode outcomes, one per {@link DecodeStatus}.
+ */
+public class DecodeStatistics {
+    private static final DecodeStatus[] STATUSES = DecodeStatus.values();
+
+    private final AtomicLongArray counts = new AtomicLongArray(STATUSES.length);
+
+    /**
+     * Counts one decode outcome.
+     *
+     * @param status The outcome to count.
+     *
+     * @return The given status, for chaining.
+     */
+    public DecodeStatus record(DecodeStatus status) {
+        counts.incrementAndGet(status.ordinal());
+        return status;
+    }
+
+    /**
+     * Gets the amount of decodes with the given outcome.
+     *
+     * @param status The outcome.
+     *
+     * @return The amount of decodes with that outcome.
+     */
+    public long get(DecodeStatus status) {
+        return counts.get(status.ordinal());
+    }
+
+    /**
+     * Gets the amount of accepted datagrams.
+     *
+     * @return The amount of {@link DecodeStatus#OK} decodes.
+     */
+    public long getAccepted() {
+        return get(DecodeStatus.OK);
+    }
+
+    /**
+     * Gets the amount of rejected datagrams, regardless of the reason.
+     *
+     * @return The amount of decodes that were not {@link DecodeStatus#OK}.
+     */
+    public long getRejected() {
+        long sum = 0;
+
+        for (int i = 1; i < STATUSES.length; i++)
+            sum += counts.get(i);
+
+        return sum;
+    }
+
+    /**
+     * Resets all counters to {@code 0}.
+     */
+    public void reset() {
+        for (int i = 0; i < STATUSES.length; i++)
+            counts.set(i, 0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder("DecodeStatistics{");
+
+        for (int i = 0; i < STATUSES.length; i++) {
+            if (i > 0) str.append(';');
+            str.append(STATUSES[i]).append('=').append(counts.get(i));
+        }
+
+        return str.append('}').toString();
+    }
+}
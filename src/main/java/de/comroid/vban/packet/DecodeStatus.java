@@ -0,0 +1,52 @@
+package de.comroid.vban.packet;
+
+/**
+ * Outcome of decoding a datagram with {@link VBANPacketView#wrap(byte[], int, int)}
+ * or {@link VBANPacketHead#preFilter(byte[], int, int)}.
+ * Returned instead of throwing, so that rejecting invalid traffic costs neither a stack trace nor an allocation.
+ */
+public enum DecodeStatus {
+    /**
+     * The datagram is a valid, supported VBAN packet.
+     */
+    OK,
+
+    /**
+     * The datagram is shorter than a {@linkplain VBANPacketHead#SIZE packet head}.
+     */
+    TRUNCATED,
+
+    /**
+     * The datagram does not start with {@code 'VBAN'}.
+     */
+    BAD_MAGIC,
+
+    /**
+     * The protocol is unknown or not supported, e.g. the SERVICE subprotocol.
+     */
+    UNSUPPORTED_PROTOCOL,
+
+    /**
+     * The sample rate or bits-per-second index is out of range.
+     */
+    BAD_DATA_RATE,
+
+    /**
+     * The format value is unknown for the protocol.
+     */
+    BAD_FORMAT,
+
+    /**
+     * The codec selector is unknown.
+     */
+    BAD_CODEC;
+
+    /**
+     * Whether this status describes a valid packet.
+     *
+     * @return Whether this is {@link #OK}.
+     */
+    public boolean isOk() {
+        return this == OK;
+    }
+}
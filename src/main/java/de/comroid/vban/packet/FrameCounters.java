@@ -0,0 +1,98 @@
+package de.comroid.vban.packet;
+
+/**
+ * Shared rules for telling apart late, new and restarted frame counters, and for keying streams by their name.
+ * <p>
+ * Frame counters wrap around, so they are only compared by their {@linkplain #delta(int, int) delta}.
+ * A counter that lags behind the last one of its stream by at most {@link #REORDER_WINDOW} is
+ * {@linkplain #isLate(int) late}, one that leads by at most that much is {@linkplain #isAhead(int) ahead},
+ * and anything else is treated as a restarted sender.
+ */
+public final class FrameCounters {
+    /**
+     * How far a frame counter may lag behind the last one of its stream to be late, or lead it to be ahead.
+     * Counters that lag or lead further are treated as a restarted sender.
+     */
+    public static final int REORDER_WINDOW = 1024;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private FrameCounters() {
+    }
+
+    /**
+     * Gets the distance from the last frame counter of a stream to a new one, across wrap-arounds.
+     *
+     * @param last    The last frame counter of the stream.
+     * @param counter The new frame counter.
+     *
+     * @return The delta, {@code 1} for the next packet.
+     */
+    public static int delta(int last, int counter) {
+        return counter - last;
+    }
+
+    /**
+     * Checks whether a delta belongs to a late, reordered or duplicated packet.
+     *
+     * @param delta The {@linkplain #delta(int, int) delta} of the packet.
+     *
+     * @return Whether the delta is within {@code [-REORDER_WINDOW;0]}.
+     */
+    public static boolean isLate(int delta) {
+        return delta <= 0 && delta >= -REORDER_WINDOW;
+    }
+
+    /**
+     * Checks whether a delta belongs to a new packet of the same sender, with {@code delta - 1} packets missing.
+     *
+     * @param delta The {@linkplain #delta(int, int) delta} of the packet.
+     *
+     * @return Whether the delta is within {@code [1;REORDER_WINDOW]}.
+     */
+    public static boolean isAhead(int delta) {
+        return delta > 0 && delta <= REORDER_WINDOW;
+    }
+
+    /**
+     * Hashes the 16 bytes of the stream name of a packet with FNV-1a.
+     * Further values can be {@linkplain #hash(long, int) mixed in}, e.g. the source address of the packet.
+     *
+     * @param packet The buffer containing the packet.
+     * @param offset The index of the first byte of the packet.
+     *
+     * @return The hash.
+     */
+    public static long hashStreamName(byte[] packet, int offset) {
+        long hash = FNV_OFFSET;
+
+        for (int i = offset + 8, end = i + 16; i < end; i++)
+            hash = (hash ^ (packet[i] & 0xFF)) * FNV_PRIME;
+
+        return hash;
+    }
+
+    /**
+     * Mixes one more value into an FNV-1a hash.
+     *
+     * @param hash  The hash so far.
+     * @param value The value to mix in.
+     *
+     * @return The hash.
+     */
+    public static long hash(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    /**
+     * Turns a hash into a key for open addressing tables, which use {@code 0} to mark free slots.
+     *
+     * @param hash The hash.
+     *
+     * @return The hash, or {@code 1} instead of {@code 0}.
+     */
+    public static long toKey(long hash) {
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,164 @@
+package de.comroid.vban.packet;
+
+import de.comroid.vban.exception.InvalidPacketAttributeException;
+
+import org.jetbrains.annotations.Nullable;
+
+import static de.comroid.vban.packet.VBANPacketHead.SIZE;
+
+/**
+ * Decodes the heads of one stream, and only re-parses them when they change.
+ * <p>
+ * Within a stream, the first 24 bytes of the head (magic, protocol and data rate, samples, channels, format and codec,
+ * and stream name) stay the same from packet to packet; only the frame counter moves. This cache keeps these bytes
+ * as three {@code long}s. When they match, the previously {@linkplain VBANPacketHead#decode(byte[]) decoded} head is
+ * reused and only the frame counter is read, without allocating; otherwise the head is decoded again, and the
+ * {@link Listener} is told about the change.
+ * <p>
+ * Not thread-safe; meant to be used by the thread that receives the stream, one cache per stream.
+ */
+public class HeaderCache {
+    private final Listener listener;
+    private long magicAndFormat;
+    private long nameHigh;
+    private long nameLow;
+    private VBANPacketHead.Decoded head;
+    private int frameCounter;
+    private long hits = 0;
+    private long changes = 0;
+
+    /**
+     * Constructor.
+     */
+    public HeaderCache() {
+        this(null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param listener The listener for header changes, or {@code null}.
+     */
+    public HeaderCache(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes the head of the datagram wrapped by the given view.
+     *
+     * @param view A view of a valid datagram.
+     *
+     * @return The decoded head. Its {@linkplain VBANPacketHead.Decoded#getFrameCounter() frame counter} is the one of
+     * the datagram that last changed the head; use {@link #getFrameCounter()} for the current one.
+     * @throws InvalidPacketAttributeException If the head is invalid; the cache stays unchanged then.
+     * @throws IllegalArgumentException        If the view does not wrap a valid datagram.
+     */
+    public VBANPacketHead.Decoded decode(VBANPacketView view)
+            throws InvalidPacketAttributeException, IllegalArgumentException {
+        if (view.getStatus() != DecodeStatus.OK)
+            throw new IllegalArgumentException("View does not wrap a valid datagram: " + view.getStatus());
+
+        byte[] buffer = view.getBuffer();
+        int offset = view.getOffset();
+        long magicAndFormat = readLong(buffer, offset);
+        long nameHigh = readLong(buffer, offset + 8);
+        long nameLow = readLong(buffer, offset + 16);
+
+        if (head != null && magicAndFormat == this.magicAndFormat
+                && nameHigh == this.nameHigh && nameLow == this.nameLow) {
+            frameCounter = VBANPacketHead.readFrameCounter(buffer, offset);
+            hits++;
+            return head;
+        }
+
+        byte[] bytes = new byte[SIZE];
+        System.arraycopy(buffer, offset, bytes, 0, SIZE);
+        VBANPacketHead.Decoded previous = head;
+        VBANPacketHead.Decoded decoded;
+        try {
+            decoded = VBANPacketHead.decode(bytes);
+        } catch (IllegalStateException e) {
+            // the decoder refuses unsupported sub protocols this way
+            throw new InvalidPacketAttributeException(e.getMessage());
+        }
+
+        this.magicAndFormat = magicAndFormat;
+        this.nameHigh = nameHigh;
+        this.nameLow = nameLow;
+        this.head = decoded;
+        this.frameCounter = decoded.getFrameCounter();
+
+        if (previous != null) {
+            changes++;
+            if (listener != null)
+                listener.onHeaderChanged(previous, decoded);
+        }
+
+        return decoded;
+    }
+
+    /**
+     * Gets the last decoded head.
+     *
+     * @return The last decoded head, or {@code null} if none has been decoded yet.
+     */
+    public VBANPacketHead.Decoded getHead() {
+        return head;
+    }
+
+    /**
+     * Gets the frame counter of the last decoded datagram.
+     *
+     * @return The current frame counter.
+     */
+    public int getFrameCounter() {
+        return frameCounter;
+    }
+
+    /**
+     * Gets the amount of heads that matched the cached one, and have not been parsed again.
+     *
+     * @return The amount of cache hits.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Gets the amount of times the head of the stream has changed.
+     *
+     * @return The amount of header changes.
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * Forgets the cached head, so that the next head is not reported as a change.
+     */
+    public void reset() {
+        head = null;
+    }
+
+    private static long readLong(byte[] buffer, int index) {
+        long value = 0;
+
+        for (int i = index; i < index + 8; i++)
+            value = value << 8 | buffer[i] & 0xFF;
+
+        return value;
+    }
+
+    /**
+     * Listener for changes of the head of a stream, such as a new sample rate or channel count.
+     */
+    public interface Listener {
+        /**
+         * Called by {@link #decode(VBANPacketView)} when the head of a stream has changed.
+         *
+         * @param previous The previous head.
+         * @param current  The new head.
+         */
+        void onHeaderChanged(VBANPacketHead.Decoded previous, VBANPacketHead.Decoded current);
+    }
+}
@@ -86,9 +86,11 @@ public class VBANPacket<T> implements ByteArray {
     }
 
     public static class Factory<T> implements de.comroid.util.model.Factory<VBANPacket<T>> {
+        private final Protocol<T> protocol;
         private final VBANPacketHead.Factory<T> headFactory;
 
-        private Factory(VBANPacketHead.Factory<T> headFactory) {
+        private Factory(Protocol<T> protocol, VBANPacketHead.Factory<T> headFactory) {
+            this.protocol = protocol;
             this.headFactory = headFactory;
         }
 
@@ -102,6 +104,20 @@ public class VBANPacket<T> implements ByteArray {
             return headFactory.counter();
         }
 
+        public VBANPacketHead.Factory<T> getHeadFactory() {
+            return headFactory;
+        }
+
+        /**
+         * Gets the protocol whose {@linkplain Protocol#encodeInto(Object, java.nio.ByteBuffer) codec} encodes the
+         * payloads of the created packets.
+         *
+         * @return The protocol.
+         */
+        public Protocol<T> getProtocol() {
+            return protocol;
+        }
+
         public static <T> Builder<T> builder(Protocol<T> protocol) {
             return new Builder<>(protocol);
         }
@@ -137,7 +153,7 @@ public class VBANPacket<T> implements ByteArray {
 
             @Override
             public Factory<T> build() {
-                return new Factory<>(headFactory);
+                return new Factory<>(protocol, headFactory);
             }
         }
     }
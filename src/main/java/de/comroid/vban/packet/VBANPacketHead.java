@@ -29,6 +29,16 @@ import static de.comroid.vban.packet.VBANPacketHead.Factory.builder;
 public class VBANPacketHead<T> implements ByteArray {
     public final static int SIZE = 28;
 
+    /**
+     * The first four bytes of every VBAN packet, {@code 'VBAN'}, as a big-endian {@code int}.
+     */
+    public final static int MAGIC = 'V' << 24 | 'B' << 16 | 'A' << 8 | 'N';
+
+    static final int PROTOCOL_MASK = 0b11100000;
+    static final int DATA_RATE_MASK = 0b00011111;
+    static final int DATA_TYPE_MASK = 0b00000111;
+    static final int CODEC_MASK = 0b11110000;
+
     private final UnfinishedByteArray unfinishedByteArray;
 
     private VBANPacketHead(byte[] bytes) {
@@ -79,6 +89,45 @@ public class VBANPacketHead<T> implements ByteArray {
         return new VBANPacketHead.Decoded(headBytes);
     }
 
+    /**
+     * Cheaply checks whether the given datagram can be a supported VBAN packet at all,
+     * by only looking at its length, its magic bytes and its protocol.
+     * Does not allocate and never throws, so it can run before any object is created for a datagram.
+     *
+     * @param bytes  The buffer containing the datagram.
+     * @param offset The index of the first byte of the datagram.
+     * @param length The length of the datagram.
+     *
+     * @return {@link DecodeStatus#OK} if the datagram passes the filter, otherwise the reason for rejecting it.
+     */
+    public static DecodeStatus preFilter(byte[] bytes, int offset, int length) {
+        if (length < SIZE || bytes.length - offset < SIZE)
+            return DecodeStatus.TRUNCATED;
+
+        int magic = (bytes[offset] & 0xFF) << 24
+                | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8
+                | (bytes[offset + 3] & 0xFF);
+        if (magic != MAGIC)
+            return DecodeStatus.BAD_MAGIC;
+
+        switch (bytes[offset + 4] & PROTOCOL_MASK) {
+            case 0x00: // AUDIO
+            case 0x20: // SERIAL
+            case 0x40: // TEXT
+                return DecodeStatus.OK;
+            default: // SERVICE and unassigned values
+                return DecodeStatus.UNSUPPORTED_PROTOCOL;
+        }
+    }
+
+    static int readFrameCounter(byte[] bytes, int offset) {
+        return (bytes[offset + 24] & 0xFF) << 24
+                | (bytes[offset + 25] & 0xFF) << 16
+                | (bytes[offset + 26] & 0xFF) << 8
+                | (bytes[offset + 27] & 0xFF);
+    }
+
     public static class Decoded extends VBANPacketHead {
         private final Protocol<?> protocol;
         private final DataRateValue<?> dataRateValue;
@@ -99,14 +148,14 @@ public class VBANPacketHead<T> implements ByteArray {
                 throw new InvalidPacketAttributeException("Invalid packet head: First bytes must be 'VBAN' [rcv='"
                         + new String(Util.subArray(bytes, 0, 4), StandardCharsets.US_ASCII) + "']");
 
-            int protocolInt = bytes[4] & 0b11111000;
+            int protocolInt = bytes[4] & PROTOCOL_MASK;
             protocol = VBAN.Protocol.byValue(protocolInt);
 
             // throw exception if protocol is SERVICE
             if (protocol.getValue() == 0x60)
                 throw new IllegalStateException("Service Subprotocol is not supported!");
 
-            int dataRateInt = bytes[4] & 0b00000111;
+            int dataRateInt = bytes[4] & DATA_RATE_MASK;
             switch (protocol.getValue()) {
                 case 0x00: // AUDIO
                     dataRateValue = SampleRate.byValue(dataRateInt);
@@ -124,19 +173,19 @@ public class VBANPacketHead<T> implements ByteArray {
             }
 
             // +1 to avoid indexed counting
-            samples = bytes[5] + 1;
-            channel = bytes[6] + 1;
+            samples = (bytes[5] & 0xFF) + 1;
+            channel = (bytes[6] & 0xFF) + 1;
 
-            int formatInt = bytes[7] & 0b00011111;
             switch (protocol.getValue()) {
                 case 0x00: // AUDIO
-                    format = AudioFormat.byValue(formatInt);
+                    format = AudioFormat.byValue(bytes[7] & DATA_TYPE_MASK);
                     break;
                 case 0x20: // SERIAL
-                    format = Format.byValue(formatInt);
+                    format = Format.byValue(bytes[7] & DATA_TYPE_MASK);
                     break;
                 case 0x40: // TEXT
-                    format = CommandFormat.byValue(formatInt);
+                    // the command format shares its bits with the codec selector
+                    format = CommandFormat.byValue(bytes[7] & CODEC_MASK);
                     break;
                 case 0x60: // SERVICE
                 default:
@@ -149,7 +198,7 @@ public class VBANPacketHead<T> implements ByteArray {
             // reserved bit
             int reservedBit = bytes[7] & 0b11101111;
 
-            int codecInt = bytes[7] & 0b11110000;
+            int codecInt = bytes[7] & CODEC_MASK;
             switch (codecInt) {
                 case Codec.PCM:
                 case Codec.VBCA:
@@ -166,9 +215,7 @@ public class VBANPacketHead<T> implements ByteArray {
             System.arraycopy(bytes, 8, nameBytes, 0, 16);
             streamName = Util.bytesToString(nameBytes, StandardCharsets.US_ASCII);
 
-            byte[] frameBytes = new byte[4];
-            System.arraycopy(bytes, 24, frameBytes, 0, 4);
-            frame = ByteBuffer.wrap(frameBytes).asIntBuffer().get();
+            frame = readFrameCounter(bytes, 0);
         }
 
         public Protocol<?> getProtocol() {
@@ -199,6 +246,10 @@ public class VBANPacketHead<T> implements ByteArray {
         public String getStreamName() {
             return streamName;
         }
+
+        public int getFrameCounter() {
+            return frame;
+        }
     }
 
     public static class Factory<T> implements de.comroid.util.model.Factory<VBANPacketHead<T>> {
@@ -209,6 +260,7 @@ public class VBANPacketHead<T> implements ByteArray {
         private final int format;
         private final int codec;
         private final String streamName;
+        private final byte[] template;
         private int counter;
 
         private Factory(Protocol<T> protocol,
@@ -225,6 +277,8 @@ public class VBANPacketHead<T> implements ByteArray {
             this.format = format.getValue();
             this.codec = codec;
             this.streamName = streamName;
+            this.template = new VBANPacketHead<>(this.protocol, this.sampleRate, samples, channel, this.format, codec,
+                    streamName, 0).getBytes();
 
             counter = 0;
         }
@@ -239,6 +293,38 @@ public class VBANPacketHead<T> implements ByteArray {
             return counter;
         }
 
+        /**
+         * Writes the next head into the given buffer and advances the frame counter, like {@link #create()},
+         * but without allocating.
+         *
+         * @param dst The buffer to write the {@link #SIZE} head bytes to, at its position.
+         *
+         * @throws java.nio.BufferOverflowException If the buffer has less than {@link #SIZE} bytes remaining.
+         */
+        public synchronized void writeNext(ByteBuffer dst) {
+            dst.put(template, 0, SIZE - 4);
+            dst.put((byte) (counter >> 24)).put((byte) (counter >> 16)).put((byte) (counter >> 8)).put((byte) counter);
+            counter++;
+        }
+
+        /**
+         * Gets the raw protocol value written into every head.
+         *
+         * @return The raw protocol value.
+         */
+        public int getProtocolValue() {
+            return protocol;
+        }
+
+        /**
+         * Gets the raw format value written into every head.
+         *
+         * @return The raw format value.
+         */
+        public int getFormatValue() {
+            return format;
+        }
+
         /**
          * Creates a new Builder with the default properties pre-set for the specified protocol.
          *
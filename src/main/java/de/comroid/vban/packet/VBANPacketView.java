@@ -0,0 +1,333 @@
+package de.comroid.vban.packet;
+
+import java.nio.charset.StandardCharsets;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBAN.AudioFormat;
+import de.comroid.vban.VBAN.BitsPerSecond;
+import de.comroid.vban.VBAN.CommandFormat;
+import de.comroid.vban.VBAN.Format;
+import de.comroid.vban.VBAN.Protocol;
+import de.comroid.vban.VBAN.SampleRate;
+import de.comroid.vban.exception.InvalidPacketAttributeException;
+import de.comroid.vban.model.DataRateValue;
+import de.comroid.vban.model.FormatValue;
+
+import org.intellij.lang.annotations.MagicConstant;
+
+import static de.comroid.vban.packet.VBANPacketHead.SIZE;
+
+/**
+ * A reusable, allocation-free view onto a VBAN datagram inside a {@code byte[]}.
+ * <p>
+ * {@link #wrap(byte[], int, int)} validates the datagram and extracts all head attributes into primitive fields.
+ * Instead of throwing, it returns a {@link DecodeStatus}; the getters are only meaningful after
+ * {@link DecodeStatus#OK} was returned.
+ * The view does not copy the datagram, so it is only valid for as long as the wrapped buffer is not reused.
+ */
+public class VBANPacketView {
+    private static final SampleRate[] SAMPLE_RATES = SampleRate.values();
+    private static final BitsPerSecond[] BITS_PER_SECOND = BitsPerSecond.values();
+    private static final AudioFormat[] AUDIO_FORMATS = AudioFormat.values();
+
+    private byte[] buffer;
+    private int offset;
+    private int length;
+    private DecodeStatus status = DecodeStatus.TRUNCATED;
+    private int protocol;
+    private int dataRate;
+    private int samples;
+    private int channels;
+    private int format;
+    private int codec;
+    private int frameCounter;
+
+    /**
+     * Wraps and validates the given datagram.
+     *
+     * @param buffer The buffer containing the datagram.
+     * @param offset The index of the first byte of the datagram.
+     * @param length The length of the datagram.
+     *
+     * @return The decode outcome. Also available through {@link #getStatus()}.
+     */
+    public DecodeStatus wrap(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+
+        return status = decode();
+    }
+
+    private DecodeStatus decode() {
+        DecodeStatus pre = VBANPacketHead.preFilter(buffer, offset, length);
+        if (pre != DecodeStatus.OK)
+            return pre;
+
+        int b4 = buffer[offset + 4] & 0xFF;
+        int b7 = buffer[offset + 7] & 0xFF;
+
+        protocol = b4 & VBANPacketHead.PROTOCOL_MASK;
+        dataRate = b4 & VBANPacketHead.DATA_RATE_MASK;
+        samples = (buffer[offset + 5] & 0xFF) + 1;
+        channels = (buffer[offset + 6] & 0xFF) + 1;
+        codec = b7 & VBANPacketHead.CODEC_MASK;
+
+        switch (protocol) {
+            case 0x00: // AUDIO
+                if (dataRate >= SAMPLE_RATES.length)
+                    return DecodeStatus.BAD_DATA_RATE;
+                format = b7 & VBANPacketHead.DATA_TYPE_MASK;
+                break;
+            case 0x20: // SERIAL
+                if (dataRate >= BITS_PER_SECOND.length)
+                    return DecodeStatus.BAD_DATA_RATE;
+                format = b7 & VBANPacketHead.DATA_TYPE_MASK;
+                if (format != Format.BYTE8.getValue())
+                    return DecodeStatus.BAD_FORMAT;
+                break;
+            case 0x40: // TEXT
+                if (dataRate >= BITS_PER_SECOND.length)
+                    return DecodeStatus.BAD_DATA_RATE;
+                format = b7 & VBANPacketHead.CODEC_MASK;
+                if (format > CommandFormat.WCHAR.getValue())
+                    return DecodeStatus.BAD_FORMAT;
+                break;
+            default:
+                return DecodeStatus.UNSUPPORTED_PROTOCOL;
+        }
+
+        if (!VBAN.Codec.isValid(codec))
+            return DecodeStatus.BAD_CODEC;
+
+        frameCounter = VBANPacketHead.readFrameCounter(buffer, offset);
+
+        return DecodeStatus.OK;
+    }
+
+    /**
+     * Gets the outcome of the last {@link #wrap(byte[], int, int)}.
+     *
+     * @return The last decode outcome.
+     */
+    public DecodeStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets the wrapped buffer.
+     *
+     * @return The wrapped buffer.
+     */
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the index of the first byte of the datagram within the {@linkplain #getBuffer() buffer}.
+     *
+     * @return The datagram offset.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * Gets the length of the whole datagram, including its head.
+     *
+     * @return The datagram length.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the index of the first payload byte within the {@linkplain #getBuffer() buffer}.
+     *
+     * @return The payload offset.
+     */
+    public int getPayloadOffset() {
+        return offset + SIZE;
+    }
+
+    /**
+     * Gets the amount of payload bytes following the head.
+     *
+     * @return The payload length.
+     */
+    public int getPayloadLength() {
+        return length - SIZE;
+    }
+
+    /**
+     * Gets the raw protocol value, one of {@code 0x00}, {@code 0x20} or {@code 0x40}.
+     *
+     * @return The raw protocol value.
+     */
+    public int getProtocolValue() {
+        return protocol;
+    }
+
+    /**
+     * Gets the protocol constant of this packet.
+     *
+     * @return The protocol.
+     */
+    public Protocol<?> getProtocol() {
+        return Protocol.byValue(protocol);
+    }
+
+    /**
+     * Gets the raw sample rate or bits-per-second index.
+     *
+     * @return The raw data rate index.
+     */
+    public int getDataRateIndex() {
+        return dataRate;
+    }
+
+    /**
+     * Gets the data rate of this packet.
+     *
+     * @return A {@link SampleRate} for audio packets, a {@link BitsPerSecond} otherwise.
+     */
+    public DataRateValue<?> getDataRateValue() {
+        return protocol == 0x00 ? SAMPLE_RATES[dataRate] : BITS_PER_SECOND[dataRate];
+    }
+
+    /**
+     * Gets the amount of samples per channel in this packet.
+     *
+     * @return The amount of samples, from {@code 1} to {@code 256}.
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Gets the amount of channels in this packet.
+     *
+     * @return The amount of channels, from {@code 1} to {@code 256}.
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Gets the raw format value.
+     *
+     * @return The raw format value.
+     */
+    public int getFormatValue() {
+        return format;
+    }
+
+    /**
+     * Gets the format of this packet.
+     *
+     * @return An {@link AudioFormat}, {@link Format} or {@link CommandFormat}, depending on the protocol.
+     */
+    public FormatValue<?> getFormat() {
+        switch (protocol) {
+            case 0x00:
+                return AUDIO_FORMATS[format];
+            case 0x20:
+                return Format.BYTE8;
+            default:
+                return CommandFormat.byValue(format);
+        }
+    }
+
+    /**
+     * Gets the codec selector.
+     *
+     * @return The codec selector.
+     */
+    @MagicConstant(valuesFromClass = VBAN.Codec.class)
+    public int getCodec() {
+        return codec;
+    }
+
+    /**
+     * Gets the frame counter.
+     *
+     * @return The frame counter.
+     */
+    public int getFrameCounter() {
+        return frameCounter;
+    }
+
+    /**
+     * Compares the stream name of this packet with the given name, without decoding it to a {@link String}.
+     *
+     * @param name The name to compare with.
+     *
+     * @return Whether the stream names are equal.
+     */
+    public boolean streamNameEquals(CharSequence name) {
+        int len = name.length();
+        if (len > 16) return false;
+
+        for (int i = 0; i < len; i++)
+            if ((buffer[offset + 8 + i] & 0xFF) != name.charAt(i))
+                return false;
+
+        return len == 16 || buffer[offset + 8 + len] == 0;
+    }
+
+    /**
+     * Decodes the stream name of this packet.
+     * Allocates a new {@link String}; prefer {@link #streamNameEquals(CharSequence)} on hot paths.
+     *
+     * @return The stream name.
+     */
+    public String getStreamName() {
+        int len = 0;
+        while (len < 16 && buffer[offset + 8 + len] != 0)
+            len++;
+
+        return new String(buffer, offset + 8, len, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Copies the wrapped datagram into the given buffer and wraps the copy with the given view, so that it outlives
+     * the buffer of this view. Does not allocate.
+     *
+     * @param buffer The buffer to copy to, at least {@link #getLength()} bytes long.
+     * @param target The view to wrap the copy with; may be this view.
+     *
+     * @return The target view.
+     * @throws IllegalArgumentException If the buffer is too small.
+     */
+    public VBANPacketView copyTo(byte[] buffer, VBANPacketView target) throws IllegalArgumentException {
+        if (buffer.length < length)
+            throw new IllegalArgumentException("Buffer too small [cap=" + buffer.length + ";len=" + length + "]");
+
+        System.arraycopy(this.buffer, offset, buffer, 0, length);
+        target.wrap(buffer, 0, length);
+
+        return target;
+    }
+
+    /**
+     * Copies the wrapped datagram into a new view of its own. Allocates.
+     *
+     * @return A new view of a copy of the datagram.
+     */
+    public VBANPacketView copy() {
+        return copyTo(new byte[length], new VBANPacketView());
+    }
+
+    /**
+     * Converts this view into a {@link VBANPacketHead.Decoded}. Allocates.
+     *
+     * @return A new decoded packet head.
+     * @throws InvalidPacketAttributeException If the head cannot be decoded.
+     */
+    public VBANPacketHead.Decoded toDecodedHead() throws InvalidPacketAttributeException {
+        byte[] head = new byte[SIZE];
+        System.arraycopy(buffer, offset, head, 0, SIZE);
+
+        return VBANPacketHead.decode(head);
+    }
+}
@@ -0,0 +1,453 @@
+package de.comroid.vban.receive;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import de.comroid.util.concurrent.Sequence;
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+
+/**
+ * A bounded single-producer/single-consumer ring of preallocated packet slots.
+ * <p>
+ * Every slot owns a {@code byte[]} of {@link VBANPacket#MAX_SIZE} bytes, so handing a datagram from
+ * the receiving thread to the consuming thread never allocates.
+ * The producer {@linkplain #claim() claims} the next free slot, receives into it and {@linkplain #publish(int, long)
+ * publishes} it; the consumer {@linkplain #poll(Handler) polls} published slots and releases them afterwards.
+ * <p>
+ * Exactly one thread may act as producer and exactly one thread may act as consumer.
+ */
+public class PacketRing {
+    private final byte[][] slots;
+    private final ByteBuffer[] buffers;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final InetAddress[] sources;
+    private final int[] ports;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final Sequence head = new Sequence(); // next slot to consume, written by the consumer
+    private final Sequence tail = new Sequence(); // next slot to publish, written by the producer
+    private long headCache; // producer-confined view of head
+    private int staged; // producer-confined amount of staged, unpublished slots
+    private long tailCache; // consumer-confined view of tail
+
+    /**
+     * Constructor.
+     *
+     * @param capacity     The minimum amount of slots. Is rounded up to the next power of two.
+     * @param waitStrategy The strategy to use when the producer finds the ring full,
+     *                     or the consumer finds the ring empty.
+     *
+     * @throws IllegalArgumentException If the capacity is smaller than {@code 1} or larger than {@code 2^30}.
+     */
+    public PacketRing(int capacity, WaitStrategy waitStrategy) throws IllegalArgumentException {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        this.slots = new byte[size][VBANPacket.MAX_SIZE];
+        this.buffers = new ByteBuffer[size];
+        for (int i = 0; i < size; i++)
+            buffers[i] = ByteBuffer.wrap(slots[i]);
+        this.lengths = new int[size];
+        this.timestamps = new long[size];
+        this.sources = new InetAddress[size];
+        this.ports = new int[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Gets the amount of slots in this ring.
+     *
+     * @return The amount of slots.
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Gets the amount of published slots that have not been consumed yet.
+     * The result is only a snapshot when called from neither the producer nor the consumer.
+     *
+     * @return The amount of pending slots.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Gets the wait strategy of this ring.
+     *
+     * @return The wait strategy.
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    // producer
+
+    /**
+     * Producer only.
+     * Gets the buffer of the next free slot, without waiting.
+     * The slot is not visible to the consumer until {@link #publish(int, long)} is called.
+     *
+     * @return The buffer of the next free slot, or {@code null} if the ring is full.
+     */
+    public byte[] tryClaim() {
+        int index = claimIndex();
+
+        return index < 0 ? null : slots[index];
+    }
+
+    /**
+     * Producer only.
+     * Like {@link #tryClaim()}, but returns the slot as a cleared {@link ByteBuffer} to receive into from a
+     * {@link java.nio.channels.DatagramChannel}. The buffer is owned by the slot, so this does not allocate.
+     *
+     * @return The buffer of the next free slot, or {@code null} if the ring is full.
+     */
+    public ByteBuffer tryClaimBuffer() {
+        int index = claimIndex();
+
+        if (index < 0)
+            return null;
+
+        ByteBuffer buffer = buffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Producer only.
+     * Gets the buffer of the next free slot, waiting with this ring's {@linkplain WaitStrategy wait strategy}
+     * while the ring is full.
+     *
+     * @return The buffer of the next free slot.
+     */
+    public byte[] claim() {
+        byte[] slot;
+        int counter = 0;
+
+        while ((slot = tryClaim()) == null)
+            counter = waitStrategy.idle(counter);
+
+        return slot;
+    }
+
+    /**
+     * Producer only.
+     * Publishes the slot that has been claimed last to the consumer.
+     *
+     * @param length       The amount of valid bytes in the slot.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram was received.
+     */
+    public void publish(int length, long receiveNanos) {
+        publish(length, receiveNanos, null, -1);
+    }
+
+    /**
+     * Producer only.
+     * Publishes the slot that has been claimed last to the consumer, together with the source of its datagram.
+     *
+     * @param length       The amount of valid bytes in the slot.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram was received.
+     * @param source       The source address of the datagram, or {@code null} if unknown.
+     * @param port         The source port of the datagram, or {@code -1} if unknown.
+     */
+    public void publish(int length, long receiveNanos, InetAddress source, int port) {
+        stage(length, receiveNanos, source, port);
+        commit();
+    }
+
+    /**
+     * Producer only.
+     * Completes the slot that has been claimed last, but keeps it invisible to the consumer until {@link #commit()},
+     * so that a batch of slots is published at once. The next claim returns the slot after it.
+     *
+     * @param length       The amount of valid bytes in the slot.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram was received.
+     */
+    public void stage(int length, long receiveNanos) {
+        stage(length, receiveNanos, null, -1);
+    }
+
+    /**
+     * Producer only.
+     * Like {@link #stage(int, long)}, together with the source of the datagram.
+     *
+     * @param length       The amount of valid bytes in the slot.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram was received.
+     * @param source       The source address of the datagram, or {@code null} if unknown.
+     * @param port         The source port of the datagram, or {@code -1} if unknown.
+     */
+    public void stage(int length, long receiveNanos, InetAddress source, int port) {
+        int index = (int) (tail.get() + staged) & mask;
+
+        lengths[index] = length;
+        timestamps[index] = receiveNanos;
+        sources[index] = source;
+        ports[index] = port;
+        staged++;
+    }
+
+    /**
+     * Producer only.
+     * Publishes all {@linkplain #stage(int, long) staged} slots to the consumer.
+     *
+     * @return The amount of published slots.
+     */
+    public int commit() {
+        int n = staged;
+
+        if (n > 0) {
+            // ordered store: slot contents become visible before the new tail does
+            tail.lazySet(tail.get() + n);
+            staged = 0;
+        }
+
+        return n;
+    }
+
+    private int claimIndex() {
+        long t = tail.get() + staged;
+
+        if (t - headCache >= slots.length) {
+            headCache = head.get();
+
+            if (t - headCache >= slots.length)
+                return -1;
+        }
+
+        return (int) t & mask;
+    }
+
+    // consumer
+
+    /**
+     * Consumer only.
+     * Passes the next published slot to the given handler and releases it afterwards, without waiting.
+     * The buffer passed to the handler must not be used after the handler returns.
+     *
+     * @param handler The handler to pass the slot to.
+     *
+     * @return Whether a slot was available.
+     */
+    public boolean poll(Handler handler) {
+        return drain(handler, 1) == 1;
+    }
+
+    /**
+     * Consumer only.
+     * Passes up to {@code limit} published slots to the given handler, then releases all of them at once.
+     *
+     * @param handler The handler to pass the slots to.
+     * @param limit   The maximum amount of slots to consume.
+     *
+     * @return The amount of slots that have been consumed.
+     */
+    public int drain(Handler handler, int limit) {
+        int n = acquire(limit);
+
+        for (int i = 0; i < n; i++)
+            handler.onPacket(getSlot(i), getLength(i), getReceiveNanos(i));
+
+        release(n);
+
+        return n;
+    }
+
+    /**
+     * Consumer only.
+     * Gets the amount of published slots, up to {@code limit}, that can be read with {@link #getSlot(int)} without
+     * consuming them. Together with {@link #release(int)}, this lets a consumer look at a whole batch at once.
+     *
+     * @param limit The maximum amount of slots.
+     *
+     * @return The amount of readable slots.
+     */
+    public int acquire(int limit) {
+        long h = head.get();
+        long available = tailCache - h;
+
+        if (available <= 0) {
+            tailCache = tail.get();
+            available = tailCache - h;
+
+            if (available <= 0)
+                return 0;
+        }
+
+        return (int) Math.min(available, limit);
+    }
+
+    /**
+     * Consumer only.
+     * Gets the buffer of an {@linkplain #acquire(int) acquired} slot. Valid until the slot is released.
+     *
+     * @param i The index of the slot within the acquired ones.
+     *
+     * @return The slot buffer, containing the whole datagram including its head.
+     */
+    public byte[] getSlot(int i) {
+        return slots[(int) (head.get() + i) & mask];
+    }
+
+    /**
+     * Consumer only.
+     * Gets the amount of valid bytes of an {@linkplain #acquire(int) acquired} slot.
+     *
+     * @param i The index of the slot within the acquired ones.
+     *
+     * @return The amount of valid bytes.
+     */
+    public int getLength(int i) {
+        return lengths[(int) (head.get() + i) & mask];
+    }
+
+    /**
+     * Consumer only.
+     * Gets the receive timestamp of an {@linkplain #acquire(int) acquired} slot.
+     *
+     * @param i The index of the slot within the acquired ones.
+     *
+     * @return The {@link System#nanoTime()} at which the datagram was received.
+     */
+    public long getReceiveNanos(int i) {
+        return timestamps[(int) (head.get() + i) & mask];
+    }
+
+    /**
+     * Consumer only.
+     * Gets the source address of an {@linkplain #acquire(int) acquired} slot.
+     *
+     * @param i The index of the slot within the acquired ones.
+     *
+     * @return The source address, or {@code null} if the producer did not publish it.
+     */
+    public InetAddress getSourceAddress(int i) {
+        return sources[(int) (head.get() + i) & mask];
+    }
+
+    /**
+     * Consumer only.
+     * Gets the source port of an {@linkplain #acquire(int) acquired} slot.
+     *
+     * @param i The index of the slot within the acquired ones.
+     *
+     * @return The source port, or {@code -1} if the producer did not publish it.
+     */
+    public int getSourcePort(int i) {
+        return ports[(int) (head.get() + i) & mask];
+    }
+
+    /**
+     * Consumer only.
+     * Releases the given amount of {@linkplain #acquire(int) acquired} slots to the producer.
+     *
+     * @param n The amount of slots to release.
+     */
+    public void release(int n) {
+        head.lazySet(head.get() + n);
+    }
+
+    /**
+     * Consumer only.
+     * Gets the receive timestamp of the next published slot, without consuming it.
+     * Used to merge several rings in arrival order.
+     *
+     * @return The {@link System#nanoTime()} at which the next datagram was received,
+     * or {@link Long#MAX_VALUE} if the ring is empty.
+     */
+    public long peekReceiveNanos() {
+        long h = head.get();
+
+        if (tailCache - h <= 0) {
+            tailCache = tail.get();
+
+            if (tailCache - h <= 0)
+                return Long.MAX_VALUE;
+        }
+
+        return timestamps[(int) h & mask];
+    }
+
+    /**
+     * Consumer only.
+     * Like {@link #poll(Handler)}, but waits with this ring's {@linkplain WaitStrategy wait strategy}
+     * until a slot is available.
+     *
+     * @param handler The handler to pass the slot to.
+     */
+    public void take(Handler handler) {
+        int counter = 0;
+
+        while (!poll(handler))
+            counter = waitStrategy.idle(counter);
+    }
+
+    /**
+     * Consumer only.
+     * Copies the payload of the next published packet into the given {@link AudioFrame}, without waiting.
+     *
+     * @param frame A reusable frame, see {@link AudioFrame#allocate(int)}.
+     *
+     * @return Whether a packet was available.
+     */
+    public boolean poll(AudioFrame frame) {
+        long h = head.get();
+
+        if (tailCache - h <= 0) {
+            tailCache = tail.get();
+
+            if (tailCache - h <= 0)
+                return false;
+        }
+
+        int index = (int) h & mask;
+        int payload = Math.max(lengths[index] - VBANPacketHead.SIZE, 0);
+        frame.fill(slots[index], VBANPacketHead.SIZE, payload);
+
+        head.lazySet(h + 1);
+
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     * Like {@link #poll(AudioFrame)}, but waits with this ring's {@linkplain WaitStrategy wait strategy}
+     * until a packet is available.
+     *
+     * @param frame A reusable frame, see {@link AudioFrame#allocate(int)}.
+     *
+     * @return The given frame.
+     */
+    public AudioFrame take(AudioFrame frame) {
+        int counter = 0;
+
+        while (!poll(frame))
+            counter = waitStrategy.idle(counter);
+
+        return frame;
+    }
+
+    /**
+     * Callback for consuming slots.
+     */
+    public interface Handler {
+        /**
+         * Handles one published slot.
+         * The buffer is only valid for the duration of this call.
+         *
+         * @param buffer       The slot buffer, containing the whole datagram including its head.
+         * @param length       The amount of valid bytes in the buffer.
+         * @param receiveNanos The {@link System#nanoTime()} at which the datagram was received.
+         */
+        void onPacket(byte[] buffer, int length, long receiveNanos);
+    }
+}
@@ -0,0 +1,119 @@
+package de.comroid.vban.receive;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.packet.DecodeStatistics;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacketHead;
+
+/**
+ * Receive loop that pumps datagrams from a {@link VBANInputStream} straight into the slots of a {@link PacketRing}.
+ * The loop is the single producer of the ring; consumers read from the ring on their own thread.
+ * <p>
+ * Datagrams that fail the {@linkplain VBANPacketHead#preFilter(byte[], int, int) pre-filter} are not published;
+ * their slot is reused for the next datagram and the rejection is counted in {@link #getStatistics()}.
+ */
+public class RingReceiver implements Runnable, Closeable {
+    private final VBANInputStream<?> stream;
+    private final PacketRing ring;
+    private final DecodeStatistics statistics = new DecodeStatistics();
+    private volatile boolean running = true;
+    private volatile IOException failure;
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param stream The stream to receive from.
+     * @param ring   The ring to publish received datagrams to.
+     */
+    public RingReceiver(VBANInputStream<?> stream, PacketRing ring) {
+        this.stream = stream;
+        this.ring = ring;
+    }
+
+    /**
+     * Starts the receive loop on a new daemon thread.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the receiver has already been started.
+     */
+    public RingReceiver start() throws IllegalStateException {
+        return start("VBAN-RingReceiver");
+    }
+
+    /**
+     * Starts the receive loop on a new daemon thread with the given name.
+     *
+     * @param threadName The name of the receiving thread.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the receiver has already been started.
+     */
+    public synchronized RingReceiver start(String threadName) throws IllegalStateException {
+        if (thread != null)
+            throw new IllegalStateException("Receiver already started");
+
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+
+        return this;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                byte[] slot = ring.claim();
+                int length = stream.receive(slot);
+
+                if (statistics.record(VBANPacketHead.preFilter(slot, 0, length)) == DecodeStatus.OK)
+                    ring.publish(length, stream.getLastReceiveNanos(), stream.getLastSourceAddress(),
+                            stream.getLastSourcePort());
+            }
+        } catch (IOException e) {
+            if (running) failure = e;
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Gets the counters of pre-filter outcomes.
+     *
+     * @return The pre-filter statistics of this receiver.
+     */
+    public DecodeStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Whether the receive loop is still running.
+     *
+     * @return Whether the loop is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the exception that has terminated the receive loop, if any.
+     *
+     * @return The terminating exception, or {@code null}.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Stops the receive loop and closes the underlying stream to unblock a pending receive.
+     */
+    @Override
+    public void close() {
+        running = false;
+        stream.close();
+    }
+}
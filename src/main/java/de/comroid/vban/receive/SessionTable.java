@@ -0,0 +1,683 @@
+package de.comroid.vban.receive;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.util.concurrent.HierarchicalTimingWheel;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.exception.InvalidPacketAttributeException;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.packet.FrameCounters;
+import de.comroid.vban.packet.HeaderCache;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tracks the streams that are being received, per sender.
+ * <p>
+ * VBAN identifies a stream by its name only, so two hosts that both send {@code "Stream1"} can only be told apart
+ * by their source address. A {@link Session} is keyed by source address, source port, protocol and stream name,
+ * and holds the counters, the last header and a decoder state of its stream. Heads are decoded through a
+ * {@link HeaderCache}, so that they are only parsed again when the format of the stream changes; such changes are
+ * reported to the {@linkplain #setFormatListener(FormatListener) format listener}.
+ * <p>
+ * Sessions are kept in open-addressing hash tables of 64-bit key hashes, split into lock stripes, so that receive
+ * threads rarely contend. Recording a datagram of a known session does not allocate. Sessions that have been idle
+ * for the idle timeout are evicted by {@link #evictIdle(long)}, which must be called periodically; a
+ * {@link VBANReceiver} does so on its receive thread. Every session has one timer on a
+ * {@link HierarchicalTimingWheel} that is only moved when it expires, so that recording a datagram merely updates a
+ * timestamp, and eviction never scans the table.
+ * <p>
+ * A table can be fed by {@link VBANInputStream#setSessionTable(SessionTable)},
+ * {@link VBANReceiver#setSessionTable(SessionTable)}, or through {@link #record(InetAddress, int, VBANPacketView, long)}.
+ *
+ * @param <S> The type of the decoder state of the sessions.
+ */
+public class SessionTable<S> {
+    /**
+     * The default amount of lock stripes.
+     */
+    public static final int DEFAULT_STRIPES = 16;
+
+    private static final int WHEEL_SLOTS = 64;
+    private static final int WHEEL_LEVELS = 3;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Stripe<S>[] stripes;
+    private final int stripeMask;
+    private final long idleNanos;
+    private final Listener<S> listener;
+    private volatile FormatListener<S> formatListener;
+    // sessions that have not been filed into the wheel yet
+    private final ConcurrentLinkedQueue<Session<S>> started = new ConcurrentLinkedQueue<>();
+    private final HierarchicalTimingWheel<Session<S>> wheel;
+    private final HierarchicalTimingWheel.Expiry<Session<S>> expiry;
+    // guarded by the wheel
+    private final List<Session<S>> ended = new ArrayList<>();
+    private long evictNanos;
+    private volatile long evicted = 0;
+
+    /**
+     * Constructor. Uses {@link #DEFAULT_STRIPES} lock stripes.
+     *
+     * @param idleTimeout The time without datagrams after which a session is evicted.
+     * @param unit        The unit of {@code idleTimeout}.
+     * @param listener    The listener for started and ended sessions, or {@code null}.
+     *
+     * @throws IllegalArgumentException If the idle timeout is smaller than {@code 1}.
+     */
+    public SessionTable(long idleTimeout, TimeUnit unit, @Nullable Listener<S> listener)
+            throws IllegalArgumentException {
+        this(idleTimeout, unit, DEFAULT_STRIPES, listener);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param idleTimeout The time without datagrams after which a session is evicted.
+     * @param unit        The unit of {@code idleTimeout}.
+     * @param stripes     The amount of lock stripes. Is rounded up to the next power of two.
+     * @param listener    The listener for started and ended sessions, or {@code null}.
+     *
+     * @throws IllegalArgumentException If the idle timeout is smaller than {@code 1},
+     *                                  or the amount of stripes is out of range.
+     */
+    public SessionTable(long idleTimeout, TimeUnit unit, int stripes, @Nullable Listener<S> listener)
+            throws IllegalArgumentException {
+        if (idleTimeout < 1)
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        if (stripes < 1 || stripes > 1 << 16)
+            throw new IllegalArgumentException("Stripes out of range: " + stripes);
+
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) size <<= 1;
+
+        @SuppressWarnings("unchecked")
+        Stripe<S>[] created = (Stripe<S>[]) new Stripe<?>[size];
+        for (int i = 0; i < size; i++)
+            created[i] = new Stripe<>();
+        this.stripes = created;
+        this.stripeMask = size - 1;
+        this.idleNanos = unit.toNanos(idleTimeout);
+        this.listener = listener;
+        // sessions are evicted at most 1/64th of the idle timeout late
+        this.wheel = new HierarchicalTimingWheel<>(Math.max(idleNanos / WHEEL_SLOTS, MIN_TICK_NANOS),
+                TimeUnit.NANOSECONDS, WHEEL_SLOTS, WHEEL_LEVELS, System.nanoTime());
+        this.expiry = new HierarchicalTimingWheel.Expiry<Session<S>>() {
+            @Override
+            public void onExpired(HierarchicalTimingWheel.Timer<Session<S>> timer) {
+                expire(timer.getValue());
+            }
+        };
+    }
+
+    /**
+     * Records a valid datagram, and starts a new session for it if necessary.
+     *
+     * @param address      The source address of the datagram.
+     * @param port         The source port of the datagram.
+     * @param view         A view of the datagram.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram has been received.
+     *
+     * @return The session of the datagram.
+     */
+    public Session<S> record(InetAddress address, int port, VBANPacketView view, long receiveNanos) {
+        long key = key(address, port, view);
+        Stripe<S> stripe = stripes[(int) (key >>> 48) & stripeMask];
+        Session<S> session;
+        boolean created = false;
+
+        synchronized (stripe) {
+            session = stripe.find(key, address, port, view);
+
+            if (session == null) {
+                session = new Session<>(this, key, address, port, view, receiveNanos);
+                if (listener != null)
+                    session.state = listener.onSessionStarted(session);
+                stripe.insert(key, session);
+                created = true;
+            }
+
+            session.record(view, receiveNanos);
+        }
+
+        if (created)
+            started.add(session);
+
+        return session;
+    }
+
+    /**
+     * Sets the listener for format changes of the sessions.
+     *
+     * @param formatListener The listener, or {@code null}.
+     *
+     * @return This instance.
+     */
+    public SessionTable<S> setFormatListener(@Nullable FormatListener<S> formatListener) {
+        this.formatListener = formatListener;
+        return this;
+    }
+
+    /**
+     * Evicts every session that has been idle for the idle timeout, and notifies the listener about them.
+     * Must be called periodically, about once per {@linkplain #getTickNanos() tick}.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}.
+     *
+     * @return The amount of evicted sessions.
+     */
+    public int evictIdle(long nowNanos) {
+        synchronized (wheel) {
+            Session<S> session;
+            while ((session = started.poll()) != null)
+                wheel.schedule(session.timer, session.lastSeenNanos + idleNanos);
+
+            evictNanos = nowNanos;
+            wheel.advance(nowNanos, expiry);
+
+            int count = ended.size();
+            try {
+                if (listener != null)
+                    for (Session<S> each : ended)
+                        listener.onSessionEnded(each);
+            } finally {
+                ended.clear();
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Takes a list of all sessions. The sessions are live, not snapshots.
+     *
+     * @return A new list of all sessions.
+     */
+    public List<Session<S>> getSessions() {
+        List<Session<S>> sessions = new ArrayList<>(size());
+
+        for (Stripe<S> stripe : stripes)
+            synchronized (stripe) {
+                for (Session<S> session : stripe.sessions)
+                    if (session != null)
+                        sessions.add(session);
+            }
+
+        return sessions;
+    }
+
+    /**
+     * Gets the amount of sessions.
+     *
+     * @return The amount of sessions.
+     */
+    public int size() {
+        int size = 0;
+
+        for (Stripe<S> stripe : stripes)
+            size += stripe.size;
+
+        return size;
+    }
+
+    /**
+     * Gets the amount of sessions that have been evicted so far.
+     *
+     * @return The amount of evicted sessions.
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * Gets the time without datagrams after which a session is evicted.
+     *
+     * @return The idle timeout in nanoseconds.
+     */
+    public long getIdleTimeoutNanos() {
+        return idleNanos;
+    }
+
+    /**
+     * Gets the precision of eviction. Sessions are evicted at most one tick after their idle timeout.
+     *
+     * @return The tick duration in nanoseconds.
+     */
+    public long getTickNanos() {
+        return wheel.getTickNanos();
+    }
+
+    // called by the wheel, under its lock
+    private void expire(Session<S> session) {
+        long deadline = session.lastSeenNanos + idleNanos;
+
+        // received datagrams since it was filed; move it instead of touching the wheel on every datagram
+        if (deadline - evictNanos > 0) {
+            wheel.schedule(session.timer, deadline);
+            return;
+        }
+
+        Stripe<S> stripe = stripes[(int) (session.key >>> 48) & stripeMask];
+        synchronized (stripe) {
+            deadline = session.lastSeenNanos + idleNanos;
+            if (deadline - evictNanos > 0) {
+                wheel.schedule(session.timer, deadline);
+                return;
+            }
+
+            stripe.remove(session);
+            session.evicted = true;
+        }
+
+        evicted++;
+        ended.add(session);
+    }
+
+    // FNV-1a over the stream name, address, port and protocol, avalanched so that both halves are usable
+    private static long key(InetAddress address, int port, VBANPacketView view) {
+        long hash = FrameCounters.hashStreamName(view.getBuffer(), view.getOffset());
+        hash = FrameCounters.hash(hash, address.hashCode());
+        hash = FrameCounters.hash(hash, port << 8 | view.getProtocolValue());
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return FrameCounters.toKey(hash);
+    }
+
+    /**
+     * Listener for started and ended sessions.
+     *
+     * @param <S> The type of the decoder state of the sessions.
+     */
+    public interface Listener<S> {
+        /**
+         * Called when the first datagram of a session is recorded, before it is visible to other threads.
+         * Runs under a lock of the table, and should therefore be short.
+         *
+         * @param session The new session, without any recorded datagram.
+         *
+         * @return The decoder state of the session, or {@code null}.
+         */
+        S onSessionStarted(Session<S> session);
+
+        /**
+         * Called when a session has been evicted, by {@link #evictIdle(long)}.
+         *
+         * @param session The evicted session.
+         */
+        void onSessionEnded(Session<S> session);
+    }
+
+    /**
+     * Listener for format changes of sessions, such as a new sample rate or channel count.
+     *
+     * @param <S> The type of the decoder state of the sessions.
+     */
+    public interface FormatListener<S> {
+        /**
+         * Called when the head of a session has changed, before the datagram with the new head is recorded.
+         * Runs under a lock of the table, and should therefore be short.
+         *
+         * @param session  The session.
+         * @param previous The previous head.
+         * @param current  The new head.
+         */
+        void onFormatChanged(Session<S> session, VBANPacketHead.Decoded previous, VBANPacketHead.Decoded current);
+    }
+
+    /**
+     * The state of one stream of one sender.
+     * Counters are written by the recording threads, and may be read from any thread.
+     *
+     * @param <S> The type of the decoder state.
+     */
+    public static final class Session<S> {
+        private final long key;
+        private final InetAddress address;
+        private final int port;
+        private final VBAN.Protocol<?> protocol;
+        private final byte[] name = new byte[16];
+        private final byte[] header = new byte[VBANPacketHead.SIZE];
+        private final long startNanos;
+        private final HierarchicalTimingWheel.Timer<Session<S>> timer;
+        private final HeaderCache headers;
+        private volatile VBANPacketHead.Decoded head;
+        private volatile S state;
+        private volatile long lastSeenNanos;
+        private volatile long packets = 0;
+        private volatile long bytes = 0;
+        private volatile long lost = 0;
+        private volatile long outOfOrder = 0;
+        private volatile long formatChanges = 0;
+        private volatile int lastFrameCounter;
+        private volatile boolean evicted = false;
+
+        private Session(final SessionTable<S> table, long key, InetAddress address, int port, VBANPacketView view,
+                        long startNanos) {
+            this.key = key;
+            this.address = address;
+            this.port = port;
+            this.protocol = view.getProtocol();
+            System.arraycopy(view.getBuffer(), view.getOffset() + 8, name, 0, 16);
+            this.startNanos = startNanos;
+            this.lastSeenNanos = startNanos;
+            this.timer = new HierarchicalTimingWheel.Timer<>(this);
+            this.headers = new HeaderCache(new HeaderCache.Listener() {
+                @Override
+                public void onHeaderChanged(VBANPacketHead.Decoded previous, VBANPacketHead.Decoded current) {
+                    FormatListener<S> listener = table.formatListener;
+                    if (listener != null)
+                        listener.onFormatChanged(Session.this, previous, current);
+                }
+            });
+        }
+
+        /**
+         * Gets the source address of this session.
+         *
+         * @return The source address.
+         */
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Gets the source port of this session.
+         *
+         * @return The source port.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Gets the protocol of this session.
+         *
+         * @return The protocol.
+         */
+        public VBAN.Protocol<?> getProtocol() {
+            return protocol;
+        }
+
+        /**
+         * Decodes the stream name of this session.
+         *
+         * @return The stream name.
+         */
+        public String getStreamName() {
+            int len = 0;
+            while (len < 16 && name[len] != 0)
+                len++;
+
+            return new String(name, 0, len, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Gets the decoder state of this session.
+         *
+         * @return The decoder state, or {@code null}.
+         */
+        public S getState() {
+            return state;
+        }
+
+        /**
+         * Sets the decoder state of this session.
+         *
+         * @param state The decoder state.
+         */
+        public void setState(S state) {
+            this.state = state;
+        }
+
+        /**
+         * Gets the decoded head of this session. It is only decoded again when the format changes, so its frame
+         * counter is the one of the first datagram with that format; use {@link #getLastFrameCounter()} instead.
+         *
+         * @return The decoded head, or {@code null} if it could not be decoded.
+         */
+        public VBANPacketHead.Decoded getHead() {
+            return head;
+        }
+
+        /**
+         * Gets the amount of times the format of this session has changed.
+         *
+         * @return The amount of format changes.
+         */
+        public long getFormatChanges() {
+            return formatChanges;
+        }
+
+        /**
+         * Copies the header of the last recorded datagram.
+         *
+         * @param buffer The buffer to copy to, at least {@link VBANPacketHead#SIZE} bytes long.
+         * @param offset The index to copy to.
+         */
+        public synchronized void copyLastHeader(byte[] buffer, int offset) {
+            System.arraycopy(header, 0, buffer, offset, VBANPacketHead.SIZE);
+        }
+
+        /**
+         * Gets the {@link System#nanoTime()} at which the first datagram of this session has been received.
+         *
+         * @return The start timestamp.
+         */
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        /**
+         * Gets the {@link System#nanoTime()} at which the last datagram of this session has been received.
+         *
+         * @return The timestamp of the last datagram.
+         */
+        public long getLastSeenNanos() {
+            return lastSeenNanos;
+        }
+
+        /**
+         * Gets the amount of recorded datagrams.
+         *
+         * @return The amount of datagrams.
+         */
+        public long getPackets() {
+            return packets;
+        }
+
+        /**
+         * Gets the amount of recorded bytes, headers included.
+         *
+         * @return The amount of bytes.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Gets the amount of frames that have been skipped by the frame counter.
+         *
+         * @return The amount of lost frames.
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Gets the amount of datagrams that arrived behind a newer one.
+         *
+         * @return The amount of out-of-order datagrams.
+         */
+        public long getOutOfOrder() {
+            return outOfOrder;
+        }
+
+        /**
+         * Gets the newest frame counter of this session.
+         *
+         * @return The newest frame counter.
+         */
+        public int getLastFrameCounter() {
+            return lastFrameCounter;
+        }
+
+        /**
+         * Whether this session has been evicted. A sender that resumes after eviction starts a new session.
+         *
+         * @return Whether this session has been evicted.
+         */
+        public boolean isEvicted() {
+            return evicted;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Session{%s:%d, %s, '%s'}", address.getHostAddress(), port, protocol,
+                    getStreamName());
+        }
+
+        // called under the lock of the stripe
+        private void record(VBANPacketView view, long receiveNanos) {
+            // parity keeps the session alive, but carries neither its head nor a frame counter of its own
+            if (ParityDecoder.isParity(view)) {
+                bytes += view.getLength();
+                lastSeenNanos = receiveNanos;
+                return;
+            }
+
+            int counter = view.getFrameCounter();
+
+            try {
+                head = headers.decode(view);
+                formatChanges = headers.getChanges();
+            } catch (InvalidPacketAttributeException e) {
+                // keep the last valid head
+            }
+
+            if (packets > 0) {
+                int frames = FrameCounters.delta(lastFrameCounter, counter);
+
+                if (FrameCounters.isLate(frames)) {
+                    outOfOrder++;
+                    counter = lastFrameCounter;
+                } else if (FrameCounters.isAhead(frames)) {
+                    lost += frames - 1;
+                }
+                // otherwise a restarted sender
+            }
+
+            synchronized (this) {
+                System.arraycopy(view.getBuffer(), view.getOffset(), header, 0, VBANPacketHead.SIZE);
+            }
+            lastFrameCounter = counter;
+            bytes += view.getLength();
+            packets++;
+            lastSeenNanos = receiveNanos;
+        }
+
+        private boolean matches(InetAddress address, int port, VBANPacketView view) {
+            if (this.port != port || protocol.getValue() != view.getProtocolValue() || !this.address.equals(address))
+                return false;
+
+            byte[] buffer = view.getBuffer();
+            for (int i = 0, j = view.getOffset() + 8; i < 16; i++, j++)
+                if (name[i] != buffer[j])
+                    return false;
+
+            return true;
+        }
+    }
+
+    // linear probing without tombstones, so that churn of transient senders does not degrade lookups
+    private static final class Stripe<S> {
+        private long[] keys = new long[16];
+        private Session<S>[] sessions = newArray(16);
+        private volatile int size = 0;
+
+        Session<S> find(long key, InetAddress address, int port, VBANPacketView view) {
+            int mask = keys.length - 1;
+
+            for (int i = (int) key & mask; keys[i] != 0; i = (i + 1) & mask)
+                if (keys[i] == key && sessions[i].matches(address, port, view))
+                    return sessions[i];
+
+            return null;
+        }
+
+        void insert(long key, Session<S> session) {
+            if ((size + 1) * 2 > keys.length)
+                grow();
+
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (keys[i] != 0)
+                i = (i + 1) & mask;
+
+            keys[i] = key;
+            sessions[i] = session;
+            size++;
+        }
+
+        void remove(Session<S> session) {
+            int mask = keys.length - 1;
+            int i = (int) session.key & mask;
+            while (sessions[i] != session) {
+                if (keys[i] == 0)
+                    return;
+                i = (i + 1) & mask;
+            }
+
+            // shift back every following entry of the cluster that may not sit between its home slot and the hole
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int home = (int) keys[j] & mask;
+
+                if (i <= j ? i < home && home <= j : i < home || home <= j)
+                    continue;
+
+                keys[i] = keys[j];
+                sessions[i] = sessions[j];
+                i = j;
+            }
+
+            keys[i] = 0;
+            sessions[i] = null;
+            size--;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Session<S>[] oldSessions = sessions;
+            keys = new long[oldKeys.length * 2];
+            sessions = newArray(oldKeys.length * 2);
+
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == 0)
+                    continue;
+
+                int i = (int) oldKeys[j] & mask;
+                while (keys[i] != 0)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                sessions[i] = oldSessions[j];
+            }
+        }
+
+        private static <S> Session<S>[] newArray(int length) {
+            @SuppressWarnings("unchecked")
+            Session<S>[] sessions = (Session<S>[]) new Session<?>[length];
+            return sessions;
+        }
+    }
+}
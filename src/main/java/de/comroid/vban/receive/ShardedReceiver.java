@@ -0,0 +1,325 @@
+package de.comroid.vban.receive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.Util;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.packet.DecodeStatistics;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.FrameCounters;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Receives one port on several threads: opens one channel per shard, all bound to the same port with
+ * {@code SO_REUSEPORT}, and runs a {@link RingReceiver} per shard into its own {@link PacketRing}.
+ * <p>
+ * The kernel distributes datagrams over the shards by hashing their source address, so all datagrams of one sender
+ * land on the same shard. The consumer {@linkplain #drain(PacketRing.Handler, int) drains} all rings in order of
+ * arrival, and drops datagrams whose frame counter is older than one already delivered for the same stream name
+ * from the same source address and port, which may happen when senders are re-hashed to another shard. Parity datagrams of a
+ * {@link de.comroid.vban.fec.ParityEncoder} carry the frame counter of the datagrams they protect, so they are
+ * passed on without being ordered; {@link ParityDecoder#isParity(VBANPacketView)} tells them apart.
+ * <p>
+ * {@code SO_REUSEPORT} is only available on JDKs that define {@code StandardSocketOptions.SO_REUSEPORT} and on
+ * platforms that implement it; see {@link #isReusePortSupported()}. Without it, only one shard can be opened.
+ */
+public class ShardedReceiver implements Closeable {
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookupReusePort();
+
+    private final VBAN.Protocol<?> protocol;
+    private final VBANInputStream<?>[] streams;
+    private final PacketRing[] rings;
+    private final RingReceiver[] receivers;
+    private final int port;
+    private final Merger merger = new Merger();
+
+    /**
+     * Constructor. Opens and binds all shards; call {@link #start()} to start receiving.
+     *
+     * @param protocol     The protocol of the packets to receive. Packets of other protocols are dropped.
+     * @param address      The address to bind to.
+     * @param port         The port to bind to, or {@code 0} to bind all shards to the same ephemeral port.
+     * @param shards       The amount of shards.
+     * @param ringCapacity The capacity of the ring of each shard.
+     * @param waitStrategy The wait strategy of the rings.
+     *
+     * @throws IOException              If a channel cannot be opened or bound.
+     * @throws IllegalArgumentException If the amount of shards is smaller than {@code 1}.
+     * @throws IllegalStateException    If more than one shard is requested, but {@code SO_REUSEPORT} is not supported.
+     */
+    public ShardedReceiver(VBAN.Protocol<?> protocol,
+                           InetAddress address,
+                           int port,
+                           int shards,
+                           int ringCapacity,
+                           WaitStrategy waitStrategy)
+            throws IOException, IllegalArgumentException, IllegalStateException {
+        if (shards < 1)
+            throw new IllegalArgumentException("Amount of shards must be positive");
+        if (shards > 1 && !isReusePortSupported())
+            throw new IllegalStateException("SO_REUSEPORT is not supported, cannot open " + shards + " shards");
+
+        this.protocol = protocol;
+        this.streams = new VBANInputStream<?>[shards];
+        this.rings = new PacketRing[shards];
+        this.receivers = new RingReceiver[shards];
+
+        try {
+            for (int i = 0; i < shards; i++) {
+                DatagramChannel channel = Util.openDatagramChannel(address);
+
+                try {
+                    if (shards > 1)
+                        channel.setOption(SO_REUSEPORT, true);
+                    channel.bind(new InetSocketAddress(address, port));
+                } catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+
+                streams[i] = open(protocol, channel);
+                // the first shard decides an ephemeral port for all others
+                port = streams[i].getPort();
+
+                rings[i] = new PacketRing(ringCapacity, waitStrategy);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+
+        this.port = port;
+    }
+
+    /**
+     * Whether the running JDK and platform support binding several sockets to the same port.
+     *
+     * @return Whether {@code SO_REUSEPORT} is supported.
+     */
+    public static boolean isReusePortSupported() {
+        if (SO_REUSEPORT == null)
+            return false;
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Starts the receive loop of every shard on its own daemon thread.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the receiver has already been started.
+     */
+    public synchronized ShardedReceiver start() throws IllegalStateException {
+        if (receivers[0] != null)
+            throw new IllegalStateException("Receiver already started");
+
+        for (int i = 0; i < streams.length; i++)
+            receivers[i] = new RingReceiver(streams[i], rings[i]).start("VBAN-ShardedReceiver-" + i);
+
+        return this;
+    }
+
+    /**
+     * Gets the port all shards are bound to.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the amount of shards.
+     *
+     * @return The amount of shards.
+     */
+    public int getShardCount() {
+        return streams.length;
+    }
+
+    /**
+     * Gets the pre-filter statistics of one shard.
+     *
+     * @param shard The index of the shard.
+     *
+     * @return The statistics of the shard.
+     * @throws IllegalStateException If the receiver has not been started.
+     */
+    public DecodeStatistics getStatistics(int shard) throws IllegalStateException {
+        if (receivers[shard] == null)
+            throw new IllegalStateException("Receiver not started");
+
+        return receivers[shard].getStatistics();
+    }
+
+    /**
+     * Consumer only.
+     * Gets the amount of datagrams that have been dropped because of an older frame counter.
+     *
+     * @return The amount of late datagrams.
+     */
+    public long getLateCount() {
+        return merger.late;
+    }
+
+    /**
+     * Consumer only.
+     * Gets the amount of datagrams that have been dropped because they were of another protocol or malformed.
+     *
+     * @return The amount of rejected datagrams.
+     */
+    public long getRejectedCount() {
+        return merger.rejected;
+    }
+
+    /**
+     * Consumer only.
+     * Passes up to {@code limit} datagrams of all shards to the given handler, in order of arrival, without waiting.
+     * Late and rejected datagrams are consumed, but not passed on.
+     * Exactly one thread may consume from this receiver.
+     *
+     * @param handler The handler to pass the datagrams to.
+     * @param limit   The maximum amount of datagrams to consume.
+     *
+     * @return The amount of datagrams that have been consumed.
+     */
+    public int drain(PacketRing.Handler handler, int limit) {
+        merger.target = handler;
+        int n = 0;
+
+        while (n < limit) {
+            int next = -1;
+            long earliest = 0;
+
+            for (int i = 0; i < rings.length; i++) {
+                long receiveNanos = rings[i].peekReceiveNanos();
+
+                if (receiveNanos != Long.MAX_VALUE && (next < 0 || receiveNanos - earliest < 0)) {
+                    next = i;
+                    earliest = receiveNanos;
+                }
+            }
+
+            if (next < 0)
+                break;
+            PacketRing ring = rings[next];
+            ring.acquire(1);
+            merger.accept(ring.getSlot(0), ring.getLength(0), ring.getReceiveNanos(0), ring.getSourceAddress(0),
+                    ring.getSourcePort(0));
+            ring.release(1);
+            n++;
+        }
+
+        merger.target = null;
+        return n;
+    }
+
+    /**
+     * Stops all receive loops and closes all channels.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < streams.length; i++) {
+            if (receivers[i] != null)
+                receivers[i].close();
+            else if (streams[i] != null)
+                streams[i].close();
+        }
+    }
+
+    private static <T> VBANInputStream<T> open(VBAN.Protocol<T> protocol, DatagramChannel channel) {
+        return new VBANInputStream<>(protocol, channel);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookupReusePort() {
+        // StandardSocketOptions.SO_REUSEPORT only exists from Java 9 on
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // consumer-confined filter between the rings and the handler of the current drain call
+    private final class Merger {
+        private final VBANPacketView view = new VBANPacketView();
+        private final FrameOrder order = new FrameOrder();
+        private PacketRing.Handler target;
+        private long late;
+        private long rejected;
+
+        void accept(byte[] buffer, int length, long receiveNanos, InetAddress source, int port) {
+            if (view.wrap(buffer, 0, length) != DecodeStatus.OK || view.getProtocolValue() != protocol.getValue()) {
+                rejected++;
+                return;
+            }
+
+            if (ParityDecoder.isParity(view) || order.accept(streamKey(buffer, source, port), view.getFrameCounter()))
+                target.onPacket(buffer, length, receiveNanos);
+            else late++;
+        }
+
+        // the stream name, the source address and port; senders may share a name
+        private long streamKey(byte[] buffer, InetAddress source, int port) {
+            long hash = FrameCounters.hashStreamName(buffer, 0);
+            hash = FrameCounters.hash(hash, source != null ? source.hashCode() : 0);
+            hash = FrameCounters.hash(hash, port);
+
+            return FrameCounters.toKey(hash);
+        }
+    }
+
+    // open addressing map of stream key to last delivered frame counter; key 0 marks a free slot
+    private static final class FrameOrder {
+        private long[] keys = new long[64];
+        private int[] counters = new int[64];
+        private int size = 0;
+
+        boolean accept(long key, int counter) {
+            int mask = keys.length - 1;
+
+            for (int i = (int) (key ^ key >>> 32) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == 0) {
+                    keys[i] = key;
+                    counters[i] = counter;
+                    if (++size * 2 > keys.length)
+                        grow();
+                    return true;
+                }
+                if (keys[i] == key) {
+                    if (FrameCounters.isLate(FrameCounters.delta(counters[i], counter)))
+                        return false;
+                    counters[i] = counter;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldCounters = counters;
+
+            keys = new long[oldKeys.length * 2];
+            counters = new int[oldCounters.length * 2];
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; i++)
+                if (oldKeys[i] != 0)
+                    accept(oldKeys[i], oldCounters[i]);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package de.comroid.vban.receive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.comroid.util.stats.LogHistogram;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.FrameCounters;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Measures how bursty incoming streams are, per stream name.
+ * <p>
+ * Every datagram is recorded with the {@link System#nanoTime()} at which it was received. For audio streams, the
+ * expected cadence follows from the frame counter, the samples per frame and the sample rate; the difference between
+ * actual and expected arrival is smoothed into an interarrival jitter estimate as in RFC 3550, section 6.4.1.
+ * For every stream, the gaps between arrivals and the one-way delay relative to the fastest recent datagram are
+ * counted in fixed-size {@link LogHistogram}s. The one-way delay is relative because VBAN carries no sender
+ * timestamp; it shows queueing in the network, not the absolute latency.
+ * <p>
+ * A monitor can be fed by {@link VBANInputStream#setStreamMonitor(StreamMonitor)}, by polling a {@link PacketRing}
+ * with it, or through {@link #record(VBANPacketView, long)}. Recording is meant to happen on one thread;
+ * {@linkplain #snapshot() snapshots} may be taken from any thread.
+ * <p>
+ * Streams are told apart by their name only, as neither of these sources carries the sender's address. Datagrams of
+ * equally named streams from different hosts are measured as one stream; use one monitor per sender, or a
+ * {@link SessionTable}, which keys streams by source address as well, to keep them apart.
+ */
+public class StreamMonitor implements PacketRing.Handler {
+    /**
+     * The length of the window over which the fastest datagram is searched as baseline of the relative delay.
+     * The baseline is the fastest datagram of the current and the previous window.
+     */
+    public static final long DELAY_WINDOW_NANOS = 10_000_000_000L;
+
+    private final VBANPacketView view = new VBANPacketView();
+    private long[] keys = new long[16];
+    private Stream[] streams = new Stream[16];
+    private int size = 0;
+
+    /**
+     * Records a datagram from a {@link PacketRing}. Invalid datagrams are ignored.
+     *
+     * @param buffer       The buffer containing the datagram, starting at index {@code 0}.
+     * @param length       The length of the datagram.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram has been received.
+     */
+    @Override
+    public void onPacket(byte[] buffer, int length, long receiveNanos) {
+        if (view.wrap(buffer, 0, length) == DecodeStatus.OK)
+            record(view, receiveNanos);
+    }
+
+    /**
+     * Records a valid datagram. Parity datagrams of a {@link de.comroid.vban.fec.ParityEncoder} are ignored, as they
+     * carry the frame counter of the datagrams they protect.
+     *
+     * @param view         A view of the datagram.
+     * @param receiveNanos The {@link System#nanoTime()} at which the datagram has been received.
+     */
+    public synchronized void record(VBANPacketView view, long receiveNanos) {
+        if (ParityDecoder.isParity(view))
+            return;
+
+        long key = streamKey(view);
+        int mask = keys.length - 1;
+        int i = (int) (key ^ key >>> 32) & mask;
+
+        while (keys[i] != key) {
+            if (keys[i] == 0) {
+                keys[i] = key;
+                streams[i] = new Stream(view.getStreamName());
+                if (++size * 2 > keys.length)
+                    grow();
+                // the table may have moved
+                record(view, receiveNanos);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        streams[i].record(view, receiveNanos);
+    }
+
+    /**
+     * Takes a snapshot of the statistics of every stream seen so far.
+     *
+     * @return A list of snapshots, one per stream.
+     */
+    public synchronized List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>(size);
+
+        for (Stream stream : streams)
+            if (stream != null)
+                snapshots.add(stream.snapshot());
+
+        return snapshots;
+    }
+
+    /**
+     * Takes a snapshot of the statistics of one stream.
+     *
+     * @param streamName The name of the stream.
+     *
+     * @return The snapshot, or {@code null} if no datagram of that stream has been recorded.
+     */
+    public synchronized Snapshot snapshot(String streamName) {
+        for (Stream stream : streams)
+            if (stream != null && stream.name.equals(streamName))
+                return stream.snapshot();
+
+        return null;
+    }
+
+    /**
+     * Forgets all streams.
+     */
+    public synchronized void reset() {
+        keys = new long[16];
+        streams = new Stream[16];
+        size = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Stream[] oldStreams = streams;
+
+        keys = new long[oldKeys.length * 2];
+        streams = new Stream[oldStreams.length * 2];
+
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0)
+                continue;
+
+            int i = (int) (oldKeys[j] ^ oldKeys[j] >>> 32) & mask;
+            while (keys[i] != 0)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            streams[i] = oldStreams[j];
+        }
+    }
+
+    private static long streamKey(VBANPacketView view) {
+        return FrameCounters.toKey(FrameCounters.hashStreamName(view.getBuffer(), view.getOffset()));
+    }
+
+    private static final class Stream {
+        private final String name;
+        private final LogHistogram interarrival = new LogHistogram();
+        private final LogHistogram delay = new LogHistogram();
+        private long packets;
+        private long lost;
+        private long outOfOrder;
+        private int lastCounter;
+        private long lastNanos;
+        private double expectedNanos; // expected arrival of the last in-order packet, on the sender's timeline
+        private double lastTransit;
+        private double jitter;
+        private int sampleRate;
+        // minimum transit of the current and the previous window, so that clock drift cannot skew the baseline
+        private long windowStart;
+        private double windowMin = Double.MAX_VALUE;
+        private double previousMin = Double.MAX_VALUE;
+
+        Stream(String name) {
+            this.name = name;
+        }
+
+        void record(VBANPacketView view, long receiveNanos) {
+            boolean audio = view.getProtocolValue() == VBAN.Protocol.AUDIO.getValue();
+            sampleRate = audio ? view.getDataRateValue().asSampleRate().getHz() : 0;
+
+            long previousNanos = lastNanos;
+            lastNanos = receiveNanos;
+
+            if (packets++ == 0) {
+                windowStart = receiveNanos;
+            } else {
+                interarrival.record(receiveNanos - previousNanos);
+
+                int frames = FrameCounters.delta(lastCounter, view.getFrameCounter());
+                if (FrameCounters.isLate(frames)) {
+                    outOfOrder++;
+                    return;
+                }
+
+                if (FrameCounters.isAhead(frames)) {
+                    lost += frames - 1;
+                    if (audio)
+                        expectedNanos += frames * (view.getSamples() * 1e9 / sampleRate);
+                } else {
+                    // restarted sender; continue the timeline without a jump in transit
+                    expectedNanos = receiveNanos - lastTransit;
+                }
+            }
+
+            lastCounter = view.getFrameCounter();
+
+            if (!audio)
+                return;
+
+            // the transit time is unknown, but its changes are the difference of arrival and expected times
+            double transit = receiveNanos - expectedNanos;
+            if (packets > 1)
+                jitter += (Math.abs(transit - lastTransit) - jitter) / 16;
+            lastTransit = transit;
+
+            if (receiveNanos - windowStart > DELAY_WINDOW_NANOS) {
+                windowStart = receiveNanos;
+                previousMin = windowMin;
+                windowMin = Double.MAX_VALUE;
+            }
+            windowMin = Math.min(windowMin, transit);
+            delay.record((long) (transit - Math.min(windowMin, previousMin)));
+        }
+
+        Snapshot snapshot() {
+            return new Snapshot(name, packets, lost, outOfOrder, (long) jitter, sampleRate != 0,
+                    interarrival.getMean(), interarrival.getPercentile(50), interarrival.getPercentile(99),
+                    interarrival.getMax(), delay.getPercentile(50), delay.getPercentile(99), delay.getMax());
+        }
+    }
+
+    /**
+     * Immutable statistics of one stream at the time of {@link #snapshot()}.
+     * All durations are in nanoseconds.
+     */
+    public static final class Snapshot {
+        private final String streamName;
+        private final long packets;
+        private final long lost;
+        private final long outOfOrder;
+        private final long jitterNanos;
+        private final boolean cadenceKnown;
+        private final double interarrivalMean;
+        private final long interarrivalP50;
+        private final long interarrivalP99;
+        private final long interarrivalMax;
+        private final long delayP50;
+        private final long delayP99;
+        private final long delayMax;
+
+        private Snapshot(String streamName,
+                         long packets,
+                         long lost,
+                         long outOfOrder,
+                         long jitterNanos,
+                         boolean cadenceKnown,
+                         double interarrivalMean,
+                         long interarrivalP50,
+                         long interarrivalP99,
+                         long interarrivalMax,
+                         long delayP50,
+                         long delayP99,
+                         long delayMax) {
+            this.streamName = streamName;
+            this.packets = packets;
+            this.lost = lost;
+            this.outOfOrder = outOfOrder;
+            this.jitterNanos = jitterNanos;
+            this.cadenceKnown = cadenceKnown;
+            this.interarrivalMean = interarrivalMean;
+            this.interarrivalP50 = interarrivalP50;
+            this.interarrivalP99 = interarrivalP99;
+            this.interarrivalMax = interarrivalMax;
+            this.delayP50 = delayP50;
+            this.delayP99 = delayP99;
+            this.delayMax = delayMax;
+        }
+
+        /**
+         * Gets the name of the stream.
+         *
+         * @return The stream name.
+         */
+        public String getStreamName() {
+            return streamName;
+        }
+
+        /**
+         * Gets the amount of recorded datagrams.
+         *
+         * @return The amount of datagrams.
+         */
+        public long getPackets() {
+            return packets;
+        }
+
+        /**
+         * Gets the amount of datagrams missing from gaps in the frame counter.
+         * Datagrams that arrive late are counted as lost and as {@linkplain #getOutOfOrder() out of order}.
+         *
+         * @return The amount of lost datagrams.
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Gets the amount of datagrams whose frame counter was not newer than that of the previous one.
+         *
+         * @return The amount of reordered or duplicated datagrams.
+         */
+        public long getOutOfOrder() {
+            return outOfOrder;
+        }
+
+        /**
+         * Gets the smoothed interarrival jitter as defined by RFC 3550.
+         * Only available for audio streams, whose cadence is known.
+         *
+         * @return The jitter, or {@code 0} if the cadence is unknown.
+         */
+        public long getJitterNanos() {
+            return jitterNanos;
+        }
+
+        /**
+         * Whether the expected cadence is known, which is the case for audio streams.
+         * Jitter and delay are only measured if it is.
+         *
+         * @return Whether the cadence is known.
+         */
+        public boolean isCadenceKnown() {
+            return cadenceKnown;
+        }
+
+        /**
+         * Gets the mean time between two arrivals.
+         *
+         * @return The mean interarrival time.
+         */
+        public double getInterarrivalMean() {
+            return interarrivalMean;
+        }
+
+        /**
+         * Gets the median time between two arrivals.
+         *
+         * @return The median interarrival time.
+         */
+        public long getInterarrivalP50() {
+            return interarrivalP50;
+        }
+
+        /**
+         * Gets the 99th percentile of the time between two arrivals.
+         *
+         * @return The 99th percentile interarrival time.
+         */
+        public long getInterarrivalP99() {
+            return interarrivalP99;
+        }
+
+        /**
+         * Gets the longest time between two arrivals.
+         *
+         * @return The maximum interarrival time.
+         */
+        public long getInterarrivalMax() {
+            return interarrivalMax;
+        }
+
+        /**
+         * Gets the median one-way delay, relative to the fastest recent datagram.
+         *
+         * @return The median relative delay.
+         */
+        public long getDelayP50() {
+            return delayP50;
+        }
+
+        /**
+         * Gets the 99th percentile of the one-way delay, relative to the fastest recent datagram.
+         * A jitter buffer has to hold at least this long to absorb 99% of all datagrams.
+         *
+         * @return The 99th percentile relative delay.
+         */
+        public long getDelayP99() {
+            return delayP99;
+        }
+
+        /**
+         * Gets the largest one-way delay, relative to the fastest recent datagram.
+         *
+         * @return The maximum relative delay.
+         */
+        public long getDelayMax() {
+            return delayMax;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Snapshot{stream=%s;packets=%d;lost=%d;outOfOrder=%d;jitter=%d;" +
+                            "interarrival[mean=%.0f;p50=%d;p99=%d;max=%d];delay[p50=%d;p99=%d;max=%d]}",
+                    streamName, packets, lost, outOfOrder, jitterNanos, interarrivalMean, interarrivalP50,
+                    interarrivalP99, interarrivalMax, delayP50, delayP99, delayMax);
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package de.comroid.vban.receive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.Util;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.fec.ParityEncoder;
+import de.comroid.vban.packet.DecodeStatistics;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+/**
+ * Callback-driven receiver. A receive thread pumps datagrams from a {@link VBANInputStream} into a {@link PacketRing},
+ * and a dedicated event loop thread drains the ring in batches and passes every packet to the
+ * {@linkplain #onPacket(PacketHandler) registered handlers}, and every batch to the
+ * {@linkplain #onBatch(BatchHandler) batch handlers}:
+ * <pre>{@code
+ * VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(6980), 256, WaitStrategy.PARK,
+ *         VBANReceiver.OverloadPolicy.DROP)
+ *         .onPacket(VBAN.Protocol.AUDIO, handler)
+ *         .start();
+ * }</pre>
+ * Handlers get a borrowed {@link VBANPacketView} that is only valid during the callback; use
+ * {@link VBANPacketView#copyTo(byte[], VBANPacketView)} or {@link VBANPacketView#copy()} to keep a packet.
+ * Unlike {@link VBANInputStream#readData()}, packets of any protocol are delivered, and nothing is allocated per packet.
+ * <p>
+ * When handlers fall behind and the ring is full, the {@link OverloadPolicy} decides what happens to newly received
+ * datagrams; every outcome is counted.
+ * <p>
+ * The receive thread waits for the channel to become readable, then drains up to the
+ * {@linkplain #setBatchSize(int) batch size} of datagrams without blocking, and publishes them to the event loop at
+ * once. Per-wakeup costs are thus paid once per batch rather than once per datagram. The channel of the stream is
+ * switched to non-blocking mode, so the stream itself cannot be read from anymore.
+ */
+public class VBANReceiver implements Closeable {
+    /**
+     * The default maximum amount of datagrams received per wakeup, and of packets per batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private static final Registration[] NO_HANDLERS = new Registration[0];
+    private static final BatchHandler[] NO_BATCH_HANDLERS = new BatchHandler[0];
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final VBANInputStream<?> stream;
+    private final DatagramChannel channel;
+    private final PacketRing ring;
+    private final OverloadPolicy policy;
+    private final DecodeStatistics statistics = new DecodeStatistics();
+    // event loop confined
+    private final VBANPacketView[] views;
+    private final long[] receiveNanos;
+    // receive thread confined
+    private final byte[] overflow = new byte[VBANPacket.MAX_SIZE];
+    private final ByteBuffer overflowBuffer = ByteBuffer.wrap(overflow);
+    private final VBANPacketView sessionView = new VBANPacketView();
+    private int overflowLength = -1;
+    private long overflowNanos;
+    private Selector selector;
+
+    private volatile int batchSize;
+    private volatile Registration[] handlers = NO_HANDLERS;
+    private volatile BatchHandler[] batchHandlers = NO_BATCH_HANDLERS;
+    private volatile SessionTable<?> sessions;
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private volatile long received = 0;
+    private volatile long delivered = 0;
+    private volatile long dropped = 0;
+    private volatile long coalesced = 0;
+    private volatile long blocked = 0;
+    private volatile long handlerErrors = 0;
+    private volatile long wakeups = 0;
+    private volatile long receiveCalls = 0;
+    private volatile long batches = 0;
+    private volatile RuntimeException lastHandlerError;
+    private volatile IOException failure;
+    private Thread receiveThread;
+    private volatile Thread loopThread;
+
+    /**
+     * Constructor. Call {@link #start()} to start receiving.
+     *
+     * @param stream       The stream to receive from. Is closed when this receiver is closed.
+     * @param capacity     The amount of packets that may be queued for the handlers.
+     *                     Is rounded up to the next power of two.
+     * @param waitStrategy How the event loop waits for packets. With {@link WaitStrategy#PARK}, the event loop sleeps
+     *                     until the receive thread wakes it up.
+     * @param policy       What to do with received datagrams while the queue is full.
+     *
+     * @throws IllegalArgumentException If the capacity is out of range.
+     */
+    public VBANReceiver(VBANInputStream<?> stream, int capacity, WaitStrategy waitStrategy, OverloadPolicy policy)
+            throws IllegalArgumentException {
+        this.stream = stream;
+        this.channel = stream.getChannel();
+        this.ring = new PacketRing(capacity, waitStrategy);
+        this.policy = policy;
+        this.batchSize = Math.min(DEFAULT_BATCH_SIZE, ring.capacity());
+        this.views = new VBANPacketView[ring.capacity()];
+        this.receiveNanos = new long[ring.capacity()];
+        for (int i = 0; i < views.length; i++)
+            views[i] = new VBANPacketView();
+    }
+
+    /**
+     * Sets the maximum amount of datagrams received per wakeup, which is also the maximum size of the batches
+     * passed to the handlers. Larger batches cost fewer wakeups per packet, smaller batches reach the handlers sooner.
+     * Defaults to {@link #DEFAULT_BATCH_SIZE}, or the capacity if that is smaller.
+     *
+     * @param batchSize The batch size, within {@code [1;capacity]}.
+     *
+     * @return This instance.
+     * @throws IllegalArgumentException If the batch size is out of range.
+     */
+    public VBANReceiver setBatchSize(int batchSize) throws IllegalArgumentException {
+        Util.checkRange(batchSize, 1, ring.capacity());
+
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Gets the maximum amount of datagrams received per wakeup and passed to the handlers at once.
+     *
+     * @return The batch size.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Registers a handler for packets of every protocol.
+     * Handlers are invoked on the event loop thread, in the order they have been registered.
+     * They also get the parity datagrams of a {@link ParityEncoder}, to be passed to a {@link ParityDecoder}.
+     *
+     * @param handler The handler to register.
+     *
+     * @return This instance.
+     */
+    public VBANReceiver onPacket(PacketHandler handler) {
+        return register(-1, handler);
+    }
+
+    /**
+     * Registers a handler for packets of the given protocol.
+     * Handlers are invoked on the event loop thread, in the order they have been registered.
+     * Parity datagrams of a {@link ParityEncoder} are no audio, and are only passed to handlers for every protocol.
+     *
+     * @param protocol The protocol of the packets to handle.
+     * @param handler  The handler to register.
+     *
+     * @return This instance.
+     */
+    public VBANReceiver onPacket(VBAN.Protocol<?> protocol, PacketHandler handler) {
+        return register(protocol.getValue(), handler);
+    }
+
+    /**
+     * Registers a handler for whole batches of packets of every protocol.
+     * Batch handlers are invoked on the event loop thread, after the packet handlers have seen the batch.
+     * Like handlers for every protocol, they also get parity datagrams.
+     *
+     * @param handler The handler to register.
+     *
+     * @return This instance.
+     */
+    public synchronized VBANReceiver onBatch(BatchHandler handler) {
+        BatchHandler[] current = batchHandlers;
+        BatchHandler[] next = Arrays.copyOf(current, current.length + 1);
+
+        next[current.length] = handler;
+        batchHandlers = next;
+        return this;
+    }
+
+    /**
+     * Removes all registrations of the given handler.
+     *
+     * @param handler The handler to remove.
+     *
+     * @return Whether the handler has been registered.
+     */
+    public synchronized boolean removeHandler(PacketHandler handler) {
+        Registration[] current = handlers;
+        Registration[] remaining = new Registration[current.length];
+        int n = 0;
+
+        for (Registration registration : current)
+            if (registration.handler != handler)
+                remaining[n++] = registration;
+
+        handlers = Arrays.copyOf(remaining, n);
+        return n < current.length;
+    }
+
+    /**
+     * Sets a session table that records every accepted datagram together with its source address, on the receive
+     * thread. The receive thread also {@linkplain SessionTable#evictIdle(long) evicts idle sessions}, once per tick of
+     * the table at least. Datagrams dropped by the {@link OverloadPolicy} are recorded as well.
+     *
+     * @param sessions The session table, or {@code null} to stop recording.
+     *
+     * @return This instance.
+     */
+    public VBANReceiver setSessionTable(SessionTable<?> sessions) {
+        this.sessions = sessions;
+        if (selector != null)
+            selector.wakeup();
+        return this;
+    }
+
+    /**
+     * Starts the receive thread and the event loop thread as daemon threads.
+     *
+     * @return This instance.
+     * @throws IOException           If the channel cannot be switched to non-blocking mode.
+     * @throws IllegalStateException If the receiver has already been started or has been closed.
+     */
+    public synchronized VBANReceiver start() throws IOException, IllegalStateException {
+        if (receiveThread != null || !running)
+            throw new IllegalStateException("Receiver already started or closed");
+
+        selector = Selector.open();
+        try {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+
+        loopThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "VBAN-Receiver");
+        receiveThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "VBAN-Receiver-IO");
+        loopThread.setDaemon(true);
+        receiveThread.setDaemon(true);
+        loopThread.start();
+        receiveThread.start();
+
+        return this;
+    }
+
+    /**
+     * Gets the local port datagrams are received on.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return stream.getPort();
+    }
+
+    /**
+     * Gets the overload policy of this receiver.
+     *
+     * @return The overload policy.
+     */
+    public OverloadPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the counters of decode outcomes. Datagrams dropped by the overload policy are not decoded.
+     *
+     * @return The decode statistics of this receiver.
+     */
+    public DecodeStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Gets the amount of datagrams that passed the {@linkplain VBANPacketHead#preFilter(byte[], int, int) pre-filter}.
+     *
+     * @return The amount of received datagrams.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Gets the amount of packets that have been passed to the handlers.
+     *
+     * @return The amount of delivered packets.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Gets the amount of datagrams dropped by {@link OverloadPolicy#DROP}.
+     *
+     * @return The amount of dropped datagrams.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Gets the amount of datagrams superseded by a newer one under {@link OverloadPolicy#COALESCE}.
+     *
+     * @return The amount of coalesced datagrams.
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * Gets the amount of times the receive thread had to wait for the handlers under {@link OverloadPolicy#BLOCK}.
+     *
+     * @return The amount of blocked receives.
+     */
+    public long getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Gets the amount of times the receive thread has waited for the channel to become readable.
+     *
+     * @return The amount of wakeups.
+     */
+    public long getWakeups() {
+        return wakeups;
+    }
+
+    /**
+     * Gets the amount of receive calls on the channel, including the ones that found it empty.
+     * Together with {@link #getWakeups()}, this is the amount of system calls on the receive path.
+     *
+     * @return The amount of receive calls.
+     */
+    public long getReceiveCalls() {
+        return receiveCalls;
+    }
+
+    /**
+     * Gets the amount of batches that have been passed to the handlers.
+     *
+     * @return The amount of delivered batches.
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * Gets the amount of runtime exceptions thrown by handlers.
+     *
+     * @return The amount of handler errors.
+     * @see #getLastHandlerError()
+     */
+    public long getHandlerErrors() {
+        return handlerErrors;
+    }
+
+    /**
+     * Gets the last runtime exception thrown by a handler.
+     *
+     * @return The last handler error, or {@code null}.
+     */
+    public RuntimeException getLastHandlerError() {
+        return lastHandlerError;
+    }
+
+    /**
+     * Gets the exception that has terminated the receive thread, if any.
+     *
+     * @return The terminating exception, or {@code null}.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Whether the receiver is still running.
+     *
+     * @return Whether the receiver is running.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops both threads and closes the underlying stream.
+     * Packets still queued are not delivered anymore.
+     */
+    @Override
+    public void close() {
+        Thread loopThread;
+        Thread receiveThread;
+
+        synchronized (this) {
+            running = false;
+            loopThread = this.loopThread;
+            receiveThread = this.receiveThread;
+        }
+
+        if (receiveThread != null) {
+            selector.wakeup();
+            LockSupport.unpark(loopThread);
+
+            try {
+                receiveThread.join(TimeUnit.SECONDS.toMillis(1));
+                loopThread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        stream.close();
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private synchronized VBANReceiver register(int protocol, PacketHandler handler) {
+        Registration[] current = handlers;
+        Registration[] next = Arrays.copyOf(current, current.length + 1);
+
+        next[current.length] = new Registration(protocol, handler);
+        handlers = next;
+        return this;
+    }
+
+    private void receive() {
+        try {
+            while (running) {
+                drain();
+
+                SessionTable<?> sessions = this.sessions;
+                if (sessions != null)
+                    sessions.evictIdle(System.nanoTime());
+
+                // returns at once if the batch size left datagrams in the channel;
+                // polls while a coalesced datagram waits for room, and once per tick of the session table
+                selector.select(overflowLength >= 0 ? 1 : sessions != null
+                        ? Math.max(TimeUnit.NANOSECONDS.toMillis(sessions.getTickNanos()), 1)
+                        : 0);
+                selector.selectedKeys().clear();
+                wakeups++;
+            }
+        } catch (IOException e) {
+            if (running) failure = e;
+        } finally {
+            running = false;
+            LockSupport.unpark(loopThread);
+        }
+    }
+
+    // receives up to one batch without blocking, then publishes it at once
+    private void drain() throws IOException {
+        int limit = batchSize;
+
+        try {
+            for (int n = 0; n < limit && running; n++) {
+                ByteBuffer slot = ring.tryClaimBuffer();
+
+                if (slot != null && overflowLength >= 0) {
+                    // room again: deliver the newest datagram received while the ring was full
+                    slot.put(overflow, 0, overflowLength);
+                    ring.stage(overflowLength, overflowNanos);
+                    overflowLength = -1;
+                    continue;
+                }
+
+                if (slot == null && policy == OverloadPolicy.BLOCK) {
+                    // let the event loop consume what has been staged so far
+                    commit();
+                    blocked++;
+                    if ((slot = awaitSlot()) == null)
+                        return;
+                }
+
+                if (slot == null) {
+                    overflowBuffer.clear();
+                    receiveCalls++;
+                    SocketAddress source = channel.receive(overflowBuffer);
+                    if (source == null)
+                        return;
+                    long nanos = System.nanoTime();
+                    if (!accept(overflow, overflowBuffer.position()))
+                        continue;
+                    record(source, overflow, overflowBuffer.position(), nanos);
+
+                    if (policy == OverloadPolicy.DROP) {
+                        dropped++;
+                    } else {
+                        if (overflowLength >= 0)
+                            coalesced++;
+                        overflowLength = overflowBuffer.position();
+                        overflowNanos = nanos;
+                    }
+                    continue;
+                }
+
+                receiveCalls++;
+                SocketAddress source = channel.receive(slot);
+                if (source == null)
+                    return;
+                long nanos = System.nanoTime();
+                if (accept(slot.array(), slot.position())) {
+                    record(source, slot.array(), slot.position(), nanos);
+                    ring.stage(slot.position(), nanos);
+                }
+            }
+        } finally {
+            commit();
+        }
+    }
+
+    private boolean accept(byte[] buffer, int length) {
+        DecodeStatus status = VBANPacketHead.preFilter(buffer, 0, length);
+
+        if (status != DecodeStatus.OK) {
+            statistics.record(status);
+            return false;
+        }
+
+        received++;
+        return true;
+    }
+
+    private void record(SocketAddress source, byte[] buffer, int length, long nanos) {
+        SessionTable<?> sessions = this.sessions;
+
+        if (sessions != null && source instanceof InetSocketAddress
+                && sessionView.wrap(buffer, 0, length) == DecodeStatus.OK) {
+            InetSocketAddress address = (InetSocketAddress) source;
+            sessions.record(address.getAddress(), address.getPort(), sessionView, nanos);
+        }
+    }
+
+    private ByteBuffer awaitSlot() {
+        ByteBuffer slot;
+        int counter = 0;
+
+        while ((slot = ring.tryClaimBuffer()) == null) {
+            if (!running)
+                return null;
+            counter = ring.getWaitStrategy().idle(counter);
+        }
+
+        return slot;
+    }
+
+    private void commit() {
+        if (ring.commit() > 0 && idle)
+            LockSupport.unpark(loopThread);
+    }
+
+    private void loop() {
+        WaitStrategy waitStrategy = ring.getWaitStrategy();
+        int counter = 0;
+
+        while (running) {
+            int n = ring.acquire(batchSize);
+
+            if (n > 0) {
+                dispatch(n);
+                ring.release(n);
+                counter = 0;
+                continue;
+            }
+
+            if (waitStrategy != WaitStrategy.PARK || counter < WaitStrategy.SPIN_TRIES + WaitStrategy.YIELD_TRIES) {
+                counter = waitStrategy.idle(counter);
+                continue;
+            }
+
+            idle = true;
+            // re-check, the receive thread may have published before seeing the idle flag
+            if (ring.size() == 0 && running)
+                LockSupport.parkNanos(this, PARK_NANOS);
+            idle = false;
+        }
+    }
+
+    private void dispatch(int n) {
+        Registration[] handlers = this.handlers;
+        int count = 0;
+
+        for (int i = 0; i < n; i++) {
+            VBANPacketView view = views[count];
+            if (statistics.record(view.wrap(ring.getSlot(i), 0, ring.getLength(i))) != DecodeStatus.OK)
+                continue;
+
+            long nanos = ring.getReceiveNanos(i);
+            receiveNanos[count++] = nanos;
+
+            int protocol = view.getProtocolValue();
+            boolean parity = ParityDecoder.isParity(view);
+            for (Registration registration : handlers) {
+                if (registration.protocol >= 0 && (registration.protocol != protocol || parity))
+                    continue;
+
+                try {
+                    registration.handler.onPacket(view, nanos);
+                } catch (RuntimeException e) {
+                    handlerFailed(e);
+                }
+            }
+        }
+
+        if (count == 0)
+            return;
+
+        for (BatchHandler handler : batchHandlers) {
+            try {
+                handler.onBatch(views, receiveNanos, count);
+            } catch (RuntimeException e) {
+                handlerFailed(e);
+            }
+        }
+
+        delivered += count;
+        batches++;
+    }
+
+    private void handlerFailed(RuntimeException e) {
+        lastHandlerError = e;
+        handlerErrors++;
+    }
+
+    /**
+     * Callback for received packets.
+     */
+    public interface PacketHandler {
+        /**
+         * Handles one received packet, on the event loop thread.
+         * The view and its buffer are only valid for the duration of this call.
+         *
+         * @param view         A view of the packet.
+         * @param receiveNanos The {@link System#nanoTime()} at which the datagram was received.
+         */
+        void onPacket(VBANPacketView view, long receiveNanos);
+    }
+
+    /**
+     * Callback for batches of received packets.
+     */
+    public interface BatchHandler {
+        /**
+         * Handles one batch of received packets, on the event loop thread.
+         * The arrays, views and their buffers are only valid for the duration of this call.
+         *
+         * @param views        The views of the packets; only the first {@code count} are part of the batch.
+         * @param receiveNanos The {@link System#nanoTime()} at which each datagram was received.
+         * @param count        The amount of packets in the batch, at least {@code 1}.
+         */
+        void onBatch(VBANPacketView[] views, long[] receiveNanos, int count);
+    }
+
+    /**
+     * What to do with received datagrams while the handlers are behind and the queue is full.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Drops received datagrams until the handlers have made room. Keeps the receive thread draining the socket.
+         */
+        DROP,
+
+        /**
+         * Keeps only the newest datagram received while the queue is full, and queues it as soon as there is room
+         * again. Suited to state-like packets, where only the latest one matters.
+         */
+        COALESCE,
+
+        /**
+         * Stops receiving until the handlers have made room. Datagrams queue up in the socket's receive buffer,
+         * where the operating system drops them once that buffer is full as well.
+         */
+        BLOCK
+    }
+
+    private static final class Registration {
+        private final int protocol;
+        private final PacketHandler handler;
+
+        private Registration(int protocol, PacketHandler handler) {
+            this.protocol = protocol;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package de.comroid.vban.send;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import de.comroid.util.concurrent.BoundedQueue;
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.util.stats.LogHistogram;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.packet.VBANPacket;
+
+/**
+ * Sends datagrams on a dedicated thread, so that producers such as an audio render thread never wait for the
+ * kernel send path.
+ * <p>
+ * Producers {@linkplain #submit(byte[], int, int, InetSocketAddress) submit} datagrams, which are copied into pooled
+ * buffers and queued in one of two bounded lock-free {@linkplain Lane lanes}. The sender thread always empties the
+ * {@link Lane#CONTROL} lane first, so text and serial packets overtake queued audio.
+ * When a lane is full, the {@link OverflowPolicy} decides whether to drop the oldest or the newest datagram,
+ * or to block the producer.
+ * <p>
+ * Output streams use an async sender through {@link VBANOutputStream#setAsyncSender(AsyncSender)}; one sender can
+ * serve several streams. Their datagrams are sent through the {@linkplain #submit(byte[], int, int, DatagramChannel,
+ * InetSocketAddress) channel of the stream}, so that its socket options, such as {@code SO_BROADCAST} or the
+ * multicast TTL, apply on the sender thread as well.
+ */
+public class AsyncSender implements Closeable {
+    private final BoundedQueue<Buffer>[] lanes;
+    private final BoundedQueue<Buffer> pool;
+    private final OverflowPolicy policy;
+    private final DatagramChannel channel;
+    private final AtomicLongArray dropped = new AtomicLongArray(Lane.VALUES.length);
+    private final AtomicIntegerArray maxDepth = new AtomicIntegerArray(Lane.VALUES.length);
+    private final AtomicLong poolMisses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final LogHistogram sendLatency = new LogHistogram();
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private volatile boolean stopped = false;
+    private volatile long sent = 0;
+    private volatile long sendErrors = 0;
+    private volatile IOException lastError;
+    private volatile Thread thread;
+
+    /**
+     * Constructor. Call {@link #start()} to start sending.
+     *
+     * @param capacity The capacity of each lane. Is rounded up to the next power of two.
+     * @param policy   What to do when a lane is full.
+     *
+     * @throws IOException              If the sending channel cannot be opened.
+     * @throws IllegalArgumentException If the capacity is out of range.
+     */
+    public AsyncSender(int capacity, OverflowPolicy policy) throws IOException, IllegalArgumentException {
+        this.policy = policy;
+        @SuppressWarnings("unchecked")
+        BoundedQueue<Buffer>[] lanes = (BoundedQueue<Buffer>[]) new BoundedQueue<?>[Lane.VALUES.length];
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = new BoundedQueue<>(capacity);
+        this.lanes = lanes;
+
+        // one buffer per queued datagram, plus a few held by producers and the sender thread
+        int buffers = lanes.length * lanes[0].capacity() + 4;
+        this.pool = new BoundedQueue<>(buffers);
+        for (int i = 0; i < buffers; i++)
+            pool.offer(new Buffer());
+
+        this.channel = DatagramChannel.open();
+    }
+
+    /**
+     * Starts the sender thread as a daemon thread.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the sender has already been started or has been closed.
+     */
+    public synchronized AsyncSender start() throws IllegalStateException {
+        if (thread != null || !running)
+            throw new IllegalStateException("Sender already started or closed");
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "VBAN-AsyncSender");
+        thread.setDaemon(true);
+        thread.start();
+
+        return this;
+    }
+
+    /**
+     * Queues a datagram for sending. The bytes are copied, so the array can be reused after this call returns.
+     * The lane is chosen from the protocol in the datagram's head.
+     *
+     * @param packet The buffer containing the whole datagram.
+     * @param offset The index of the first byte of the datagram.
+     * @param length The length of the datagram.
+     * @param target The address to send the datagram to.
+     *
+     * @return Whether the datagram has been queued; {@code false} if it has been dropped by
+     * {@link OverflowPolicy#DROP_NEWEST}.
+     * @throws IOException              If the sender has been {@linkplain #close() closed}.
+     * @throws InterruptedIOException   If the thread has been interrupted while blocked by {@link OverflowPolicy#BLOCK}.
+     * @throws IllegalArgumentException If the datagram is larger than {@link VBANPacket#MAX_SIZE}.
+     */
+    public boolean submit(byte[] packet, int offset, int length, InetSocketAddress target)
+            throws IOException, IllegalArgumentException {
+        return submit(packet, offset, length, null, target);
+    }
+
+    /**
+     * Queues a datagram for sending through the given channel, see {@link #submit(byte[], int, int, InetSocketAddress)}.
+     * Datagrams whose channel has been closed by the time they are sent count as {@linkplain #getSendErrors() errors}.
+     *
+     * @param packet  The buffer containing the whole datagram.
+     * @param offset  The index of the first byte of the datagram.
+     * @param length  The length of the datagram.
+     * @param channel The channel to send the datagram through, or {@code null} for the sender's own channel.
+     * @param target  The address to send the datagram to.
+     *
+     * @return Whether the datagram has been queued; {@code false} if it has been dropped by
+     * {@link OverflowPolicy#DROP_NEWEST}.
+     * @throws IOException              If the sender has been {@linkplain #close() closed}.
+     * @throws InterruptedIOException   If the thread has been interrupted while blocked by {@link OverflowPolicy#BLOCK}.
+     * @throws IllegalArgumentException If the datagram is larger than {@link VBANPacket#MAX_SIZE}.
+     */
+    public boolean submit(byte[] packet, int offset, int length, DatagramChannel channel, InetSocketAddress target)
+            throws IOException, IllegalArgumentException {
+        if (!running)
+            throw new IOException("Sender is closed");
+        if (length > VBANPacket.MAX_SIZE)
+            throw new IllegalArgumentException("Datagram too large: " + length);
+
+        Lane lane = Lane.of(packet, offset);
+        BoundedQueue<Buffer> queue = lanes[lane.ordinal()];
+        Buffer buffer = acquire();
+        buffer.fill(packet, offset, length, channel != null ? channel : this.channel, target);
+
+        int counter = 0;
+        while (!queue.offer(buffer)) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    release(buffer);
+                    dropped.incrementAndGet(lane.ordinal());
+                    return false;
+                case DROP_OLDEST:
+                    Buffer oldest = queue.poll();
+                    if (oldest != null) {
+                        release(oldest);
+                        dropped.incrementAndGet(lane.ordinal());
+                    }
+                    break;
+                case BLOCK:
+                    if (!running) {
+                        release(buffer);
+                        throw new IOException("Sender is closed");
+                    }
+                    if (Thread.interrupted()) {
+                        release(buffer);
+                        throw new InterruptedIOException("Interrupted while waiting for queue space");
+                    }
+                    counter = WaitStrategy.PARK.idle(counter);
+                    break;
+            }
+        }
+
+        updateMaxDepth(lane, queue.size());
+        if (idle)
+            LockSupport.unpark(thread);
+        // raced with close(), and the sender thread may already have polled for the last time
+        if (stopped)
+            discardQueued();
+
+        return true;
+    }
+
+    /**
+     * Gets the amount of datagrams currently queued in the given lane.
+     *
+     * @param lane The lane.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth(Lane lane) {
+        return lanes[lane.ordinal()].size();
+    }
+
+    /**
+     * Gets the largest queue depth the given lane has reached.
+     *
+     * @param lane The lane.
+     *
+     * @return The maximum queue depth.
+     */
+    public int getMaxQueueDepth(Lane lane) {
+        return maxDepth.get(lane.ordinal());
+    }
+
+    /**
+     * Gets the amount of datagrams of the given lane that have been dropped by the overflow policy.
+     *
+     * @param lane The lane.
+     *
+     * @return The amount of dropped datagrams.
+     */
+    public long getDropped(Lane lane) {
+        return dropped.get(lane.ordinal());
+    }
+
+    /**
+     * Gets the amount of datagrams that have been queued but not sent, because the sender has been
+     * {@linkplain #close() closed} before it reached them.
+     *
+     * @return The amount of discarded datagrams.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Gets the amount of datagrams that have been handed to the kernel. Failed sends are not included.
+     *
+     * @return The amount of sent datagrams.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Gets the amount of datagrams that could not be sent because of an {@link IOException}.
+     *
+     * @return The amount of failed sends.
+     * @see #getLastError()
+     */
+    public long getSendErrors() {
+        return sendErrors;
+    }
+
+    /**
+     * Gets the exception of the last failed send.
+     *
+     * @return The last send exception, or {@code null}.
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Gets the amount of times the buffer pool was empty and a new buffer had to be allocated.
+     *
+     * @return The amount of pool misses.
+     */
+    public long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    /**
+     * Gets the histogram of nanoseconds from {@linkplain #submit(byte[], int, int, InetSocketAddress) submission}
+     * until the datagram has been handed to the kernel.
+     *
+     * @return The send latency histogram.
+     */
+    public LogHistogram getSendLatency() {
+        return sendLatency;
+    }
+
+    /**
+     * Sends all queued datagrams, then stops the sender thread and closes the channel.
+     * Waits at most one second for the queues to drain. Datagrams that are still queued after that,
+     * or that have been submitted concurrently and missed by the sender thread, are {@linkplain #getDiscarded()
+     * discarded}, as they are when the sender has never been started.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+        }
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        stopped = true;
+        discardQueued();
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Buffer buffer = poll();
+
+            if (buffer == null) {
+                if (!running) {
+                    if (stopped)
+                        return;
+
+                    // a submit either sees this flag, or queued early enough for the next poll
+                    stopped = true;
+                    continue;
+                }
+
+                idle = true;
+                // re-check, a producer may have queued before seeing the idle flag
+                if ((buffer = poll()) == null) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                    idle = false;
+                    continue;
+                }
+                idle = false;
+            }
+
+            try {
+                buffer.channel.send(buffer.view(), buffer.target);
+                sendLatency.record(System.nanoTime() - buffer.submitNanos);
+                sent++;
+            } catch (IOException e) {
+                lastError = e;
+                sendErrors++;
+            }
+
+            release(buffer);
+        }
+    }
+
+    private void discardQueued() {
+        Buffer buffer;
+
+        while ((buffer = poll()) != null) {
+            release(buffer);
+            discarded.incrementAndGet();
+        }
+    }
+
+    private Buffer poll() {
+        for (BoundedQueue<Buffer> lane : lanes) {
+            Buffer buffer = lane.poll();
+
+            if (buffer != null)
+                return buffer;
+        }
+
+        return null;
+    }
+
+    private Buffer acquire() {
+        Buffer buffer = pool.poll();
+
+        if (buffer == null) {
+            poolMisses.incrementAndGet();
+            buffer = new Buffer();
+        }
+
+        return buffer;
+    }
+
+    private void release(Buffer buffer) {
+        buffer.channel = null;
+        buffer.target = null;
+        // surplus buffers from pool misses are left to the garbage collector
+        pool.offer(buffer);
+    }
+
+    private void updateMaxDepth(Lane lane, int depth) {
+        int current = maxDepth.get(lane.ordinal());
+
+        while (depth > current && !maxDepth.compareAndSet(lane.ordinal(), current, depth))
+            current = maxDepth.get(lane.ordinal());
+    }
+
+    /**
+     * What to do when a datagram is submitted to a full lane.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drops the oldest queued datagram of the lane to make room. Keeps latency bounded for live audio.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Drops the submitted datagram.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Blocks the producer until the sender thread has made room.
+         */
+        BLOCK
+    }
+
+    /**
+     * Priority lanes. The sender thread only sends from a lane when all lanes before it are empty.
+     */
+    public enum Lane {
+        /**
+         * Text, serial and service packets.
+         */
+        CONTROL,
+
+        /**
+         * Audio packets.
+         */
+        AUDIO;
+
+        private static final Lane[] VALUES = values();
+
+        /**
+         * Gets the lane for a datagram, from the protocol in its head.
+         *
+         * @param packet The buffer containing the datagram.
+         * @param offset The index of the first byte of the datagram.
+         *
+         * @return The lane of the datagram.
+         */
+        public static Lane of(byte[] packet, int offset) {
+            int protocol = packet.length > offset + 4 ? packet[offset + 4] & 0xE0 : 0;
+
+            return protocol == VBAN.Protocol.AUDIO.getValue() ? AUDIO : CONTROL;
+        }
+    }
+
+    // a pooled datagram, owned by exactly one producer, lane or the sender thread at a time
+    private static final class Buffer {
+        private final byte[] bytes = new byte[VBANPacket.MAX_SIZE];
+        private final ByteBuffer view = ByteBuffer.wrap(bytes);
+        private int length;
+        private DatagramChannel channel;
+        private InetSocketAddress target;
+        private long submitNanos;
+
+        void fill(byte[] src, int offset, int length, DatagramChannel channel, InetSocketAddress target) {
+            System.arraycopy(src, offset, bytes, 0, length);
+            this.length = length;
+            this.channel = channel;
+            this.target = target;
+            this.submitNanos = System.nanoTime();
+        }
+
+        ByteBuffer view() {
+            view.clear();
+            view.limit(length);
+            return view;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package de.comroid.vban.send;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.util.stats.LogHistogram;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.packet.VBANPacket;
+
+/**
+ * Paces many audio output streams from a few scheduler threads, instead of one timer thread per stream.
+ * <p>
+ * Every {@linkplain #add(VBANOutputStream, VBAN.SampleRate, int, Producer) added} stream is due once per packet
+ * period. Each scheduler thread keeps its streams in a binary min-heap keyed by their next deadline, parks until
+ * shortly before the earliest deadline, then waits out the rest with its {@link WaitStrategy}, pulls the next
+ * payload from the stream's {@link Producer} and sends it. Deadlines advance by exactly one period, with the
+ * fraction of a nanosecond carried over, so that streams do not drift against their sample rate.
+ * <p>
+ * Streams with the same period are staggered: the {@code k}-th such stream of a thread is due at the fraction
+ * {@code k * 0.618...} of the period, counted from an epoch that the thread keeps per period, which spreads any
+ * amount of streams evenly without knowing their number in advance, no matter when they are added.
+ * Every stream records how late its sends are in a {@link LogHistogram}.
+ * <p>
+ * Streams are assigned to the thread with the fewest streams. Producers run on the scheduler threads and must
+ * return quickly; a producer that has no audio yet returns {@code false}, which is counted as an underrun.
+ */
+public class SendScheduler implements Closeable {
+    /**
+     * The nanoseconds before a deadline at which a scheduler thread stops parking and starts to wait with its
+     * {@link WaitStrategy}, because parking is only as precise as the timer of the operating system.
+     */
+    public static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    /**
+     * The amount of periods a stream may fall behind before its missed deadlines are skipped, rather than sent in
+     * a burst.
+     */
+    public static final int MAX_LATE_PERIODS = 4;
+
+    // the golden ratio conjugate as a binary fraction of 2^32
+    private static final long STAGGER = 0x9E3779B9L;
+
+    private final Worker[] workers;
+    private final WaitStrategy strategy;
+    private volatile boolean running = true;
+    private boolean started = false;
+
+    /**
+     * Constructor. Call {@link #start()} to start sending.
+     *
+     * @param threads  The amount of scheduler threads, such as one per core that may be used for sending.
+     * @param strategy How to wait out the last {@link #SPIN_NANOS} before a deadline.
+     *
+     * @throws IllegalArgumentException If the amount of threads is smaller than {@code 1}.
+     */
+    public SendScheduler(int threads, WaitStrategy strategy) throws IllegalArgumentException {
+        if (threads < 1)
+            throw new IllegalArgumentException("At least one thread is required: " + threads);
+
+        this.strategy = strategy;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++)
+            workers[i] = new Worker();
+    }
+
+    /**
+     * Starts the scheduler threads as daemon threads.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the scheduler has already been started or has been closed.
+     */
+    public synchronized SendScheduler start() throws IllegalStateException {
+        if (started || !running)
+            throw new IllegalStateException("Scheduler already started or closed");
+
+        for (int i = 0; i < workers.length; i++) {
+            final Worker worker = workers[i];
+
+            worker.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    worker.work();
+                }
+            }, "VBAN-SendScheduler-" + i);
+            worker.thread.setDaemon(true);
+            worker.thread.start();
+        }
+        started = true;
+
+        return this;
+    }
+
+    /**
+     * Adds a stream to be paced. Its first packet is due within one period, at its staggered phase.
+     *
+     * @param out        The stream to send the payloads with; see {@link VBANOutputStream#sendPayload(ByteBuffer)}.
+     * @param sampleRate The sample rate of the stream.
+     * @param samples    The amount of samples per packet, within {@code [1;256]}.
+     * @param producer   The producer of the payloads.
+     *
+     * @return The handle of the stream.
+     * @throws IllegalArgumentException If the amount of samples is out of range.
+     * @throws IllegalStateException    If the scheduler has been closed.
+     */
+    public synchronized Stream add(VBANOutputStream<?> out, VBAN.SampleRate sampleRate, int samples, Producer producer)
+            throws IllegalArgumentException, IllegalStateException {
+        if (samples < 1 || samples > 256)
+            throw new IllegalArgumentException("Samples must be within [1;256]: " + samples);
+        if (!running)
+            throw new IllegalStateException("Scheduler is closed");
+
+        Worker worker = workers[0];
+        for (Worker other : workers)
+            if (other.streams < worker.streams)
+                worker = other;
+
+        long hz = sampleRate.getHz();
+        Stream stream = new Stream(worker, out, producer, samples * TimeUnit.SECONDS.toNanos(1), hz);
+        Integer index = worker.phases.get(stream.periodNanos);
+        int k = index == null ? 0 : index;
+        worker.phases.put(stream.periodNanos, k + 1);
+        stream.phaseNanos = (k * STAGGER & 0xFFFFFFFFL) * stream.periodNanos >>> 32;
+        worker.streams++;
+
+        worker.commands.offer(stream);
+        LockSupport.unpark(worker.thread);
+        return stream;
+    }
+
+    /**
+     * Gets the amount of streams that are being paced.
+     *
+     * @return The amount of streams.
+     */
+    public synchronized int getStreams() {
+        int streams = 0;
+
+        for (Worker worker : workers)
+            streams += worker.streams;
+        return streams;
+    }
+
+    /**
+     * Stops all scheduler threads, after their current send.
+     */
+    @Override
+    public void close() {
+        running = false;
+
+        for (Worker worker : workers) {
+            Thread thread = worker.thread;
+            if (thread == null)
+                continue;
+
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Produces the payloads of one stream, on a scheduler thread.
+     */
+    public interface Producer {
+        /**
+         * Writes the payload of the next packet into the given buffer.
+         *
+         * @param payload A cleared buffer of {@link VBANPacket#MAX_SIZE_WITHOUT_HEAD} bytes, to put the payload into.
+         *
+         * @return Whether a payload has been written; {@code false} skips this packet as an underrun.
+         */
+        boolean produce(ByteBuffer payload);
+    }
+
+    /**
+     * The handle of one paced stream.
+     */
+    public final class Stream {
+        private final Worker worker;
+        private final VBANOutputStream<?> out;
+        private final Producer producer;
+        private final ByteBuffer payload = ByteBuffer.allocate(VBANPacket.MAX_SIZE_WITHOUT_HEAD);
+        private final long periodNanos;
+        private final long periodRemainder;
+        private final long hz;
+        private final LogHistogram lateness = new LogHistogram();
+        private long phaseNanos;
+        private long deadline;
+        private long carry = 0;
+        private int heapIndex = -1;
+        private boolean retired = false;
+        private volatile boolean cancelled = false;
+        private volatile long nextDeadline = 0;
+        private volatile long sent = 0;
+        private volatile long underruns = 0;
+        private volatile long skipped = 0;
+        private volatile Exception lastError;
+
+        private Stream(Worker worker, VBANOutputStream<?> out, Producer producer, long periodTimesHz, long hz) {
+            this.worker = worker;
+            this.out = out;
+            this.producer = producer;
+            this.periodNanos = periodTimesHz / hz;
+            this.periodRemainder = periodTimesHz % hz;
+            this.hz = hz;
+        }
+
+        /**
+         * Removes this stream from its scheduler. Does not close the output stream.
+         */
+        public void cancel() {
+            if (cancelled)
+                return;
+
+            cancelled = true;
+            worker.commands.offer(this);
+            LockSupport.unpark(worker.thread);
+        }
+
+        /**
+         * Whether this stream has been {@linkplain #cancel() cancelled}, or stopped by an exception of its producer
+         * or its output stream.
+         *
+         * @return Whether the stream is no longer paced.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Gets the histogram of nanoseconds by which sends have missed their deadline.
+         *
+         * @return The lateness histogram.
+         */
+        public LogHistogram getLateness() {
+            return lateness;
+        }
+
+        /**
+         * Gets the packet period of this stream.
+         *
+         * @return The period in nanoseconds, rounded down.
+         */
+        public long getPeriodNanos() {
+            return periodNanos;
+        }
+
+        /**
+         * Gets the offset of the deadlines of this stream from the epoch of its period, which staggers it against
+         * the other streams of the same period.
+         *
+         * @return The phase in nanoseconds.
+         */
+        public long getPhaseNanos() {
+            return phaseNanos;
+        }
+
+        /**
+         * Gets the {@link System#nanoTime()} at which the next packet of this stream is due.
+         *
+         * @return The next deadline, or {@code 0} while the stream has not been scheduled yet.
+         */
+        public long getNextDeadlineNanos() {
+            return nextDeadline;
+        }
+
+        /**
+         * Gets the amount of packets that have been sent.
+         *
+         * @return The amount of sent packets.
+         */
+        public long getSent() {
+            return sent;
+        }
+
+        /**
+         * Gets the amount of deadlines at which the producer had no payload.
+         *
+         * @return The amount of underruns.
+         */
+        public long getUnderruns() {
+            return underruns;
+        }
+
+        /**
+         * Gets the amount of deadlines that have been skipped, because the stream had fallen behind by more than
+         * {@link #MAX_LATE_PERIODS} periods.
+         *
+         * @return The amount of skipped deadlines.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Gets the exception that stopped this stream.
+         *
+         * @return The exception thrown by the producer or the output stream, or {@code null}.
+         */
+        public Exception getLastError() {
+            return lastError;
+        }
+
+        private void send(long now) {
+            lateness.record(now - deadline);
+
+            payload.clear();
+            // a failing producer or output stream only stops its own stream, never the thread
+            try {
+                if (producer.produce(payload)) {
+                    payload.flip();
+                    out.sendPayload(payload);
+                    sent++;
+                } else underruns++;
+            } catch (IOException | RuntimeException e) {
+                lastError = e;
+                cancelled = true;
+                return;
+            }
+
+            advance();
+            if (now - deadline > MAX_LATE_PERIODS * periodNanos) {
+                long missed = (now - deadline) / periodNanos;
+                skipped += missed;
+                for (long i = 0; i < missed; i++)
+                    advance();
+            }
+            nextDeadline = deadline;
+        }
+
+        private void advance() {
+            deadline += periodNanos;
+            carry += periodRemainder;
+            if (carry >= hz) {
+                carry -= hz;
+                deadline++;
+            }
+        }
+    }
+
+    // the deadlines of all streams of one period are this plus their phase, advanced by whole periods
+    private static final class Epoch {
+        private long base;
+        private long carry = 0;
+
+        private Epoch(long base) {
+            this.base = base;
+        }
+    }
+
+    private final class Worker {
+        private final ConcurrentLinkedQueue<Stream> commands = new ConcurrentLinkedQueue<>();
+        // phase counters per period, only accessed while holding the scheduler lock
+        private final Map<Long, Integer> phases = new HashMap<>();
+        // epochs per period, only accessed by the worker thread
+        private final Map<Long, Epoch> epochs = new HashMap<>();
+        private Stream[] heap = new Stream[16];
+        private int size = 0;
+        private int streams = 0;
+        private volatile Thread thread;
+
+        private void work() {
+            while (running) {
+                Stream stream;
+                while ((stream = commands.poll()) != null)
+                    apply(stream);
+
+                if (size == 0) {
+                    LockSupport.parkNanos(SendScheduler.this, TimeUnit.MILLISECONDS.toNanos(10));
+                    continue;
+                }
+
+                stream = heap[0];
+                long wait = stream.deadline - System.nanoTime();
+                if (wait > SPIN_NANOS) {
+                    if (commands.isEmpty())
+                        LockSupport.parkNanos(SendScheduler.this, wait - SPIN_NANOS);
+                    continue;
+                }
+
+                int counter = 0;
+                long now;
+                while ((now = System.nanoTime()) - stream.deadline < 0)
+                    counter = strategy.idle(counter);
+
+                stream.send(now);
+                if (stream.cancelled) {
+                    remove(stream);
+                    continue;
+                }
+                siftDown(0);
+            }
+        }
+
+        private void apply(Stream stream) {
+            if (stream.cancelled) {
+                if (stream.heapIndex >= 0)
+                    remove(stream);
+                else retire(stream);
+                return;
+            }
+            if (stream.heapIndex >= 0)
+                return;
+
+            schedule(stream, System.nanoTime());
+            if (size == heap.length)
+                heap = Arrays.copyOf(heap, size * 2);
+            heap[size] = stream;
+            stream.heapIndex = size;
+            siftUp(size++);
+        }
+
+        // the first deadline is the next one at or after now, on the grid of the period's epoch
+        private void schedule(Stream stream, long now) {
+            Epoch epoch = epochs.get(stream.periodNanos);
+            if (epoch == null)
+                epochs.put(stream.periodNanos, epoch = new Epoch(now));
+
+            long periods = (now - epoch.base) / stream.periodNanos;
+            long carry = epoch.carry + periods * stream.periodRemainder;
+            epoch.base += periods * stream.periodNanos + carry / stream.hz;
+            epoch.carry = carry % stream.hz;
+
+            stream.deadline = epoch.base + stream.phaseNanos;
+            stream.carry = epoch.carry;
+            if (stream.deadline - now < 0)
+                stream.advance();
+            stream.nextDeadline = stream.deadline;
+        }
+
+        private void remove(Stream stream) {
+            int index = stream.heapIndex;
+            Stream last = heap[--size];
+            heap[size] = null;
+            stream.heapIndex = -1;
+            retire(stream);
+
+            if (index == size)
+                return;
+            heap[index] = last;
+            last.heapIndex = index;
+            siftDown(index);
+            siftUp(last.heapIndex);
+        }
+
+        // a stream may be cancelled before its addition has been applied, and is only counted down once
+        private void retire(Stream stream) {
+            if (stream.retired)
+                return;
+
+            stream.retired = true;
+            synchronized (SendScheduler.this) {
+                streams--;
+            }
+        }
+
+        private void siftUp(int index) {
+            Stream stream = heap[index];
+
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                Stream above = heap[parent];
+                if (above.deadline - stream.deadline <= 0)
+                    break;
+
+                heap[index] = above;
+                above.heapIndex = index;
+                index = parent;
+            }
+            heap[index] = stream;
+            stream.heapIndex = index;
+        }
+
+        private void siftDown(int index) {
+            Stream stream = heap[index];
+
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && heap[child + 1].deadline - heap[child].deadline < 0)
+                    child++;
+                if (stream.deadline - heap[child].deadline <= 0)
+                    break;
+
+                heap[index] = heap[child];
+                heap[index].heapIndex = index;
+                index = child;
+            }
+            heap[index] = stream;
+            stream.heapIndex = index;
+        }
+    }
+}
@@ -0,0 +1,570 @@
+package de.comroid.vban.send;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import de.comroid.util.concurrent.BoundedQueue;
+import de.comroid.util.stats.LogHistogram;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.packet.VBANPacket;
+
+/**
+ * Caps the bandwidth of several senders on one host, so that they do not send line-rate bursts that overflow the
+ * buffers of small switches.
+ * <p>
+ * Every {@linkplain #register(long, int) registered} stream has its own token bucket, and all of them share the
+ * aggregate bucket of the shaper. A bucket allows bursts of up to its burst size, and otherwise the configured
+ * bytes per second. Buckets are kept as the virtual time at which they are drained again, which is advanced with a
+ * single compare-and-set, so shaping decisions never lock. A datagram is first timed by the bucket of its stream,
+ * then by the aggregate bucket. Datagrams that are within both caps are sent right away, on the calling thread;
+ * all others are copied into a pooled buffer and held in a pacing queue, from which the shaper thread sends them
+ * when they are due. Only when all buffers are held, the datagram is dropped.
+ * Dropped datagrams give their tokens back, also when an {@link AsyncSender} drops them.
+ * <p>
+ * Output streams use a shaper through {@link VBANOutputStream#setTrafficShaper(Stream)}.
+ */
+public class TrafficShaper implements Closeable {
+    private final Bucket aggregate;
+    private final BoundedQueue<Held> pool;
+    private final BoundedQueue<Held> inbox;
+    private final PriorityQueue<Held> pacing;
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong delayNanos = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final LogHistogram delay = new LogHistogram();
+    private volatile boolean running = true;
+    private volatile boolean idle = false;
+    private volatile boolean stopped = false;
+    private volatile long sent = 0;
+    private volatile long sendErrors = 0;
+    private volatile IOException lastError;
+    private volatile Thread thread;
+    private long sequence = 0;
+
+    /**
+     * Constructor. Call {@link #start()} to start sending held datagrams.
+     *
+     * @param bytesPerSecond The aggregate cap of all streams, or {@code 0} for no aggregate cap.
+     * @param burstBytes     The amount of bytes that may be sent at once when the aggregate bucket is full.
+     * @param capacity       The amount of datagrams that can be held in the pacing queue.
+     *
+     * @throws IllegalArgumentException If any argument is out of range.
+     */
+    public TrafficShaper(long bytesPerSecond, int burstBytes, int capacity) throws IllegalArgumentException {
+        this.aggregate = bucket(bytesPerSecond, burstBytes);
+        this.pool = new BoundedQueue<>(capacity);
+        this.inbox = new BoundedQueue<>(pool.capacity());
+        this.pacing = new PriorityQueue<>(pool.capacity());
+
+        for (int i = 0; i < pool.capacity(); i++)
+            pool.offer(new Held());
+    }
+
+    /**
+     * Starts the shaper thread as a daemon thread.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the shaper has already been started or has been closed.
+     */
+    public synchronized TrafficShaper start() throws IllegalStateException {
+        if (thread != null || !running)
+            throw new IllegalStateException("Shaper already started or closed");
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "VBAN-TrafficShaper");
+        thread.setDaemon(true);
+        thread.start();
+
+        return this;
+    }
+
+    /**
+     * Registers a stream that is only capped by the aggregate bucket.
+     *
+     * @return The handle to send the datagrams of the stream with.
+     */
+    public Stream register() {
+        return new Stream(null);
+    }
+
+    /**
+     * Registers a stream with its own cap.
+     *
+     * @param bytesPerSecond The cap of the stream, or {@code 0} for no cap of its own.
+     * @param burstBytes     The amount of bytes the stream may send at once when its bucket is full.
+     *
+     * @return The handle to send the datagrams of the stream with.
+     * @throws IllegalArgumentException If any argument is out of range.
+     */
+    public Stream register(long bytesPerSecond, int burstBytes) throws IllegalArgumentException {
+        return new Stream(bucket(bytesPerSecond, burstBytes));
+    }
+
+    /**
+     * Gets the amount of datagrams that have been held in the pacing queue.
+     *
+     * @return The amount of delayed datagrams.
+     */
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    /**
+     * Gets the sum of the delays that have been added to datagrams, in nanoseconds.
+     *
+     * @return The total added delay.
+     */
+    public long getDelayNanos() {
+        return delayNanos.get();
+    }
+
+    /**
+     * Gets the histogram of the delays that have been added to delayed datagrams, in nanoseconds.
+     *
+     * @return The delay histogram.
+     */
+    public LogHistogram getDelay() {
+        return delay;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been dropped, because the pacing queue was full.
+     *
+     * @return The amount of dropped datagrams.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the amount of held datagrams that have not been sent, because the shaper has been
+     * {@linkplain #close() closed} before they were due.
+     *
+     * @return The amount of discarded datagrams.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * Gets the amount of held datagrams that the shaper thread has sent, or submitted to their async sender.
+     * Failed sends, and datagrams that the async sender has dropped, are not included.
+     *
+     * @return The amount of sent datagrams.
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Gets the amount of held datagrams that could not be sent because of an {@link IOException}.
+     *
+     * @return The amount of failed sends.
+     * @see #getLastError()
+     */
+    public long getSendErrors() {
+        return sendErrors;
+    }
+
+    /**
+     * Gets the exception of the last failed send of a held datagram.
+     *
+     * @return The last send exception, or {@code null}.
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Gets the amount of datagrams currently held in the pacing queue.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        return pool.capacity() - pool.size();
+    }
+
+    /**
+     * Sends all held datagrams when they are due, then stops the shaper thread.
+     * Waits at most one second for the pacing queue to drain; after that, the shaper thread keeps sending the
+     * datagrams it has already queued for pacing in the background. Datagrams held after the shaper thread has
+     * stopped, or while it has never been started, are {@linkplain #getDiscarded() discarded}.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+        }
+
+        if (thread != null) {
+            LockSupport.unpark(thread);
+
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        stopped = true;
+        discardInbox();
+    }
+
+    private boolean hold(Stream stream, long release, long now, int cost, Held held) {
+        if (held == null) {
+            refund(stream, cost);
+            stream.dropped++;
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        held.stream = stream;
+        held.releaseNanos = release;
+        // the inbox has the capacity of the pool, so it always takes a pooled buffer
+        inbox.offer(held);
+
+        stream.delayed++;
+        stream.delayNanos += release - now;
+        delayed.incrementAndGet();
+        delayNanos.addAndGet(release - now);
+        delay.record(release - now);
+
+        if (idle)
+            LockSupport.unpark(thread);
+        // raced with close(), and the shaper thread may already have polled for the last time
+        if (stopped)
+            discardInbox();
+        return true;
+    }
+
+    // a dropped datagram does not use bandwidth, so it gives back its tokens
+    private void refund(Stream stream, int cost) {
+        if (stream.bucket != null)
+            stream.bucket.refund(cost);
+        if (aggregate != null)
+            aggregate.refund(cost);
+    }
+
+    private void discardInbox() {
+        Held held;
+
+        while ((held = inbox.poll()) != null) {
+            held.clear();
+            pool.offer(held);
+            discarded.incrementAndGet();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Held held;
+            while ((held = inbox.poll()) != null) {
+                held.sequence = sequence++;
+                pacing.offer(held);
+            }
+
+            held = pacing.peek();
+            if (held == null) {
+                if (!running) {
+                    if (stopped)
+                        return;
+
+                    // a producer either sees this flag, or queued early enough for the next poll
+                    stopped = true;
+                    continue;
+                }
+
+                idle = true;
+                // re-check, a producer may have queued before seeing the idle flag
+                if (inbox.size() == 0)
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                idle = false;
+                continue;
+            }
+
+            long wait = held.releaseNanos - System.nanoTime();
+            if (wait > 0) {
+                idle = true;
+                if (inbox.size() == 0)
+                    LockSupport.parkNanos(this, wait);
+                idle = false;
+                continue;
+            }
+
+            pacing.poll();
+            try {
+                if (held.send())
+                    sent++;
+                else refund(held.stream, held.length);
+            } catch (IOException e) {
+                lastError = e;
+                sendErrors++;
+            }
+            held.clear();
+            pool.offer(held);
+        }
+    }
+
+    private static Bucket bucket(long bytesPerSecond, int burstBytes) throws IllegalArgumentException {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("Bytes per second must not be negative: " + bytesPerSecond);
+        if (burstBytes < 0)
+            throw new IllegalArgumentException("Burst must not be negative: " + burstBytes);
+
+        return bytesPerSecond == 0 ? null : new Bucket(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * The handle of one registered stream. The methods of one handle are meant to be called by one sending thread
+     * at a time, such as the thread of one {@link VBANOutputStream}.
+     */
+    public final class Stream {
+        private final Bucket bucket;
+        private volatile long delayed = 0;
+        private volatile long delayNanos = 0;
+        private volatile long dropped = 0;
+
+        private Stream(Bucket bucket) {
+            this.bucket = bucket;
+        }
+
+        /**
+         * Sends a datagram on the given channel, now or when it is within the caps.
+         *
+         * @param datagram The datagram, from its position to its limit. The position is advanced to the limit.
+         * @param channel  The channel to send the datagram with.
+         * @param target   The address to send the datagram to.
+         *
+         * @return Whether the datagram has been sent or held; {@code false} if it has been dropped.
+         * @throws IOException              See {@link DatagramChannel#send(ByteBuffer, java.net.SocketAddress)}.
+         * @throws IllegalArgumentException If the datagram is larger than {@link VBANPacket#MAX_SIZE}.
+         */
+        public boolean send(ByteBuffer datagram, DatagramChannel channel, InetSocketAddress target)
+                throws IOException, IllegalArgumentException {
+            int length = datagram.remaining();
+            if (length > VBANPacket.MAX_SIZE)
+                throw new IllegalArgumentException("Datagram too large: " + length);
+
+            long now = System.nanoTime();
+            long release = reserve(length, now);
+            if (release <= now) {
+                channel.send(datagram, target);
+                return true;
+            }
+
+            Held held = pool.poll();
+            if (held != null) {
+                datagram.get(held.bytes, 0, length);
+                held.fill(length, target, channel, null);
+            } else datagram.position(datagram.limit());
+            return hold(this, release, now, length, held);
+        }
+
+        /**
+         * Submits a datagram to the given async sender, now or when it is within the caps.
+         *
+         * @param packet The buffer containing the whole datagram. The bytes are copied if the datagram is held.
+         * @param offset The index of the first byte of the datagram.
+         * @param length The length of the datagram.
+         * @param sender The sender to submit the datagram to.
+         * @param target The address to send the datagram to.
+         *
+         * @return Whether the datagram has been submitted or held; {@code false} if it has been dropped,
+         * by this shaper or by the sender.
+         * @throws IOException              See {@link AsyncSender#submit(byte[], int, int, InetSocketAddress)}.
+         * @throws IllegalArgumentException If the datagram is larger than {@link VBANPacket#MAX_SIZE}.
+         */
+        public boolean send(byte[] packet, int offset, int length, AsyncSender sender, InetSocketAddress target)
+                throws IOException, IllegalArgumentException {
+            return send(packet, offset, length, sender, null, target);
+        }
+
+        /**
+         * Submits a datagram to the given async sender, to be sent through the given channel, now or when it is
+         * within the caps.
+         *
+         * @param packet  The buffer containing the whole datagram. The bytes are copied if the datagram is held.
+         * @param offset  The index of the first byte of the datagram.
+         * @param length  The length of the datagram.
+         * @param sender  The sender to submit the datagram to.
+         * @param channel The channel the sender sends the datagram through, or {@code null} for its own channel.
+         * @param target  The address to send the datagram to.
+         *
+         * @return Whether the datagram has been submitted or held; {@code false} if it has been dropped,
+         * by this shaper or by the sender.
+         * @throws IOException              See {@link AsyncSender#submit(byte[], int, int, DatagramChannel,
+         *                                  InetSocketAddress)}.
+         * @throws IllegalArgumentException If the datagram is larger than {@link VBANPacket#MAX_SIZE}.
+         */
+        public boolean send(byte[] packet, int offset, int length, AsyncSender sender, DatagramChannel channel,
+                            InetSocketAddress target) throws IOException, IllegalArgumentException {
+            if (length > VBANPacket.MAX_SIZE)
+                throw new IllegalArgumentException("Datagram too large: " + length);
+
+            long now = System.nanoTime();
+            long release = reserve(length, now);
+            if (release <= now) {
+                if (sender.submit(packet, offset, length, channel, target))
+                    return true;
+
+                refund(this, length);
+                return false;
+            }
+
+            Held held = pool.poll();
+            if (held != null) {
+                System.arraycopy(packet, offset, held.bytes, 0, length);
+                held.fill(length, target, channel, sender);
+            }
+            return hold(this, release, now, length, held);
+        }
+
+        /**
+         * Takes the tokens for a datagram from the bucket of this stream and the aggregate bucket, for callers that
+         * pace their datagrams themselves.
+         *
+         * @param bytes The length of the datagram.
+         *
+         * @return The nanoseconds to wait before sending the datagram; {@code 0} if it can be sent right away.
+         */
+        public long reserve(int bytes) {
+            long now = System.nanoTime();
+
+            return Math.max(reserve(bytes, now) - now, 0);
+        }
+
+        /**
+         * Gets the amount of datagrams of this stream that have been held in the pacing queue.
+         *
+         * @return The amount of delayed datagrams.
+         */
+        public long getDelayed() {
+            return delayed;
+        }
+
+        /**
+         * Gets the sum of the delays that have been added to datagrams of this stream, in nanoseconds.
+         *
+         * @return The total added delay.
+         */
+        public long getDelayNanos() {
+            return delayNanos;
+        }
+
+        /**
+         * Gets the amount of datagrams of this stream that have been dropped, because the pacing queue was full.
+         *
+         * @return The amount of dropped datagrams.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Gets the shaper this stream is registered with.
+         *
+         * @return The shaper.
+         */
+        public TrafficShaper getShaper() {
+            return TrafficShaper.this;
+        }
+
+        private long reserve(int bytes, long now) {
+            long release = bucket == null ? now : bucket.reserve(bytes, now);
+
+            return aggregate == null ? release : aggregate.reserve(bytes, release);
+        }
+    }
+
+    // a token bucket, kept as the virtual time at which it is empty again, see the generic cell rate algorithm
+    private static final class Bucket {
+        private final long bytesPerSecond;
+        private final long burstNanos;
+        private final AtomicLong drainedNanos = new AtomicLong(Long.MIN_VALUE / 2);
+
+        private Bucket(long bytesPerSecond, int burstBytes) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.burstNanos = cost(burstBytes);
+        }
+
+        long reserve(int bytes, long arrival) {
+            long cost = cost(bytes);
+
+            while (true) {
+                long drained = drainedNanos.get();
+                long next = Math.max(drained, arrival) + cost;
+
+                if (drainedNanos.compareAndSet(drained, next))
+                    return Math.max(arrival, next - burstNanos);
+            }
+        }
+
+        void refund(int bytes) {
+            drainedNanos.addAndGet(-cost(bytes));
+        }
+
+        private long cost(long bytes) {
+            return bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+        }
+    }
+
+    // a pooled datagram, owned by exactly one producer, the inbox or the shaper thread at a time
+    private static final class Held implements Comparable<Held> {
+        private final byte[] bytes = new byte[VBANPacket.MAX_SIZE];
+        private final ByteBuffer view = ByteBuffer.wrap(bytes);
+        private int length;
+        private InetSocketAddress target;
+        private DatagramChannel channel;
+        private AsyncSender sender;
+        private Stream stream;
+        private long releaseNanos;
+        private long sequence;
+
+        void fill(int length, InetSocketAddress target, DatagramChannel channel, AsyncSender sender) {
+            this.length = length;
+            this.target = target;
+            this.channel = channel;
+            this.sender = sender;
+        }
+
+        // whether the datagram has been sent, or submitted and not dropped by the sender
+        boolean send() throws IOException {
+            if (sender != null)
+                return sender.submit(bytes, 0, length, channel, target);
+
+            view.clear();
+            view.limit(length);
+            channel.send(view, target);
+            return true;
+        }
+
+        void clear() {
+            target = null;
+            channel = null;
+            sender = null;
+            stream = null;
+        }
+
+        @Override
+        public int compareTo(Held other) {
+            if (releaseNanos != other.releaseNanos)
+                return releaseNanos - other.releaseNanos < 0 ? -1 : 1;
+            return sequence < other.sequence ? -1 : 1;
+        }
+    }
+}
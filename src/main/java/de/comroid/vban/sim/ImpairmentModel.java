@@ -0,0 +1,330 @@
+package de.comroid.vban.sim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides what a lossy, jittery network does to each datagram: drop it, duplicate it, and how long to delay every
+ * copy. All decisions are drawn from one seeded {@link Random} in datagram order, so the same seed and the same
+ * sequence of datagrams always yield the same decisions; a second model with the same seed replays the
+ * {@linkplain ImpairmentProxy proxy's} decisions offline, as ground truth for receiver-side measurements.
+ * <p>
+ * Loss follows the Gilbert-Elliott model: a hidden two-state Markov chain that enters its bad state with a
+ * probability per datagram, and leaves it with another one. Datagrams are lost with the {@linkplain Builder#setLoss
+ * loss rate} in the good state, and with the {@linkplain Builder#setBurstLoss burst loss rate} in the bad state;
+ * without burst loss, the model never enters the bad state and loss is independent. Reordering comes from jitter
+ * that lets datagrams overtake each other, and from datagrams that are held back on purpose.
+ * <p>
+ * Not thread-safe.
+ */
+public class ImpairmentModel {
+    private final long seed;
+    private final Random random;
+    private final double loss;
+    private final double enterBad;
+    private final double leaveBad;
+    private final double lossInBad;
+    private final double duplication;
+    private final long delayNanos;
+    private final long jitterNanos;
+    private final Distribution jitter;
+    private final double reordering;
+    private final long reorderNanos;
+    private final Decision decision = new Decision();
+    private boolean bad = false;
+
+    private ImpairmentModel(Builder builder) {
+        this.seed = builder.seed;
+        this.random = new Random(seed);
+        this.loss = builder.loss;
+        this.enterBad = builder.enterBad;
+        this.leaveBad = builder.leaveBad;
+        this.lossInBad = builder.lossInBad;
+        this.duplication = builder.duplication;
+        this.delayNanos = builder.delayNanos;
+        this.jitterNanos = builder.jitterNanos;
+        this.jitter = builder.jitter;
+        this.reordering = builder.reordering;
+        this.reorderNanos = builder.reorderNanos;
+    }
+
+    /**
+     * Creates a new builder for a model that does not impair anything until configured otherwise.
+     *
+     * @param seed The seed of the random decisions.
+     *
+     * @return A new builder.
+     */
+    public static Builder builder(long seed) {
+        return new Builder(seed);
+    }
+
+    /**
+     * Decides the fate of the next datagram.
+     *
+     * @return The decision. The same instance is reused by the next call.
+     */
+    public Decision next() {
+        bad = bad ? random.nextDouble() >= leaveBad : random.nextDouble() < enterBad;
+        decision.bad = bad;
+        decision.dropped = random.nextDouble() < (bad ? lossInBad : loss);
+        if (decision.dropped) {
+            decision.copies = 0;
+            return decision;
+        }
+
+        decision.copies = random.nextDouble() < duplication ? 2 : 1;
+        for (int i = 0; i < decision.copies; i++) {
+            long delay = delayNanos + jitter();
+            decision.heldBack[i] = random.nextDouble() < reordering;
+            if (decision.heldBack[i])
+                delay += reorderNanos;
+            decision.delayNanos[i] = delay;
+        }
+        return decision;
+    }
+
+    /**
+     * Starts the decisions over from the seed, for a replay.
+     */
+    public void reset() {
+        random.setSeed(seed);
+        bad = false;
+    }
+
+    /**
+     * Gets the seed of the random decisions.
+     *
+     * @return The seed.
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    private long jitter() {
+        if (jitterNanos == 0)
+            return 0;
+
+        switch (jitter) {
+            case UNIFORM:
+                return (long) (random.nextDouble() * jitterNanos);
+            case NORMAL:
+                return (long) Math.abs(random.nextGaussian() * jitterNanos);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1 - random.nextDouble()) * jitterNanos);
+            default:
+                throw new AssertionError("Unknown distribution: " + jitter);
+        }
+    }
+
+    /**
+     * Distributions of the jitter that is added to the delay of every datagram.
+     */
+    public enum Distribution {
+        /**
+         * Uniformly distributed within {@code [0;scale)}.
+         */
+        UNIFORM,
+        /**
+         * The absolute value of a normal distribution with a standard deviation of {@code scale}.
+         */
+        NORMAL,
+        /**
+         * Exponentially distributed with a mean of {@code scale}; mostly small, with a long tail.
+         */
+        EXPONENTIAL
+    }
+
+    /**
+     * The decision for one datagram.
+     */
+    public static final class Decision {
+        private final long[] delayNanos = new long[2];
+        private final boolean[] heldBack = new boolean[2];
+        private boolean dropped;
+        private boolean bad;
+        private int copies;
+
+        private Decision() {
+        }
+
+        /**
+         * Whether the datagram is lost.
+         *
+         * @return Whether the datagram is dropped.
+         */
+        public boolean isDropped() {
+            return dropped;
+        }
+
+        /**
+         * Whether the loss model was in its bad state for this datagram.
+         *
+         * @return Whether the datagram fell into a loss burst.
+         */
+        public boolean isBad() {
+            return bad;
+        }
+
+        /**
+         * Gets the amount of copies of the datagram to deliver.
+         *
+         * @return {@code 0} if it is dropped, {@code 2} if it is duplicated, and {@code 1} otherwise.
+         */
+        public int getCopies() {
+            return copies;
+        }
+
+        /**
+         * Gets the delay of one copy of the datagram.
+         *
+         * @param copy The index of the copy, smaller than {@link #getCopies()}.
+         *
+         * @return The delay in nanoseconds.
+         */
+        public long getDelayNanos(int copy) {
+            return delayNanos[copy];
+        }
+
+        /**
+         * Whether one copy of the datagram is held back to be reordered.
+         *
+         * @param copy The index of the copy, smaller than {@link #getCopies()}.
+         *
+         * @return Whether the reorder delay has been added.
+         */
+        public boolean isHeldBack(int copy) {
+            return heldBack[copy];
+        }
+    }
+
+    /**
+     * Builder for models.
+     */
+    public static final class Builder implements de.comroid.util.model.Builder<ImpairmentModel> {
+        private final long seed;
+        private double loss = 0;
+        private double enterBad = 0;
+        private double leaveBad = 1;
+        private double lossInBad = 0;
+        private double duplication = 0;
+        private long delayNanos = 0;
+        private long jitterNanos = 0;
+        private Distribution jitter = Distribution.UNIFORM;
+        private double reordering = 0;
+        private long reorderNanos = 0;
+
+        private Builder(long seed) {
+            this.seed = seed;
+        }
+
+        /**
+         * Sets the probability of losing a datagram, in the good state of the loss model.
+         *
+         * @param loss The loss rate within {@code [0;1]}.
+         *
+         * @return This instance.
+         * @throws IllegalArgumentException If the rate is out of range.
+         */
+        public Builder setLoss(double loss) throws IllegalArgumentException {
+            this.loss = probability("Loss", loss);
+            return this;
+        }
+
+        /**
+         * Enables loss bursts.
+         *
+         * @param enterBad  The probability per datagram of entering the bad state.
+         * @param leaveBad  The probability per datagram of leaving the bad state; the mean burst length is its inverse.
+         * @param lossInBad The probability of losing a datagram in the bad state.
+         *
+         * @return This instance.
+         * @throws IllegalArgumentException If a probability is out of range.
+         */
+        public Builder setBurstLoss(double enterBad, double leaveBad, double lossInBad)
+                throws IllegalArgumentException {
+            this.enterBad = probability("Entering the bad state", enterBad);
+            this.leaveBad = probability("Leaving the bad state", leaveBad);
+            this.lossInBad = probability("Burst loss", lossInBad);
+            return this;
+        }
+
+        /**
+         * Sets the probability of delivering a datagram twice.
+         *
+         * @param duplication The duplication rate within {@code [0;1]}.
+         *
+         * @return This instance.
+         * @throws IllegalArgumentException If the rate is out of range.
+         */
+        public Builder setDuplication(double duplication) throws IllegalArgumentException {
+            this.duplication = probability("Duplication", duplication);
+            return this;
+        }
+
+        /**
+         * Sets the constant delay of every datagram.
+         *
+         * @param delay The delay.
+         * @param unit  The unit of the delay.
+         *
+         * @return This instance.
+         * @throws IllegalArgumentException If the delay is negative.
+         */
+        public Builder setDelay(long delay, TimeUnit unit) throws IllegalArgumentException {
+            this.delayNanos = duration("Delay", delay, unit);
+            return this;
+        }
+
+        /**
+         * Sets the random jitter that is added to the delay of every datagram.
+         *
+         * @param scale        The scale of the distribution.
+         * @param unit         The unit of the scale.
+         * @param distribution The distribution of the jitter.
+         *
+         * @return This instance.
+         * @throws IllegalArgumentException If the scale is negative.
+         */
+        public Builder setJitter(long scale, TimeUnit unit, Distribution distribution)
+                throws IllegalArgumentException {
+            this.jitterNanos = duration("Jitter", scale, unit);
+            this.jitter = distribution;
+            return this;
+        }
+
+        /**
+         * Holds back random datagrams, so that the following ones overtake them.
+         *
+         * @param reordering The probability of holding back a datagram.
+         * @param extraDelay The delay added to held back datagrams.
+         * @param unit       The unit of the delay.
+         *
+         * @return This instance.
+         * @throws IllegalArgumentException If the probability is out of range or the delay is negative.
+         */
+        public Builder setReordering(double reordering, long extraDelay, TimeUnit unit)
+                throws IllegalArgumentException {
+            this.reordering = probability("Reordering", reordering);
+            this.reorderNanos = duration("Reorder delay", extraDelay, unit);
+            return this;
+        }
+
+        @Override
+        public ImpairmentModel build() {
+            return new ImpairmentModel(this);
+        }
+
+        private static double probability(String name, double value) throws IllegalArgumentException {
+            if (!(value >= 0 && value <= 1))
+                throw new IllegalArgumentException(name + " must be within [0;1]: " + value);
+            return value;
+        }
+
+        private static long duration(String name, long value, TimeUnit unit) throws IllegalArgumentException {
+            if (value < 0)
+                throw new IllegalArgumentException(name + " must not be negative: " + value);
+            return unit.toNanos(value);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package de.comroid.vban.sim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import de.comroid.util.stats.LogHistogram;
+
+/**
+ * A local UDP relay that impairs the datagrams passing through it, for testing senders and receivers against loss,
+ * duplication, reordering, delay and jitter without leaving the loopback interface.
+ * <p>
+ * Senders send to the {@linkplain #getPort() port} of the proxy instead of to the receiver; the proxy forwards every
+ * datagram to its target as its {@link ImpairmentModel} decides, on a single relay thread. Because the decisions
+ * only depend on the seed and the order of the datagrams, a run with the same seed and the same datagrams makes
+ * the same decisions again. The statistics of the proxy are the ground truth to check the loss, reordering and
+ * jitter measured by a receiver against.
+ * <p>
+ * Datagrams are only relayed towards the target; the proxy does not relay replies.
+ */
+public class ImpairmentProxy implements Closeable {
+    // larger than any VBAN datagram; longer datagrams are truncated
+    private static final int BUFFER_SIZE = 2048;
+
+    private final ImpairmentModel model;
+    private final InetSocketAddress target;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final PriorityQueue<Held> held = new PriorityQueue<>();
+    private final ArrayDeque<Held> pool = new ArrayDeque<>();
+    private final LogHistogram delay = new LogHistogram();
+    private volatile boolean running = true;
+    private volatile Thread thread;
+    private long index = 0;
+    private long sequence = 0;
+    private long maxForwarded = -1;
+
+    // metrics
+    private volatile long received = 0;
+    private volatile long forwarded = 0;
+    private volatile long dropped = 0;
+    private volatile long burstDropped = 0;
+    private volatile long duplicated = 0;
+    private volatile long reordered = 0;
+    private volatile long sendErrors = 0;
+    private volatile IOException lastError;
+
+    /**
+     * Constructor. Binds the proxy to an ephemeral port of the loopback interface. Call {@link #start()} to start
+     * relaying.
+     *
+     * @param model  The model that decides the fate of every datagram.
+     * @param target The address to relay the datagrams to.
+     *
+     * @throws IOException If the channel cannot be opened.
+     */
+    public ImpairmentProxy(ImpairmentModel model, InetSocketAddress target) throws IOException {
+        this(model, target, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    /**
+     * Constructor. Call {@link #start()} to start relaying.
+     *
+     * @param model  The model that decides the fate of every datagram.
+     * @param target The address to relay the datagrams to.
+     * @param local  The address to bind the proxy to.
+     *
+     * @throws IOException If the channel cannot be opened or bound.
+     */
+    public ImpairmentProxy(ImpairmentModel model, InetSocketAddress target, InetSocketAddress local)
+            throws IOException {
+        this.model = model;
+        this.target = target;
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+
+        try {
+            channel.bind(local);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the relay thread as a daemon thread.
+     *
+     * @return This instance.
+     * @throws IllegalStateException If the proxy has already been started or has been closed.
+     */
+    public synchronized ImpairmentProxy start() throws IllegalStateException {
+        if (thread != null || !running)
+            throw new IllegalStateException("Proxy already started or closed");
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "VBAN-ImpairmentProxy");
+        thread.setDaemon(true);
+        thread.start();
+
+        return this;
+    }
+
+    /**
+     * Gets the port that senders send to.
+     *
+     * @return The local port of the proxy.
+     */
+    public int getPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    /**
+     * Gets the model of this proxy.
+     *
+     * @return The model.
+     */
+    public ImpairmentModel getModel() {
+        return model;
+    }
+
+    /**
+     * Gets the amount of datagrams that have arrived at the proxy.
+     *
+     * @return The amount of received datagrams.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been relayed, duplicates included.
+     *
+     * @return The amount of forwarded datagrams.
+     */
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been dropped, in total.
+     *
+     * @return The amount of dropped datagrams.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been dropped in the bad state of the loss model.
+     *
+     * @return The amount of datagrams dropped in bursts.
+     */
+    public long getBurstDropped() {
+        return burstDropped;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been relayed twice.
+     *
+     * @return The amount of duplicated datagrams.
+     */
+    public long getDuplicated() {
+        return duplicated;
+    }
+
+    /**
+     * Gets the amount of datagrams that have been relayed after a datagram that arrived later than them.
+     *
+     * @return The amount of reordered datagrams.
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    /**
+     * Gets the histogram of the delays that have been applied to relayed datagrams, in nanoseconds.
+     *
+     * @return The delay histogram.
+     */
+    public LogHistogram getDelay() {
+        return delay;
+    }
+
+    /**
+     * Gets the amount of datagrams that could not be relayed because of an {@link IOException},
+     * or because the send buffer of the channel was full.
+     *
+     * @return The amount of failed sends.
+     * @see #getLastError()
+     */
+    public long getSendErrors() {
+        return sendErrors;
+    }
+
+    /**
+     * Gets the exception of the last failed send.
+     *
+     * @return The last send exception, or {@code null}.
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Stops the relay thread and closes the channel. Datagrams that are still delayed are discarded.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+        }
+
+        if (thread != null) {
+            selector.wakeup();
+
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                receive();
+                long wait = forwardDue();
+
+                if (wait >= TimeUnit.MILLISECONDS.toNanos(1))
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                else if (wait > 0)
+                    LockSupport.parkNanos(this, wait);
+                selector.selectedKeys().clear();
+            } catch (IOException e) {
+                if (!running)
+                    return;
+                lastError = e;
+            }
+        }
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            Held datagram = acquire();
+            if (channel.receive(datagram.buffer) == null) {
+                pool.push(datagram);
+                return;
+            }
+
+            long now = System.nanoTime();
+            datagram.buffer.flip();
+            datagram.index = index++;
+            received++;
+
+            ImpairmentModel.Decision decision = model.next();
+            if (decision.isDropped()) {
+                dropped++;
+                if (decision.isBad())
+                    burstDropped++;
+                pool.push(datagram);
+                continue;
+            }
+
+            if (decision.getCopies() > 1) {
+                Held copy = acquire();
+                copy.buffer.put(datagram.buffer.array(), 0, datagram.buffer.limit()).flip();
+                copy.index = datagram.index;
+                hold(copy, now, decision.getDelayNanos(1));
+                duplicated++;
+            }
+            hold(datagram, now, decision.getDelayNanos(0));
+        }
+    }
+
+    private void hold(Held datagram, long now, long delayNanos) {
+        datagram.dueNanos = now + delayNanos;
+        datagram.sequence = sequence++;
+        held.offer(datagram);
+        delay.record(delayNanos);
+    }
+
+    // forwards the due datagrams, and returns the nanoseconds until the next one is due
+    private long forwardDue() {
+        Held next;
+
+        while ((next = held.peek()) != null) {
+            long wait = next.dueNanos - System.nanoTime();
+            if (wait > 0)
+                return wait;
+
+            held.poll();
+            try {
+                // the channel is non-blocking, and sends nothing while its send buffer is full
+                if (channel.send(next.buffer, target) < next.buffer.limit()) {
+                    sendErrors++;
+                } else {
+                    if (next.index < maxForwarded)
+                        reordered++;
+                    maxForwarded = Math.max(maxForwarded, next.index);
+                    forwarded++;
+                }
+            } catch (IOException e) {
+                lastError = e;
+                sendErrors++;
+            }
+            pool.push(next);
+        }
+
+        return TimeUnit.MILLISECONDS.toNanos(10);
+    }
+
+    private Held acquire() {
+        Held datagram = pool.poll();
+        if (datagram == null)
+            datagram = new Held();
+
+        datagram.buffer.clear();
+        return datagram;
+    }
+
+    // a datagram on its way through the proxy, confined to the relay thread
+    private static final class Held implements Comparable<Held> {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long index;
+        private long dueNanos;
+        private long sequence;
+
+        @Override
+        public int compareTo(Held other) {
+            if (dueNanos != other.dueNanos)
+                return dueNanos - other.dueNanos < 0 ? -1 : 1;
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package de.comroid.test.util.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.comroid.util.concurrent.BoundedQueue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedQueueTest {
+    @Test
+    public void testFifoAndBounds() {
+        assertEquals(2, new BoundedQueue<>(1).capacity());
+
+        BoundedQueue<Integer> queue = new BoundedQueue<>(3);
+        assertEquals(4, queue.capacity());
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 4; i++)
+                assertTrue(queue.offer(i));
+            assertFalse(queue.offer(4));
+            assertEquals(4, queue.size());
+
+            for (int i = 0; i < 4; i++)
+                assertEquals(i, (int) queue.poll());
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testConcurrentProducersAndConsumers() throws InterruptedException {
+        final BoundedQueue<Long> queue = new BoundedQueue<>(64);
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(producers);
+        Thread[] threads = new Thread[producers * 2];
+
+        for (int p = 0; p < producers; p++) {
+            final long base = (long) p * perProducer;
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < perProducer; i++)
+                        while (!queue.offer(base + i))
+                            Thread.yield();
+                    done.countDown();
+                }
+            });
+        }
+        for (int c = producers; c < threads.length; c++) {
+            threads[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Long element;
+                    while (done.getCount() > 0 || queue.size() > 0) {
+                        if ((element = queue.poll()) == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        sum.addAndGet(element);
+                        count.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        long n = (long) producers * perProducer;
+        assertEquals(n, count.get());
+        assertEquals(n * (n - 1) / 2, sum.get());
+    }
+}
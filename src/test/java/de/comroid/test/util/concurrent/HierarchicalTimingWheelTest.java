@@ -0,0 +1,89 @@
+package de.comroid.test.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.util.concurrent.HierarchicalTimingWheel;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchicalTimingWheelTest {
+    @Test
+    public void testExpiresAcrossLevelsNeverEarly() {
+        // 8 slots of 3 levels span 512 ticks; the last deadlines are parked beyond the range
+        final HierarchicalTimingWheel<Long> wheel = new HierarchicalTimingWheel<>(10, TimeUnit.NANOSECONDS, 8, 3, 0);
+        final List<Long> expired = new ArrayList<>();
+        final long[] now = new long[1];
+        Random random = new Random(42);
+
+        for (int i = 0; i < 2000; i++) {
+            long deadline = random.nextInt(20_000);
+            wheel.schedule(new HierarchicalTimingWheel.Timer<>(deadline), deadline);
+        }
+        assertEquals(2000, wheel.size());
+
+        HierarchicalTimingWheel.Expiry<Long> expiry = new HierarchicalTimingWheel.Expiry<Long>() {
+            @Override
+            public void onExpired(HierarchicalTimingWheel.Timer<Long> timer) {
+                // never early, and at most one tick late
+                assertTrue(timer.getValue() <= now[0]);
+                assertTrue(timer.getValue() > now[0] - 20);
+                assertFalse(timer.isScheduled());
+                expired.add(timer.getValue());
+            }
+        };
+        for (now[0] = 0; now[0] <= 20_010; now[0] += 7)
+            wheel.advance(now[0], expiry);
+
+        assertEquals(2000, expired.size());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleAndCancel() {
+        HierarchicalTimingWheel<String> wheel = new HierarchicalTimingWheel<>(1, TimeUnit.MILLISECONDS, 64, 2, 0);
+        HierarchicalTimingWheel.Timer<String> moved = new HierarchicalTimingWheel.Timer<>("moved");
+        HierarchicalTimingWheel.Timer<String> cancelled = new HierarchicalTimingWheel.Timer<>("cancelled");
+        final List<String> expired = new ArrayList<>();
+        HierarchicalTimingWheel.Expiry<String> expiry = new HierarchicalTimingWheel.Expiry<String>() {
+            @Override
+            public void onExpired(HierarchicalTimingWheel.Timer<String> timer) {
+                expired.add(timer.getValue());
+            }
+        };
+
+        wheel.schedule(moved, ms(5));
+        wheel.schedule(cancelled, ms(5));
+        wheel.schedule(moved, ms(100));
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+        assertEquals(1, wheel.size());
+
+        assertEquals(0, wheel.advance(ms(99), expiry));
+        assertEquals(1, wheel.advance(ms(100), expiry));
+        assertEquals(1, expired.size());
+        assertEquals("moved", expired.get(0));
+
+        // due timers expire on the next tick
+        wheel.schedule(moved, ms(50));
+        assertEquals(1, wheel.advance(ms(101), expiry));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTimerOfOtherWheel() {
+        HierarchicalTimingWheel.Timer<String> timer = new HierarchicalTimingWheel.Timer<>("timer");
+
+        new HierarchicalTimingWheel<String>(1, TimeUnit.MILLISECONDS, 64, 2, 0).schedule(timer, 10);
+        new HierarchicalTimingWheel<String>(1, TimeUnit.MILLISECONDS, 64, 2, 0).schedule(timer, 10);
+    }
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,83 @@
+package de.comroid.test.vban;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+
+import de.comroid.vban.Util;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.packet.VBANPacket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MulticastTest {
+    private static final String GROUP = "239.255.86.66";
+
+    @Test(timeout = 10000)
+    public void testFanOutOnLoopback() throws IOException {
+        InetAddress group = InetAddress.getByName(GROUP);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+        VBANInputStream<String> first = VBAN.openMulticastInputStream(VBAN.Protocol.TEXT, group, 0, loopback);
+        VBANInputStream<String> second = VBAN.openMulticastInputStream(VBAN.Protocol.TEXT, group, first.getPort(), loopback);
+        VBANOutputStream<String> out = VBAN.openMulticastOutputStream(
+                VBANPacket.Factory.protocolDefault(VBAN.Protocol.TEXT), group, first.getPort(), loopback, 1);
+
+        try {
+            assertEquals(1, first.getMemberships().size());
+
+            out.sendData("Strip[0].Gain=-6;");
+            assertEquals("Strip[0].Gain=-6;", first.readData());
+            assertEquals("Strip[0].Gain=-6;", second.readData());
+        } finally {
+            out.close();
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLeaveGroup() throws IOException {
+        InetAddress group = InetAddress.getByName(GROUP);
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+        VBANInputStream<String> in = VBAN.openMulticastInputStream(VBAN.Protocol.TEXT, group, 0, loopback);
+        VBANOutputStream<String> out = VBAN.openMulticastOutputStream(
+                VBANPacket.Factory.protocolDefault(VBAN.Protocol.TEXT), group, in.getPort(), loopback, 1);
+
+        try {
+            assertTrue(in.leaveGroup(group));
+            assertFalse(in.leaveGroup(group));
+            assertTrue(in.getMemberships().isEmpty());
+
+            in.setSocketTimeout(200);
+            out.sendData("Strip[0].Mute=1;");
+            in.readData();
+            fail("Received a datagram after leaving the group");
+        } catch (SocketTimeoutException expected) {
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnicastGroup() throws IOException {
+        VBAN.openMulticastInputStream(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Test
+    public void testBroadcastAddress() throws IOException {
+        assertTrue(Util.isBroadcastAddress(InetAddress.getByName("255.255.255.255")));
+        assertFalse(Util.isBroadcastAddress(InetAddress.getLoopbackAddress()));
+        assertFalse(Util.isBroadcastAddress(InetAddress.getByName(GROUP)));
+    }
+}
@@ -0,0 +1,151 @@
+package de.comroid.test.vban;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.model.data.MIDICommand;
+import de.comroid.vban.packet.VBANPacket;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ProtocolCodecTest {
+    // a custom payload type for audio streams: 16 bit samples
+    private static final VBAN.Protocol<short[]> SAMPLES = new VBAN.Protocol<short[]>(VBAN.Protocol.AUDIO.getValue()) {
+        @Override
+        public int encodeInto(short[] data, ByteBuffer dst) {
+            if (dst.remaining() < data.length * 2)
+                throw new BufferOverflowException();
+
+            for (short sample : data)
+                dst.put((byte) sample).put((byte) (sample >> 8));
+            return data.length * 2;
+        }
+
+        @Override
+        public short[] decodeInto(ByteBuffer src, @Nullable short[] reuse) {
+            short[] samples = reuse != null && reuse.length == src.remaining() / 2
+                    ? reuse
+                    : new short[src.remaining() / 2];
+
+            src.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+            src.position(src.limit());
+            return samples;
+        }
+    };
+
+    @Test
+    public void testAudioRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(VBANPacket.MAX_SIZE_WITHOUT_HEAD);
+        AudioFrame frame = AudioFrame.fromBytes(new byte[]{1, 2, 3, 4, 5, 6});
+        AudioFrame reuse = AudioFrame.allocate(16);
+
+        assertEquals(6, VBAN.Protocol.AUDIO.encodeInto(frame, buffer));
+        buffer.flip();
+        assertSame(reuse, VBAN.Protocol.AUDIO.decodeInto(buffer, reuse));
+        assertEquals(6, reuse.length());
+        assertArrayEquals(frame.getBytes(), reuse.getBytes());
+        assertEquals(0, buffer.remaining());
+
+        // too small to be refilled
+        buffer.rewind();
+        AudioFrame small = AudioFrame.allocate(2);
+        AudioFrame decoded = VBAN.Protocol.AUDIO.decodeInto(buffer, small);
+        assertNotSame(small, decoded);
+        assertArrayEquals(frame.getBytes(), decoded.getBytes());
+    }
+
+    @Test
+    public void testSerialRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        MIDICommand command = MIDICommand.fromBytes(new byte[]{(byte) 0x90, 60, 100});
+        MIDICommand reuse = MIDICommand.allocate(8);
+
+        VBAN.Protocol.SERIAL.encodeInto(command, buffer);
+        buffer.flip();
+        assertSame(reuse, VBAN.Protocol.SERIAL.decodeInto(buffer, reuse));
+        assertEquals(command.toString(), reuse.toString());
+    }
+
+    @Test
+    public void testTextRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+
+        VBAN.Protocol.TEXT.encodeInto("Bus(0).Mute = 1;", buffer);
+        buffer.put((byte) 0).put((byte) 0);
+        buffer.flip();
+
+        // stops at zero padding
+        assertEquals("Bus(0).Mute = 1;", VBAN.Protocol.TEXT.decode(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testServiceRoundTrip() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        byte[] reuse = new byte[3];
+
+        VBAN.Protocol.SERVICE.encodeInto(new byte[]{7, 8, 9}, buffer);
+        buffer.flip();
+        assertSame(reuse, VBAN.Protocol.SERVICE.decodeInto(buffer, reuse));
+        assertArrayEquals(new byte[]{7, 8, 9}, reuse);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownProtocolValue() {
+        new VBAN.Protocol<byte[]>(0x80) {
+            @Override
+            public int encodeInto(byte[] data, ByteBuffer dst) {
+                return 0;
+            }
+
+            @Override
+            public byte[] decodeInto(ByteBuffer src, @Nullable byte[] reuse) {
+                return null;
+            }
+        };
+    }
+
+    @Test(timeout = 10000)
+    public void testCustomProtocolOverNetwork() throws IOException {
+        VBANInputStream<short[]> in = new VBANInputStream<>(SAMPLES, InetAddress.getLoopbackAddress(), 0);
+        VBANPacket.Factory<short[]> factory = VBANPacket.Factory.protocolDefault(SAMPLES);
+        VBANOutputStream<short[]> out = new VBANOutputStream<>(factory, InetAddress.getLoopbackAddress(), in.getPort());
+        short[] reuse = new short[4];
+
+        try {
+            out.sendData(new short[]{1, -2, 300, Short.MIN_VALUE});
+            assertSame(reuse, in.readData(reuse));
+            assertArrayEquals(new short[]{1, -2, 300, Short.MIN_VALUE}, reuse);
+
+            out.sendData(new short[]{5, 6});
+            assertArrayEquals(new short[]{5, 6}, in.readData(reuse));
+
+            try {
+                out.sendData(new short[VBANPacket.MAX_SIZE_WITHOUT_HEAD]);
+                fail("Oversized data sent");
+            } catch (IllegalArgumentException expected) {
+            }
+
+            // a rejected payload does not use up a frame counter
+            assertEquals(2, out.getDatagramsSent());
+            assertEquals(2, factory.counter());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package de.comroid.test.vban;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.audio.LossConcealer;
+import de.comroid.vban.codec.AudioCodec;
+import de.comroid.vban.codec.AudioCodecs;
+import de.comroid.vban.codec.TextCodec;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.fec.ParityEncoder;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.HeaderCache;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.SessionTable;
+import de.comroid.vban.receive.StreamMonitor;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Guards the hot paths against allocations creeping back in. Every path runs {@value #WARMUP} times to warm up,
+ * then {@value #ROUNDS} rounds of {@value #ITERATIONS} times while the bytes allocated by the current thread are
+ * counted with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}. A path fails if even its
+ * quietest round allocates more per packet than its budget, give or take {@value #SLACK_BYTES} bytes per round;
+ * paths that touch the network get a small budget for the JDK's socket internals.
+ * Results are printed to stdout.
+ */
+public class SteadyStateAllocationTest {
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 10_000;
+    private static final int ROUNDS = 3;
+    // a few stray objects per round, far less than one allocation per 1000 packets
+    private static final long SLACK_BYTES = 128;
+    private static final int SAMPLES = 120;
+    private static final int CHANNELS = 2;
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeClass
+    public static void setUpClass() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("No per-thread allocation counter", bean instanceof com.sun.management.ThreadMXBean);
+
+        threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue("No per-thread allocation counter", threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testEncodeHead() throws Exception {
+        final VBANPacketHead.Factory<AudioFrame> factory = VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                .setSamples((byte) SAMPLES)
+                .setChannel((byte) CHANNELS)
+                .build();
+        final ByteBuffer datagram = ByteBuffer.allocateDirect(VBANPacket.MAX_SIZE);
+
+        assertBudget("encode head", 0, new HotPath() {
+            @Override
+            public void run(int i) {
+                datagram.clear();
+                factory.writeNext(datagram);
+            }
+        });
+    }
+
+    @Test
+    public void testAudioProtocolCodec() throws Exception {
+        final AudioFrame frame = AudioFrame.allocate(VBANPacket.MAX_SIZE_WITHOUT_HEAD).fill(pcm(), 0, pcm().length);
+        final ByteBuffer payload = ByteBuffer.allocateDirect(VBANPacket.MAX_SIZE_WITHOUT_HEAD);
+
+        assertBudget("audio encodeInto/decodeInto", 0, new HotPath() {
+            @Override
+            public void run(int i) {
+                payload.clear();
+                VBAN.Protocol.AUDIO.encodeInto(frame, payload);
+                payload.flip();
+                VBAN.Protocol.AUDIO.decodeInto(payload, frame);
+            }
+        });
+    }
+
+    @Test
+    public void testAudioCodecs() throws Exception {
+        final byte[] pcm = pcm();
+        final byte[] decoded = new byte[pcm.length];
+        final byte[] encoded = new byte[VBANPacket.MAX_SIZE_WITHOUT_HEAD];
+
+        for (final int codecValue : new int[]{VBAN.Codec.PCM, VBAN.Codec.USER}) {
+            AudioCodec codec = AudioCodecs.get(codecValue);
+            final AudioCodec.Encoder encoder = codec.newEncoder(VBAN.AudioFormat.INT16, CHANNELS);
+            final AudioCodec.Decoder decoder = codec.newDecoder(VBAN.AudioFormat.INT16, CHANNELS);
+            final int samples = Math.min(SAMPLES, encoder.maxSamplesPerPacket());
+
+            assertBudget(codec.getClass().getSimpleName() + " encode/decode", 0, new HotPath() {
+                @Override
+                public void run(int i) {
+                    int length = encoder.encode(pcm, 0, samples, encoded, 0);
+                    decoder.decode(encoded, 0, length, samples, decoded, 0);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testDecodeView() throws Exception {
+        final byte[] packet = audioPacket(0);
+        final VBANPacketView view = new VBANPacketView();
+        final HeaderCache cache = new HeaderCache();
+
+        assertBudget("view and head cache", 0, new HotPath() {
+            @Override
+            public void run(int i) throws Exception {
+                setFrameCounter(packet, i);
+                view.wrap(packet, 0, packet.length);
+                cache.decode(view);
+            }
+        });
+        assertEquals(WARMUP + ROUNDS * ITERATIONS - 1, cache.getFrameCounter());
+    }
+
+    @Test
+    public void testTextCodec() throws Exception {
+        final TextCodec codec = new TextCodec();
+        final byte[] packet = new byte[VBANPacket.MAX_SIZE];
+        final VBANPacketHead.Factory<String> factory = VBANPacketHead.Factory.builder(VBAN.Protocol.TEXT).build();
+        final ByteBuffer head = ByteBuffer.wrap(packet);
+        factory.writeNext(head);
+        final VBANPacketView view = new VBANPacketView();
+        final StringBuilder text = new StringBuilder("Strip[0].Gain = -6.0;");
+        final StringBuilder out = new StringBuilder(64);
+
+        assertBudget("text encode/decode", 0, new HotPath() {
+            @Override
+            public void run(int i) {
+                int length = codec.encode(text, VBAN.CommandFormat.UTF8, packet, VBANPacketHead.SIZE,
+                        VBANPacket.MAX_SIZE_WITHOUT_HEAD);
+                view.wrap(packet, 0, VBANPacketHead.SIZE + length);
+                out.setLength(0);
+                codec.decode(view, out);
+            }
+        });
+        assertEquals(text.toString(), out.toString());
+    }
+
+    @Test
+    public void testReceiveBookkeeping() throws Exception {
+        final byte[] packet = audioPacket(0);
+        final VBANPacketView view = new VBANPacketView();
+        final StreamMonitor monitor = new StreamMonitor();
+        final SessionTable<Object> sessions = new SessionTable<>(1, TimeUnit.SECONDS, null);
+        final InetAddress source = InetAddress.getLoopbackAddress();
+
+        assertBudget("stream monitor and session table", 0, new HotPath() {
+            @Override
+            public void run(int i) {
+                setFrameCounter(packet, i);
+                view.wrap(packet, 0, packet.length);
+                long now = System.nanoTime();
+                monitor.record(view, now);
+                sessions.record(source, 6980, view, now);
+                sessions.evictIdle(now);
+            }
+        });
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final byte[] packet = audioPacket(0);
+        final ParityEncoder encoder = new ParityEncoder(4);
+        final ParityDecoder decoder = new ParityDecoder(16);
+        final LossConcealer concealer = new LossConcealer(VBAN.SampleRate.Hz48000, VBAN.AudioFormat.INT16, CHANNELS,
+                LossConcealer.Strategy.EXTRAPOLATE, 48000);
+        final ByteBuffer wrapped = ByteBuffer.wrap(packet);
+        final ByteBuffer parity = ByteBuffer.allocate(VBANPacket.MAX_SIZE);
+        final byte[] concealed = new byte[SAMPLES * CHANNELS * 2];
+        final VBANPacketView view = new VBANPacketView();
+        final VBANPacketView recovered = new VBANPacketView();
+
+        assertBudget("parity and concealment", 0, new HotPath() {
+            @Override
+            public void run(int i) {
+                setFrameCounter(packet, i);
+                view.wrap(packet, 0, packet.length);
+                boolean complete = encoder.add(wrapped);
+                // every 16th datagram is lost, and either restored or concealed
+                if (i % 16 != 5) {
+                    decoder.receive(view, recovered);
+                    if (concealer.detectGap(view) > 0)
+                        concealer.conceal(concealed, 0, SAMPLES);
+                    concealer.accept(view);
+                }
+                if (complete) {
+                    parity.clear();
+                    int length = encoder.writeParity(parity);
+                    view.wrap(parity.array(), 0, length);
+                    decoder.receive(view, recovered);
+                }
+            }
+        });
+        assertTrue(decoder.getRecovered() > 0);
+    }
+
+    @Test(timeout = 60000)
+    public void testSendAndReceive() throws Exception {
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSamples((byte) SAMPLES)
+                        .setChannel((byte) CHANNELS)
+                        .build())
+                .build();
+        final VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        final VBANOutputStream<AudioFrame> out = VBAN.openAudioOutputStream(factory, InetAddress.getLoopbackAddress(),
+                in.getPort());
+        final ByteBuffer payload = ByteBuffer.allocateDirect(SAMPLES * CHANNELS * 2);
+        final AudioFrame frame = AudioFrame.allocate(VBANPacket.MAX_SIZE_WITHOUT_HEAD).fill(pcm(), 0, pcm().length);
+        final VBANPacketView view = new VBANPacketView();
+
+        try {
+            assertBudget("send and receive", 64, new HotPath() {
+                @Override
+                public void run(int i) throws Exception {
+                    payload.clear();
+                    out.sendPayload(payload);
+                    assertEquals(DecodeStatus.OK, in.receive(view));
+                    out.sendData(frame);
+                    in.readData(frame);
+                }
+            });
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static void assertBudget(String name, long bytesPerIteration, HotPath path) throws Exception {
+        for (int i = 0; i < WARMUP; i++)
+            path.run(i);
+
+        // the quietest round, as the JVM occasionally allocates on the thread for its own bookkeeping
+        long thread = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0, i = WARMUP; round < ROUNDS; round++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int end = i + ITERATIONS; i < end; i++)
+                path.run(i);
+            allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+        }
+
+        double perIteration = (double) allocated / ITERATIONS;
+        System.out.printf("Allocation %-36s %8.4f bytes/packet (budget %d)%n", name, perIteration, bytesPerIteration);
+        assertTrue(name + " allocates " + perIteration + " bytes per packet, budget is " + bytesPerIteration,
+                allocated <= bytesPerIteration * ITERATIONS + SLACK_BYTES);
+    }
+
+    private static byte[] pcm() {
+        byte[] pcm = new byte[SAMPLES * CHANNELS * 2];
+        for (int i = 0; i < pcm.length / 2; i++) {
+            int value = (int) (8000 * Math.sin(i / 20.0));
+            pcm[2 * i] = (byte) value;
+            pcm[2 * i + 1] = (byte) (value >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] audioPacket(int frameCounter) {
+        return new VBANPacket<>(new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz48000.getValue(), SAMPLES - 1,
+                CHANNELS - 1, VBAN.AudioFormat.INT16.getValue(), 0, "Stream1", frameCounter), pcm()).getBytes();
+    }
+
+    private static void setFrameCounter(byte[] packet, int frameCounter) {
+        packet[24] = (byte) (frameCounter >> 24);
+        packet[25] = (byte) (frameCounter >> 16);
+        packet[26] = (byte) (frameCounter >> 8);
+        packet[27] = (byte) frameCounter;
+    }
+
+    private interface HotPath {
+        void run(int i) throws Exception;
+    }
+}
@@ -1,8 +1,17 @@
 package de.comroid.test.vban;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import static de.comroid.vban.Util.checkRange;
+import static de.comroid.vban.Util.encodeUTF8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class UtilsTest {
     @Test
@@ -21,4 +30,30 @@ public class UtilsTest {
     public void testOutOfUpperBounds() {
         checkRange(256, 0, 255);
     }
+
+    @Test
+    public void testEncodeUTF8() {
+        String text = "Strip(0).Gain = -3.5; \u00e4\u20ac\ud83c\udfb5 \ud800!";
+        byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+
+        assertEquals(expected.length, encodeUTF8(text, buffer));
+        buffer.flip();
+        byte[] actual = new byte[buffer.remaining()];
+        buffer.get(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void testEncodeUTF8Overflow() {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+
+        try {
+            encodeUTF8("abc\u20ac", buffer);
+            fail("Text encoded beyond the buffer");
+        } catch (BufferOverflowException expected) {
+        }
+        assertEquals(0, buffer.position());
+        assertArrayEquals(new byte[4], Arrays.copyOf(buffer.array(), 4));
+    }
 }
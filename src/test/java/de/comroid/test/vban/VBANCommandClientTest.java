@@ -0,0 +1,232 @@
+package de.comroid.test.vban;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANCommandClient;
+import de.comroid.vban.codec.TextCodec;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VBANCommandClientTest {
+    private DatagramSocket server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testPipelinedQueries() throws Exception {
+        VBANCommandClient client = new VBANCommandClient(InetAddress.getLoopbackAddress(), server.getLocalPort());
+
+        try {
+            List<String> parameters = new ArrayList<>();
+            for (int i = 0; i < 300; i++)
+                parameters.add("Strip[" + i + "].Gain");
+
+            List<VBANCommandClient.Query> queries = client.queryAll(parameters);
+            VBANCommandClient.Query single = client.query("Bus[0].Mute");
+
+            for (int i = 0; i < queries.size(); i++)
+                assertEquals(String.valueOf(i), queries.get(i).get(5, TimeUnit.SECONDS));
+            assertEquals("0", single.get(5, TimeUnit.SECONDS));
+
+            assertEquals(301, client.getResponseCount());
+            assertEquals(0, client.getPendingCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testTimeout() throws Exception {
+        VBANCommandClient client = new VBANCommandClient(VBANPacket.Factory.protocolDefault(VBAN.Protocol.TEXT),
+                InetAddress.getLoopbackAddress(), server.getLocalPort(), 50, TimeUnit.MILLISECONDS);
+
+        try {
+            final String[] failed = new String[1];
+            VBANCommandClient.Query query = client.query("Unknown.Parameter", new VBANCommandClient.ResponseListener() {
+                @Override
+                public void onResponse(String parameter, String value) {
+                }
+
+                @Override
+                public void onFailure(String parameter, Throwable cause) {
+                    failed[0] = parameter;
+                }
+            });
+
+            try {
+                query.get(5, TimeUnit.SECONDS);
+                fail("Query should have timed out");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof TimeoutException);
+            }
+
+            assertEquals("Unknown.Parameter", failed[0]);
+            assertEquals(1, client.getTimeoutCount());
+            assertEquals(0, client.getPendingCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCommandFormatCharset() throws Exception {
+        VBANPacket.Factory<String> factory = VBANPacket.Factory.builder(VBAN.Protocol.TEXT)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.TEXT)
+                        .setFormatValue(VBAN.CommandFormat.UTF8)
+                        .build())
+                .build();
+        VBANCommandClient client = new VBANCommandClient(factory, InetAddress.getLoopbackAddress(),
+                server.getLocalPort(), 5, TimeUnit.SECONDS);
+
+        try {
+            // the reply only matches if the name survives the round trip
+            VBANCommandClient.Query query = client.query("Str\u00edp[7].L\u00e4bel");
+
+            assertEquals("7", query.get(5, TimeUnit.SECONDS));
+            assertEquals(0, client.getUnmatchedCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFailedSendLeavesNothingPending() throws Exception {
+        VBANCommandClient client = new VBANCommandClient(InetAddress.getLoopbackAddress(), server.getLocalPort());
+        char[] tooLong = new char[VBANPacket.MAX_SIZE_WITHOUT_HEAD];
+        Arrays.fill(tooLong, 'x');
+
+        try {
+            try {
+                client.query(new String(tooLong));
+                fail("Query should not fit");
+            } catch (IOException expected) {
+            }
+            try {
+                // not representable in ASCII
+                client.query("Str\u00edp[0].Gain");
+                fail("Query should not be encodable");
+            } catch (IllegalArgumentException expected) {
+            }
+            try {
+                client.queryAll(Arrays.asList("Strip[0].Gain", new String(tooLong)));
+                fail("Query should not fit");
+            } catch (IOException expected) {
+            }
+
+            // the first batch went out on its own and is still answered, before the next query
+            assertEquals("0", client.query("Bus[0].Mute").get(5, TimeUnit.SECONDS));
+            assertEquals(2, client.getResponseCount());
+            assertEquals(0, client.getPendingCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseFailsPendingQueries() throws Exception {
+        VBANCommandClient client = new VBANCommandClient(VBANPacket.Factory.protocolDefault(VBAN.Protocol.TEXT),
+                InetAddress.getLoopbackAddress(), server.getLocalPort(), 1, TimeUnit.HOURS);
+        VBANCommandClient.Query query = client.query("Unknown.Parameter");
+        assertEquals(1, client.getPendingCount());
+
+        client.close();
+
+        try {
+            query.get(5, TimeUnit.SECONDS);
+            fail("Query should have failed");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+        }
+        assertEquals(0, client.getPendingCount());
+    }
+
+    /**
+     * Answers every known query with its index, in reverse order of the queries within each datagram.
+     */
+    private void serve() {
+        byte[] buffer = new byte[VBANPacket.MAX_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        VBANPacketView view = new VBANPacketView();
+        VBANPacket.Factory<String> replies = VBANPacket.Factory.builder(VBAN.Protocol.TEXT)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.TEXT)
+                        .setFormatValue(VBAN.CommandFormat.UTF8)
+                        .build())
+                .build();
+        TextCodec codec = new TextCodec();
+        StringBuilder payload = new StringBuilder();
+
+        try {
+            while (!server.isClosed()) {
+                packet.setData(buffer);
+                server.receive(packet);
+                view.wrap(buffer, 0, packet.getLength());
+
+                payload.setLength(0);
+                codec.decode(view, payload);
+                List<String> answers = new ArrayList<>();
+                for (String query : payload.toString().split(";")) {
+                    if (query.startsWith("Unknown") || query.isEmpty())
+                        continue;
+                    String index = query.replaceAll("\\D", "");
+                    answers.add(query + " = " + index + ";");
+                }
+                Collections.reverse(answers);
+
+                StringBuilder reply = new StringBuilder();
+                for (String answer : answers) {
+                    if (reply.length() + answer.length() > VBANPacket.MAX_SIZE_WITHOUT_HEAD / 2) {
+                        send(replies, reply.toString(), packet);
+                        reply.setLength(0);
+                    }
+                    reply.append(answer);
+                }
+                if (reply.length() > 0)
+                    send(replies, reply.toString(), packet);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void send(VBANPacket.Factory<String> factory, String payload, DatagramPacket to) throws IOException {
+        byte[] bytes = factory.create().setData(payload.getBytes(StandardCharsets.UTF_8)).getBytes();
+        server.send(new DatagramPacket(bytes, bytes.length, to.getSocketAddress()));
+    }
+}
@@ -1,4 +1,76 @@
 package de.comroid.test.vban;
 
+import java.io.IOException;
+import java.net.InetAddress;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
 public class VBANInputStreamTest {
+    private static final String TEXT = "Strip[0].Label=\"Gr\u00fc\u00dfe \u266b\";";
+
+    @Test(timeout = 10000)
+    public void testReadDataASCII() throws IOException {
+        assertEquals("Strip[0].Mute=1;", roundTrip(VBAN.CommandFormat.ASCII, "Strip[0].Mute=1;"));
+    }
+
+    @Test(timeout = 10000)
+    public void testReadDataUTF8() throws IOException {
+        assertEquals(TEXT, roundTrip(VBAN.CommandFormat.UTF8, TEXT));
+    }
+
+    @Test(timeout = 10000)
+    public void testReadDataWCHAR() throws IOException {
+        assertEquals(TEXT, roundTrip(VBAN.CommandFormat.WCHAR, TEXT));
+    }
+
+    @Test(timeout = 10000)
+    public void testReadText() throws IOException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = openTextStream(VBAN.CommandFormat.UTF8, in.getPort());
+
+        try {
+            StringBuilder sb = new StringBuilder();
+            out.sendData(TEXT);
+            out.sendData(TEXT);
+
+            assertEquals(DecodeStatus.OK, in.readText(sb));
+            assertEquals(DecodeStatus.OK, in.readText(sb));
+            assertEquals(TEXT + TEXT, sb.toString());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static String roundTrip(VBAN.CommandFormat format, String text) throws IOException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = openTextStream(format, in.getPort());
+
+        try {
+            out.sendData(text);
+            return in.readData();
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private static VBANOutputStream<String> openTextStream(VBAN.CommandFormat format, int port) throws IOException {
+        VBANPacket.Factory<String> factory = VBANPacket.Factory.builder(VBAN.Protocol.TEXT)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.TEXT)
+                        .setFormatValue(format)
+                        .build())
+                .build();
+
+        return VBAN.openCommandOutputStream(factory, InetAddress.getLoopbackAddress(), port);
+    }
 }
@@ -4,16 +4,24 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
 import de.comroid.vban.VBANOutputStream;
 import de.comroid.vban.model.data.AudioFrame;
 import de.comroid.vban.model.data.MIDICommand;
+import de.comroid.vban.packet.DecodeStatus;
 import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketView;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
 public class VBANOutputStreamTest {
     @Test
     public void testSendDataTypes() throws IOException {
@@ -70,6 +78,151 @@ public class VBANOutputStreamTest {
         vban.sendData("x");
     }
 
+    @Test(timeout = 10000)
+    public void testBatchingBySize() throws IOException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getLoopbackAddress(), in.getPort());
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            out.enableBatching(VBANPacket.MAX_SIZE_WITHOUT_HEAD, 1, TimeUnit.HOURS);
+
+            int commands = 0;
+            int bytes = 0;
+            while (bytes < VBANPacket.MAX_SIZE_WITHOUT_HEAD) {
+                String command = "Strip[" + commands + "].Gain=1.5;";
+                out.sendData(command);
+                bytes += command.length();
+                commands++;
+            }
+
+            // the last command did not fit, so everything before it went out in one datagram
+            assertEquals(1, out.getDatagramsSent());
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            String payload = payload(view);
+            assertEquals(commands - 1, payload.split(";").length);
+
+            out.flush();
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[" + (commands - 1) + "].Gain=1.5;", payload(view));
+            assertEquals(commands, out.getCommandsSent());
+            assertEquals(commands / 2.0, out.getCommandsPerDatagram(), 0.001);
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBatchingBySmallThreshold() throws IOException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getLoopbackAddress(), in.getPort());
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            out.enableBatching(16, 1, TimeUnit.SECONDS);
+
+            // the second command reaches the threshold, and is sent along with the first one
+            out.sendData("Strip[0].A=1;");
+            out.sendData("Strip[0].A=1;");
+            assertEquals(1, out.getDatagramsSent());
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[0].A=1;Strip[0].A=1;", payload(view));
+
+            // an unterminated command still gets its terminator after a send
+            out.sendData("Strip[1].A=1;Strip[1].B=0");
+            assertEquals(2, out.getDatagramsSent());
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[1].A=1;", payload(view));
+            out.flush();
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[1].B=0\n", payload(view));
+            assertEquals(4, out.getCommandsSent());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBatchingByDeadline() throws IOException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getLoopbackAddress(), in.getPort());
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            out.enableBatching(VBANPacket.MAX_SIZE_WITHOUT_HEAD, 20, TimeUnit.MILLISECONDS);
+            out.sendData("Strip[0].Mute=1");
+            out.sendData("Strip[1].Mute=0;");
+
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[0].Mute=1\nStrip[1].Mute=0;", payload(view));
+            assertEquals(1, out.getDatagramsSent());
+            assertEquals(2, out.getCommandsSent());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadlineKeepsUnterminatedCommand() throws IOException, InterruptedException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getLoopbackAddress(), in.getPort());
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            out.enableBatching(VBANPacket.MAX_SIZE_WITHOUT_HEAD, 20, TimeUnit.MILLISECONDS);
+            out.write("Strip[0].Mute=1;Strip[1]".getBytes(StandardCharsets.US_ASCII));
+
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[0].Mute=1;", payload(view));
+
+            Thread.sleep(100);
+            out.write(".Mute=0".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals("Strip[1].Mute=0", payload(view));
+            assertEquals(2, out.getDatagramsSent());
+            assertEquals(2, out.getCommandsSent());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDeadlineFailureIsReported() throws IOException, InterruptedException {
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getByName("255.255.255.255"), 1);
+        // broadcasts are refused without SO_BROADCAST
+        out.setBroadcast(false);
+        out.enableBatching(VBANPacket.MAX_SIZE_WITHOUT_HEAD, 10, TimeUnit.MILLISECONDS);
+        out.sendData("Strip[0].Mute=1;");
+        Thread.sleep(200);
+
+        try {
+            out.sendData("Strip[1].Mute=0;");
+            fail("Expected the failed deadline send to be reported");
+        } catch (IOException e) {
+            assertEquals("Sending a batch at its deadline failed", e.getMessage());
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBatchingStreamClosed() throws IOException {
+        VBANOutputStream<String> out = createTextStream();
+        out.enableBatching(VBANPacket.MAX_SIZE_WITHOUT_HEAD, 20, TimeUnit.MILLISECONDS);
+        out.close();
+        out.write(';');
+    }
+
+    private static String payload(VBANPacketView view) {
+        return new String(view.getBuffer(), view.getPayloadOffset(), view.getPayloadLength(), StandardCharsets.US_ASCII);
+    }
+
     private static VBANOutputStream<String> createTextStream() throws UnknownHostException, SocketException {
         return VBAN.openCommandOutputStream(InetAddress.getLocalHost(), VBAN.DEFAULT_PORT);
     }
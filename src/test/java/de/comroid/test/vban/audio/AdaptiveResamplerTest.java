@@ -0,0 +1,136 @@
+package de.comroid.test.vban.audio;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.comroid.vban.audio.AdaptiveResampler;
+import de.comroid.vban.audio.DriftEstimator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveResamplerTest {
+    private static final int RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK = 256;
+    private static final int TARGET = 2048;
+    private static final int AMPLITUDE = 12000;
+    private static final double FREQUENCY = 440;
+
+    @Test(timeout = 60000)
+    public void testKeepsFillWithoutClicksForFastSender() {
+        simulate(250e-6, true);
+    }
+
+    @Test(timeout = 60000)
+    public void testKeepsFillWithoutClicksForSlowSender() {
+        simulate(-400e-6, true);
+    }
+
+    @Test(timeout = 60000)
+    public void testFillLoopAloneCompensatesDrift() {
+        simulate(300e-6, false);
+    }
+
+    @Test
+    public void testUnityRatioPassesSamplesThrough() {
+        AdaptiveResampler resampler = new AdaptiveResampler(1, 1024, 64);
+        byte[] in = new byte[64 * 2];
+        for (int i = 0; i < 64; i++) {
+            in[2 * i] = (byte) (i * 100);
+            in[2 * i + 1] = (byte) (i * 100 >> 8);
+        }
+        resampler.write(in, 0, 64);
+
+        byte[] out = new byte[32 * 2];
+        resampler.read(out, 0, 32);
+
+        for (int i = 0; i < 32; i++)
+            assertEquals(i * 100, (short) (out[2 * i] & 0xFF | out[2 * i + 1] << 8));
+    }
+
+    @Test
+    public void testUnderrunProducesSilenceAndReprimes() {
+        AdaptiveResampler resampler = new AdaptiveResampler(1, 1024, 64);
+        byte[] block = new byte[64 * 2];
+        Arrays.fill(block, (byte) 1);
+        resampler.write(block, 0, 64);
+
+        byte[] out = new byte[128 * 2];
+        resampler.read(out, 0, 128);
+
+        assertEquals(1, resampler.getUnderruns());
+        assertEquals(0, out[out.length - 1]);
+
+        // below target fill again: silence without a new underrun
+        resampler.write(block, 0, 32);
+        resampler.read(out, 0, 16);
+        assertEquals(1, resampler.getUnderruns());
+        assertEquals(0, out[0]);
+    }
+
+    // simulates a sender with a drifting clock against a playback device at the nominal rate
+    private static void simulate(double drift, boolean feedForward) {
+        AdaptiveResampler resampler = new AdaptiveResampler(CHANNELS, 4 * TARGET, TARGET);
+        DriftEstimator estimator = new DriftEstimator(RATE, 20);
+        Random random = new Random(7);
+        byte[] packet = new byte[BLOCK * CHANNELS * 2];
+        byte[] out = new byte[BLOCK * CHANNELS * 2];
+
+        double senderRate = RATE * (1 + drift);
+        long seconds = 600;
+        int counter = 0;
+        long sendNanos = 0;
+        long playNanos = 0;
+        long position = 0;
+        int previous = 0;
+        int maxDelta = 0;
+        double minFill = Double.MAX_VALUE, maxFill = 0;
+
+        while (playNanos < seconds * 1_000_000_000L) {
+            if (sendNanos <= playNanos) {
+                for (int i = 0; i < BLOCK; i++, position++) {
+                    short sample = (short) (AMPLITUDE * Math.sin(2 * Math.PI * FREQUENCY * position / RATE));
+
+                    for (int c = 0; c < CHANNELS; c++) {
+                        packet[(i * CHANNELS + c) * 2] = (byte) sample;
+                        packet[(i * CHANNELS + c) * 2 + 1] = (byte) (sample >> 8);
+                    }
+                }
+
+                estimator.update(counter++, BLOCK, sendNanos + random.nextInt(1_000_000));
+                if (feedForward)
+                    resampler.setRatio(estimator.getRatio());
+                resampler.write(packet, 0, BLOCK);
+                sendNanos = (long) (counter * BLOCK * 1e9 / senderRate);
+            } else {
+                resampler.read(out, 0, BLOCK);
+                playNanos += BLOCK * 1_000_000_000L / RATE;
+
+                for (int i = 0; i < BLOCK; i++) {
+                    int sample = (short) (out[i * CHANNELS * 2] & 0xFF | out[i * CHANNELS * 2 + 1] << 8);
+
+                    if (playNanos > 1_000_000_000L)
+                        maxDelta = Math.max(maxDelta, Math.abs(sample - previous));
+                    previous = sample;
+                }
+
+                if (playNanos > 60_000_000_000L) {
+                    minFill = Math.min(minFill, resampler.getFill());
+                    maxFill = Math.max(maxFill, resampler.getFill());
+                }
+            }
+        }
+
+        assertEquals(0, resampler.getUnderruns());
+        assertEquals(0, resampler.getOverruns());
+        // a 440 Hz sine changes by at most about 691 per sample at this amplitude
+        assertTrue("click detected, max delta " + maxDelta, maxDelta < 720);
+        assertTrue("fill drifted to [" + minFill + ";" + maxFill + "]",
+                minFill > TARGET - 3 * BLOCK && maxFill < TARGET + 3 * BLOCK);
+        if (feedForward)
+            assertEquals(drift * 1e6, estimator.getPpm(), 3);
+    }
+}
@@ -0,0 +1,104 @@
+package de.comroid.test.vban.audio;
+
+import java.util.Random;
+
+import de.comroid.vban.audio.DriftEstimator;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DriftEstimatorTest {
+    private static final int RATE = 48000;
+    private static final int SAMPLES = 256;
+
+    @Test
+    public void testEstimatesDriftDespiteJitterAndSpikes() {
+        DriftEstimator estimator = new DriftEstimator(RATE, 30);
+        Random random = new Random(42);
+        double actualRate = RATE * (1 + 120e-6);
+        long start = 1_000_000_000L;
+
+        // ten simulated minutes; every packet is delayed by up to 2ms, every 50th by 20 to 70ms
+        int packets = (int) (600 * actualRate / SAMPLES);
+        for (int i = 0; i < packets; i++) {
+            long delay = (long) (random.nextDouble() * 2_000_000);
+            if (i % 50 == 49)
+                delay += 20_000_000 + random.nextInt(50_000_000);
+
+            estimator.update(i, SAMPLES, start + (long) (i * SAMPLES * 1e9 / actualRate) + delay);
+        }
+
+        assertTrue(estimator.isSettled());
+        assertEquals(120, estimator.getPpm(), 2);
+        assertTrue("spikes rejected: " + estimator.getRejectedCount(), estimator.getRejectedCount() >= packets / 50);
+    }
+
+    @Test
+    public void testSkipsLostAndStalePackets() {
+        DriftEstimator estimator = new DriftEstimator(RATE, 10);
+        double actualRate = RATE * (1 - 50e-6);
+
+        for (int i = 0; i < 20000; i++) {
+            if (i % 7 == 3)
+                continue; // lost
+            estimator.update(i, SAMPLES, (long) (i * SAMPLES * 1e9 / actualRate));
+        }
+
+        // stale, but within the reorder window
+        assertFalse(estimator.update(19_000, SAMPLES, Long.MAX_VALUE / 2));
+        assertEquals(-50, estimator.getPpm(), 0.5);
+    }
+
+    @Test
+    public void testRestartsAfterStepChange() {
+        DriftEstimator estimator = new DriftEstimator(RATE, 10);
+
+        for (int i = 0; i < 1000; i++)
+            estimator.update(i, SAMPLES, (long) (i * SAMPLES * 1e9 / RATE));
+
+        // the sender restarts with another clock and a frame counter far ahead
+        double actualRate = RATE * (1 + 300e-6);
+        long offset = 60_000_000_000L;
+        for (int i = 0; i < 5000; i++)
+            estimator.update(1_000_000 + i, SAMPLES, offset + (long) (i * SAMPLES * 1e9 / actualRate));
+
+        assertEquals(300, estimator.getPpm(), 1);
+    }
+
+    @Test
+    public void testRestartsWhenCounterDropsBack() {
+        DriftEstimator estimator = new DriftEstimator(RATE, 10);
+
+        for (int i = 0; i < 200; i++)
+            estimator.update(100_000 + i, SAMPLES, (long) (i * SAMPLES * 1e9 / RATE));
+
+        // the sender restarts from zero, with another clock
+        double actualRate = RATE * (1 - 200e-6);
+        long offset = 10_000_000_000L;
+        for (int i = 0; i < 5000; i++)
+            assertTrue(estimator.update(i, SAMPLES, offset + (long) (i * SAMPLES * 1e9 / actualRate)));
+
+        assertEquals(5000, estimator.getAcceptedCount());
+        assertEquals(-200, estimator.getPpm(), 1);
+    }
+
+    @Test
+    public void testUnsettledEstimateIsNominal() {
+        DriftEstimator estimator = new DriftEstimator(RATE, 10);
+
+        for (int i = 0; i < DriftEstimator.WARMUP - 1; i++)
+            estimator.update(i, SAMPLES, i * 5_000_000L);
+
+        assertFalse(estimator.isSettled());
+        assertEquals(1, estimator.getRatio(), 0);
+        assertEquals(RATE, estimator.getSenderSampleRate(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidHalfLife() {
+        new DriftEstimator(RATE, 0);
+    }
+}
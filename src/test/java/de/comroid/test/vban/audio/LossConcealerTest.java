@@ -0,0 +1,163 @@
+package de.comroid.test.vban.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.audio.LossConcealer;
+import de.comroid.vban.model.data.AudioFrame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LossConcealerTest {
+    private static final int PACKET = 256;
+
+    @Test
+    public void testExtrapolatesPitch() {
+        LossConcealer concealer = new LossConcealer(VBAN.SampleRate.Hz48000, VBAN.AudioFormat.INT16, 1,
+                LossConcealer.Strategy.EXTRAPOLATE, 48000);
+        int counter = 0;
+
+        // 100 Hz, a period of 480 frames
+        for (; counter < 10; counter++)
+            receive(concealer, counter, PACKET, sine(counter * PACKET, PACKET, 480));
+
+        assertEquals(2 * PACKET, concealer.detectGap(counter + 2, PACKET));
+        AudioFrame frame = AudioFrame.allocate(4096);
+        concealer.conceal(frame, 2 * PACKET);
+
+        assertEquals(480, concealer.getPeriodFrames(), 1);
+        byte[] expected = sine(counter * PACKET, 2 * PACKET, 480);
+        // the first 10 ms continue the wave at full level
+        for (int i = 0; i < 480; i++)
+            assertEquals(sample(expected, i), sample(frame.getBufferArray(), i), 400);
+        assertEquals(2, concealer.getConcealedPackets());
+        assertEquals(2 * PACKET, concealer.getConcealedFrames());
+    }
+
+    @Test
+    public void testRepeatsLastPacketInEveryFormat() {
+        for (VBAN.AudioFormat format : VBAN.AudioFormat.values()) {
+            int channels = 2;
+            int blockAlign = format.getBytesPerSample() * channels;
+            LossConcealer concealer = new LossConcealer(VBAN.SampleRate.Hz48000, format, channels,
+                    LossConcealer.Strategy.REPEAT, 48000);
+            byte[] packet;
+            if (format == VBAN.AudioFormat.FLOAT32 || format == VBAN.AudioFormat.FLOAT64) {
+                packet = floats(format, 64 * channels);
+            } else {
+                packet = new byte[64 * blockAlign];
+                // only the most significant byte of every sample is set, which every format represents exactly
+                for (int i = format.getBytesPerSample() - 1; i < packet.length; i += format.getBytesPerSample())
+                    packet[i] = (byte) (i / blockAlign % 3 - 1);
+            }
+
+            receive(concealer, 0, 64, packet.clone());
+            assertEquals(64, concealer.detectGap(2, 64));
+            byte[] concealed = new byte[128 * blockAlign];
+            concealer.conceal(concealed, 0, 128);
+
+            // before the attenuation starts
+            for (int i = 0; i < 2 * packet.length; i++)
+                assertEquals(format + " at " + i, packet[i % packet.length], concealed[i]);
+        }
+    }
+
+    @Test
+    public void testSilenceFadesAndCrossfades() {
+        LossConcealer concealer = new LossConcealer(VBAN.SampleRate.Hz48000, VBAN.AudioFormat.INT16, 1,
+                LossConcealer.Strategy.SILENCE, 48000);
+        byte[] loud = constant(PACKET, 10000);
+        receive(concealer, 0, PACKET, loud);
+
+        byte[] concealed = new byte[PACKET * 2];
+        assertEquals(PACKET, concealer.detectGap(2, PACKET));
+        concealer.conceal(concealed, 0, PACKET);
+        assertEquals(10000, sample(concealed, 0), 100);
+        assertTrue(Math.abs(sample(concealed, 100)) < 10000);
+        assertEquals(0, sample(concealed, PACKET - 1));
+
+        // the resumed audio fades in from silence
+        byte[] resumed = constant(PACKET, 10000);
+        concealer.accept(resumed, 0, PACKET);
+        assertTrue(sample(resumed, 0) < 1000);
+        assertTrue(sample(resumed, 100) < 10000);
+        assertEquals(10000, sample(resumed, PACKET - 1));
+    }
+
+    @Test
+    public void testBurstLossIsBounded() {
+        LossConcealer concealer = new LossConcealer(VBAN.SampleRate.Hz48000, VBAN.AudioFormat.INT16, 1,
+                LossConcealer.Strategy.EXTRAPOLATE, 48000);
+        for (int counter = 0; counter < 10; counter++)
+            receive(concealer, counter, PACKET, sine(counter * PACKET, PACKET, 480));
+
+        // one second of lost audio fades out to silence after 60 ms
+        int missing = concealer.detectGap(10 + 187, PACKET);
+        assertEquals(187 * PACKET, missing);
+        byte[] concealed = new byte[missing * 2];
+        concealer.conceal(concealed, 0, missing);
+        for (int i = 48 * LossConcealer.SILENT_AFTER_MILLIS; i < missing; i++)
+            assertEquals(0, sample(concealed, i));
+
+        // longer gaps are a restart, and not synthesized
+        assertEquals(0, concealer.detectGap(10 + 187 + 200, PACKET));
+        assertEquals(1, concealer.getRestarts());
+    }
+
+    @Test
+    public void testDropsLatePackets() {
+        LossConcealer concealer = new LossConcealer(VBAN.SampleRate.Hz48000, VBAN.AudioFormat.INT16, 1,
+                LossConcealer.Strategy.REPEAT, 48000);
+
+        assertEquals(0, concealer.detectGap(5, PACKET));
+        assertEquals(PACKET, concealer.detectGap(7, PACKET));
+        assertEquals(-1, concealer.detectGap(6, PACKET));
+        assertEquals(-1, concealer.detectGap(7, PACKET));
+        assertEquals(0, concealer.detectGap(8, PACKET));
+        assertEquals(2, concealer.getLatePackets());
+    }
+
+    private static void receive(LossConcealer concealer, int counter, int frames, byte[] packet) {
+        assertEquals(0, concealer.detectGap(counter, frames));
+        concealer.accept(packet, 0, frames);
+    }
+
+    private static byte[] sine(int start, int frames, int period) {
+        byte[] bytes = new byte[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            int value = (int) Math.round(8000 * Math.sin(2 * Math.PI * (start + i) / period));
+            bytes[2 * i] = (byte) value;
+            bytes[2 * i + 1] = (byte) (value >> 8);
+        }
+        return bytes;
+    }
+
+    private static byte[] constant(int frames, int value) {
+        byte[] bytes = new byte[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            bytes[2 * i] = (byte) value;
+            bytes[2 * i + 1] = (byte) (value >> 8);
+        }
+        return bytes;
+    }
+
+    private static byte[] floats(VBAN.AudioFormat format, int samples) {
+        ByteBuffer buffer = ByteBuffer.allocate(samples * format.getBytesPerSample()).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < samples; i++) {
+            float value = (float) Math.sin(i / 5.0) / 2;
+            if (format == VBAN.AudioFormat.FLOAT32)
+                buffer.putFloat(value);
+            else
+                buffer.putDouble(value);
+        }
+        return buffer.array();
+    }
+
+    private static int sample(byte[] bytes, int index) {
+        return (short) (bytes[2 * index] & 0xFF | bytes[2 * index + 1] << 8);
+    }
+}
@@ -0,0 +1,138 @@
+package de.comroid.test.vban.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutionException;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.audio.PrerollBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrerollBufferTest {
+    private static final int PAYLOAD = 100;
+
+    @Test(timeout = 10000)
+    public void testExportsFramesAcrossWrap() throws Exception {
+        try (PrerollBuffer buffer = new PrerollBuffer(1000, 64)) {
+            for (int i = 0; i < 25; i++)
+                assertTrue(buffer.append(i, payload(i), 0, PAYLOAD, i * 1000L));
+
+            // 1000 bytes hold the last ten payloads
+            assertEquals(24, buffer.getNewestFrame());
+            assertEquals(15, buffer.getOldestFrame());
+
+            File file = tempFile();
+            assertEquals(10 * PAYLOAD, (long) buffer.exportFrames(15, 24, file).get());
+            assertArrayEquals(payloads(15, 24), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testExportsTimeRangeAndSkipsMissingFrames() throws Exception {
+        try (PrerollBuffer buffer = new PrerollBuffer(10_000, 64)) {
+            int[] counters = {0, 1, 2, 6, 7, 8, 9};
+            for (int counter : counters)
+                buffer.append(counter, payload(counter), 0, PAYLOAD, counter * 1000L);
+            // late and duplicate frames are ignored
+            assertFalse(buffer.append(4, payload(4), 0, PAYLOAD, 9500));
+
+            // missing frames are stamped with the arrival of the next frame
+            assertEquals(3, buffer.findFrame(3000));
+            assertEquals(1, buffer.findFrame(1000));
+            assertEquals(-1, buffer.findFrame(9001));
+
+            File file = tempFile();
+            assertEquals(3 * PAYLOAD, (long) buffer.export(1000, 6000, file).get());
+            byte[] expected = new byte[3 * PAYLOAD];
+            System.arraycopy(payload(1), 0, expected, 0, PAYLOAD);
+            System.arraycopy(payload(2), 0, expected, PAYLOAD, PAYLOAD);
+            System.arraycopy(payload(6), 0, expected, 2 * PAYLOAD, PAYLOAD);
+            assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRestartedSenderContinuesTimeline() throws Exception {
+        try (PrerollBuffer buffer = new PrerollBuffer(10_000, 64)) {
+            for (int i = 0; i < 3; i++)
+                assertTrue(buffer.append(i, payload(i), 0, PAYLOAD, i * 1000L));
+            // far ahead, and then far behind: neither is a gap of missing frames
+            assertTrue(buffer.append(100_000, payload(3), 0, PAYLOAD, 3000));
+            assertTrue(buffer.append(4, payload(4), 0, PAYLOAD, 4000));
+            assertTrue(buffer.append(5, payload(5), 0, PAYLOAD, 5000));
+
+            assertEquals(5, buffer.getNewestFrame());
+            assertEquals(0, buffer.getOldestFrame());
+
+            File file = tempFile();
+            assertEquals(6 * PAYLOAD, (long) buffer.exportFrames(0, 5, file).get());
+            assertArrayEquals(payloads(0, 5), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testOverwrittenRangeFails() throws Exception {
+        try (PrerollBuffer buffer = new PrerollBuffer(1000, 64)) {
+            for (int i = 0; i < 25; i++)
+                buffer.append(i, payload(i), 0, PAYLOAD, i);
+
+            try {
+                buffer.exportFrames(5, 24, tempFile()).get();
+                fail("Overwritten frames exported");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testMappedBuffer() throws Exception {
+        File backing = tempFile();
+
+        try (PrerollBuffer buffer = new PrerollBuffer(backing, 1000, 16)) {
+            for (int i = 0; i < 5; i++)
+                buffer.append(i, payload(i), 0, PAYLOAD, i);
+
+            File file = tempFile();
+            buffer.exportFrames(0, 4, file).get();
+            assertArrayEquals(payloads(0, 4), Files.readAllBytes(file.toPath()));
+        }
+        assertEquals(1000, backing.length());
+    }
+
+    @Test
+    public void testForDuration() {
+        try (PrerollBuffer buffer = PrerollBuffer.forDuration(60, VBAN.SampleRate.Hz48000, 2, VBAN.AudioFormat.INT16)) {
+            assertEquals(60 * 48000 * 2 * 2, buffer.getCapacity());
+            assertEquals(-1, buffer.getOldestFrame());
+        }
+    }
+
+    private static byte[] payload(int counter) {
+        byte[] payload = new byte[PAYLOAD];
+        for (int i = 0; i < PAYLOAD; i++)
+            payload[i] = (byte) (counter * 7 + i);
+        return payload;
+    }
+
+    private static byte[] payloads(int from, int to) {
+        byte[] bytes = new byte[(to - from + 1) * PAYLOAD];
+        for (int counter = from; counter <= to; counter++)
+            System.arraycopy(payload(counter), 0, bytes, (counter - from) * PAYLOAD, PAYLOAD);
+        return bytes;
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("preroll", ".raw");
+        file.deleteOnExit();
+        return file;
+    }
+}
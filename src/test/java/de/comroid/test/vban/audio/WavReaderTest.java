@@ -0,0 +1,108 @@
+package de.comroid.test.vban.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.audio.WavReader;
+import de.comroid.vban.audio.WavWriter;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class WavReaderTest {
+    @Test(timeout = 10000)
+    public void testReadsRF64() throws IOException {
+        byte[] audio = WavWriterTest.pattern(64 * 4);
+        ByteBuffer file = ByteBuffer.allocate(12 + 36 + 24 + 8 + audio.length).order(ByteOrder.LITTLE_ENDIAN);
+
+        file.put("RF64".getBytes()).putInt(-1).put("WAVE".getBytes());
+        file.put("ds64".getBytes()).putInt(28).putLong(file.capacity() - 8).putLong(audio.length).putLong(64).putInt(0);
+        file.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) 2).putInt(48000)
+                .putInt(48000 * 4).putShort((short) 4).putShort((short) 16);
+        file.put("data".getBytes()).putInt(-1).put(audio);
+
+        File wav = WavWriterTest.tempFile();
+        Files.write(wav.toPath(), file.array());
+
+        try (WavReader reader = new WavReader(wav)) {
+            assertEquals(64, reader.getFrames());
+            assertArrayEquals(audio, WavWriterTest.readAll(reader));
+            assertNull(reader.next(1));
+
+            ByteBuffer slice = reader.slice(10, 2);
+            assertEquals(8, slice.remaining());
+            assertEquals(audio[40], slice.get(0));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRejectsNonWav() throws IOException {
+        File file = WavWriterTest.tempFile();
+        Files.write(file.toPath(), "RIFF\0\0\0\0AVI LIST".getBytes());
+
+        try {
+            new WavReader(file).close();
+            fail("Read an AVI file as WAV");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPlaysOutOverNetwork() throws IOException {
+        int samples = 100;
+        int channels = 2;
+        File file = WavWriterTest.tempFile();
+        byte[] audio = WavWriterTest.pattern(samples * channels * 2 * 5);
+
+        try (WavWriter writer = new WavWriter(file, VBAN.SampleRate.Hz48000, channels, VBAN.AudioFormat.INT16)) {
+            writer.write(audio, 0, audio.length);
+        }
+
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSamples((byte) samples)
+                        .setChannel((byte) channels)
+                        .build())
+                .build();
+        VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<AudioFrame> out = VBAN.openAudioOutputStream(factory, InetAddress.getLoopbackAddress(), in.getPort());
+        VBANPacketView view = new VBANPacketView();
+
+        try (WavReader reader = new WavReader(file)) {
+            ByteBuffer payload;
+            int packets = 0;
+
+            while ((payload = reader.next(samples)) != null) {
+                out.sendPayload(payload);
+
+                assertEquals(DecodeStatus.OK, in.receive(view));
+                assertEquals(packets, view.getFrameCounter());
+                assertEquals(samples, view.getSamples());
+                for (int i = 0; i < view.getPayloadLength(); i++)
+                    assertEquals(audio[packets * samples * channels * 2 + i], view.getBuffer()[view.getPayloadOffset() + i]);
+                packets++;
+            }
+
+            assertEquals(5, packets);
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+}
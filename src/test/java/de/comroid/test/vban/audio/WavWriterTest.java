@@ -0,0 +1,154 @@
+package de.comroid.test.vban.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.audio.WavReader;
+import de.comroid.vban.audio.WavWriter;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WavWriterTest {
+    @Test(timeout = 30000)
+    public void testRoundTripAcrossBuffers() throws IOException {
+        File file = tempFile();
+        // more than one write buffer, in odd chunk sizes
+        byte[] audio = pattern(300_001 * 4);
+
+        try (WavWriter writer = new WavWriter(file, VBAN.SampleRate.Hz48000, 2, VBAN.AudioFormat.INT16)) {
+            for (int off = 0; off < audio.length; off += 1000)
+                writer.write(audio, off, Math.min(1000, audio.length - off));
+            assertEquals(300_001, writer.getFrames());
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", fourCC(header, 0));
+        assertEquals(header.capacity() - 8, header.getInt(4));
+        assertEquals("JUNK", fourCC(header, 12));
+        assertEquals("fmt ", fourCC(header, 48));
+        assertEquals(1, header.getShort(56));
+        assertEquals(48000 * 4, header.getInt(64));
+        assertEquals("data", fourCC(header, 72));
+        assertEquals(audio.length, header.getInt(76));
+
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(VBAN.SampleRate.Hz48000, reader.getSampleRate());
+            assertEquals(2, reader.getChannels());
+            assertEquals(VBAN.AudioFormat.INT16, reader.getFormat());
+            assertArrayEquals(audio, readAll(reader));
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testInfersFormatFromStream() throws IOException {
+        File file = tempFile();
+        int channels = 16;
+        int samples = 8;
+        byte[] payload = pattern(samples * channels * 3);
+        byte[] packet = new VBANPacket<>(new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz96000.getValue(), samples - 1,
+                channels - 1, VBAN.AudioFormat.INT24.getValue(), 0, "Session", 0), payload).getBytes();
+        VBANPacketView view = new VBANPacketView();
+        view.wrap(packet, 0, packet.length);
+
+        try (WavWriter writer = WavWriter.forStream(file, view)) {
+            for (int i = 0; i < 10; i++)
+                writer.write(view);
+        }
+
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(VBAN.SampleRate.Hz96000, reader.getSampleRate());
+            assertEquals(channels, reader.getChannels());
+            assertEquals(VBAN.AudioFormat.INT24, reader.getFormat());
+            assertEquals(10 * samples, reader.getFrames());
+
+            byte[] all = readAll(reader);
+            for (int i = 0; i < 10; i++)
+                for (int j = 0; j < payload.length; j++)
+                    assertEquals(payload[j], all[i * payload.length + j]);
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testFlushMakesRecordingReadable() throws IOException {
+        File file = tempFile();
+        byte[] audio = pattern(4800 * 4);
+
+        try (WavWriter writer = new WavWriter(file, VBAN.SampleRate.Hz48000, 1, VBAN.AudioFormat.FLOAT32)) {
+            writer.write(audio, 0, audio.length);
+            writer.flush();
+
+            try (WavReader reader = new WavReader(file)) {
+                assertEquals(VBAN.AudioFormat.FLOAT32, reader.getFormat());
+                assertArrayEquals(audio, readAll(reader));
+            }
+
+            writer.write(audio, 0, audio.length);
+        }
+
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(2 * 4800, reader.getFrames());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testOddDataIsPadded() throws IOException {
+        File file = tempFile();
+
+        try (WavWriter writer = new WavWriter(file, VBAN.SampleRate.Hz44100, 1, VBAN.AudioFormat.INT24)) {
+            writer.write(new byte[]{1, 2, 3}, 0, 3);
+        }
+
+        assertEquals(0, file.length() % 2);
+        try (WavReader reader = new WavReader(file)) {
+            assertEquals(1, reader.getFrames());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnsupportedFormat() throws IOException {
+        new WavWriter(tempFile(), VBAN.SampleRate.Hz48000, 2, VBAN.AudioFormat.BITS12);
+    }
+
+    static byte[] readAll(WavReader reader) throws IOException {
+        byte[] all = new byte[(int) (reader.getFrames() * reader.getBlockAlign())];
+        int off = 0;
+        ByteBuffer next;
+
+        reader.seek(0);
+        while ((next = reader.next(256)) != null) {
+            int n = next.remaining();
+            next.get(all, off, n);
+            off += n;
+        }
+
+        return all;
+    }
+
+    static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 31 + (i >> 8));
+        return bytes;
+    }
+
+    static File tempFile() throws IOException {
+        File file = File.createTempFile("vban", ".wav");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static String fourCC(ByteBuffer buffer, int index) {
+        return new String(new char[]{(char) buffer.get(index), (char) buffer.get(index + 1),
+                (char) buffer.get(index + 2), (char) buffer.get(index + 3)});
+    }
+}
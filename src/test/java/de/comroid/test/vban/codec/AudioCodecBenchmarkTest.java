@@ -0,0 +1,71 @@
+package de.comroid.test.vban.codec;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.codec.AudioCodec;
+import de.comroid.vban.codec.AudioCodecs;
+import de.comroid.vban.packet.VBANPacket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures throughput and compression ratio of the registered codecs for 16 channels of INT16 audio,
+ * in packets as large as each codec allows. Results are printed to stdout.
+ */
+public class AudioCodecBenchmarkTest {
+    private static final int CHANNELS = 16;
+    private static final int SECONDS = 10;
+
+    @Test(timeout = 60000)
+    public void benchmarkCodecs() {
+        benchmark(VBAN.Codec.PCM);
+        benchmark(VBAN.Codec.USER);
+    }
+
+    private static void benchmark(int codecValue) {
+        AudioCodec codec = AudioCodecs.get(codecValue);
+        AudioCodec.Encoder encoder = codec.newEncoder(VBAN.AudioFormat.INT16, CHANNELS);
+        AudioCodec.Decoder decoder = codec.newDecoder(VBAN.AudioFormat.INT16, CHANNELS);
+        int samples = encoder.maxSamplesPerPacket();
+        int packetBytes = samples * CHANNELS * 2;
+        byte[] pcm = AudioCodecTest.sine(48000 * SECONDS / samples * samples, CHANNELS, 220);
+        byte[] encoded = new byte[VBANPacket.MAX_SIZE_WITHOUT_HEAD];
+        byte[] decoded = new byte[pcm.length];
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long wireBytes = 0;
+        int packets = 0;
+
+        for (int round = 0; round < 2; round++) {
+            encoder.reset();
+            encodeNanos = decodeNanos = wireBytes = packets = 0;
+
+            for (int off = 0; off + packetBytes <= pcm.length; off += packetBytes) {
+                long start = System.nanoTime();
+                int n = encoder.encode(pcm, off, samples, encoded, 0);
+                long mid = System.nanoTime();
+                decoder.decode(encoded, 0, n, samples, decoded, off);
+                long end = System.nanoTime();
+
+                encodeNanos += mid - start;
+                decodeNanos += end - mid;
+                wireBytes += n + VBANPacket.MAX_SIZE - VBANPacket.MAX_SIZE_WITHOUT_HEAD;
+                packets++;
+            }
+        }
+
+        double pcmBytes = (double) packets * packetBytes;
+        double realtime = (double) packets * samples / 48000;
+        double ratio = pcmBytes / (wireBytes - (double) packets * (VBANPacket.MAX_SIZE - VBANPacket.MAX_SIZE_WITHOUT_HEAD));
+
+        System.out.printf("Codec %-13s %3d samples/packet, payload ratio=%.2fx, wire=%.0f kbit/s, " +
+                        "encode=%.0fx realtime, decode=%.0fx realtime, SNR=%.1fdB%n",
+                codec.getClass().getSimpleName(), samples, ratio, wireBytes * 8 / realtime / 1000,
+                realtime / (encodeNanos / 1e9), realtime / (decodeNanos / 1e9),
+                AudioCodecTest.snr(pcm, decoded, packetBytes));
+
+        assertTrue(ratio >= 1);
+    }
+}
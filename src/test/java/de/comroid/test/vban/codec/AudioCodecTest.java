@@ -0,0 +1,201 @@
+package de.comroid.test.vban.codec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.codec.AudioCodec;
+import de.comroid.vban.codec.AudioCodecs;
+import de.comroid.vban.codec.IMAADPCMCodec;
+import de.comroid.vban.codec.PCMCodec;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioCodecTest {
+    @Test
+    public void testRegistry() {
+        assertTrue(AudioCodecs.get(VBAN.Codec.PCM) instanceof PCMCodec);
+        assertTrue(AudioCodecs.get(VBAN.Codec.USER) instanceof IMAADPCMCodec);
+        assertFalse(AudioCodecs.isRegistered(VBAN.Codec.VBCA));
+        assertFalse(AudioCodecs.isRegistered(0x01));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnregisteredCodec() {
+        AudioCodecs.get(VBAN.Codec.VBCV);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterRejectsUnknownSelector() {
+        // a multiple of 0x10, but packets with it are rejected as BAD_CODEC
+        AudioCodecs.register(new AudioCodec() {
+            @Override
+            public int getCodecValue() {
+                return 0x30;
+            }
+
+            @Override
+            public boolean supports(VBAN.AudioFormat format) {
+                return false;
+            }
+
+            @Override
+            public Encoder newEncoder(VBAN.AudioFormat format, int channels) {
+                throw new IllegalArgumentException();
+            }
+
+            @Override
+            public Decoder newDecoder(VBAN.AudioFormat format, int channels) {
+                throw new IllegalArgumentException();
+            }
+        });
+    }
+
+    @Test
+    public void testPCMPassthrough() {
+        AudioCodec codec = AudioCodecs.get(VBAN.Codec.PCM);
+        byte[] pcm = sine(64, 2, 440);
+        AudioFrame encoded = AudioFrame.allocate(pcm.length);
+        AudioFrame decoded = AudioFrame.allocate(pcm.length);
+
+        codec.newEncoder(VBAN.AudioFormat.INT16, 2).encode(AudioFrame.fromBytes(pcm), encoded);
+        int n = codec.newDecoder(VBAN.AudioFormat.INT16, 2)
+                .decode(encoded.getBufferArray(), 0, encoded.length(), 64, decoded.getBufferArray(), 0);
+
+        assertEquals(pcm.length, n);
+        assertArrayEquals(pcm, decoded.setLength(n).getBytes());
+    }
+
+    @Test
+    public void testADPCMRoundTrip() {
+        int channels = 2;
+        int samples = 255;
+        AudioCodec codec = AudioCodecs.get(VBAN.Codec.USER);
+        AudioCodec.Encoder encoder = codec.newEncoder(VBAN.AudioFormat.INT16, channels);
+        AudioCodec.Decoder decoder = codec.newDecoder(VBAN.AudioFormat.INT16, channels);
+        byte[] pcm = sine(samples * 8, channels, 440);
+        byte[] encoded = new byte[encoder.maxEncodedLength(samples)];
+        byte[] decoded = new byte[pcm.length];
+
+        int packetBytes = samples * channels * 2;
+        for (int off = 0; off < pcm.length; off += packetBytes) {
+            assertEquals(IMAADPCMCodec.encodedLength(samples, channels),
+                    encoder.encode(pcm, off, samples, encoded, 0));
+            assertEquals(packetBytes, decoder.decode(encoded, 0, encoded.length, samples, decoded, off));
+        }
+
+        // skip the first packet, in which the predictor adapts
+        assertTrue("SNR too low", snr(pcm, decoded, packetBytes) > 20);
+        assertTrue(pcm.length / (double) (encoded.length * 8) > 3.5);
+    }
+
+    @Test
+    public void testADPCMResyncAfterLoss() {
+        AudioCodec codec = AudioCodecs.get(VBAN.Codec.USER);
+        AudioCodec.Encoder encoder = codec.newEncoder(VBAN.AudioFormat.INT16, 1);
+        byte[] pcm = sine(256 * 4, 1, 1000);
+        byte[] lost = new byte[encoder.maxEncodedLength(256)];
+        byte[] kept = new byte[lost.length];
+        byte[] expected = new byte[512];
+        byte[] actual = new byte[512];
+
+        encoder.encode(pcm, 0, 256, lost, 0);
+        encoder.encode(pcm, 512, 256, kept, 0);
+
+        // a decoder that saw the first packet and one that did not must agree on the second
+        AudioCodec.Decoder full = codec.newDecoder(VBAN.AudioFormat.INT16, 1);
+        full.decode(lost, 0, lost.length, 256, new byte[512], 0);
+        full.decode(kept, 0, kept.length, 256, expected, 0);
+        codec.newDecoder(VBAN.AudioFormat.INT16, 1).decode(kept, 0, kept.length, 256, actual, 0);
+
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testADPCMPayloadTooShort() {
+        AudioCodecs.get(VBAN.Codec.USER).newDecoder(VBAN.AudioFormat.INT16, 2)
+                .decode(new byte[16], 0, 16, 256, new byte[1024], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testADPCMUnsupportedFormat() {
+        AudioCodecs.get(VBAN.Codec.USER).newEncoder(VBAN.AudioFormat.FLOAT32, 2);
+    }
+
+    @Test(timeout = 10000)
+    public void testADPCMOverNetwork() throws IOException {
+        int channels = 2;
+        AudioCodec codec = AudioCodecs.get(VBAN.Codec.USER);
+        AudioCodec.Encoder encoder = codec.newEncoder(VBAN.AudioFormat.INT16, channels);
+        int samples = 100;
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSamples((byte) samples)
+                        .setChannel((byte) channels)
+                        .setCodec(VBAN.Codec.USER)
+                        .build())
+                .build();
+
+        VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<AudioFrame> out = VBAN.openAudioOutputStream(factory, InetAddress.getLoopbackAddress(), in.getPort());
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            byte[] pcm = sine(samples, channels, 440);
+            AudioFrame encoded = AudioFrame.allocate(encoder.maxEncodedLength(samples));
+            encoder.encode(AudioFrame.fromBytes(pcm), encoded);
+            out.sendData(encoded);
+
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals(VBAN.Codec.USER, view.getCodec());
+
+            AudioCodec.Decoder decoder = AudioCodecs.get(view.getCodec()).newDecoder(VBAN.AudioFormat.INT16, channels);
+            AudioFrame decoded = decoder.decode(view, AudioFrame.allocate(pcm.length));
+            assertEquals(pcm.length, decoded.length());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    static byte[] sine(int samples, int channels, double frequency) {
+        byte[] pcm = new byte[samples * channels * 2];
+
+        for (int s = 0; s < samples; s++) {
+            for (int c = 0; c < channels; c++) {
+                int value = (int) (12000 * Math.sin(2 * Math.PI * frequency * (c + 1) * s / 48000));
+                int i = (s * channels + c) * 2;
+                pcm[i] = (byte) value;
+                pcm[i + 1] = (byte) (value >> 8);
+            }
+        }
+
+        return pcm;
+    }
+
+    static double snr(byte[] reference, byte[] actual, int from) {
+        double signal = 0;
+        double noise = 0;
+
+        for (int i = from; i + 1 < reference.length; i += 2) {
+            int r = (short) ((reference[i] & 0xFF) | (reference[i + 1] << 8));
+            int a = (short) ((actual[i] & 0xFF) | (actual[i + 1] << 8));
+            signal += (double) r * r;
+            noise += (double) (r - a) * (r - a);
+        }
+
+        return 10 * Math.log10(signal / Math.max(noise, 1));
+    }
+}
@@ -0,0 +1,57 @@
+package de.comroid.test.vban.codec;
+
+import de.comroid.vban.codec.MIDIDecoder;
+import de.comroid.vban.codec.MIDIEncoder;
+import de.comroid.vban.codec.MIDIEvent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the per-event cost of encoding and decoding a stream of control changes. Results are printed to stdout.
+ */
+public class MIDICodecBenchmarkTest {
+    private static final int ROUNDS = 20_000;
+
+    @Test(timeout = 60000)
+    public void benchmarkControlChanges() {
+        MIDIEncoder encoder = new MIDIEncoder();
+        MIDIDecoder decoder = new MIDIDecoder();
+        final long[] sum = new long[1];
+        MIDIDecoder.Handler handler = new MIDIDecoder.Handler() {
+            @Override
+            public void onEvent(long event) {
+                sum[0] += MIDIEvent.data2(event);
+            }
+
+            @Override
+            public void onSysEx(byte[] data, int length, boolean truncated) {
+            }
+        };
+
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        long events = 0;
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            int n = 0;
+            while (encoder.add(MIDIEvent.controlChange(n & 0x0F, n & 0x7F, (n * 7) & 0x7F)))
+                n++;
+            long encoded = System.nanoTime();
+            assertEquals(n, decoder.decode(encoder.getBufferArray(), 0, encoder.length(), handler));
+            long decoded = System.nanoTime();
+
+            encoder.reset();
+            if (r >= ROUNDS / 2) {
+                encodeNanos += encoded - start;
+                decodeNanos += decoded - encoded;
+                events += n;
+            }
+        }
+
+        System.out.printf("MIDI control changes: encode=%.1fns/event decode=%.1fns/event (%d events, checksum %d)%n",
+                (double) encodeNanos / events, (double) decodeNanos / events, events, sum[0]);
+    }
+}
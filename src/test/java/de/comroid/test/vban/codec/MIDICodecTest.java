@@ -0,0 +1,144 @@
+package de.comroid.test.vban.codec;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.comroid.vban.Util;
+import de.comroid.vban.codec.MIDIDecoder;
+import de.comroid.vban.codec.MIDIEncoder;
+import de.comroid.vban.codec.MIDIEvent;
+import de.comroid.vban.model.data.MIDICommand;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MIDICodecTest {
+    private MIDIDecoder decoder;
+    private List<Long> events;
+    private List<byte[]> sysex;
+    private MIDIDecoder.Handler handler;
+
+    @Before
+    public void setUp() {
+        decoder = new MIDIDecoder();
+        events = new ArrayList<>();
+        sysex = new ArrayList<>();
+        handler = new MIDIDecoder.Handler() {
+            @Override
+            public void onEvent(long event) {
+                events.add(event);
+            }
+
+            @Override
+            public void onSysEx(byte[] data, int length, boolean truncated) {
+                sysex.add(Arrays.copyOf(data, length));
+            }
+        };
+    }
+
+    @Test
+    public void testRunningStatus() {
+        decode(0xB3, 7, 100, 10, 64, 0xC0, 5, 6);
+
+        assertEquals(4, events.size());
+        assertEquals(MIDIEvent.controlChange(3, 7, 100), (long) events.get(0));
+        assertEquals(MIDIEvent.controlChange(3, 10, 64), (long) events.get(1));
+        assertEquals(MIDIEvent.programChange(0, 5), (long) events.get(2));
+        assertEquals(MIDIEvent.programChange(0, 6), (long) events.get(3));
+    }
+
+    @Test
+    public void testRealtimeInterleaved() {
+        decode(0x90, 0xF8, 60, 0xFA, 127);
+
+        assertEquals(3, events.size());
+        assertEquals(0xF8, MIDIEvent.status(events.get(0)));
+        assertTrue(MIDIEvent.isRealtime(events.get(1)));
+        assertEquals(MIDIEvent.noteOn(0, 60, 127), (long) events.get(2));
+    }
+
+    @Test
+    public void testSysExSpanningPackets() {
+        decode(0xF0, 0x43, 0x12);
+        assertTrue(decoder.isInSysEx());
+        assertTrue(events.isEmpty());
+
+        decode(0x00, 0xF8, 0x01, 0xF7, 0x80, 1, 2);
+        assertFalse(decoder.isInSysEx());
+
+        assertEquals(1, sysex.size());
+        assertArrayEquals(new byte[]{0x43, 0x12, 0x00, 0x01}, sysex.get(0));
+        assertEquals(3, events.size());
+        assertTrue(MIDIEvent.isRealtime(events.get(0)));
+        assertTrue(MIDIEvent.isSysEx(events.get(1)));
+        assertEquals(4, MIDIEvent.length(events.get(1)));
+        assertEquals(MIDIEvent.noteOff(0, 1, 2), (long) events.get(2));
+    }
+
+    @Test
+    public void testPitchBend() {
+        long event = MIDIEvent.pitchBend(2, 12345);
+
+        assertEquals(12345, MIDIEvent.pitchBendValue(event));
+        assertEquals(2, MIDIEvent.channel(event));
+        assertEquals(MIDIEvent.PITCH_BEND, MIDIEvent.command(event));
+    }
+
+    @Test
+    public void testEncoderRoundTrip() {
+        MIDIEncoder encoder = new MIDIEncoder();
+        long[] sent = new long[]{
+                MIDIEvent.controlChange(0, 1, 2),
+                MIDIEvent.controlChange(0, 3, 4),
+                MIDIEvent.pack(0xF8, 0, 0, 1),
+                MIDIEvent.controlChange(0, 5, 6),
+                MIDIEvent.noteOn(1, 60, 100)
+        };
+
+        for (long event : sent)
+            assertTrue(encoder.add(event));
+        assertTrue(encoder.addSysEx(new byte[]{1, 2, 3}, 0, 3));
+
+        // running status omits two status bytes
+        assertEquals(3 + 2 + 1 + 2 + 3 + 5, encoder.length());
+
+        MIDICommand command = MIDICommand.allocate(encoder.length())
+                .fill(encoder.getBufferArray(), 0, encoder.length());
+        assertEquals(6, command.decode(decoder, handler));
+
+        for (int i = 0; i < sent.length; i++)
+            assertEquals(sent[i], (long) events.get(i));
+        assertArrayEquals(new byte[]{1, 2, 3}, sysex.get(0));
+    }
+
+    @Test
+    public void testEncoderCapacity() {
+        MIDIEncoder encoder = new MIDIEncoder(4, false);
+
+        assertTrue(encoder.add(MIDIEvent.noteOn(0, 1, 1)));
+        assertFalse(encoder.add(MIDIEvent.noteOn(0, 2, 1)));
+        assertEquals(3, encoder.length());
+    }
+
+    @Test
+    public void testBinaryBytesPreserved() {
+        byte[] bytes = new byte[]{(byte) 0x90, 60, 127};
+        MIDICommand command = MIDICommand.fromBytes(bytes);
+
+        assertEquals(0x90, command.charAt(0));
+        assertArrayEquals(bytes, Util.createByteArray(command));
+    }
+
+    private void decode(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        decoder.decode(bytes, 0, bytes.length, handler);
+    }
+}
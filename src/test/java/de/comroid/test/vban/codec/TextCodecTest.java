@@ -0,0 +1,71 @@
+package de.comroid.test.vban.codec;
+
+import java.nio.CharBuffer;
+
+import de.comroid.vban.VBAN.CommandFormat;
+import de.comroid.vban.codec.TextCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextCodecTest {
+    private static final String TEXT = "Strip[0].Label=\"Gr\u00fc\u00dfe \u266b\";";
+
+    private TextCodec codec;
+    private byte[] buffer;
+
+    @Before
+    public void setUp() {
+        codec = new TextCodec();
+        buffer = new byte[64];
+    }
+
+    @Test
+    public void testRoundTripUTF8() {
+        int length = codec.encode(TEXT, CommandFormat.UTF8, buffer, 4, buffer.length - 4);
+
+        assertEquals(TEXT.getBytes(CommandFormat.UTF8.getCharset()).length, length);
+        assertEquals(TEXT, codec.decode(buffer, 4, length, CommandFormat.UTF8).toString());
+    }
+
+    @Test
+    public void testRoundTripWCHAR() {
+        int length = codec.encode(TEXT, CommandFormat.WCHAR, buffer, 0, buffer.length);
+
+        assertEquals(TEXT.length() * 2, length);
+        // little endian, without a byte order mark
+        assertEquals('S', buffer[0]);
+        assertEquals(0, buffer[1]);
+
+        StringBuilder out = new StringBuilder("> ");
+        assertEquals(TEXT.length(), codec.decode(buffer, 0, length, CommandFormat.WCHAR, out));
+        assertEquals("> " + TEXT, out.toString());
+    }
+
+    @Test
+    public void testDecodeStopsAtPadding() {
+        int length = codec.encode("Bus[0].Mute=1;", CommandFormat.ASCII, buffer, 0, buffer.length);
+
+        CharBuffer decoded = codec.decode(buffer, 0, buffer.length, CommandFormat.ASCII);
+        assertEquals(length, decoded.remaining());
+        assertEquals("Bus[0].Mute=1;", decoded.toString());
+
+        // a single zero byte is part of a wide char, only a zero pair terminates
+        length = codec.encode("\u0100A", CommandFormat.WCHAR, buffer, 0, buffer.length);
+        buffer[length] = buffer[length + 1] = 0;
+        assertEquals("\u0100A", codec.decode(buffer, 0, buffer.length, CommandFormat.WCHAR).toString());
+    }
+
+    @Test
+    public void testEncodeOverflow() {
+        assertEquals(-1, codec.encode(TEXT, CommandFormat.UTF8, buffer, 0, 8));
+        assertEquals(-1, codec.encode("ab", CommandFormat.WCHAR, buffer, 0, 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnmappableASCII() {
+        codec.encode(TEXT, CommandFormat.ASCII, buffer, 0, buffer.length);
+    }
+}
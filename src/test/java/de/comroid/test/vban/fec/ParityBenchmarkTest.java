@@ -0,0 +1,94 @@
+package de.comroid.test.vban.fec;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.fec.ParityEncoder;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the bandwidth overhead and the recovery rate of parity for several group sizes, by passing a stream of
+ * 256 sample stereo INT16 datagrams through a harness that drops datagrams at random. Results are printed to stdout.
+ */
+public class ParityBenchmarkTest {
+    private static final int PACKETS = 100_000;
+    private static final int[] GROUP_SIZES = {2, 4, 8, 16};
+    private static final double[] LOSS_RATES = {0.005, 0.01, 0.02, 0.05};
+
+    @Test(timeout = 60000)
+    public void benchmarkRecovery() {
+        byte[][] packets = new byte[64][];
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = ParityCodingTest.packet(i, 2, VBAN.Codec.PCM, 256 * 2 * 2);
+
+        for (double lossRate : LOSS_RATES) {
+            double unrecovered = 0;
+
+            for (int groupSize : GROUP_SIZES) {
+                Result result = run(packets, groupSize, lossRate, new Random(groupSize));
+                System.out.printf("K=%-2d  loss %.1f%%  overhead %5.1f%%  recovered %5.1f%% of lost  residual loss %.3f%%%n",
+                        groupSize, lossRate * 100, 100.0 * result.wireBytes / result.dataBytes - 100,
+                        100.0 * result.recovered / result.lost, 100.0 * (result.lost - result.recovered) / PACKETS);
+
+                // larger groups cost less, and recover less
+                double next = (double) (result.lost - result.recovered) / result.lost;
+                assertTrue(next >= unrecovered - 0.05);
+                unrecovered = next;
+            }
+        }
+    }
+
+    private static Result run(byte[][] packets, int groupSize, double lossRate, Random random) {
+        ParityEncoder encoder = new ParityEncoder(groupSize);
+        ParityDecoder decoder = new ParityDecoder(4 * groupSize);
+        VBANPacketView view = new VBANPacketView();
+        VBANPacketView recovered = new VBANPacketView();
+        ByteBuffer parity = ByteBuffer.allocate(packets[0].length + 64);
+        Result result = new Result();
+
+        for (int counter = 0; counter < PACKETS; counter++) {
+            byte[] packet = packets[counter % packets.length];
+            // the frame counter is the last field of the head
+            packet[24] = (byte) (counter >> 24);
+            packet[25] = (byte) (counter >> 16);
+            packet[26] = (byte) (counter >> 8);
+            packet[27] = (byte) counter;
+
+            result.dataBytes += packet.length;
+            result.wireBytes += packet.length;
+            boolean complete = encoder.add(ByteBuffer.wrap(packet));
+            if (random.nextDouble() < lossRate) {
+                result.lost++;
+            } else {
+                view.wrap(packet, 0, packet.length);
+                decoder.receive(view, recovered);
+            }
+
+            if (complete) {
+                parity.clear();
+                int length = encoder.writeParity(parity);
+                result.wireBytes += length;
+                if (random.nextDouble() >= lossRate) {
+                    view.wrap(parity.array(), 0, length);
+                    if (decoder.receive(view, recovered) == ParityDecoder.Outcome.RECOVERED)
+                        result.recovered++;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static final class Result {
+        private long dataBytes;
+        private long wireBytes;
+        private long lost;
+        private long recovered;
+    }
+}
@@ -0,0 +1,189 @@
+package de.comroid.test.vban.fec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.fec.ParityDecoder;
+import de.comroid.vban.fec.ParityEncoder;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.StreamMonitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParityCodingTest {
+    @Test
+    public void testRestoresAnySingleLoss() {
+        for (int lost = 0; lost < 4; lost++) {
+            ParityEncoder encoder = new ParityEncoder(4);
+            ParityDecoder decoder = new ParityDecoder(16);
+            VBANPacketView view = new VBANPacketView();
+            VBANPacketView recovered = new VBANPacketView();
+            byte[][] group = new byte[4][];
+
+            for (int i = 0; i < 4; i++) {
+                // payloads of different lengths, as compressed audio has them
+                group[i] = packet(100 + i, 2, VBAN.Codec.USER, 10 + 7 * i);
+                assertEquals(i == 3, encoder.add(ByteBuffer.wrap(group[i])));
+                if (i != lost) {
+                    view.wrap(group[i], 0, group[i].length);
+                    assertEquals(ParityDecoder.Outcome.DATA, decoder.receive(view, recovered));
+                }
+            }
+
+            byte[] parity = parity(encoder);
+            view.wrap(parity, 0, parity.length);
+            assertEquals(DecodeStatus.OK, view.getStatus());
+            assertTrue(ParityDecoder.isParity(view));
+            assertEquals(100, view.getFrameCounter());
+            assertEquals(4, view.getSamples());
+
+            assertEquals(ParityDecoder.Outcome.RECOVERED, decoder.receive(view, recovered));
+            assertArrayEquals(group[lost],
+                    Arrays.copyOfRange(recovered.getBuffer(), recovered.getOffset(), recovered.getLength()));
+            assertEquals(100 + lost, recovered.getFrameCounter());
+            assertFalse(ParityDecoder.isParity(recovered));
+            assertEquals(1, decoder.getRecovered());
+        }
+    }
+
+    @Test
+    public void testCannotRestoreTwoLosses() {
+        ParityEncoder encoder = new ParityEncoder(4);
+        ParityDecoder decoder = new ParityDecoder(16);
+        VBANPacketView view = new VBANPacketView();
+
+        for (int i = 0; i < 4; i++) {
+            byte[] packet = packet(i, 1, VBAN.Codec.PCM, 64);
+            encoder.add(ByteBuffer.wrap(packet));
+            if (i == 0 || i == 3) {
+                view.wrap(packet, 0, packet.length);
+                decoder.receive(view, null);
+            }
+        }
+
+        byte[] parity = parity(encoder);
+        view.wrap(parity, 0, parity.length);
+        assertEquals(ParityDecoder.Outcome.PARITY, decoder.receive(view, new VBANPacketView()));
+        assertEquals(1, decoder.getUnrecoverable());
+        assertEquals(0, decoder.getRecovered());
+    }
+
+    @Test
+    public void testStartsNewGroupAtCounterGap() {
+        ParityEncoder encoder = new ParityEncoder(2);
+
+        assertFalse(encoder.add(ByteBuffer.wrap(packet(0, 1, VBAN.Codec.PCM, 8))));
+        assertFalse(encoder.add(ByteBuffer.wrap(packet(5, 1, VBAN.Codec.PCM, 8))));
+        assertTrue(encoder.add(ByteBuffer.wrap(packet(6, 1, VBAN.Codec.PCM, 8))));
+        assertEquals(1, encoder.getUnprotectedGroups());
+
+        // text is never protected
+        byte[] text = new VBANPacket<>(new VBANPacketHead<>(0x40, 0, 0, 0, 0x10, 0, "Stream1", 7),
+                new byte[8]).getBytes();
+        assertFalse(encoder.add(ByteBuffer.wrap(text)));
+        assertEquals(3, encoder.getPackets());
+    }
+
+    @Test(timeout = 10000)
+    public void testOutputStreamSendsParity() throws IOException {
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSamples((byte) 16)
+                        .setChannel((byte) 2)
+                        .build())
+                .build();
+        VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<AudioFrame> out = VBAN.openAudioOutputStream(factory, InetAddress.getLoopbackAddress(),
+                in.getPort()).setParityEncoder(new ParityEncoder(4));
+        ParityDecoder decoder = new ParityDecoder(16);
+        VBANPacketView view = new VBANPacketView();
+        VBANPacketView recovered = new VBANPacketView();
+
+        try {
+            for (int i = 0; i < 8; i++) {
+                out.sendPayload(ByteBuffer.wrap(new byte[64]));
+                assertEquals(DecodeStatus.OK, in.receive(view));
+                assertEquals(i, view.getFrameCounter());
+                assertEquals(ParityDecoder.Outcome.DATA, decoder.receive(view, recovered));
+
+                if (i % 4 == 3) {
+                    assertEquals(DecodeStatus.OK, in.receive(view));
+                    assertTrue(ParityDecoder.isParity(view));
+                    assertEquals(i - 3, view.getFrameCounter());
+                    assertEquals(ParityDecoder.Outcome.PARITY, decoder.receive(view, recovered));
+                }
+            }
+
+            assertEquals(8, out.getDatagramsSent());
+            assertEquals(2, decoder.getParityPackets());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPlainReaderSkipsParity() throws IOException {
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSamples((byte) 16)
+                        .setChannel((byte) 2)
+                        .build())
+                .build();
+        StreamMonitor monitor = new StreamMonitor();
+        VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0)
+                .setStreamMonitor(monitor);
+        VBANOutputStream<AudioFrame> out = VBAN.openAudioOutputStream(factory, InetAddress.getLoopbackAddress(),
+                in.getPort()).setParityEncoder(new ParityEncoder(2));
+        AudioFrame frame = AudioFrame.allocate(VBANPacket.MAX_SIZE_WITHOUT_HEAD);
+
+        try {
+            for (int i = 0; i < 6; i++) {
+                byte[] payload = new byte[64];
+                Arrays.fill(payload, (byte) (i + 1));
+                out.sendPayload(ByteBuffer.wrap(payload));
+
+                // the parity datagram after every second one is skipped
+                assertEquals(frame, in.readData(frame));
+                assertArrayEquals(payload, Arrays.copyOf(frame.getBufferArray(), frame.length()));
+            }
+
+            StreamMonitor.Snapshot snapshot = monitor.snapshot().get(0);
+            assertEquals(6, snapshot.getPackets());
+            assertEquals(0, snapshot.getOutOfOrder());
+            assertEquals(0, snapshot.getLost());
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    static byte[] packet(int frameCounter, int channels, int codec, int payloadLength) {
+        byte[] payload = new byte[payloadLength];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) (frameCounter * 31 + i * 7);
+
+        return new VBANPacket<>(new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz48000.getValue(), 0, channels - 1,
+                VBAN.AudioFormat.INT16.getValue(), codec, "Stream1", frameCounter), payload).getBytes();
+    }
+
+    static byte[] parity(ParityEncoder encoder) {
+        ByteBuffer buffer = ByteBuffer.allocate(VBANPacket.MAX_SIZE);
+        encoder.writeParity(buffer);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
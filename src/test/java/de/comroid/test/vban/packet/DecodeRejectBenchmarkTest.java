@@ -0,0 +1,97 @@
+package de.comroid.test.vban.packet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.comroid.vban.packet.DecodeStatistics;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of rejecting 100% invalid traffic through {@link VBANPacketView}
+ * with the exception based {@link VBANPacketHead#decode(byte[])}. Results are printed to stdout.
+ */
+public class DecodeRejectBenchmarkTest {
+    private static final int PACKETS = 1024;
+    private static final int ROUNDS = 200;
+
+    @Test(timeout = 60000)
+    public void benchmarkInvalidTraffic() {
+        byte[][] packets = createInvalidTraffic();
+        VBANPacketView view = new VBANPacketView();
+        DecodeStatistics statistics = new DecodeStatistics();
+
+        // warm-up
+        for (int r = 0; r < ROUNDS; r++)
+            for (byte[] packet : packets)
+                statistics.record(view.wrap(packet, 0, packet.length));
+        statistics.reset();
+
+        long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++)
+            for (byte[] packet : packets)
+                statistics.record(view.wrap(packet, 0, packet.length));
+        long viewNanos = System.nanoTime() - start;
+
+        assertEquals(0, statistics.getAccepted());
+        assertEquals((long) PACKETS * ROUNDS, statistics.getRejected());
+
+        int thrown = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < ROUNDS / 10; r++)
+            for (byte[] packet : packets)
+                try {
+                    VBANPacketHead.decode(Arrays.copyOf(packet, VBANPacketHead.SIZE));
+                } catch (Throwable t) {
+                    thrown++;
+                }
+        long legacyNanos = (System.nanoTime() - start) * 10;
+
+        assertEquals(PACKETS * (ROUNDS / 10), thrown);
+
+        System.out.printf("Invalid traffic: view=%,d pkt/s, exceptions=%,d pkt/s, %s%n",
+                (long) PACKETS * ROUNDS * 1_000_000_000L / viewNanos,
+                (long) PACKETS * ROUNDS * 1_000_000_000L / legacyNanos,
+                statistics);
+    }
+
+    private static byte[][] createInvalidTraffic() {
+        Random random = new Random(6980);
+        byte[][] packets = new byte[PACKETS][];
+
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] packet = new byte[VBANPacket.MAX_SIZE];
+            random.nextBytes(packet);
+
+            switch (i % 3) {
+                case 0: // random garbage
+                    packet[0] = 'X';
+                    break;
+                case 1: // service pings
+                    packet[0] = 'V';
+                    packet[1] = 'B';
+                    packet[2] = 'A';
+                    packet[3] = 'N';
+                    packet[4] = 0x60;
+                    break;
+                case 2: // unknown codec
+                    packet[0] = 'V';
+                    packet[1] = 'B';
+                    packet[2] = 'A';
+                    packet[3] = 'N';
+                    packet[4] = 0x03;
+                    packet[7] = 0x31;
+                    break;
+            }
+
+            packets[i] = packet;
+        }
+
+        return packets;
+    }
+}
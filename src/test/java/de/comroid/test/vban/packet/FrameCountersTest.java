@@ -0,0 +1,48 @@
+package de.comroid.test.vban.packet;
+
+import de.comroid.vban.packet.FrameCounters;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCountersTest {
+    @Test
+    public void testClassifiesDeltas() {
+        assertTrue(FrameCounters.isAhead(FrameCounters.delta(5, 6)));
+        assertTrue(FrameCounters.isLate(FrameCounters.delta(5, 5)));
+        assertTrue(FrameCounters.isLate(FrameCounters.delta(5, 5 - FrameCounters.REORDER_WINDOW)));
+        assertTrue(FrameCounters.isAhead(FrameCounters.delta(5, 5 + FrameCounters.REORDER_WINDOW)));
+
+        // far jumps in either direction are a restarted sender
+        int back = FrameCounters.delta(5, 4 - FrameCounters.REORDER_WINDOW);
+        int ahead = FrameCounters.delta(5, 6 + FrameCounters.REORDER_WINDOW);
+        assertFalse(FrameCounters.isLate(back) || FrameCounters.isAhead(back));
+        assertFalse(FrameCounters.isLate(ahead) || FrameCounters.isAhead(ahead));
+
+        // across the wrap-around
+        assertTrue(FrameCounters.isAhead(FrameCounters.delta(Integer.MAX_VALUE, Integer.MIN_VALUE)));
+        assertTrue(FrameCounters.isLate(FrameCounters.delta(Integer.MIN_VALUE, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testHashesOnlyTheStreamName() {
+        byte[] a = packet("Stream1", 1);
+        byte[] b = new byte[a.length + 3];
+        System.arraycopy(packet("Stream1", 2), 0, b, 3, a.length);
+
+        assertEquals(FrameCounters.hashStreamName(a, 0), FrameCounters.hashStreamName(b, 3));
+        assertNotEquals(FrameCounters.hashStreamName(a, 0), FrameCounters.hashStreamName(packet("Stream2", 1), 0));
+        assertEquals(1, FrameCounters.toKey(0));
+    }
+
+    private static byte[] packet(String streamName, int frameCounter) {
+        return new VBANPacket<>(new VBANPacketHead<>(0x40, 0, 0, 0, 0, 0, streamName, frameCounter),
+                new byte[4]).getBytes();
+    }
+}
@@ -0,0 +1,63 @@
+package de.comroid.test.vban.packet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.HeaderCache;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HeaderCacheTest {
+    @Test
+    public void testReusesHeadUntilFormatChanges() throws Exception {
+        final List<String> changes = new ArrayList<>();
+        HeaderCache cache = new HeaderCache(new HeaderCache.Listener() {
+            @Override
+            public void onHeaderChanged(VBANPacketHead.Decoded previous, VBANPacketHead.Decoded current) {
+                changes.add(previous.getDataRateValue() + "->" + current.getDataRateValue());
+            }
+        });
+
+        VBANPacketHead.Decoded first = cache.decode(audio(VBAN.SampleRate.Hz48000, 0));
+        for (int i = 1; i < 100; i++) {
+            assertSame(first, cache.decode(audio(VBAN.SampleRate.Hz48000, i)));
+            assertEquals(i, cache.getFrameCounter());
+        }
+        assertEquals(99, cache.getHits());
+        assertEquals(0, changes.size());
+
+        VBANPacketHead.Decoded changed = cache.decode(audio(VBAN.SampleRate.Hz44100, 100));
+        assertEquals(VBAN.SampleRate.Hz44100, changed.getDataRateValue());
+        assertEquals(100, cache.getFrameCounter());
+        assertEquals(1, cache.getChanges());
+        assertEquals("Hz48000->Hz44100", changes.get(0));
+
+        // the first head after a reset is no change
+        cache.reset();
+        cache.decode(audio(VBAN.SampleRate.Hz48000, 101));
+        assertEquals(1, cache.getChanges());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidView() throws Exception {
+        VBANPacketView view = new VBANPacketView();
+        view.wrap(new byte[]{1, 2, 3}, 0, 3);
+
+        new HeaderCache().decode(view);
+    }
+
+    private static VBANPacketView audio(VBAN.SampleRate sampleRate, int frameCounter) {
+        byte[] packet = new VBANPacket<>(new VBANPacketHead<>(0x00, sampleRate.getValue(), 0, 1,
+                VBAN.AudioFormat.INT16.getValue(), 0, "Stream1", frameCounter), new byte[4]).getBytes();
+        VBANPacketView view = new VBANPacketView();
+        view.wrap(packet, 0, packet.length);
+        return view;
+    }
+}
@@ -0,0 +1,96 @@
+package de.comroid.test.vban.packet;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.DecodeStatistics;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VBANPacketViewTest {
+    private VBANPacketView view;
+    private byte[] audio;
+
+    @Before
+    public void setUp() {
+        view = new VBANPacketView();
+
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSRValue(VBAN.SampleRate.Hz44100)
+                        .setFormatValue(VBAN.AudioFormat.INT24)
+                        .setCodec(VBAN.Codec.USER)
+                        .setStreamName("Stream1")
+                        .build())
+                .build();
+
+        factory.create();
+        audio = factory.create().setData(new byte[]{1, 2, 3, 4}).getBytes();
+    }
+
+    @Test
+    public void testValidAudio() {
+        assertEquals(DecodeStatus.OK, view.wrap(audio, 0, audio.length));
+
+        assertEquals(VBAN.Protocol.AUDIO, view.getProtocol());
+        assertEquals(VBAN.SampleRate.Hz44100, view.getDataRateValue());
+        assertEquals(VBAN.AudioFormat.INT24, view.getFormat());
+        assertEquals(VBAN.Codec.USER, view.getCodec());
+        assertEquals(256, view.getSamples());
+        assertEquals(3, view.getChannels());
+        assertEquals(1, view.getFrameCounter());
+        assertEquals(4, view.getPayloadLength());
+        assertEquals(1, audio[view.getPayloadOffset()]);
+        assertTrue(view.streamNameEquals("Stream1"));
+        assertFalse(view.streamNameEquals("Stream"));
+        assertFalse(view.streamNameEquals("Stream12"));
+        assertEquals("Stream1", view.getStreamName());
+    }
+
+    @Test
+    public void testRejects() {
+        assertEquals(DecodeStatus.TRUNCATED, view.wrap(audio, 0, VBANPacketHead.SIZE - 1));
+
+        byte[] bytes = audio.clone();
+        bytes[0] = 'X';
+        assertEquals(DecodeStatus.BAD_MAGIC, view.wrap(bytes, 0, bytes.length));
+
+        bytes = audio.clone();
+        bytes[4] = 0x60; // SERVICE
+        assertEquals(DecodeStatus.UNSUPPORTED_PROTOCOL, view.wrap(bytes, 0, bytes.length));
+
+        bytes = audio.clone();
+        bytes[4] = 0x1F;
+        assertEquals(DecodeStatus.BAD_DATA_RATE, view.wrap(bytes, 0, bytes.length));
+
+        bytes = audio.clone();
+        bytes[7] = (byte) 0x30;
+        assertEquals(DecodeStatus.BAD_CODEC, view.wrap(bytes, 0, bytes.length));
+
+        bytes = audio.clone();
+        bytes[4] = 0x20; // SERIAL
+        bytes[7] = 0x01;
+        assertEquals(DecodeStatus.BAD_FORMAT, view.wrap(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void testStatistics() {
+        DecodeStatistics statistics = new DecodeStatistics();
+
+        statistics.record(view.wrap(audio, 0, audio.length));
+        statistics.record(view.wrap(audio, 0, 3));
+        statistics.record(view.wrap(new byte[VBANPacketHead.SIZE], 0, VBANPacketHead.SIZE));
+
+        assertEquals(1, statistics.getAccepted());
+        assertEquals(2, statistics.getRejected());
+        assertEquals(1, statistics.get(DecodeStatus.BAD_MAGIC));
+    }
+}
@@ -0,0 +1,80 @@
+package de.comroid.test.vban.receive;
+
+import java.util.Arrays;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.receive.PacketRing;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the latency between publishing a slot on one thread and consuming it on another,
+ * once per {@link WaitStrategy}. Results are printed to stdout.
+ */
+public class PacketRingBenchmarkTest {
+    private static final int WARMUP = 20_000;
+    private static final int SAMPLES = 50_000;
+    private static final long PACE_NANOS = 5_000;
+
+    @Test(timeout = 60000)
+    public void benchmarkHandoffLatency() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            long[] latencies = measure(strategy);
+            Arrays.sort(latencies);
+
+            System.out.printf("PacketRing handoff [%-9s] p50=%6dns p90=%6dns p99=%6dns p99.9=%7dns max=%8dns%n",
+                    strategy,
+                    percentile(latencies, 0.5),
+                    percentile(latencies, 0.9),
+                    percentile(latencies, 0.99),
+                    percentile(latencies, 0.999),
+                    latencies[latencies.length - 1]);
+        }
+    }
+
+    private static long[] measure(WaitStrategy strategy) throws InterruptedException {
+        final PacketRing ring = new PacketRing(1024, strategy);
+        final long[] latencies = new long[SAMPLES];
+        final int total = WARMUP + SAMPLES;
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    long due = System.nanoTime() + PACE_NANOS;
+                    while (System.nanoTime() < due) {
+                        // pace the producer, so that latency is not dominated by queueing
+                    }
+
+                    ring.claim();
+                    ring.publish(i, System.nanoTime());
+                }
+            }
+        });
+        producer.start();
+
+        final int[] received = new int[1];
+        PacketRing.Handler handler = new PacketRing.Handler() {
+            @Override
+            public void onPacket(byte[] buffer, int length, long receiveNanos) {
+                long latency = System.nanoTime() - receiveNanos;
+                if (length >= WARMUP)
+                    latencies[length - WARMUP] = latency;
+                received[0]++;
+            }
+        };
+        while (received[0] < total)
+            ring.take(handler);
+
+        producer.join();
+        assertEquals(total, received[0]);
+
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+}
@@ -0,0 +1,135 @@
+package de.comroid.test.vban.receive;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.receive.PacketRing;
+import de.comroid.vban.receive.RingReceiver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingTest {
+    @Test
+    public void testCapacityRounding() {
+        assertEquals(8, new PacketRing(5, WaitStrategy.BUSY_SPIN).capacity());
+        assertEquals(1, new PacketRing(1, WaitStrategy.BUSY_SPIN).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new PacketRing(0, WaitStrategy.BUSY_SPIN);
+    }
+
+    @Test
+    public void testStagedBatch() {
+        PacketRing ring = new PacketRing(4, WaitStrategy.BUSY_SPIN);
+
+        for (int i = 0; i < 3; i++) {
+            ring.tryClaimBuffer().put((byte) i);
+            ring.stage(1, i);
+        }
+        // staged slots are invisible until committed
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.acquire(8));
+        assertEquals(3, ring.commit());
+
+        assertEquals(3, ring.acquire(8));
+        assertEquals(2, ring.acquire(2));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, ring.getSlot(i)[0]);
+            assertEquals(1, ring.getLength(i));
+            assertEquals(i, ring.getReceiveNanos(i));
+        }
+
+        // only one slot left until the batch is released
+        assertNotNull(ring.tryClaimBuffer());
+        ring.stage(1, 3);
+        assertNull(ring.tryClaimBuffer());
+        ring.release(3);
+        assertEquals(0, ring.tryClaimBuffer().position());
+        assertEquals(1, ring.commit());
+        assertEquals(1, ring.size());
+    }
+
+    @Test
+    public void testFullAndWrap() {
+        PacketRing ring = new PacketRing(2, WaitStrategy.BUSY_SPIN);
+        final int[] seen = new int[1];
+
+        for (int round = 0; round < 5; round++) {
+            byte[] slot = ring.tryClaim();
+            assertNotNull(slot);
+            slot[0] = (byte) round;
+            ring.publish(1, round);
+            ring.tryClaim()[0] = (byte) (round + 100);
+            ring.publish(1, round);
+
+            assertNull(ring.tryClaim());
+            assertEquals(2, ring.size());
+
+            final int expected = round;
+            assertEquals(2, ring.drain(new PacketRing.Handler() {
+                @Override
+                public void onPacket(byte[] buffer, int length, long receiveNanos) {
+                    assertEquals(1, length);
+                    assertEquals(expected, receiveNanos);
+                    seen[0]++;
+                }
+            }, 10));
+            assertEquals(0, ring.size());
+        }
+
+        assertEquals(10, seen[0]);
+    }
+
+    @Test
+    public void testAudioFramePayload() {
+        PacketRing ring = new PacketRing(4, WaitStrategy.BUSY_SPIN);
+        AudioFrame frame = AudioFrame.allocate(16);
+
+        assertFalse(ring.poll(frame));
+
+        byte[] slot = ring.claim();
+        for (int i = 0; i < 4; i++)
+            slot[VBANPacketHead.SIZE + i] = (byte) (i + 1);
+        ring.publish(VBANPacketHead.SIZE + 4, 0);
+
+        assertTrue(ring.poll(frame));
+        assertEquals(4, frame.length());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, frame.getBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void testReceiveFromStream() throws IOException {
+        VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<AudioFrame> out = VBAN.openAudioOutputStream(InetAddress.getLoopbackAddress(), in.getPort());
+        PacketRing ring = new PacketRing(16, WaitStrategy.YIELD);
+        RingReceiver receiver = new RingReceiver(in, ring).start();
+
+        try {
+            AudioFrame frame = AudioFrame.allocate(16);
+
+            for (byte i = 0; i < 3; i++) {
+                out.sendData(AudioFrame.fromBytes(new byte[]{i, i, i}));
+                ring.take(frame);
+                assertArrayEquals(new byte[]{i, i, i}, frame.getBytes());
+            }
+        } finally {
+            receiver.close();
+            out.close();
+        }
+    }
+}
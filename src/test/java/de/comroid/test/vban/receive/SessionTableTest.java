@@ -0,0 +1,197 @@
+package de.comroid.test.vban.receive;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.SessionTable;
+import de.comroid.vban.receive.VBANReceiver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTableTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testSeparatesSenders() throws IOException {
+        SessionTable<Object> table = new SessionTable<>(1, TimeUnit.SECONDS, null);
+        InetAddress hostA = InetAddress.getByName("10.0.0.1");
+        InetAddress hostB = InetAddress.getByName("10.0.0.2");
+
+        SessionTable.Session<Object> a = table.record(hostA, 6980, view("Stream1", 0), 0);
+        SessionTable.Session<Object> b = table.record(hostB, 6980, view("Stream1", 0), 0);
+        SessionTable.Session<Object> otherPort = table.record(hostA, 6981, view("Stream1", 0), 0);
+        SessionTable.Session<Object> otherName = table.record(hostA, 6980, view("Stream2", 0), 0);
+
+        assertNotSame(a, b);
+        assertNotSame(a, otherPort);
+        assertNotSame(a, otherName);
+        assertSame(a, table.record(InetAddress.getByName("10.0.0.1"), 6980, view("Stream1", 3), 10));
+        assertEquals(4, table.size());
+
+        assertEquals(2, a.getPackets());
+        assertEquals(2, a.getLost());
+        assertEquals(3, a.getLastFrameCounter());
+        assertEquals(10, a.getLastSeenNanos());
+        assertEquals("Stream1", a.getStreamName());
+        assertEquals(hostA, a.getAddress());
+        assertEquals(VBAN.Protocol.TEXT, a.getProtocol());
+
+        byte[] header = new byte[VBANPacketHead.SIZE];
+        a.copyLastHeader(header, 0);
+        byte[] expected = new byte[VBANPacketHead.SIZE];
+        System.arraycopy(ShardedReceiverTest.packet("Stream1", 3), 0, expected, 0, expected.length);
+        assertArrayEquals(expected, header);
+    }
+
+    @Test
+    public void testEvictsIdleSessions() throws IOException {
+        final List<String> ended = new ArrayList<>();
+        SessionTable<StringBuilder> table = new SessionTable<>(1, TimeUnit.SECONDS,
+                new SessionTable.Listener<StringBuilder>() {
+                    @Override
+                    public StringBuilder onSessionStarted(SessionTable.Session<StringBuilder> session) {
+                        return new StringBuilder(session.getStreamName());
+                    }
+
+                    @Override
+                    public void onSessionEnded(SessionTable.Session<StringBuilder> session) {
+                        ended.add(session.getState().toString());
+                    }
+                });
+        InetAddress host = InetAddress.getLoopbackAddress();
+        long start = System.nanoTime();
+
+        SessionTable.Session<StringBuilder> quiet = table.record(host, 1, view("Quiet", 0), start);
+        SessionTable.Session<StringBuilder> busy = table.record(host, 1, view("Busy", 0), start);
+        assertEquals("Quiet", quiet.getState().toString());
+
+        // the busy session keeps sending; its timer is only moved when it expires
+        for (int i = 1; i <= 4; i++) {
+            table.record(host, 1, view("Busy", i), start + i * SECOND / 2);
+            table.evictIdle(start + i * SECOND / 2);
+        }
+
+        assertEquals(Collections.singletonList("Quiet"), ended);
+        assertTrue(quiet.isEvicted());
+        assertFalse(busy.isEvicted());
+        assertEquals(1, table.size());
+
+        assertEquals(1, table.evictIdle(start + 3 * SECOND + table.getTickNanos()));
+        assertEquals(0, table.size());
+        assertEquals(2, table.getEvicted());
+
+        // a resumed sender starts a new session
+        assertNotSame(quiet, table.record(host, 1, view("Quiet", 1), start + 4 * SECOND));
+    }
+
+    @Test
+    public void testReportsFormatChanges() throws IOException {
+        final List<String> changes = new ArrayList<>();
+        SessionTable<Object> table = new SessionTable<>(1, TimeUnit.SECONDS, null)
+                .setFormatListener(new SessionTable.FormatListener<Object>() {
+                    @Override
+                    public void onFormatChanged(SessionTable.Session<Object> session,
+                                                VBANPacketHead.Decoded previous, VBANPacketHead.Decoded current) {
+                        changes.add(session.getStreamName() + ": " + previous.getChannel() + "->"
+                                + current.getChannel());
+                    }
+                });
+        InetAddress host = InetAddress.getLoopbackAddress();
+
+        SessionTable.Session<Object> session = table.record(host, 1, audio(2, 0), 0);
+        VBANPacketHead.Decoded head = session.getHead();
+        table.record(host, 1, audio(2, 1), 1);
+        assertSame(head, session.getHead());
+
+        table.record(host, 1, audio(8, 2), 2);
+        assertEquals(8, session.getHead().getChannel());
+        assertEquals(1, session.getFormatChanges());
+        assertEquals(Collections.singletonList("Stream1: 2->8"), changes);
+    }
+
+    @Test(timeout = 10000)
+    public void testChurnOfTransientSenders() throws IOException {
+        SessionTable<Object> table = new SessionTable<>(1, TimeUnit.SECONDS, 4, null);
+        byte[] address = {10, 0, 0, 0};
+        long now = System.nanoTime();
+
+        for (int round = 0; round < 20; round++, now += 2 * SECOND) {
+            for (int i = 0; i < 5000; i++) {
+                address[2] = (byte) (i >> 8);
+                address[3] = (byte) i;
+                table.record(InetAddress.getByAddress(address), 6980, view("Stream1", round), now);
+            }
+            assertEquals(5000, table.size());
+            assertEquals(5000, table.getSessions().size());
+
+            table.evictIdle(now + 2 * SECOND - 1);
+            assertEquals(0, table.size());
+        }
+
+        assertEquals(100_000, table.getEvicted());
+    }
+
+    @Test(timeout = 10000)
+    public void testReceiverRecordsSources() throws Exception {
+        SessionTable<Object> table = new SessionTable<>(1, TimeUnit.SECONDS, null);
+        VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 16, WaitStrategy.YIELD,
+                VBANReceiver.OverloadPolicy.BLOCK).setSessionTable(table).start();
+
+        try (DatagramChannel first = DatagramChannel.open(); DatagramChannel second = DatagramChannel.open()) {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+            first.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Stream1", 0)), target);
+            second.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Stream1", 0)), target);
+            first.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Stream1", 1)), target);
+
+            while (receiver.getReceived() < 3)
+                Thread.sleep(1);
+
+            List<SessionTable.Session<Object>> sessions = table.getSessions();
+            assertEquals(2, sessions.size());
+            assertEquals(3, sessions.get(0).getPackets() + sessions.get(1).getPackets());
+            assertTrue(sessions.get(0).getPort() != sessions.get(1).getPort());
+
+            // evicted by the receive thread without further traffic
+            while (table.size() > 0)
+                Thread.sleep(10);
+            assertEquals(2, table.getEvicted());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    private static VBANPacketView audio(int channels, int frameCounter) {
+        byte[] packet = new VBANPacket<>(new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz48000.getValue(), 0,
+                channels - 1, VBAN.AudioFormat.INT16.getValue(), 0, "Stream1", frameCounter),
+                new byte[2 * channels]).getBytes();
+        VBANPacketView view = new VBANPacketView();
+        view.wrap(packet, 0, packet.length);
+        return view;
+    }
+
+    private static VBANPacketView view(String streamName, int frameCounter) {
+        byte[] packet = ShardedReceiverTest.packet(streamName, frameCounter);
+        VBANPacketView view = new VBANPacketView();
+        view.wrap(packet, 0, packet.length);
+        return view;
+    }
+}
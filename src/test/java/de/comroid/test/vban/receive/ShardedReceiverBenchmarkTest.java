@@ -0,0 +1,88 @@
+package de.comroid.test.vban.receive;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.receive.PacketRing;
+import de.comroid.vban.receive.ShardedReceiver;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures received packets per second on loopback for 1 to N shards, with several senders flooding one port.
+ * Scaling depends on the amount of cores; results are printed to stdout.
+ */
+public class ShardedReceiverBenchmarkTest {
+    private static final int SENDERS = 8;
+    private static final long DURATION_MILLIS = 1000;
+
+    @Test(timeout = 60000)
+    public void benchmarkShardScaling() throws Exception {
+        Assume.assumeTrue(ShardedReceiver.isReusePortSupported());
+
+        int maxShards = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        System.out.printf("Sharded receive, %d senders, %d cores:%n", SENDERS, Runtime.getRuntime().availableProcessors());
+
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            long pps = run(shards);
+            System.out.printf("  %d shard(s): %,d pkt/s%n", shards, pps);
+            assertTrue(pps > 0);
+        }
+    }
+
+    private static long run(int shards) throws IOException, InterruptedException {
+        final ShardedReceiver receiver = new ShardedReceiver(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0,
+                shards, 4096, WaitStrategy.YIELD).start();
+        final InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] senders = new Thread[SENDERS];
+
+        try {
+            for (int s = 0; s < SENDERS; s++) {
+                final String name = "Sender" + s;
+                senders[s] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try (DatagramChannel channel = DatagramChannel.open()) {
+                            int counter = 0;
+                            while (running.get())
+                                channel.send(ByteBuffer.wrap(ShardedReceiverTest.packet(name, counter++)), target);
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+                senders[s].setDaemon(true);
+                senders[s].start();
+            }
+
+            final long[] received = new long[1];
+            PacketRing.Handler handler = new PacketRing.Handler() {
+                @Override
+                public void onPacket(byte[] buffer, int length, long receiveNanos) {
+                    received[0]++;
+                }
+            };
+
+            long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+            while (System.currentTimeMillis() < deadline)
+                if (receiver.drain(handler, 256) == 0)
+                    Thread.yield();
+
+            return received[0] * 1000 / DURATION_MILLIS;
+        } finally {
+            running.set(false);
+            for (Thread sender : senders)
+                if (sender != null) sender.join();
+            receiver.close();
+        }
+    }
+}
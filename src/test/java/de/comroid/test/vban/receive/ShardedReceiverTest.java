@@ -0,0 +1,150 @@
+package de.comroid.test.vban.receive;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.PacketRing;
+import de.comroid.vban.receive.ShardedReceiver;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedReceiverTest {
+    @Test(timeout = 10000)
+    public void testShardsKeepStreamOrder() throws IOException {
+        Assume.assumeTrue(ShardedReceiver.isReusePortSupported());
+
+        int senders = 8;
+        int frames = 50;
+        ShardedReceiver receiver = new ShardedReceiver(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0,
+                4, 1024, WaitStrategy.YIELD).start();
+        DatagramChannel[] channels = new DatagramChannel[senders];
+
+        try {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+            for (int s = 0; s < senders; s++)
+                channels[s] = DatagramChannel.open();
+
+            final Map<String, Integer> last = new HashMap<>();
+            final VBANPacketView view = new VBANPacketView();
+            PacketRing.Handler handler = new PacketRing.Handler() {
+                @Override
+                public void onPacket(byte[] buffer, int length, long receiveNanos) {
+                    view.wrap(buffer, 0, length);
+                    Integer previous = last.put(view.getStreamName(), view.getFrameCounter());
+                    assertTrue(previous == null || previous < view.getFrameCounter());
+                }
+            };
+
+            // drain while sending, so that no socket buffer overflows while its shard thread waits for the CPU
+            int received = 0;
+            for (int f = 0; f < frames; f++) {
+                for (int s = 0; s < senders; s++)
+                    channels[s].send(ByteBuffer.wrap(packet("Sender" + s, f)), target);
+                Thread.yield();
+                received += receiver.drain(handler, 64);
+            }
+            while (received < senders * frames)
+                received += receiver.drain(handler, 64);
+
+            assertEquals(senders, last.size());
+            for (int count : last.values())
+                assertEquals(frames - 1, count);
+            assertEquals(0, receiver.getLateCount());
+        } finally {
+            for (DatagramChannel channel : channels)
+                if (channel != null) channel.close();
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLateFramesAreDropped() throws IOException {
+        ShardedReceiver receiver = new ShardedReceiver(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0,
+                1, 16, WaitStrategy.YIELD).start();
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+            int[] counters = {5, 3, 5, 6, 100_000};
+            for (int counter : counters)
+                channel.send(ByteBuffer.wrap(packet("Stream1", counter)), target);
+            // another protocol is rejected
+            channel.send(ByteBuffer.wrap(new VBANPacket<>(new VBANPacketHead<>(0x00, 3, 0, 0, 1, 0, "Stream1", 7),
+                    new byte[4]).getBytes()), target);
+
+            final int[] delivered = new int[1];
+            PacketRing.Handler handler = new PacketRing.Handler() {
+                @Override
+                public void onPacket(byte[] buffer, int length, long receiveNanos) {
+                    delivered[0]++;
+                }
+            };
+
+            int consumed = 0;
+            while (consumed < counters.length + 1)
+                consumed += receiver.drain(handler, 16);
+
+            assertEquals(3, delivered[0]);
+            assertEquals(2, receiver.getLateCount());
+            assertEquals(1, receiver.getRejectedCount());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSendersMayShareStreamName() throws IOException {
+        ShardedReceiver receiver = new ShardedReceiver(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0,
+                1, 64, WaitStrategy.YIELD).start();
+
+        try (DatagramChannel a = DatagramChannel.open(); DatagramChannel b = DatagramChannel.open()) {
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+            // both use the default name, with counters far apart
+            for (int f = 0; f < 10; f++) {
+                a.send(ByteBuffer.wrap(packet("Stream1", 500 + f)), target);
+                b.send(ByteBuffer.wrap(packet("Stream1", f)), target);
+            }
+
+            final int[] delivered = new int[1];
+            PacketRing.Handler handler = new PacketRing.Handler() {
+                @Override
+                public void onPacket(byte[] buffer, int length, long receiveNanos) {
+                    delivered[0]++;
+                }
+            };
+
+            int consumed = 0;
+            while (consumed < 20)
+                consumed += receiver.drain(handler, 16);
+
+            assertEquals(20, delivered[0]);
+            assertEquals(0, receiver.getLateCount());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoShards() throws IOException {
+        new ShardedReceiver(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0, 0, 16, WaitStrategy.YIELD);
+    }
+
+    static byte[] packet(String streamName, int frameCounter) {
+        VBANPacketHead<String> head = new VBANPacketHead<>(0x40, 0, 0, 0, 0, 0, streamName, frameCounter);
+
+        return new VBANPacket<>(head, "x".getBytes()).getBytes();
+    }
+}
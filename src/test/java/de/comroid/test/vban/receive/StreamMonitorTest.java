@@ -0,0 +1,125 @@
+package de.comroid.test.vban.receive;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.receive.StreamMonitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StreamMonitorTest {
+    // 256 samples at 48 kHz
+    private static final long PERIOD = 256 * 1_000_000_000L / 48000;
+
+    @Test
+    public void testSteadyCadenceHasNoJitter() {
+        StreamMonitor monitor = new StreamMonitor();
+        byte[] packet = audio("Steady", 0);
+
+        for (int i = 0; i < 1000; i++)
+            monitor.onPacket(counter(packet, i), packet.length, 1_000_000 + i * 256 * 1_000_000_000L / 48000);
+
+        StreamMonitor.Snapshot snapshot = monitor.snapshot("Steady");
+        assertEquals(1000, snapshot.getPackets());
+        assertEquals(0, snapshot.getLost());
+        assertTrue(snapshot.isCadenceKnown());
+        assertTrue(snapshot.toString(), snapshot.getJitterNanos() < 10);
+        assertEquals(PERIOD, snapshot.getInterarrivalMean(), 1);
+        assertTrue(snapshot.getDelayMax() < 10);
+    }
+
+    @Test
+    public void testAlternatingDelayConvergesToJitter() {
+        StreamMonitor monitor = new StreamMonitor();
+        byte[] packet = audio("Bursty", 0);
+
+        // every other packet is one millisecond late
+        for (int i = 0; i < 1000; i++)
+            monitor.onPacket(counter(packet, i), packet.length, i * PERIOD + (i % 2) * 1_000_000);
+
+        StreamMonitor.Snapshot snapshot = monitor.snapshot("Bursty");
+        assertEquals(1_000_000, snapshot.getJitterNanos(), 10_000);
+        assertEquals(1_000_000, snapshot.getDelayP99(), 1_000_000 / 16);
+        assertEquals(PERIOD + 1_000_000, snapshot.getInterarrivalMax(), (PERIOD + 1_000_000) / 16);
+    }
+
+    @Test
+    public void testLossAndReordering() {
+        StreamMonitor monitor = new StreamMonitor();
+        byte[] packet = audio("Lossy", 0);
+        int[] counters = {0, 1, 3, 2, 4, 8, 9};
+
+        for (int i = 0; i < counters.length; i++)
+            monitor.onPacket(counter(packet, counters[i]), packet.length, counters[i] * PERIOD);
+
+        StreamMonitor.Snapshot snapshot = monitor.snapshot("Lossy");
+        assertEquals(7, snapshot.getPackets());
+        assertEquals(4, snapshot.getLost());
+        assertEquals(1, snapshot.getOutOfOrder());
+        assertTrue(snapshot.toString(), snapshot.getJitterNanos() < 10);
+    }
+
+    @Test
+    public void testStreamsAreSeparated() {
+        StreamMonitor monitor = new StreamMonitor();
+
+        for (int s = 0; s < 40; s++) {
+            byte[] packet = audio("Stream" + s, 0);
+            for (int i = 0; i <= s; i++)
+                monitor.onPacket(counter(packet, i), packet.length, i * PERIOD);
+        }
+
+        assertEquals(40, monitor.snapshot().size());
+        for (int s = 0; s < 40; s++)
+            assertEquals(s + 1, monitor.snapshot("Stream" + s).getPackets());
+        assertNull(monitor.snapshot("Unknown"));
+
+        monitor.reset();
+        assertTrue(monitor.snapshot().isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void testInputStreamRecordsTextStream() throws IOException {
+        StreamMonitor monitor = new StreamMonitor();
+
+        try (VBANInputStream<String> in = new VBANInputStream<>(VBAN.Protocol.TEXT, InetAddress.getLoopbackAddress(), 0);
+             DatagramChannel channel = DatagramChannel.open()) {
+            in.setStreamMonitor(monitor);
+            InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), in.getPort());
+
+            for (int i = 0; i < 3; i++)
+                channel.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Command1", i)), target);
+            for (int i = 0; i < 3; i++)
+                in.readText(new StringBuilder());
+        }
+
+        StreamMonitor.Snapshot snapshot = monitor.snapshot("Command1");
+        assertEquals(3, snapshot.getPackets());
+        assertFalse(snapshot.isCadenceKnown());
+        assertEquals(0, snapshot.getJitterNanos());
+    }
+
+    // 256 stereo INT16 samples at 48 kHz
+    private static byte[] audio(String streamName, int frameCounter) {
+        VBANPacketHead<?> head = new VBANPacketHead<>(0x00, 3, 255, 1, 1, 0, streamName, frameCounter);
+
+        return new VBANPacket<>(head, new byte[256 * 2 * 2]).getBytes();
+    }
+
+    private static byte[] counter(byte[] packet, int frameCounter) {
+        ByteBuffer.wrap(packet, 24, 4).putInt(frameCounter);
+        return packet;
+    }
+}
@@ -0,0 +1,79 @@
+package de.comroid.test.vban.receive;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.receive.VBANReceiver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures system calls and CPU time per packet on the receive path of a {@link VBANReceiver}, once per batch size.
+ * Datagrams arrive in bursts, like packets of many streams do. Results are printed to stdout.
+ */
+public class VBANReceiverBenchmarkTest {
+    private static final int PACKETS = 20_480;
+    private static final int BURST = 64;
+    private static final int[] BATCH_SIZES = {1, 4, 16, 64};
+
+    @Test(timeout = 60000)
+    public void benchmarkBatchSize() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        byte[] packet = new VBANPacket<>(new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz48000.getValue(), 0, 0,
+                VBAN.AudioFormat.INT16.getValue(), 0, "Stream1", 0), new byte[512]).getBytes();
+
+        for (int batchSize : BATCH_SIZES) {
+            VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 1024, WaitStrategy.PARK,
+                    VBANReceiver.OverloadPolicy.BLOCK).setBatchSize(batchSize).start();
+
+            try (DatagramChannel channel = DatagramChannel.open()) {
+                InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+                long cpuBefore = receiverCpuNanos(threads);
+
+                for (int sent = 0; sent < PACKETS; ) {
+                    for (int i = 0; i < BURST; i++, sent++)
+                        channel.send(ByteBuffer.wrap(packet), target);
+                    // let the receiver drain the burst, so that the socket buffer never overflows
+                    while (receiver.getReceived() < sent)
+                        Thread.sleep(0, 100_000);
+                }
+                while (receiver.getDelivered() < PACKETS)
+                    Thread.sleep(1);
+
+                long cpu = receiverCpuNanos(threads) - cpuBefore;
+                assertEquals(PACKETS, receiver.getDelivered());
+
+                System.out.printf("VBANReceiver batch=%-3d wakeups/pkt=%.3f syscalls/pkt=%.3f batches/pkt=%.3f "
+                                + "cpu/pkt=%6dns%n",
+                        batchSize,
+                        (double) receiver.getWakeups() / PACKETS,
+                        (double) (receiver.getWakeups() + receiver.getReceiveCalls()) / PACKETS,
+                        (double) receiver.getBatches() / PACKETS,
+                        cpu / PACKETS);
+            } finally {
+                receiver.close();
+            }
+        }
+    }
+
+    // CPU time of the receive thread and the event loop thread
+    private static long receiverCpuNanos(ThreadMXBean threads) {
+        long sum = 0;
+
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().startsWith("VBAN-Receiver"))
+                sum += Math.max(threads.getThreadCpuTime(thread.getId()), 0);
+
+        return sum;
+    }
+}
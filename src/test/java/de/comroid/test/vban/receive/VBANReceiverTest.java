@@ -0,0 +1,238 @@
+package de.comroid.test.vban.receive;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.VBANReceiver;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VBANReceiverTest {
+    @Test(timeout = 10000)
+    public void testDispatchesByProtocol() throws Exception {
+        VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 64, WaitStrategy.PARK,
+                VBANReceiver.OverloadPolicy.BLOCK);
+        final List<Integer> text = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<VBANPacketView> all = Collections.synchronizedList(new ArrayList<VBANPacketView>());
+        receiver.onPacket(VBAN.Protocol.TEXT, new VBANReceiver.PacketHandler() {
+            @Override
+            public void onPacket(VBANPacketView view, long receiveNanos) {
+                text.add(view.getFrameCounter());
+            }
+        }).onPacket(new VBANReceiver.PacketHandler() {
+            @Override
+            public void onPacket(VBANPacketView view, long receiveNanos) {
+                all.add(view.copy());
+            }
+        }).start();
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            InetSocketAddress target = target(receiver);
+            channel.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Command1", 1)), target);
+            channel.send(ByteBuffer.wrap(audio(2)), target);
+            channel.send(ByteBuffer.wrap(new byte[]{1, 2, 3}), target);
+            channel.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Command1", 3)), target);
+
+            awaitDelivered(receiver, 3);
+
+            assertEquals(Arrays.asList(1, 3), text);
+            assertEquals(3, all.size());
+            // copies outlive the borrowed views
+            assertEquals(VBAN.Protocol.AUDIO, all.get(1).getProtocol());
+            assertEquals(2, all.get(1).getFrameCounter());
+            assertEquals(1, receiver.getStatistics().getRejected());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDropCountsOverload() throws Exception {
+        Gate gate = new Gate();
+        VBANReceiver receiver = overloaded(VBANReceiver.OverloadPolicy.DROP, gate, 30);
+
+        try {
+            gate.open.countDown();
+            awaitDelivered(receiver, receiver.getReceived() - receiver.getDropped());
+
+            assertEquals(30, receiver.getReceived());
+            assertTrue(receiver.getDropped() > 0);
+            assertEquals(receiver.getReceived(), receiver.getDelivered() + receiver.getDropped());
+            assertEquals(0, receiver.getCoalesced());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCoalesceKeepsNewest() throws Exception {
+        Gate gate = new Gate();
+        VBANReceiver receiver = overloaded(VBANReceiver.OverloadPolicy.COALESCE, gate, 30);
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            gate.open.countDown();
+            channel.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Command1", 30)), target(receiver));
+            awaitDelivered(receiver, receiver.getReceived() - receiver.getCoalesced());
+
+            assertTrue(receiver.getCoalesced() > 0);
+            assertEquals(0, receiver.getDropped());
+            assertEquals(30, gate.last);
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBlockDeliversEverything() throws Exception {
+        Gate gate = new Gate();
+        VBANReceiver receiver = overloaded(VBANReceiver.OverloadPolicy.BLOCK, gate, 30);
+
+        try {
+            gate.open.countDown();
+            awaitDelivered(receiver, 30);
+
+            assertTrue(receiver.getBlocked() > 0);
+            assertEquals(0, receiver.getDropped());
+            assertEquals(29, gate.last);
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDrainsBatchPerWakeup() throws Exception {
+        VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 64, WaitStrategy.YIELD,
+                VBANReceiver.OverloadPolicy.BLOCK).setBatchSize(8);
+        final List<Integer> counters = Collections.synchronizedList(new ArrayList<Integer>());
+        final int[] largest = new int[1];
+        receiver.onBatch(new VBANReceiver.BatchHandler() {
+            @Override
+            public void onBatch(VBANPacketView[] views, long[] receiveNanos, int count) {
+                largest[0] = Math.max(largest[0], count);
+                for (int i = 0; i < count; i++)
+                    counters.add(views[i].getFrameCounter());
+            }
+        });
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            // queued in the socket before the receiver starts
+            for (int i = 0; i < 20; i++)
+                channel.send(ByteBuffer.wrap(audio(i)), target(receiver));
+            receiver.start();
+            awaitDelivered(receiver, 20);
+
+            for (int i = 0; i < 20; i++)
+                assertEquals(i, (int) counters.get(i));
+            assertTrue(largest[0] <= 8);
+            // three batches, each followed by one wakeup; the last one finds the channel empty
+            assertEquals(21, receiver.getReceiveCalls());
+            assertTrue(receiver.getWakeups() <= 3);
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchSizeBeyondCapacity() throws IOException {
+        VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 16, WaitStrategy.YIELD,
+                VBANReceiver.OverloadPolicy.DROP);
+
+        try {
+            receiver.setBatchSize(17);
+        } finally {
+            receiver.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testHandlerErrorsDoNotStopLoop() throws Exception {
+        VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 8, WaitStrategy.YIELD,
+                VBANReceiver.OverloadPolicy.BLOCK);
+        receiver.onPacket(new VBANReceiver.PacketHandler() {
+            @Override
+            public void onPacket(VBANPacketView view, long receiveNanos) {
+                throw new IllegalStateException("Handler failure " + view.getFrameCounter());
+            }
+        }).start();
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            for (int i = 0; i < 3; i++)
+                channel.send(ByteBuffer.wrap(audio(i)), target(receiver));
+            awaitDelivered(receiver, 3);
+
+            assertEquals(3, receiver.getHandlerErrors());
+            assertEquals("Handler failure 2", receiver.getLastHandlerError().getMessage());
+            assertTrue(receiver.isRunning());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    // a receiver whose handler is stuck until the gate opens, and that has been sent the given amount of packets
+    private static VBANReceiver overloaded(VBANReceiver.OverloadPolicy policy, Gate gate, int packets)
+            throws Exception {
+        VBANReceiver receiver = new VBANReceiver(VBAN.openAudioInputStream(0), 4, WaitStrategy.YIELD, policy)
+                .onPacket(gate)
+                .start();
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            for (int i = 0; i < packets; i++)
+                channel.send(ByteBuffer.wrap(ShardedReceiverTest.packet("Command1", i)), target(receiver));
+        }
+
+        // all datagrams have been taken from the socket, or the receive thread is waiting for room
+        while (receiver.getReceived() < packets && receiver.getBlocked() == 0)
+            Thread.sleep(1);
+        if (policy != VBANReceiver.OverloadPolicy.BLOCK)
+            assertEquals(packets, receiver.getReceived());
+
+        return receiver;
+    }
+
+    private static void awaitDelivered(VBANReceiver receiver, long delivered) throws InterruptedException {
+        while (receiver.getDelivered() < delivered)
+            Thread.sleep(1);
+    }
+
+    private static InetSocketAddress target(VBANReceiver receiver) throws IOException {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getPort());
+    }
+
+    private static byte[] audio(int frameCounter) {
+        VBANPacketHead<byte[]> head = new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz48000.getValue(), 0, 0,
+                VBAN.AudioFormat.INT16.getValue(), 0, "Stream1", frameCounter);
+
+        return new VBANPacket<>(head, new byte[2]).getBytes();
+    }
+
+    private static final class Gate implements VBANReceiver.PacketHandler {
+        private final CountDownLatch open = new CountDownLatch(1);
+        private volatile int last = -1;
+
+        @Override
+        public void onPacket(VBANPacketView view, long receiveNanos) {
+            try {
+                open.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            last = view.getFrameCounter();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package de.comroid.test.vban.send;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.send.AsyncSender;
+import de.comroid.vban.send.AsyncSender.Lane;
+import de.comroid.vban.send.AsyncSender.OverflowPolicy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncSenderTest {
+    @Test(timeout = 10000)
+    public void testControlOvertakesAudio() throws IOException {
+        VBANInputStream<?> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), in.getPort());
+        AsyncSender sender = new AsyncSender(16, OverflowPolicy.BLOCK);
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            // queued before the sender thread runs, so the lanes decide the order
+            for (int i = 0; i < 3; i++)
+                assertTrue(submit(sender, VBAN.Protocol.AUDIO, i, target));
+            assertTrue(submit(sender, VBAN.Protocol.TEXT, 3, target));
+            assertEquals(3, sender.getQueueDepth(Lane.AUDIO));
+            assertEquals(1, sender.getQueueDepth(Lane.CONTROL));
+
+            sender.start();
+
+            // the audio stream rejects the text packet, but it arrives first
+            assertEquals(DecodeStatus.UNSUPPORTED_PROTOCOL, in.receive(view));
+            assertEquals(3, view.getFrameCounter());
+            int[] expected = {0, 1, 2};
+            for (int frame : expected) {
+                assertEquals(DecodeStatus.OK, in.receive(view));
+                assertEquals(frame, view.getFrameCounter());
+            }
+        } finally {
+            sender.close();
+            in.close();
+        }
+
+        assertEquals(4, sender.getSent());
+        assertEquals(4, sender.getSendLatency().getCount());
+        assertEquals(3, sender.getMaxQueueDepth(Lane.AUDIO));
+    }
+
+    @Test
+    public void testDropNewest() throws IOException {
+        AsyncSender sender = new AsyncSender(2, OverflowPolicy.DROP_NEWEST);
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+
+        try {
+            assertTrue(submit(sender, VBAN.Protocol.AUDIO, 0, target));
+            assertTrue(submit(sender, VBAN.Protocol.AUDIO, 1, target));
+            assertFalse(submit(sender, VBAN.Protocol.AUDIO, 2, target));
+            // lanes are independent
+            assertTrue(submit(sender, VBAN.Protocol.TEXT, 3, target));
+
+            assertEquals(1, sender.getDropped(Lane.AUDIO));
+            assertEquals(0, sender.getDropped(Lane.CONTROL));
+        } finally {
+            sender.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testDropOldest() throws IOException {
+        VBANInputStream<?> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), in.getPort());
+        AsyncSender sender = new AsyncSender(2, OverflowPolicy.DROP_OLDEST);
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            for (int i = 0; i < 5; i++)
+                assertTrue(submit(sender, VBAN.Protocol.AUDIO, i, target));
+            assertEquals(3, sender.getDropped(Lane.AUDIO));
+
+            sender.start();
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals(3, view.getFrameCounter());
+            assertEquals(DecodeStatus.OK, in.receive(view));
+            assertEquals(4, view.getFrameCounter());
+        } finally {
+            sender.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testBlock() throws Exception {
+        final AsyncSender sender = new AsyncSender(2, OverflowPolicy.BLOCK);
+        final InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+        final CountDownLatch submitted = new CountDownLatch(1);
+
+        try {
+            assertTrue(submit(sender, VBAN.Protocol.AUDIO, 0, target));
+            assertTrue(submit(sender, VBAN.Protocol.AUDIO, 1, target));
+
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        submit(sender, VBAN.Protocol.AUDIO, 2, target);
+                        submitted.countDown();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            producer.start();
+
+            assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+            sender.start();
+            assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        } finally {
+            sender.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testOutputStreamIntegration() throws IOException {
+        VBANInputStream<String> in = VBAN.openCommandInputStream(InetAddress.getLoopbackAddress(), 0);
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getLoopbackAddress(), in.getPort());
+        AsyncSender sender = new AsyncSender(16, OverflowPolicy.DROP_OLDEST).start();
+
+        try {
+            out.setAsyncSender(sender);
+            out.sendData("Strip[0].Mute=1;");
+
+            assertEquals("Strip[0].Mute=1;", in.readData());
+        } finally {
+            out.close();
+            sender.close();
+            in.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testOutputStreamBroadcast() throws Exception {
+        // the stream enables SO_BROADCAST on its channel, which the sender has to send through
+        VBANOutputStream<String> out = VBAN.openCommandOutputStream(InetAddress.getByName("255.255.255.255"),
+                VBAN.DEFAULT_PORT);
+        AsyncSender sender = new AsyncSender(16, OverflowPolicy.DROP_OLDEST).start();
+
+        try {
+            out.setAsyncSender(sender);
+            out.sendData("Strip[0].Mute=1;");
+            while (sender.getSent() < 1)
+                Thread.sleep(1);
+
+            assertEquals(String.valueOf(sender.getLastError()), 0, sender.getSendErrors());
+        } finally {
+            out.close();
+            sender.close();
+        }
+    }
+
+    @Test
+    public void testDiscardsQueuedOnClose() throws IOException {
+        AsyncSender sender = new AsyncSender(4, OverflowPolicy.BLOCK);
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+
+        // never started, so nothing is sent
+        for (int i = 0; i < 3; i++)
+            assertTrue(submit(sender, VBAN.Protocol.AUDIO, i, target));
+        sender.close();
+
+        assertEquals(3, sender.getDiscarded());
+        assertEquals(0, sender.getSent());
+        assertEquals(0, sender.getQueueDepth(Lane.AUDIO));
+    }
+
+    @Test(timeout = 10000)
+    public void testCountsFailedSendsSeparately() throws IOException, InterruptedException {
+        AsyncSender sender = new AsyncSender(4, OverflowPolicy.BLOCK).start();
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+        DatagramChannel closed = DatagramChannel.open();
+        closed.close();
+        byte[] bytes = new VBANPacket<>(new VBANPacketHead<>(VBAN.Protocol.TEXT.getValue(), 3, 0, 0, 0, 0,
+                "Stream1", 0), new byte[4]).getBytes();
+
+        try {
+            assertTrue(sender.submit(bytes, 0, bytes.length, closed, target));
+            while (sender.getSendErrors() == 0)
+                Thread.sleep(1);
+
+            assertEquals(0, sender.getSent());
+            assertEquals(0, sender.getSendLatency().getCount());
+        } finally {
+            sender.close();
+        }
+    }
+
+    private static boolean submit(AsyncSender sender, VBAN.Protocol<?> protocol, int frame, InetSocketAddress target)
+            throws IOException {
+        VBANPacketHead<?> head = new VBANPacketHead<>(protocol.getValue(), 3, 0, 0, protocol.isText() ? 0 : 1, 0,
+                "Stream1", frame);
+        byte[] bytes = new VBANPacket<>(head, new byte[4]).getBytes();
+
+        return sender.submit(bytes, 0, bytes.length, target);
+    }
+}
@@ -0,0 +1,221 @@
+package de.comroid.test.vban.send;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+import de.comroid.util.concurrent.WaitStrategy;
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.send.SendScheduler;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendSchedulerTest {
+    private static final int SAMPLES = 64;
+
+    @Test
+    public void testStaggersStreamsOfSamePeriod() throws IOException {
+        SendScheduler scheduler = new SendScheduler(1, WaitStrategy.YIELD);
+        long[] phases = new long[8];
+        VBANOutputStream<AudioFrame> out = output(1);
+
+        try {
+            for (int i = 0; i < phases.length; i++)
+                phases[i] = scheduler.add(out, VBAN.SampleRate.Hz48000, SAMPLES, payload(true)).getPhaseNanos();
+        } finally {
+            scheduler.close();
+            out.close();
+        }
+
+        long period = 1_000_000_000L * SAMPLES / 48000;
+        Arrays.sort(phases);
+        long maxGap = period - phases[phases.length - 1] + phases[0];
+        for (int i = 1; i < phases.length; i++)
+            maxGap = Math.max(maxGap, phases[i] - phases[i - 1]);
+        assertTrue(phases[0] >= 0 && phases[phases.length - 1] < period);
+        assertTrue("gap " + maxGap, maxGap < period / 3);
+    }
+
+    @Test(timeout = 10000)
+    public void testStaggersDeadlinesOfStreamsAddedLater() throws Exception {
+        int streams = 6;
+        SendScheduler scheduler = new SendScheduler(1, WaitStrategy.PARK).start();
+        SendScheduler.Stream[] handles = new SendScheduler.Stream[streams];
+        VBANOutputStream<AudioFrame> out = output(1);
+
+        try {
+            for (int i = 0; i < streams; i++) {
+                // added at unrelated times, so that only a shared epoch keeps the phases apart
+                Thread.sleep(1 + i % 3);
+                handles[i] = scheduler.add(out, VBAN.SampleRate.Hz48000, SAMPLES, payload(false));
+            }
+            for (SendScheduler.Stream handle : handles)
+                while (handle.getUnderruns() == 0)
+                    Thread.sleep(1);
+        } finally {
+            scheduler.close();
+            out.close();
+        }
+
+        // every deadline lies on the grid of the same epoch, shifted by the phase of its stream
+        long period = handles[0].getPeriodNanos();
+        long epoch = handles[0].getNextDeadlineNanos() - handles[0].getPhaseNanos();
+        for (int i = 1; i < streams; i++) {
+            long offset = ((handles[i].getNextDeadlineNanos() - handles[i].getPhaseNanos() - epoch) % period
+                    + period) % period;
+            offset = Math.min(offset, period - offset);
+            // the periods only differ by the carried fraction of a nanosecond
+            assertTrue("stream " + i + " off by " + offset + "ns", offset < 1000);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testFailingProducerStopsOnlyItsStream() throws Exception {
+        SendScheduler scheduler = new SendScheduler(1, WaitStrategy.PARK).start();
+        VBANOutputStream<AudioFrame> out = output(1);
+        final IllegalStateException failure = new IllegalStateException("No audio device");
+
+        try {
+            SendScheduler.Stream failing = scheduler.add(out, VBAN.SampleRate.Hz48000, SAMPLES,
+                    new SendScheduler.Producer() {
+                        @Override
+                        public boolean produce(ByteBuffer payload) {
+                            throw failure;
+                        }
+                    });
+            SendScheduler.Stream healthy = scheduler.add(out, VBAN.SampleRate.Hz48000, SAMPLES, payload(false));
+
+            while (scheduler.getStreams() > 1)
+                Thread.sleep(1);
+            long underruns = healthy.getUnderruns();
+            while (healthy.getUnderruns() < underruns + 10)
+                Thread.sleep(1);
+
+            assertTrue(failing.isCancelled());
+            assertEquals(failure, failing.getLastError());
+            assertFalse(healthy.isCancelled());
+        } finally {
+            scheduler.close();
+            out.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testPacesManyStreams() throws Exception {
+        int streams = 32;
+        SendScheduler scheduler = new SendScheduler(2, WaitStrategy.YIELD).start();
+        VBANOutputStream<?>[] outs = new VBANOutputStream<?>[streams];
+        SendScheduler.Stream[] handles = new SendScheduler.Stream[streams];
+
+        // a sink that is never read; the kernel drops what does not fit its buffer
+        try (DatagramChannel sink = DatagramChannel.open()) {
+            sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress) sink.getLocalAddress()).getPort();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < streams; i++) {
+                outs[i] = output(port);
+                handles[i] = scheduler.add(outs[i], VBAN.SampleRate.Hz48000, SAMPLES, payload(true));
+            }
+            Thread.sleep(500);
+            scheduler.close();
+            double expected = (System.nanoTime() - start) / (double) handles[0].getPeriodNanos();
+
+            for (SendScheduler.Stream handle : handles) {
+                assertEquals(expected, handle.getSent() + handle.getSkipped(), expected * 0.1);
+                assertEquals(0, handle.getUnderruns());
+            }
+            System.out.printf("SendScheduler %d streams: lateness p50=%dns p99=%dns max=%dns%n", streams,
+                    handles[0].getLateness().getPercentile(50), handles[0].getLateness().getPercentile(99),
+                    handles[0].getLateness().getMax());
+        } finally {
+            scheduler.close();
+            for (VBANOutputStream<?> out : outs)
+                if (out != null)
+                    out.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCountsUnderrunsAndCancels() throws Exception {
+        SendScheduler scheduler = new SendScheduler(1, WaitStrategy.PARK).start();
+        VBANOutputStream<AudioFrame> out = output(1);
+
+        try {
+            SendScheduler.Stream stream = scheduler.add(out, VBAN.SampleRate.Hz48000, SAMPLES, payload(false));
+            assertEquals(1, scheduler.getStreams());
+            while (stream.getUnderruns() < 10)
+                Thread.sleep(1);
+
+            stream.cancel();
+            while (scheduler.getStreams() > 0)
+                Thread.sleep(1);
+            long underruns = stream.getUnderruns();
+            Thread.sleep(20);
+
+            assertEquals(underruns, stream.getUnderruns());
+            assertEquals(0, stream.getSent());
+            assertTrue(stream.isCancelled());
+        } finally {
+            scheduler.close();
+            out.close();
+        }
+    }
+
+    private static SendScheduler.Producer payload(final boolean available) {
+        return new SendScheduler.Producer() {
+            @Override
+            public boolean produce(ByteBuffer payload) {
+                payload.position(SAMPLES * 2 * 2);
+                return available;
+            }
+        };
+    }
+
+    // the offset within the period at which most sends happen; most sends are on time, so this is the deadline
+    private static long grid(long[] times, long phase, long origin, long period) {
+        long window = period / 20;
+        long best = 0;
+        int most = -1;
+
+        for (long candidate : times) {
+            if (candidate == 0)
+                break;
+            long start = ((candidate - phase - origin) % period + period) % period;
+            int count = 0;
+            for (long time : times) {
+                if (time == 0)
+                    break;
+                long offset = ((time - phase - origin) % period + period) % period;
+                if ((offset - start + period) % period < window)
+                    count++;
+            }
+            if (count > most) {
+                most = count;
+                best = start;
+            }
+        }
+        return best;
+    }
+
+    private static VBANOutputStream<AudioFrame> output(int port) throws IOException {
+        VBANPacket.Factory<AudioFrame> factory = VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setSamples((byte) SAMPLES)
+                        .setChannel((byte) 2)
+                        .build())
+                .build();
+        return VBAN.openAudioOutputStream(factory, InetAddress.getLoopbackAddress(), port);
+    }
+}
@@ -0,0 +1,153 @@
+package de.comroid.test.vban.send;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.VBANInputStream;
+import de.comroid.vban.VBANOutputStream;
+import de.comroid.vban.model.data.AudioFrame;
+import de.comroid.vban.packet.DecodeStatus;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.send.AsyncSender;
+import de.comroid.vban.send.TrafficShaper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficShaperTest {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testAllowsBurstThenPaces() {
+        TrafficShaper shaper = new TrafficShaper(0, 0, 16);
+        TrafficShaper.Stream stream = shaper.register(10_000, 2000);
+
+        assertEquals(0, stream.reserve(1000));
+        assertEquals(0, stream.reserve(1000));
+        // 1000 bytes at 10 kB/s take 100 milliseconds each
+        assertEquals(100 * MILLI, stream.reserve(1000), 50 * MILLI);
+        assertEquals(200 * MILLI, stream.reserve(1000), 50 * MILLI);
+    }
+
+    @Test
+    public void testDropsWhenPacingQueueIsFull() throws IOException {
+        // not started, so held datagrams stay held
+        TrafficShaper shaper = new TrafficShaper(1000, 100, 2);
+        TrafficShaper.Stream stream = shaper.register();
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            for (int i = 0; i < 3; i++)
+                assertTrue(stream.send(ByteBuffer.allocate(100), channel, target));
+            ByteBuffer dropped = ByteBuffer.allocate(100);
+            assertFalse(stream.send(dropped, channel, target));
+            assertEquals(0, dropped.remaining());
+
+            assertEquals(2, shaper.getDelayed());
+            assertEquals(2, shaper.getQueueDepth());
+            assertEquals(1, shaper.getDropped());
+            assertEquals(1, stream.getDropped());
+            // the dropped datagram gave its tokens back
+            assertEquals(3 * TimeUnit.MILLISECONDS.toNanos(100), stream.reserve(100), 10 * MILLI);
+        } finally {
+            shaper.close();
+        }
+
+        // never started, so the held datagrams are discarded
+        assertEquals(2, shaper.getDiscarded());
+        assertEquals(0, shaper.getSent());
+        assertEquals(0, shaper.getQueueDepth());
+    }
+
+    @Test
+    public void testRefundsDatagramsDroppedBySender() throws IOException {
+        TrafficShaper shaper = new TrafficShaper(0, 0, 2);
+        // a burst of three datagrams, so all of them are submitted right away
+        TrafficShaper.Stream stream = shaper.register(1000, 300);
+        AsyncSender sender = new AsyncSender(2, AsyncSender.OverflowPolicy.DROP_NEWEST);
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+        byte[] datagram = new byte[100];
+
+        try {
+            // the sender is not started, so its lane fills up
+            assertTrue(stream.send(datagram, 0, 100, sender, target));
+            assertTrue(stream.send(datagram, 0, 100, sender, target));
+            assertFalse(stream.send(datagram, 0, 100, sender, target));
+
+            // the dropped datagram gave its tokens back
+            assertEquals(0, stream.reserve(100));
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(100), stream.reserve(100), 10 * MILLI);
+            assertEquals(0, shaper.getDelayed());
+        } finally {
+            shaper.close();
+            sender.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCapsStreamsInAggregate() throws IOException {
+        int datagrams = 50;
+        int payload = 100 * 4 * 2;
+        TrafficShaper shaper = new TrafficShaper(500_000, VBANPacket.MAX_SIZE, 256).start();
+        VBANInputStream<AudioFrame> in = VBAN.openAudioInputStream(InetAddress.getLoopbackAddress(), 0);
+        TrafficShaper.Stream[] handles = new TrafficShaper.Stream[2];
+        VBANOutputStream<?>[] outs = new VBANOutputStream<?>[2];
+        VBANPacketView view = new VBANPacketView();
+
+        try {
+            for (int i = 0; i < outs.length; i++) {
+                handles[i] = shaper.register(1_000_000, VBANPacket.MAX_SIZE);
+                outs[i] = VBAN.openAudioOutputStream(factory("Stream" + i), InetAddress.getLoopbackAddress(),
+                        in.getPort()).setTrafficShaper(handles[i]);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < datagrams; i++)
+                outs[i % 2].sendPayload(ByteBuffer.allocate(payload));
+
+            int[] next = new int[2];
+            for (int i = 0; i < datagrams; i++) {
+                assertEquals(DecodeStatus.OK, in.receive(view));
+                int stream = view.getStreamName().equals("Stream0") ? 0 : 1;
+                // held datagrams keep their order
+                assertEquals(next[stream]++, view.getFrameCounter());
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // about 41 kB at 500 kB/s, less the burst
+            assertTrue("elapsed " + elapsed, elapsed >= 70 * MILLI);
+            assertTrue(shaper.getDelayed() >= datagrams - 2);
+            assertTrue(handles[0].getDelayed() > 0 && handles[1].getDelayed() > 0);
+            assertEquals(shaper.getDelayed(), shaper.getDelay().getCount());
+            assertEquals(0, shaper.getDropped());
+        } finally {
+            for (VBANOutputStream<?> out : outs)
+                if (out != null)
+                    out.close();
+            shaper.close();
+            in.close();
+        }
+
+        assertEquals(shaper.getDelayed(), shaper.getSent());
+    }
+
+    private static VBANPacket.Factory<AudioFrame> factory(String streamName) {
+        return VBANPacket.Factory.builder(VBAN.Protocol.AUDIO)
+                .setHeadFactory(VBANPacketHead.Factory.builder(VBAN.Protocol.AUDIO)
+                        .setStreamName(streamName)
+                        .setSamples((byte) 100)
+                        .setChannel((byte) 4)
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,201 @@
+package de.comroid.test.vban.sim;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import de.comroid.vban.VBAN;
+import de.comroid.vban.packet.VBANPacket;
+import de.comroid.vban.packet.VBANPacketHead;
+import de.comroid.vban.packet.VBANPacketView;
+import de.comroid.vban.receive.StreamMonitor;
+import de.comroid.vban.sim.ImpairmentModel;
+import de.comroid.vban.sim.ImpairmentProxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImpairmentProxyTest {
+    private static final int PACKETS = 400;
+
+    @Test
+    public void testModelReplaysDecisions() {
+        ImpairmentModel a = impaired(7).build();
+        ImpairmentModel b = impaired(7).build();
+        long[] delays = new long[1000];
+
+        for (int i = 0; i < delays.length; i++) {
+            ImpairmentModel.Decision decision = a.next();
+            delays[i] = decision.isDropped() ? -1 : decision.getDelayNanos(0);
+            ImpairmentModel.Decision same = b.next();
+            assertEquals(delays[i], same.isDropped() ? -1 : same.getDelayNanos(0));
+        }
+
+        a.reset();
+        for (long delay : delays) {
+            ImpairmentModel.Decision decision = a.next();
+            assertEquals(delay, decision.isDropped() ? -1 : decision.getDelayNanos(0));
+        }
+    }
+
+    @Test
+    public void testBurstLossRate() {
+        // bad for 1 in 5 datagrams, losing half of them, on average in bursts of 4
+        ImpairmentModel model = ImpairmentModel.builder(1).setBurstLoss(0.0625, 0.25, 0.5).build();
+        int lost = 0;
+        int bad = 0;
+
+        for (int i = 0; i < 100_000; i++) {
+            ImpairmentModel.Decision decision = model.next();
+            if (decision.isDropped())
+                lost++;
+            if (decision.isBad())
+                bad++;
+        }
+
+        assertEquals(0.2, bad / 100_000.0, 0.01);
+        assertEquals(0.1, lost / 100_000.0, 0.01);
+    }
+
+    @Test(timeout = 10000)
+    public void testStatisticsAreGroundTruth() throws Exception {
+        Arrivals arrivals = new Arrivals(null);
+
+        try (DatagramChannel receiver = receiver()) {
+            ImpairmentProxy proxy = new ImpairmentProxy(impaired(42).build(),
+                    (InetSocketAddress) receiver.getLocalAddress()).start();
+            try {
+                send(proxy, receiver, arrivals);
+                while (proxy.getReceived() < PACKETS || arrivals.arrived < expectedForwarded(proxy))
+                    arrivals.drain(receiver);
+            } finally {
+                proxy.close();
+            }
+
+            // what arrived matches the proxy's statistics
+            assertEquals(proxy.getForwarded(), arrivals.arrived);
+            assertEquals(proxy.getDuplicated(), arrivals.duplicates);
+            assertTrue(proxy.getReordered() >= arrivals.reordered);
+            assertTrue(arrivals.reordered > 0);
+
+            // a replay of the model knows which datagrams were lost
+            ImpairmentModel replay = impaired(42).build();
+            int lost = 0;
+            for (int i = 0; i < PACKETS; i++) {
+                boolean dropped = replay.next().isDropped();
+                assertEquals("datagram " + i, dropped, !arrivals.seen[i]);
+                if (dropped)
+                    lost++;
+            }
+            assertEquals(proxy.getDropped(), lost);
+            assertTrue(lost > 0);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testReceiverMeasuresLoss() throws Exception {
+        ImpairmentModel model = ImpairmentModel.builder(3)
+                .setLoss(0.02)
+                .setBurstLoss(0.02, 0.3, 0.8)
+                .build();
+        StreamMonitor monitor = new StreamMonitor();
+        Arrivals arrivals = new Arrivals(monitor);
+
+        try (DatagramChannel receiver = receiver()) {
+            ImpairmentProxy proxy = new ImpairmentProxy(model, (InetSocketAddress) receiver.getLocalAddress()).start();
+            try {
+                send(proxy, receiver, arrivals);
+                while (proxy.getReceived() < PACKETS || arrivals.arrived < PACKETS - proxy.getDropped())
+                    arrivals.drain(receiver);
+            } finally {
+                proxy.close();
+            }
+
+            // losses after the last arrival are invisible to the receiver
+            model.reset();
+            long trailing = 0;
+            for (int i = 0; i < PACKETS; i++)
+                if (model.next().isDropped() && i > arrivals.highest)
+                    trailing++;
+            assertTrue(proxy.getBurstDropped() > 0);
+            assertEquals(proxy.getDropped() - trailing, monitor.snapshot("Stream1").getLost());
+        }
+    }
+
+    private static ImpairmentModel.Builder impaired(long seed) {
+        return ImpairmentModel.builder(seed)
+                .setLoss(0.05)
+                .setBurstLoss(0.01, 0.5, 0.5)
+                .setDuplication(0.03)
+                .setDelay(1, TimeUnit.MILLISECONDS)
+                .setJitter(500, TimeUnit.MICROSECONDS, ImpairmentModel.Distribution.EXPONENTIAL)
+                .setReordering(0.05, 3, TimeUnit.MILLISECONDS);
+    }
+
+    private static long expectedForwarded(ImpairmentProxy proxy) {
+        return proxy.getReceived() - proxy.getDropped() + proxy.getDuplicated();
+    }
+
+    private static DatagramChannel receiver() throws IOException {
+        DatagramChannel receiver = DatagramChannel.open();
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver.configureBlocking(false);
+        return receiver;
+    }
+
+    private static void send(ImpairmentProxy proxy, DatagramChannel receiver, Arrivals arrivals) throws Exception {
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.getPort());
+
+        try (DatagramChannel sender = DatagramChannel.open()) {
+            for (int i = 0; i < PACKETS; i++) {
+                byte[] packet = new VBANPacket<>(new VBANPacketHead<>(0x00, VBAN.SampleRate.Hz48000.getValue(), 63, 1,
+                        VBAN.AudioFormat.INT16.getValue(), 0, "Stream1", i), new byte[256]).getBytes();
+                sender.send(ByteBuffer.wrap(packet), target);
+                // keeps the socket buffers from overflowing
+                if (i % 50 == 49) {
+                    Thread.sleep(2);
+                    arrivals.drain(receiver);
+                }
+            }
+        }
+    }
+
+    private static final class Arrivals {
+        private final StreamMonitor monitor;
+        private final ByteBuffer buffer = ByteBuffer.allocate(VBANPacket.MAX_SIZE);
+        private final VBANPacketView view = new VBANPacketView();
+        private final boolean[] seen = new boolean[PACKETS];
+        private int arrived = 0;
+        private int duplicates = 0;
+        private int reordered = 0;
+        private int highest = -1;
+
+        private Arrivals(StreamMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        void drain(DatagramChannel receiver) throws Exception {
+            while (receiver.receive(buffer) != null) {
+                view.wrap(buffer.array(), 0, buffer.position());
+                buffer.clear();
+                if (monitor != null)
+                    monitor.record(view, System.nanoTime());
+
+                int counter = view.getFrameCounter();
+                if (seen[counter])
+                    duplicates++;
+                else if (counter < highest)
+                    reordered++;
+                seen[counter] = true;
+                highest = Math.max(highest, counter);
+                arrived++;
+            }
+            Thread.sleep(1);
+        }
+    }
+}